@@ -0,0 +1,350 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import core.Crawler;
+import datastructure.CacheEntry;
+import datastructure.CachePage;
+import datastructure.Item;
+
+import util.Cache;
+import util.DOMParser;
+import util.HTTPClient;
+import util.HttpResponse;
+import util.PageParser;
+import util.StreamParser;
+import util.Transport;
+
+/**
+ * Class for the benchmarks of page parsing, cache I/O and end to
+ * end page handling, run offline against the recorded result pages
+ * in bench/fixtures.
+ * Usage: Benchmarks [&lt;filter&gt;], where only the benchmarks whose
+ * name contains the filter are run. The system properties
+ * bench.fixtures, bench.warmup, bench.iterations and bench.time
+ * set the fixture folder, the number of warmup and measured
+ * iterations, and the length of each iteration in milliseconds.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class Benchmarks {
+
+    /** the names of the recorded result pages */
+    private static final String[] FIXTURES = { "small", "full", "malformed" };
+
+    /** the cache sizes benchmarked, in pages */
+    private static final int[] CACHE_SIZES = { 100, 1000, 10000 };
+
+    /** the folder of the recorded result pages */
+    private static File fixtures;
+
+    /**
+     * Runs the benchmarks.
+     * @param args The optional name filter.
+     * @throws Exception If a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        fixtures = new File(System.getProperty("bench.fixtures", "bench/fixtures"));
+        String filter = args.length > 0 ? args[0] : "";
+        Harness harness = new Harness(Integer.getInteger("bench.warmup", 3),
+                                      Integer.getInteger("bench.iterations", 5),
+                                      Long.getLong("bench.time", 1000L));
+        List<Harness.Benchmark> benchmarks = new ArrayList<Harness.Benchmark>();
+        for (String fixture : FIXTURES) {
+            benchmarks.add(parse(fixture, false));
+            benchmarks.add(parse(fixture, true));
+            benchmarks.add(getAllItems(fixture));
+            benchmarks.add(getItemsTotalNum(fixture));
+        }
+        for (int size : CACHE_SIZES) {
+            benchmarks.add(cacheInit(size, false));
+            benchmarks.add(cacheInit(size, true));
+            benchmarks.add(cacheAdd(size));
+            benchmarks.add(cacheGet(size));
+        }
+        benchmarks.add(endToEnd("dom"));
+        benchmarks.add(endToEnd("stream"));
+
+        System.out.println(Harness.header());
+        for (Harness.Benchmark benchmark : benchmarks) {
+            if (benchmark.getName().contains(filter))
+                System.out.println(harness.run(benchmark));
+        }
+    }
+
+    //------------------- benchmarks -------------------
+
+    /**
+     * Creates a benchmark reading a result page into its Items
+     * and total number of Items, with either parser.
+     * @param fixture The name of the result page.
+     * @param stream True for StreamParser; false for DOMParser.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark parse(final String fixture, final boolean stream) {
+        return new Harness.Benchmark("parse." + (stream ? "stream." : "dom.") + fixture) {
+            private byte[] page;
+
+            public void setUp() throws IOException {
+                page = fixture(fixture);
+            }
+
+            public Object run() throws IOException {
+                PageParser parser = stream ? new StreamParser() : new DOMParser();
+                parser.parse(new ByteArrayInputStream(page), "UTF-8", "http://www.sears.com/");
+                parser.getItemsTotalNum();
+                return parser.getAllItems();
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark of DOMParser.getAllItems on a result
+     * page already parsed into a DOM Document.
+     * @param fixture The name of the result page.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark getAllItems(final String fixture) {
+        return new Harness.Benchmark("dom.getAllItems." + fixture) {
+            private DOMParser parser;
+
+            public void setUp() throws IOException {
+                parser = new DOMParser();
+                parser.parse(document(fixture));
+            }
+
+            public Object run() {
+                return parser.getAllItems();
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark of DOMParser.getItemsTotalNum on a
+     * result page already parsed into a DOM Document.
+     * @param fixture The name of the result page.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark getItemsTotalNum(final String fixture) {
+        return new Harness.Benchmark("dom.getItemsTotalNum." + fixture) {
+            private DOMParser parser;
+
+            public void setUp() throws IOException {
+                parser = new DOMParser();
+                parser.parse(document(fixture));
+            }
+
+            public Object run() {
+                return parser.getItemsTotalNum();
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark of Cache.init on a cache of this size.
+     * @param size The number of cached pages.
+     * @param rebuild True to rebuild the index from the cache
+     * file each time; false to map the existing index.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark cacheInit(final int size, final boolean rebuild) {
+        return new Harness.Benchmark("cache.init." + (rebuild ? "rebuild." : "") + size) {
+            private File dir;
+
+            public void setUp() throws IOException {
+                dir = populate(size);
+            }
+
+            public Object run() {
+                if (rebuild) {
+                    for (File f : dir.listFiles()) {
+                        if (f.getName().endsWith(".idx"))
+                            f.delete();
+                    }
+                }
+                Cache.init();
+                return null;
+            }
+
+            public void tearDown() {
+                delete(dir);
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark of Cache.addCacheEntry on a cache
+     * of this size, adding a new keyword with one page each time.
+     * @param size The number of pages cached beforehand.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark cacheAdd(final int size) {
+        return new Harness.Benchmark("cache.addCacheEntry." + size) {
+            private File dir;
+            private CacheEntry entry;
+            private int keywords;
+
+            public void setUp() throws IOException {
+                dir = populate(size);
+                Cache.init();
+                HashMap<Integer, List<Item>> result = new HashMap<Integer, List<Item>>();
+                result.put(1, items("full"));
+                entry = new CacheEntry("1,234", result);
+            }
+
+            public Object run() {
+                Cache.addCacheEntry("added" + keywords++, entry);
+                return entry;
+            }
+
+            public void tearDown() {
+                delete(dir);
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark of Cache.getItemsList on a cache of
+     * this size, reading a different cached page each time.
+     * @param size The number of cached pages.
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark cacheGet(final int size) {
+        return new Harness.Benchmark("cache.getItemsList." + size) {
+            private File dir;
+            private int reads;
+
+            public void setUp() throws IOException {
+                dir = populate(size);
+                Cache.init();
+            }
+
+            public Object run() {
+                int i = reads++ % size;
+                return Cache.getItemsList("keyword" + i / 20, i % 20 + 1);
+            }
+
+            public void tearDown() {
+                delete(dir);
+            }
+        };
+    }
+
+    /**
+     * Creates a benchmark fetching a result page from a stub
+     * transport, parsing it and caching it, through Crawler.
+     * Every operation asks for a keyword not cached yet.
+     * @param parser The parser selected, "dom" or "stream".
+     * @return The benchmark.
+     */
+    private static Harness.Benchmark endToEnd(final String parser) {
+        return new Harness.Benchmark("e2e.getPage." + parser) {
+            private File dir;
+            private Crawler crawler;
+            private int keywords;
+
+            public void setUp() throws IOException {
+                dir = Files.createTempDirectory("bench").toFile();
+                System.setProperty("scraper.cache.dir", dir.getPath());
+                System.setProperty("scraper.parser", parser);
+                Cache.init();
+                final byte[] page = fixture("full");
+                crawler = new Crawler(new HTTPClient(new Transport() {
+                    public HttpResponse get(String url, Map<String, String> headers) {
+                        Map<String, List<String>> responseHeaders = Collections.singletonMap(
+                                "Content-Type", Collections.singletonList("text/html; charset=UTF-8"));
+                        return new HttpResponse(200, url, responseHeaders,
+                                                new ByteArrayInputStream(page));
+                    }
+                }));
+            }
+
+            public Object run() throws IOException {
+                return crawler.getPage("keyword" + keywords++, 1);
+            }
+
+            public void tearDown() {
+                System.clearProperty("scraper.parser");
+                delete(dir);
+            }
+        };
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Reads a recorded result page.
+     * @param fixture The name of the result page.
+     * @return The bytes of the result page.
+     * @throws IOException If the result page cannot be read.
+     */
+    private static byte[] fixture(String fixture) throws IOException {
+        return Files.readAllBytes(new File(fixtures, fixture + ".html").toPath());
+    }
+
+    /**
+     * Parses a recorded result page into a DOM Document.
+     * @param fixture The name of the result page.
+     * @return The DOM Document of the result page.
+     * @throws IOException If the result page cannot be read.
+     */
+    private static Document document(String fixture) throws IOException {
+        return Jsoup.parse(new ByteArrayInputStream(fixture(fixture)), "UTF-8",
+                           "http://www.sears.com/");
+    }
+
+    /**
+     * Extracts the Items of a recorded result page.
+     * @param fixture The name of the result page.
+     * @return The Items of the result page.
+     * @throws IOException If the result page cannot be read.
+     */
+    private static List<Item> items(String fixture) throws IOException {
+        DOMParser parser = new DOMParser();
+        parser.parse(document(fixture));
+        return parser.getAllItems();
+    }
+
+    /**
+     * Creates a cache of this size in a new temporary folder,
+     * which becomes the cache folder, and closes it.
+     * @param size The number of pages to be cached.
+     * @return The cache folder.
+     * @throws IOException If the cache cannot be created.
+     */
+    private static File populate(int size) throws IOException {
+        File dir = Files.createTempDirectory("bench").toFile();
+        System.setProperty("scraper.cache.dir", dir.getPath());
+        List<Item> items = items("full");
+        Cache.init();
+        for (int i = 0; i < size; ++i)
+            Cache.addPage(new CachePage("keyword" + i / 20, i % 20 + 1, "1,234", items));
+        Cache.close();
+        return dir;
+    }
+
+    /**
+     * Closes the cache and deletes its folder.
+     * @param dir The cache folder.
+     */
+    private static void delete(File dir) {
+        Cache.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,265 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class for the benchmark harness. Each benchmark is warmed up,
+ * then measured over several fixed-length iterations on the
+ * calling thread, reporting throughput, average time, allocation
+ * per operation and allocation rate. Console output of the code
+ * under test is suppressed while measuring.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class Harness {
+
+    /** the number of warmup iterations */
+    private final int warmupIterations;
+
+    /** the number of measured iterations */
+    private final int iterations;
+
+    /** the length of each iteration in milliseconds */
+    private final long iterationTime;
+
+    /** the thread MXBean, if it can measure allocation; null otherwise */
+    private final com.sun.management.ThreadMXBean threads;
+
+    /** consumes benchmark results so they are not optimized away */
+    private volatile int sink;
+
+    /**
+     * Class for a single benchmark.
+     */
+    public abstract static class Benchmark {
+
+        /** the name of this benchmark */
+        private final String name;
+
+        /**
+         * Constructor for Benchmark.
+         * @param name The name of this benchmark.
+         */
+        protected Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Getter for field name.
+         * @return Value of field name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Prepares the state of this benchmark; not measured.
+         * @throws Exception If the state cannot be prepared.
+         */
+        public void setUp() throws Exception { }
+
+        /**
+         * Runs a single operation of this benchmark.
+         * @return The result of the operation.
+         * @throws Exception If the operation fails.
+         */
+        public abstract Object run() throws Exception;
+
+        /**
+         * Releases the state of this benchmark; not measured.
+         * @throws Exception If the state cannot be released.
+         */
+        public void tearDown() throws Exception { }
+    }
+
+    /**
+     * Class for the measurements of a benchmark.
+     */
+    public static class Result {
+
+        /** the name of the benchmark */
+        final String name;
+
+        /** the number of operations measured */
+        final long ops;
+
+        /** the time measured in nanoseconds */
+        final long nanos;
+
+        /** the bytes allocated while measuring; -1 if unknown */
+        final long bytes;
+
+        /** the number of garbage collections while measuring */
+        final long gcCount;
+
+        /** the time spent in garbage collection in milliseconds */
+        final long gcTime;
+
+        /**
+         * Constructor for Result.
+         * @param name The name of the benchmark.
+         * @param ops The number of operations measured.
+         * @param nanos The time measured in nanoseconds.
+         * @param bytes The bytes allocated while measuring; -1 if unknown.
+         * @param gcCount The number of garbage collections while measuring.
+         * @param gcTime The time spent in garbage collection in milliseconds.
+         */
+        Result(String name, long ops, long nanos, long bytes, long gcCount, long gcTime) {
+            this.name = name;
+            this.ops = ops;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.gcCount = gcCount;
+            this.gcTime = gcTime;
+        }
+
+        /**
+         * Formats this result as a report line.
+         * @return The report line.
+         */
+        public String toString() {
+            double seconds = nanos / 1e9;
+            String alloc = bytes < 0 ? String.format("%12s %10s", "n/a", "n/a") :
+                    String.format("%12.0f %10.1f", (double) bytes / ops,
+                                  bytes / seconds / (1 << 20));
+            return String.format("%-36s %12.1f %12.3f %s %6d %6d", name, ops / seconds,
+                                 nanos / 1e3 / ops, alloc, gcCount, gcTime);
+        }
+    }
+
+    /**
+     * Constructor for Harness.
+     * @param warmupIterations The number of warmup iterations.
+     * @param iterations The number of measured iterations.
+     * @param iterationTime The length of each iteration in milliseconds.
+     */
+    public Harness(int warmupIterations, int iterations, long iterationTime) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationTime = iterationTime;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = null;
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported())
+                threads.setThreadAllocatedMemoryEnabled(true);
+            else
+                threads = null;
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Gets the header of the report lines.
+     * @return The header line.
+     */
+    public static String header() {
+        return String.format("%-36s %12s %12s %12s %10s %6s %6s", "Benchmark", "ops/s",
+                             "us/op", "B/op", "MB/s", "gc", "gc ms");
+    }
+
+    /**
+     * Runs a benchmark.
+     * @param benchmark The benchmark to be run.
+     * @return The measurements of the benchmark.
+     * @throws Exception If the benchmark fails.
+     */
+    public Result run(Benchmark benchmark) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+        try {
+            benchmark.setUp();
+            try {
+                for (int i = 0; i < warmupIterations; ++i)
+                    iteration(benchmark);
+                long ops = 0;
+                long nanos = 0;
+                long bytes = allocated();
+                long gcCount = gcCount();
+                long gcTime = gcTime();
+                for (int i = 0; i < iterations; ++i) {
+                    long[] measured = iteration(benchmark);
+                    ops += measured[0];
+                    nanos += measured[1];
+                }
+                bytes = bytes < 0 ? -1 : allocated() - bytes;
+                return new Result(benchmark.getName(), ops, nanos, bytes,
+                                  gcCount() - gcCount, gcTime() - gcTime);
+            }
+            finally {
+                benchmark.tearDown();
+            }
+        }
+        finally {
+            System.setOut(out);
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Runs operations of a benchmark for one iteration.
+     * @param benchmark The benchmark to be run.
+     * @return The number of operations and the nanoseconds taken.
+     * @throws Exception If the benchmark fails.
+     */
+    private long[] iteration(Benchmark benchmark) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + iterationTime * 1000000L;
+        long ops = 0;
+        long now;
+        do {
+            Object result = benchmark.run();
+            sink ^= result == null ? 0 : System.identityHashCode(result);
+            ++ops;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return new long[] { ops, now - start };
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread so far.
+     * @return The bytes allocated; -1 if unknown.
+     */
+    private long allocated() {
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Gets the number of garbage collections so far.
+     * @return The number of garbage collections.
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : gcs())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    /**
+     * Gets the time spent in garbage collection so far.
+     * @return The time in milliseconds.
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : gcs())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+
+    /**
+     * Gets the garbage collectors of this JVM.
+     * @return The garbage collector MXBeans.
+     */
+    private static List<GarbageCollectorMXBean> gcs() {
+        return new ArrayList<GarbageCollectorMXBean>(ManagementFactory.getGarbageCollectorMXBeans());
+    }
+}
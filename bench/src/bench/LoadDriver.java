@@ -0,0 +1,216 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.Crawler;
+
+import util.Cache;
+import util.HTTPClient;
+import util.LatencyHistogram;
+import util.LimitedTransport;
+import util.Metrics;
+import util.PooledTransport;
+import util.RetryingTransport;
+
+/**
+ * Class for load testing crawls end to end: runs keyword and page
+ * queries from concurrent threads through a Crawler with a fresh
+ * cache, against the stub server started in process or against
+ * the server at the URL named by the system property load.url,
+ * and reports the throughput and latency percentiles. Queries are
+ * every page of every keyword once, in an order shuffled from a
+ * seed, then again from the cache if more queries are asked for;
+ * one keyword in ten is redirected by rule and one in ten points
+ * to levels.
+ * Usage: LoadDriver [&lt;queries&gt; [&lt;threads&gt;]], 1000 queries from
+ * 16 threads by default. The system properties load.keywords,
+ * load.pages and load.seed set the number of keywords, the pages
+ * per keyword and the seed of the query order; the stub.* system
+ * properties tune the stub server.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class LoadDriver {
+
+    /** the default number of queries */
+    private static final int DEFAULT_QUERIES = 1000;
+
+    /** the default number of query threads */
+    private static final int DEFAULT_THREADS = 16;
+
+    /** the percentiles reported */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /**
+     * Runs the load test.
+     * @param args The optional number of queries and threads.
+     * @throws Exception If the stub server or the cache cannot
+     * be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        PooledTransport.sizePool();
+        int queriesNum = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_QUERIES;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+        int keywordsNum = Integer.getInteger("load.keywords", 200);
+        int pagesNum = Integer.getInteger("load.pages", 5);
+        long seed = Long.getLong("load.seed", 1L);
+
+        StubServer stub = null;
+        String url = System.getProperty("load.url");
+        if (url == null) {
+            stub = StubServer.configured(
+                    new File(System.getProperty("bench.fixtures", "bench/fixtures")), 0);
+            stub.start();
+            url = stub.getBaseUrl();
+        }
+        File dir = Files.createTempDirectory("load").toFile();
+        System.setProperty("scraper.cache.dir", dir.getPath());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+        try {
+            Cache.init();
+            HTTPClient client = new HTTPClient(
+                    new RetryingTransport(new LimitedTransport(new PooledTransport())), url);
+            List<String[]> queries = queries(keywordsNum, pagesNum, queriesNum, seed);
+            out.println("[INFO] Running " + queries.size() + " queries from " + threads +
+                        " threads against " + url);
+            LatencyHistogram latencies = new LatencyHistogram("query");
+            long[] result = run(new Crawler(client), queries, threads, latencies);
+            report(out, queries.size(), result[0], result[1], latencies);
+            if (client.getLimiter() != null)
+                out.println("[INFO] Requests: " + client.getLimiter() + ".");
+            if (client.getRetrier() != null)
+                out.println("[INFO] Retries: " + client.getRetrier() + ".");
+            if (stub != null)
+                out.println("[INFO] Stub: " + stub.getRequestCount() + " requests, " +
+                            stub.getErrorCount() + " errors injected, " +
+                            stub.getNotModifiedCount() + " not modified.");
+            if (Metrics.ENABLED)
+                out.print("\n" + Metrics.toPrometheus());
+        }
+        finally {
+            System.setOut(out);
+            Cache.close();
+            if (stub != null) stub.stop();
+            delete(dir);
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Lists the queries: every page of every keyword in an order
+     * shuffled from the seed, repeated up to the number asked for.
+     * @param keywordsNum The number of keywords.
+     * @param pagesNum The number of pages per keyword.
+     * @param queriesNum The number of queries.
+     * @param seed The seed of the query order.
+     * @return The queries, as keyword and page number.
+     */
+    private static List<String[]> queries(int keywordsNum, int pagesNum, int queriesNum,
+                                          long seed) {
+        List<String[]> pages = new ArrayList<String[]>();
+        for (int k = 0; k < keywordsNum; ++k) {
+            String keyword = (k % 10 == 1 ? "brat" : k % 10 == 2 ? "levels" : "keyword") + k;
+            for (int p = 1; p <= pagesNum; ++p)
+                pages.add(new String[] { keyword, String.valueOf(p) });
+        }
+        Collections.shuffle(pages, new Random(seed));
+        List<String[]> queries = new ArrayList<String[]>(queriesNum);
+        for (int i = 0; i < queriesNum && !pages.isEmpty(); ++i)
+            queries.add(pages.get(i % pages.size()));
+        return queries;
+    }
+
+    /**
+     * Runs the queries from concurrent threads, recording the
+     * latency of each.
+     * @param crawler The crawler answering the queries.
+     * @param queries The queries.
+     * @param threads The number of query threads.
+     * @param latencies The histogram of query latencies.
+     * @return The elapsed time in nanoseconds and the number
+     * of failed queries.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    private static long[] run(final Crawler crawler, final List<String[]> queries, int threads,
+                              final LatencyHistogram latencies) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong failed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < queries.size()) {
+                        String[] query = queries.get(i);
+                        long sent = System.nanoTime();
+                        try {
+                            crawler.getPage(query[0], Integer.parseInt(query[1]));
+                        }
+                        catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                        latencies.record(System.nanoTime() - sent);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return new long[] { System.nanoTime() - start, failed.get() };
+    }
+
+    /**
+     * Reports the throughput and latency percentiles.
+     * @param out The console.
+     * @param queriesNum The number of queries.
+     * @param nanos The elapsed time in nanoseconds.
+     * @param failed The number of failed queries.
+     * @param latencies The histogram of query latencies.
+     */
+    private static void report(PrintStream out, int queriesNum, long nanos, long failed,
+                               LatencyHistogram latencies) {
+        out.println(String.format("[INFO] %d queries in %.0f ms, %d failed: %.1f queries/sec.",
+                                  queriesNum, nanos / 1e6, failed, queriesNum / (nanos / 1e9)));
+        StringBuilder line = new StringBuilder("[INFO] Latency (ms):");
+        for (double p : PERCENTILES)
+            line.append(String.format(" p%s %.2f", p == (int) p ? String.valueOf((int) p) :
+                                      String.valueOf(p), latencies.getPercentile(p) / 1e6));
+        line.append(String.format(" max %.2f, mean %.2f.", latencies.getMax() / 1e6,
+                                  latencies.getMean() / 1e6));
+        out.println(line);
+    }
+
+    /**
+     * Deletes a folder and its files.
+     * @param dir The folder to be deleted.
+     */
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) delete(f);
+                else f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,352 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Class for a local stand-in for Sears.com, serving the recorded
+ * result pages in bench/fixtures so that crawls can be load tested
+ * offline. Queries look like the real ones:
+ *     GET /search=&lt;keyword&gt;?viewItems=&lt;n&gt;&amp;pageNum=&lt;n&gt;[&amp;levels=&lt;levels&gt;]
+ * and the keyword picks the page served:
+ *     brat...   : a page redirecting to '&lt;keyword&gt; item'
+ *                 (redirectType=BRAT_RULE), then the full page;
+ *     levels... : a page pointing to levels, then the full page
+ *                 once the levels are asked for;
+ *     small...  : the small page, with 3 items;
+ *     none...   : a page without results;
+ *     otherwise : the full page, with 50 of 1,234 items.
+ * Each answer can be delayed and can fail with a 503 at random,
+ * from a seeded generator. Pages are sent gzip compressed when
+ * asked for, with an ETag and the server start time as their
+ * Last-Modified date, and conditional requests for them are
+ * answered with a 304.
+ * Usage: StubServer [&lt;port&gt;], 8081 by default. The system
+ * properties stub.latency, stub.jitter (milliseconds), stub.errorRate
+ * (between 0 and 1) and stub.seed tune the answers; stub.validators
+ * set to false leaves out the validators.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class StubServer {
+
+    /** the default port listened on */
+    public static final int DEFAULT_PORT = 8081;
+
+    /** the number of request handling threads */
+    private static final int THREADS = 64;
+
+    /** the body of a page redirecting by rule */
+    private static final String BRAT_PAGE =
+            "<html><body><a href=\"/search=%s%%20item?redirectType=BRAT_RULE\">" +
+            "Redirecting</a></body></html>";
+
+    /** the body of a page pointing to levels */
+    private static final String LEVELS_PAGE =
+            "<html><body><a href=\"/search=%s?levels=Tools_Hand+Tools&amp;redirectType=SKIP\">" +
+            "Redirecting</a></body></html>";
+
+    /** the body of a page without results */
+    private static final String EMPTY_PAGE =
+            "<html><body><div id=\"cardsHolder\"></div></body></html>";
+
+    /** the port listened on; 0 for any free port */
+    private final int port;
+
+    /** the fixed delay of each answer in milliseconds */
+    private final long latency;
+
+    /** the largest random delay added to each answer in milliseconds */
+    private final long jitter;
+
+    /** the share of requests answered with a 503 */
+    private final double errorRate;
+
+    /** the generator of delays and errors */
+    private final Random random;
+
+    /** true if pages are sent with validators */
+    private final boolean validators;
+
+    /** the Last-Modified date of every page */
+    private final String lastModified;
+
+    /** the full page, plain and compressed */
+    private final byte[][] full;
+
+    /** the small page, plain and compressed */
+    private final byte[][] small;
+
+    /** the number of requests answered */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** the number of errors injected */
+    private final AtomicLong errors = new AtomicLong();
+
+    /** the number of conditional requests answered with a 304 */
+    private final AtomicLong notModified = new AtomicLong();
+
+    /** the underlying HTTP server; null if not started */
+    private HttpServer server;
+
+    /** the request handling threads; null if not started */
+    private ExecutorService executor;
+
+    /**
+     * Runs the stub server until terminated.
+     * @param args The optional port.
+     * @throws IOException If the fixtures cannot be read or the
+     * port cannot be listened on.
+     */
+    public static void main(String[] args) throws IOException {
+        StubServer stub = configured(new File(System.getProperty("bench.fixtures", "bench/fixtures")),
+                                     args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+        stub.start();
+        System.out.println("[INFO] Serving on " + stub.getBaseUrl());
+    }
+
+    /**
+     * Creates a stub server configured from the system properties
+     * stub.latency, stub.jitter, stub.errorRate, stub.seed and
+     * stub.validators.
+     * @param fixtures The folder of the recorded result pages.
+     * @param port The port listened on; 0 for any free port.
+     * @return The stub server, not started.
+     * @throws IOException If the fixtures cannot be read.
+     */
+    public static StubServer configured(File fixtures, int port) throws IOException {
+        return new StubServer(fixtures, port,
+                              Long.getLong("stub.latency", 0L),
+                              Long.getLong("stub.jitter", 0L),
+                              Double.parseDouble(System.getProperty("stub.errorRate", "0")),
+                              Long.getLong("stub.seed", 1L),
+                              !"false".equals(System.getProperty("stub.validators")));
+    }
+
+    /**
+     * Constructor for StubServer.
+     * @param fixtures The folder of the recorded result pages.
+     * @param port The port listened on; 0 for any free port.
+     * @param latency The fixed delay of each answer in milliseconds.
+     * @param jitter The largest random delay added to each answer
+     * in milliseconds.
+     * @param errorRate The share of requests answered with a 503.
+     * @param seed The seed of the generator of delays and errors.
+     * @param validators True if pages are sent with validators.
+     * @throws IOException If the fixtures cannot be read.
+     */
+    public StubServer(File fixtures, int port, long latency, long jitter, double errorRate,
+                      long seed, boolean validators) throws IOException {
+        this.port = port;
+        this.latency = Math.max(0, latency);
+        this.jitter = Math.max(0, jitter);
+        this.errorRate = errorRate;
+        this.random = new Random(seed);
+        this.validators = validators;
+        this.lastModified = httpDate().format(new Date());
+        this.full = encodings(Files.readAllBytes(new File(fixtures, "full.html").toPath()));
+        this.small = encodings(Files.readAllBytes(new File(fixtures, "small.html").toPath()));
+    }
+
+    /**
+     * Starts answering queries on the loopback interface.
+     * @throws IOException If the port cannot be listened on.
+     */
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                                   THREADS);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stops answering queries.
+     */
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * Gets the main body of queries to this server, to be
+     * followed by the keyword.
+     * @return The base URL, like http://localhost:8081/search=.
+     */
+    public synchronized String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/search=";
+    }
+
+    /**
+     * Gets the number of requests answered.
+     * @return The number of requests.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of errors injected.
+     * @return The number of errors.
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Gets the number of conditional requests answered with
+     * a 304 (Not Modified).
+     * @return The number of 304 answers.
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Answers a query after the configured delay.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void answer(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        long delay;
+        boolean fail;
+        synchronized (random) {
+            delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+            fail = random.nextDouble() < errorRate;
+        }
+        try {
+            if (delay > 0)
+                Thread.sleep(delay);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (fail || !path.startsWith("/search=")) {
+            if (fail) errors.incrementAndGet();
+            exchange.sendResponseHeaders(fail ? 503 : 404, -1);
+            exchange.close();
+            return;
+        }
+        String keyword = path.substring("/search=".length());
+        boolean gzip = String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                .contains("gzip");
+        byte[][] page = full;
+        if (keyword.startsWith("brat") && !keyword.endsWith("%20item"))
+            page = encodings(String.format(BRAT_PAGE, keyword).getBytes("UTF-8"));
+        else if (keyword.startsWith("levels") && (query == null || !query.contains("levels=")))
+            page = encodings(String.format(LEVELS_PAGE, keyword).getBytes("UTF-8"));
+        else if (keyword.startsWith("small"))
+            page = small;
+        else if (keyword.startsWith("none"))
+            page = encodings(EMPTY_PAGE.getBytes("UTF-8"));
+        byte[] body = page[gzip ? 1 : 0];
+        // redirect pages and empty pages are sent without validators
+        if (validators && (page == full || page == small)) {
+            String etag = "\"" + Integer.toHexString(Arrays.hashCode(page[0])) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Last-Modified", lastModified);
+            if (isNotModified(exchange, etag)) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        if (gzip)
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Determines whether a conditional request asks for a page
+     * that has not changed: its ETag matches If-None-Match, or
+     * failing that, it has not been modified since the date of
+     * If-Modified-Since.
+     * @param exchange The request and its response.
+     * @param etag The ETag of the page.
+     * @return True if the page has not changed; false otherwise.
+     */
+    private boolean isNotModified(HttpExchange exchange, String etag) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null)
+            return ifNoneMatch.equals(etag) || ifNoneMatch.equals("*");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince == null)
+            return false;
+        try {
+            SimpleDateFormat format = httpDate();
+            return !format.parse(lastModified).after(format.parse(ifModifiedSince));
+        }
+        catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a formatter of HTTP dates, like
+     * Fri, 20 Sep 2013 12:00:00 GMT.
+     * @return A new formatter of HTTP dates.
+     */
+    private static SimpleDateFormat httpDate() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                                                       Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Prepares a body plain and gzip compressed.
+     * @param body The plain body.
+     * @return The plain and the compressed body.
+     * @throws IOException If the body cannot be compressed.
+     */
+    private static byte[][] encodings(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(body);
+        gzip.close();
+        return new byte[][] { body, bytes.toByteArray() };
+    }
+}
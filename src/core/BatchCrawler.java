@@ -0,0 +1,483 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+import util.Cache;
+import util.HTTPClient;
+import util.HttpResponse;
+import util.PageArchive;
+import util.PageParser;
+
+/**
+ * Class for crawling every page of many keywords. Pages flow
+ * through three stages connected by bounded queues, each stage
+ * with its own threads: fetch (HTTP), parse (PageParser) and
+ * persist (Cache). A full queue blocks the stage feeding it, so
+ * a slow stage throttles the ones before it. The further pages of
+ * a keyword are handed out one at a time from a cursor over its page
+ * numbers, ahead of new keywords, so that they take no room until
+ * fetched. Expired pages are
+ * asked for conditionally by the fetch stage, and those found
+ * unchanged skip the later stages. Bodies fetched are archived
+ * by the parse stage, if enabled.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class BatchCrawler {
+
+    /** the capacity of each queue between two stages */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** how long an idle fetch thread waits for new keywords, in milliseconds */
+    private static final long POLL_INTERVAL = 50;
+
+    /** the HTTP client used for remote queries */
+    private final HTTPClient client;
+
+    /** the number of fetch threads */
+    private final int fetchThreads;
+
+    /** the number of parse threads */
+    private final int parseThreads;
+
+    /** the number of persist threads */
+    private final int persistThreads;
+
+    /** the archive of the bodies fetched; null if none */
+    private final PageArchive archive;
+
+    /** first pages of the keywords read, waiting to be fetched */
+    private final BlockingQueue<CachePage> keywordQueue =
+            new ArrayBlockingQueue<CachePage>(QUEUE_CAPACITY);
+
+    /** keywords with further pages waiting to be fetched */
+    private final Queue<Cursor> followUps = new ArrayDeque<Cursor>();
+
+    /** fetched pages waiting to be parsed */
+    private final BlockingQueue<Fetched> parseQueue =
+            new ArrayBlockingQueue<Fetched>(QUEUE_CAPACITY);
+
+    /** parsed pages waiting to be cached */
+    private final BlockingQueue<CachePage> persistQueue =
+            new ArrayBlockingQueue<CachePage>(QUEUE_CAPACITY);
+
+    /** the number of pages scheduled but not yet done */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** the number of pages fetched remotely */
+    private final AtomicLong pagesFetched = new AtomicLong();
+
+    /** the number of pages found in the cache */
+    private final AtomicLong pagesCached = new AtomicLong();
+
+    /** the number of expired pages found unchanged on Sears.com */
+    private final AtomicLong pagesUnchanged = new AtomicLong();
+
+    /** the number of pages that could not be fetched */
+    private final AtomicLong pagesFailed = new AtomicLong();
+
+    /** the number of Items parsed */
+    private final AtomicLong itemsParsed = new AtomicLong();
+
+    /**
+     * Class for the further pages of a keyword, waiting to be fetched.
+     */
+    private static class Cursor {
+
+        /** the keyword of the pages */
+        final String keyword;
+
+        /** the total number of Items for the keyword */
+        final String totalNum;
+
+        /** the last page number */
+        final int last;
+
+        /** the next page number to be fetched */
+        int next = 2;
+
+        /**
+         * Constructor for Cursor.
+         * @param keyword The keyword of the pages.
+         * @param totalNum The total number of Items for the keyword.
+         * @param last The last page number.
+         */
+        Cursor(String keyword, String totalNum, int last) {
+            this.keyword = keyword;
+            this.totalNum = totalNum;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Class for a fetched page waiting to be parsed.
+     */
+    private static class Fetched {
+
+        /** the page fetched, without its Items */
+        final CachePage page;
+
+        /** the body of the page */
+        final byte[] body;
+
+        /** the charset of the body; null if unknown */
+        final String charset;
+
+        /** the URL the page was retrieved from */
+        final String url;
+
+        /** the entity tag of the page; null if none */
+        final String etag;
+
+        /** the Last-Modified date of the page; null if none */
+        final String lastModified;
+
+        /** the content hash of the body */
+        final long contentHash;
+
+        /**
+         * Constructor for Fetched.
+         * @param page The page fetched, without its Items.
+         * @param body The body of the page.
+         * @param response The response the page was read from.
+         * @param contentHash The content hash of the body.
+         */
+        Fetched(CachePage page, byte[] body, HttpResponse response, long contentHash) {
+            this.page = page;
+            this.body = body;
+            this.charset = response.getCharset();
+            this.url = response.getUrl();
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.contentHash = contentHash;
+        }
+    }
+
+    /**
+     * Constructor for BatchCrawler, archiving as configured by
+     * the system property scraper.archive.
+     * @param client The HTTP client used for remote queries.
+     * @param fetchThreads The number of fetch threads.
+     * @param parseThreads The number of parse threads.
+     * @param persistThreads The number of persist threads.
+     */
+    public BatchCrawler(HTTPClient client, int fetchThreads, int parseThreads, int persistThreads) {
+        this(client, fetchThreads, parseThreads, persistThreads, PageArchive.open());
+    }
+
+    /**
+     * Constructor for BatchCrawler.
+     * @param client The HTTP client used for remote queries.
+     * @param fetchThreads The number of fetch threads.
+     * @param parseThreads The number of parse threads.
+     * @param persistThreads The number of persist threads.
+     * @param archive The archive of the bodies fetched; null for none.
+     */
+    public BatchCrawler(HTTPClient client, int fetchThreads, int parseThreads, int persistThreads,
+                        PageArchive archive) {
+        this.client = client;
+        this.fetchThreads = fetchThreads;
+        this.parseThreads = parseThreads;
+        this.persistThreads = persistThreads;
+        this.archive = archive;
+    }
+
+    /**
+     * Crawls every page of each keyword read, one keyword per line,
+     * and reports the throughput once done.
+     * Cache.init has to be called beforehand.
+     * @param in The reader of keywords.
+     * @throws IOException If the keywords cannot be read.
+     */
+    public void crawl(BufferedReader in) throws IOException {
+        ExecutorService fetchers = Executors.newFixedThreadPool(fetchThreads);
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+        ExecutorService persisters = Executors.newFixedThreadPool(persistThreads);
+        for (int i = 0; i < fetchThreads; ++i) fetchers.execute(fetchStage());
+        for (int i = 0; i < parseThreads; ++i) parsers.execute(parseStage());
+        for (int i = 0; i < persistThreads; ++i) persisters.execute(persistStage());
+
+        long start = System.currentTimeMillis();
+        int keywordsNum = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String keyword = SearsScraper.normalize(line.trim());
+                if (keyword == null) continue;
+                pending.incrementAndGet();
+                keywordQueue.put(new CachePage(keyword, 1, "", null));
+                ++keywordsNum;
+            }
+            synchronized (pending) {
+                while (pending.get() > 0)
+                    pending.wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            fetchers.shutdownNow();
+            parsers.shutdownNow();
+            persisters.shutdownNow();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        long pages = pagesFetched.get() + pagesUnchanged.get() + pagesCached.get();
+        msg("\n[INFO] Crawled " + keywordsNum + " keywords in " + elapsed + " ms.");
+        msg("[INFO] Pages: " + pagesFetched.get() + " fetched, " + pagesUnchanged.get() +
+            " unchanged, " + pagesCached.get() + " cached, " + pagesFailed.get() + " failed.");
+        msg(String.format("[INFO] Throughput: %.2f pages/sec, %.2f items/sec.",
+            pages * 1000.0 / elapsed, itemsParsed.get() * 1000.0 / elapsed));
+        if (client.getLimiter() != null)
+            msg("[INFO] Requests: " + client.getLimiter() + ".");
+        if (client.getRetrier() != null)
+            msg("[INFO] Retries: " + client.getRetrier() + ".");
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Creates a fetch stage worker. Pages already cached, and
+     * expired pages found unchanged, skip the later stages.
+     * @return The fetch stage worker.
+     */
+    private Runnable fetchStage() {
+        return new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        CachePage page = nextFollowUp();
+                        if (page == null)
+                            page = keywordQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (page == null)
+                            continue;
+                        String keyword = page.getKeyword();
+                        int pageNum = page.getPageNum();
+                        try {
+                            if (Cache.containsEntry(keyword, pageNum)) {
+                                pagesCached.incrementAndGet();
+                                if (pageNum == 1)
+                                    schedule(keyword, Cache.getItemsTotalNum(keyword));
+                                done();
+                                continue;
+                            }
+                            CachePage cached = Cache.getStalePage(keyword, pageNum);
+                            HttpResponse response = cached == null ?
+                                    client.openPage(keyword, pageNum) :
+                                    client.openPage(keyword, pageNum, cached.getEtag(),
+                                                    cached.getLastModified());
+                            byte[] body;
+                            try {
+                                body = response.readBody();
+                            }
+                            finally {
+                                response.close();
+                            }
+                            long contentHash = Crawler.contentHash(body);
+                            if (cached != null && (contentHash == cached.getContentHash()
+                                    || response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+                                Cache.revalidate(keyword, pageNum);
+                                pagesUnchanged.incrementAndGet();
+                                if (pageNum == 1)
+                                    schedule(keyword, cached.getTotal());
+                                done();
+                                continue;
+                            }
+                            pagesFetched.incrementAndGet();
+                            parseQueue.put(new Fetched(page, body, response, contentHash));
+                        }
+                        catch (IOException e) {
+                            msg("[WARN] Unable to fetch page " + pageNum + " of '" +
+                                keyword + "': " + e);
+                            pagesFailed.incrementAndGet();
+                            done();
+                        }
+                        catch (RuntimeException e) {
+                            msg("[WARN] Unable to fetch page " + pageNum + " of '" +
+                                keyword + "': " + e);
+                            pagesFailed.incrementAndGet();
+                            done();
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    // stage shut down
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a parse stage worker. Parsing a first page
+     * schedules the remaining pages of its keyword. Pages
+     * parsed are archived, if enabled.
+     * @return The parse stage worker.
+     */
+    private Runnable parseStage() {
+        return new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Fetched fetched = parseQueue.take();
+                        String keyword = fetched.page.getKeyword();
+                        int pageNum = fetched.page.getPageNum();
+                        CachePage page;
+                        try {
+                            page = parse(keyword, pageNum, fetched);
+                        }
+                        catch (IOException e) {
+                            msg("[WARN] Unable to parse page " + pageNum + " of '" +
+                                keyword + "': " + e);
+                            pagesFailed.incrementAndGet();
+                            done();
+                            continue;
+                        }
+                        catch (RuntimeException e) {
+                            msg("[WARN] Unable to parse page " + pageNum + " of '" +
+                                keyword + "': " + e);
+                            pagesFailed.incrementAndGet();
+                            done();
+                            continue;
+                        }
+                        if (archive != null)
+                            Crawler.archive(archive, page, fetched.url, fetched.charset,
+                                            fetched.body);
+                        if (pageNum == 1)
+                            schedule(keyword, page.getTotal());
+                        persistQueue.put(page);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // stage shut down
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a persist stage worker.
+     * @return The persist stage worker.
+     */
+    private Runnable persistStage() {
+        return new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        CachePage page = persistQueue.take();
+                        try {
+                            Cache.addPage(page);
+                        }
+                        catch (RuntimeException e) {
+                            msg("[WARN] Unable to cache page " + page.getPageNum() + " of '" +
+                                page.getKeyword() + "': " + e);
+                            pagesFailed.incrementAndGet();
+                        }
+                        done();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // stage shut down
+                }
+            }
+        };
+    }
+
+    /**
+     * Extracts a result page from its body.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @param fetched The fetched page.
+     * @return The result page.
+     * @throws IOException If the body cannot be decoded.
+     */
+    private CachePage parse(String keyword, int pageNum, Fetched fetched) throws IOException {
+        PageParser parser = Crawler.newParser();
+        parser.parse(new ByteArrayInputStream(fetched.body), fetched.charset, fetched.url);
+        List<Item> itemList;
+        try {
+            itemList = parser.getAllItems();
+            itemsParsed.addAndGet(itemList.size());
+        }
+        catch (NullPointerException e) {
+            itemList = null;
+        }
+        CachePage page = new CachePage(keyword, pageNum, parser.getItemsTotalNum(), itemList);
+        page.setEtag(fetched.etag);
+        page.setLastModified(fetched.lastModified);
+        page.setContentHash(fetched.contentHash);
+        return page;
+    }
+
+    /**
+     * Schedules the remaining pages of a keyword for fetching.
+     * The keyword counts as one pending page until all of them
+     * have been handed out.
+     * @param keyword The keyword to be crawled.
+     * @param totalNum The total number of Items for the keyword.
+     */
+    private void schedule(String keyword, String totalNum) {
+        int pagesNum = Crawler.getPagesNum(totalNum);
+        if (pagesNum < 2)
+            return;
+        pending.incrementAndGet();
+        synchronized (followUps) {
+            followUps.add(new Cursor(keyword, totalNum, pagesNum));
+        }
+    }
+
+    /**
+     * Hands out the next page of the keywords scheduled.
+     * @return The next page to be fetched; null if none.
+     */
+    private CachePage nextFollowUp() {
+        synchronized (followUps) {
+            Cursor cursor = followUps.peek();
+            if (cursor == null)
+                return null;
+            pending.incrementAndGet();
+            CachePage page = new CachePage(cursor.keyword, cursor.next, cursor.totalNum, null);
+            if (++cursor.next > cursor.last) {
+                followUps.poll();
+                done();
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Marks a scheduled page as done.
+     */
+    private void done() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}
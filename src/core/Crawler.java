@@ -0,0 +1,487 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+import util.Cache;
+import util.DOMParser;
+import util.HTTPClient;
+import util.HttpResponse;
+import util.PageArchive;
+import util.PageParser;
+import util.StreamParser;
+
+/**
+ * Class for fetching result pages, locally from the cache
+ * when possible and remotely from Sears.com otherwise.
+ * Concurrent requests for the same uncached page share a
+ * single fetch. An expired page is refreshed by a conditional
+ * request, and kept without being parsed or written again when
+ * Sears.com answers that it has not been modified or sends the
+ * same body as before. Bodies fetched are archived, if enabled.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class Crawler {
+
+    /** the default number of pages fetched concurrently */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    /** the largest number of result pages crawled per keyword */
+    public static final int MAX_PAGES = 1000;
+
+    /** the HTTP client used for remote queries */
+    private final HTTPClient client;
+
+    /** the prefetcher of the pages after those served; null if none */
+    private final Prefetcher prefetcher;
+
+    /** the archive of the bodies fetched; null if none */
+    private final PageArchive archive;
+
+    /** true if progress messages are not printed */
+    private volatile boolean quiet;
+
+    /** fetches in progress, keyed by keyword and page number */
+    private final ConcurrentHashMap<String, FutureTask<CachePage>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<CachePage>>();
+
+    /**
+     * Constructor for Crawler, configured from the system
+     * properties scraper.prefetch and scraper.archive.
+     * @param client The HTTP client used for remote queries.
+     */
+    public Crawler(HTTPClient client) {
+        this(client, Integer.getInteger("scraper.prefetch", 0), PageArchive.open());
+    }
+
+    /**
+     * Constructor for Crawler, archiving nothing.
+     * @param client The HTTP client used for remote queries.
+     * @param prefetch The number of pages prefetched in the
+     * background after each page served; 0 for none.
+     */
+    public Crawler(HTTPClient client, int prefetch) {
+        this(client, prefetch, null);
+    }
+
+    /**
+     * Constructor for Crawler.
+     * @param client The HTTP client used for remote queries.
+     * @param prefetch The number of pages prefetched in the
+     * background after each page served; 0 for none.
+     * @param archive The archive of the bodies fetched; null for none.
+     */
+    public Crawler(HTTPClient client, int prefetch, PageArchive archive) {
+        this.client = client;
+        this.archive = archive;
+        this.prefetcher = prefetch > 0 ?
+                new Prefetcher(this, prefetch, Prefetcher.DEFAULT_THREADS) : null;
+    }
+
+    /**
+     * Gets a result page given this keyword and page number.
+     * The next pages are prefetched in the background, if enabled.
+     * Cache.init has to be called beforehand.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to be searched.
+     * @return The result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    public CachePage getPage(String keyword, int pageNum) throws IOException {
+        CachePage page = load(keyword, pageNum);
+        if (prefetcher != null)
+            prefetcher.served(keyword, pageNum, page.getTotal());
+        return page;
+    }
+
+    /**
+     * Gets the total number of Items given this keyword, locally
+     * from the cache when its first page is cached, and otherwise
+     * remotely without fetching a whole result page. Nothing is
+     * cached by counting.
+     * Cache.init has to be called beforehand.
+     * @param keyword The keyword to be searched.
+     * @return The total number of Items; empty if no matches found.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    public String getItemsTotalNum(String keyword) throws IOException {
+        if (Cache.containsEntry(keyword, 1)) {
+            progress("[INFO] Cached results found. Query locally from cache...");
+            return Cache.getItemsTotalNum(keyword);
+        }
+        progress("[INFO] Count remotely on 'Sears.com'...");
+        return client.getItemsTotalNum(keyword);
+    }
+
+    /**
+     * Sets whether progress messages, such as where each page
+     * comes from, are printed. Warnings are printed in any case.
+     * Cache hits and misses are counted by Cache either way.
+     * @param quiet True to leave progress messages out.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    /**
+     * Gets the prefetcher of the pages after those served.
+     * @return The prefetcher; null if pages are not prefetched.
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Gets a result page given this keyword and page number,
+     * locally from the cache or by joining or starting a fetch.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to be searched.
+     * @return The result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    CachePage load(final String keyword, final int pageNum) throws IOException {
+        // cached entries found: gets result from local cache
+        if (Cache.containsEntry(keyword, pageNum)) {
+            progress("[INFO] Cached results found. Query locally from cache...");
+            return new CachePage(keyword, pageNum, Cache.getItemsTotalNum(keyword),
+                                 Cache.getItemsList(keyword, pageNum));
+        }
+        // cached entries not found: joins the fetch in progress, or starts one
+        String key = keyword + " " + pageNum;
+        FutureTask<CachePage> fetch = new FutureTask<CachePage>(new Callable<CachePage>() {
+            public CachePage call() throws IOException {
+                // a fetch finished just before this one started
+                List<Item> itemList = Cache.getItemsList(keyword, pageNum);
+                if (itemList != null)
+                    return new CachePage(keyword, pageNum, Cache.getItemsTotalNum(keyword), itemList);
+                return fetch(keyword, pageNum);
+            }
+        });
+        FutureTask<CachePage> running = inFlight.putIfAbsent(key, fetch);
+        if (running == null) {
+            running = fetch;
+            try {
+                fetch.run();
+            }
+            finally {
+                inFlight.remove(key, fetch);
+            }
+        }
+        else {
+            progress("[INFO] Same query in progress. Wait for its results...");
+        }
+        try {
+            return running.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for results.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Gets every result page given this keyword. The first page
+     * is fetched to learn the number of pages, then the remaining
+     * pages are fetched concurrently; each page is parsed and
+     * cached as soon as it arrives. Pages that cannot be fetched
+     * are reported and left out.
+     * Cache.init has to be called beforehand.
+     * @param keyword The keyword to be searched.
+     * @param concurrency The maximum number of pages fetched
+     * at the same time.
+     * @return A List of result pages, in page order.
+     * @throws IOException If the first page cannot be fetched.
+     */
+    public List<CachePage> getAllPages(final String keyword, int concurrency)
+            throws IOException {
+        List<CachePage> pages = new ArrayList<CachePage>();
+        CachePage first = load(keyword, 1);
+        pages.add(first);
+        int pagesNum = getPagesNum(first.getTotal());
+        if (pagesNum <= 1)
+            return pages;
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(concurrency, pagesNum - 1)));
+        List<Future<CachePage>> futures = new ArrayList<Future<CachePage>>();
+        try {
+            for (int i = 2; i <= pagesNum; ++i) {
+                final int pageNum = i;
+                futures.add(executor.submit(new Callable<CachePage>() {
+                    public CachePage call() throws IOException {
+                        return load(keyword, pageNum);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    pages.add(futures.get(i).get());
+                }
+                catch (ExecutionException e) {
+                    msg("[WARN] Unable to fetch page " + (i + 2) + ": " + e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching pages.", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return pages;
+    }
+
+    /**
+     * Creates the parser for result pages selected by the system
+     * property scraper.parser: "dom" (the default) builds a jsoup
+     * DOM Document, "stream" extracts Items without building one.
+     * @return A new parser for a single result page.
+     */
+    public static PageParser newParser() {
+        String parser = System.getProperty("scraper.parser", "dom");
+        if (parser.equalsIgnoreCase("stream"))
+            return new StreamParser();
+        if (!parser.equalsIgnoreCase("dom"))
+            msg("[WARN] Unknown parser '" + parser + "'. Use DOM parser instead.");
+        return new DOMParser();
+    }
+    
+    /**
+     * Gets the number of result pages for a total number of Items,
+     * at most MAX_PAGES.
+     * @param totalNum The total number of Items, as displayed
+     * by Sears.com.
+     * @return The number of result pages; 0 if no matches found.
+     */
+    public static int getPagesNum(String totalNum) {
+        String digits = totalNum == null ? "" : totalNum.replaceAll("[^0-9]", "");
+        if (digits.isEmpty())
+            return 0;
+        try {
+            long total = Long.parseLong(digits);
+            return (int) Math.min(MAX_PAGES,
+                    (total + HTTPClient.VALUE_VIEW_ITEMS - 1) / HTTPClient.VALUE_VIEW_ITEMS);
+        }
+        catch (NumberFormatException e) {
+            return MAX_PAGES;
+        }
+    }
+
+    /**
+     * Archives the body of a result page, reporting failures.
+     * @param archive The archive.
+     * @param page The result page.
+     * @param url The URL the page was retrieved from.
+     * @param charset The charset of the body; null if unknown.
+     * @param body The body of the page.
+     */
+    static void archive(PageArchive archive, CachePage page, String url, String charset,
+                        byte[] body) {
+        try {
+            archive.add(page, url, charset, body);
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to archive page " + page.getPageNum() + " of '" +
+                page.getKeyword() + "': " + e);
+        }
+    }
+
+    /**
+     * Creates the digest hashing the bodies fetched.
+     * @return A new MD5 digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform provides MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the content hash of a body: the first 64 bits of
+     * its digest, never 0.
+     * @param digest The digest the body has been fed to.
+     * @return The content hash of the body.
+     */
+    static long contentHash(MessageDigest digest) {
+        byte[] bytes = digest.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; ++i)
+            hash = hash << 8 | (bytes[i] & 0xff);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Gets the content hash of a body.
+     * @param body The body.
+     * @return The content hash of the body, never 0.
+     */
+    static long contentHash(byte[] body) {
+        MessageDigest digest = newDigest();
+        digest.update(body);
+        return contentHash(digest);
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Fetches a result page from Sears.com, parses it and
+     * caches it. An expired page still cached is asked for
+     * conditionally, and kept as it is when unchanged. The
+     * body is copied aside while parsed to be archived, if
+     * enabled.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to be searched.
+     * @return The result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    private CachePage fetch(String keyword, int pageNum) throws IOException {
+        CachePage cached = Cache.getStalePage(keyword, pageNum);
+        if (cached == null) {
+            progress("[INFO] Query remotely to 'Sears.com'...");
+            return parse(keyword, pageNum, client.openPage(keyword, pageNum), null);
+        }
+        progress("[INFO] Cached results expired. Query remotely to 'Sears.com' if changed...");
+        HttpResponse response = client.openPage(keyword, pageNum, cached.getEtag(),
+                                                cached.getLastModified());
+        if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            return revalidate(cached);
+        }
+        if (cached.getContentHash() == 0)
+            return parse(keyword, pageNum, response, null);
+        byte[] body;
+        try {
+            body = response.readBody();
+        }
+        finally {
+            response.close();
+        }
+        if (contentHash(body) == cached.getContentHash())
+            return revalidate(cached);
+        return parse(keyword, pageNum, response, body);
+    }
+
+    /**
+     * Parses a result page fetched from Sears.com, hashes its
+     * body and caches it.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @param response The response of the page, closed once read.
+     * @param read The body already read from the response; null
+     * to read it from the response.
+     * @return The result page.
+     * @throws IOException If the body cannot be read.
+     */
+    private CachePage parse(String keyword, int pageNum, HttpResponse response, byte[] read)
+            throws IOException {
+        PageParser parser = newParser();
+        MessageDigest digest = newDigest();
+        final ByteArrayOutputStream body = archive == null ? null : new ByteArrayOutputStream();
+        try {
+            InputStream in = read == null ? response.getBody() : new ByteArrayInputStream(read);
+            in = new DigestInputStream(in, digest);
+            if (body != null) {
+                in = new FilterInputStream(in) {
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) body.write(b);
+                        return b;
+                    }
+
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) body.write(b, off, n);
+                        return n;
+                    }
+                };
+            }
+            parser.parse(in, response.getCharset(), response.getUrl());
+        }
+        finally {
+            response.close();
+        }
+        List<Item> itemList;
+        try {
+            itemList = parser.getAllItems();
+        }
+        catch (NullPointerException e) {
+            itemList = null;
+        }
+        CachePage page = new CachePage(keyword, pageNum, parser.getItemsTotalNum(), itemList);
+        page.setEtag(response.getHeader("ETag"));
+        page.setLastModified(response.getHeader("Last-Modified"));
+        page.setContentHash(contentHash(digest));
+        if (archive != null)
+            archive(archive, page, response.getUrl(), response.getCharset(), body.toByteArray());
+        Cache.addPage(page);
+        return page;
+    }
+
+    /**
+     * Keeps an expired page found unchanged on Sears.com,
+     * renewing it in the cache without writing it again.
+     * @param cached The page as cached.
+     * @return The result page.
+     */
+    private CachePage revalidate(CachePage cached) {
+        Cache.revalidate(cached.getKeyword(), cached.getPageNum());
+        progress("[INFO] Results for '" + cached.getKeyword() +
+                 "' unchanged. Keep cached results.");
+        return new CachePage(cached.getKeyword(), cached.getPageNum(), cached.getTotal(),
+                             cached.getItems());
+    }
+
+    /**
+     * Prints a progress message to console, unless quiet.
+     * @param msg Message to be displayed.
+     */
+    private void progress(Object msg) {
+        if (!quiet)
+            msg(msg);
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}
@@ -0,0 +1,294 @@
+package core;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Cache;
+
+/**
+ * Class for the prefetcher of result pages. After a page is served,
+ * the next few pages of its keyword are fetched and cached in the
+ * background. The latest pages requested are prefetched first, and
+ * pages no longer ahead of the latest page requested for their
+ * keyword are dropped before being fetched. Prefetched pages are
+ * remembered until they are requested, expire from the cache or
+ * are pushed out by newer ones, and then count as wasted.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class Prefetcher {
+
+    /** the default number of background fetch threads */
+    public static final int DEFAULT_THREADS = 2;
+
+    /** the most pages waiting to be prefetched */
+    private static final int QUEUE_CAPACITY = 256;
+
+    /** the most prefetched pages remembered until they are requested */
+    private static final int MAX_UNUSED = 1024;
+
+    /** the crawler fetching the pages */
+    private final Crawler crawler;
+
+    /** the number of pages prefetched ahead of the page served */
+    private final int depth;
+
+    /** the background fetch threads */
+    private final ThreadPoolExecutor executor;
+
+    /** the latest page requested for each keyword */
+    private final ConcurrentHashMap<String, Integer> latest =
+            new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * the pages prefetched and not yet requested, keyed by keyword
+     * and page number, oldest first; guarded by itself
+     */
+    private final LinkedHashMap<String, Prefetch> unused = new LinkedHashMap<String, Prefetch>();
+
+    /** the pages scheduled and not yet done, keyed by keyword and page number */
+    private final ConcurrentHashMap<String, Boolean> scheduled =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /** the number of pages prefetched */
+    private final AtomicLong prefetched = new AtomicLong();
+
+    /** the number of prefetched pages later requested */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** the number of prefetched pages forgotten before being requested */
+    private final AtomicLong wasted = new AtomicLong();
+
+    /** the number of pages dropped before being fetched */
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /** the number of prefetches that failed */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Class for the queue of pages waiting to be prefetched,
+     * newest first. Once full, the oldest page is dropped.
+     */
+    private class Queue extends LinkedBlockingDeque<Runnable> {
+
+        /** assigned serial number */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor for Queue.
+         */
+        Queue() {
+            super(QUEUE_CAPACITY);
+        }
+
+        public boolean offer(Runnable task) {
+            while (!offerFirst(task)) {
+                Runnable dropped = pollLast();
+                if (dropped != null) ((Prefetch) dropped).cancel();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Class for a page waiting to be prefetched.
+     */
+    private class Prefetch implements Runnable {
+
+        /** the keyword of the page */
+        final String keyword;
+
+        /** the page number of the page */
+        final int pageNum;
+
+        /**
+         * Constructor for Prefetch.
+         * @param keyword The keyword of the page.
+         * @param pageNum The page number of the page.
+         */
+        Prefetch(String keyword, int pageNum) {
+            this.keyword = keyword;
+            this.pageNum = pageNum;
+        }
+
+        public void run() {
+            String key = keyword + " " + pageNum;
+            try {
+                Integer current = latest.get(keyword);
+                if (current == null || pageNum <= current || pageNum > current + depth) {
+                    cancelled.incrementAndGet();
+                    return;
+                }
+                if (Cache.isCached(keyword, pageNum))
+                    return;
+                crawler.load(keyword, pageNum);
+                prefetched.incrementAndGet();
+                remember(key, this);
+            }
+            catch (IOException e) {
+                failed.incrementAndGet();
+            }
+            catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+            finally {
+                scheduled.remove(key);
+            }
+        }
+
+        /**
+         * Drops this page without fetching it.
+         */
+        void cancel() {
+            scheduled.remove(keyword + " " + pageNum);
+            cancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Constructor for Prefetcher.
+     * @param crawler The crawler fetching the pages.
+     * @param depth The number of pages prefetched ahead of
+     * the page served.
+     * @param threads The number of background fetch threads.
+     */
+    public Prefetcher(Crawler crawler, int depth, int threads) {
+        this.crawler = crawler;
+        this.depth = depth;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new Queue(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Records that a page has been served, and schedules the
+     * pages after it that exist and are not cached yet.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @param totalNum The total number of Items for the keyword.
+     */
+    public void served(String keyword, int pageNum, String totalNum) {
+        synchronized (unused) {
+            if (unused.remove(keyword + " " + pageNum) != null)
+                hits.incrementAndGet();
+        }
+        latest.put(keyword, pageNum);
+        int last = Math.min(pageNum + depth, Crawler.getPagesNum(totalNum));
+        // the nearest page is queued last, so it is fetched first
+        for (int next = last; next > pageNum; --next) {
+            String key = keyword + " " + next;
+            if (Cache.isCached(keyword, next) || scheduled.putIfAbsent(key, Boolean.TRUE) != null)
+                continue;
+            executor.execute(new Prefetch(keyword, next));
+        }
+    }
+
+    /**
+     * Waits for the pages scheduled to be prefetched.
+     * @param timeout The longest time to wait, in milliseconds.
+     * @return True if every page scheduled is done; false if
+     * the time ran out.
+     */
+    public boolean await(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (!scheduled.isEmpty()) {
+                if (System.currentTimeMillis() >= deadline)
+                    return false;
+                Thread.sleep(10);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of pages prefetched.
+     * @return The number of pages prefetched.
+     */
+    public long getPrefetchCount() {
+        return prefetched.get();
+    }
+
+    /**
+     * Gets the number of prefetched pages later requested.
+     * @return The number of prefetch hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of prefetched pages not requested so far,
+     * whether still cached or already forgotten.
+     * @return The number of wasted prefetches.
+     */
+    public long getWastedCount() {
+        synchronized (unused) {
+            return wasted.get() + unused.size();
+        }
+    }
+
+    /**
+     * Gets the number of pages dropped before being fetched,
+     * because they were no longer ahead of the latest page
+     * requested or the queue was full.
+     * @return The number of cancelled prefetches.
+     */
+    public long getCancelCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Describes the prefetches so far.
+     * @return The description.
+     */
+    public String toString() {
+        long done = prefetched.get();
+        return String.format("%d prefetched, %d hits (%.1f%%), %d wasted, %d cancelled, %d failed",
+                done, hits.get(), done == 0 ? 0.0 : hits.get() * 100.0 / done,
+                getWastedCount(), cancelled.get(), failed.get());
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Remembers a page prefetched until it is requested, then
+     * forgets the oldest pages remembered while there are too
+     * many or they are no longer cached, counting them as
+     * wasted. Pages expire in about the order they were
+     * prefetched, so the oldest ones are the ones to check.
+     * @param key The keyword and page number of the page.
+     * @param page The page.
+     */
+    private void remember(String key, Prefetch page) {
+        synchronized (unused) {
+            unused.put(key, page);
+            Iterator<Map.Entry<String, Prefetch>> it = unused.entrySet().iterator();
+            while (it.hasNext()) {
+                Prefetch oldest = it.next().getValue();
+                if (unused.size() <= MAX_UNUSED && Cache.isCached(oldest.keyword, oldest.pageNum))
+                    break;
+                it.remove();
+                wasted.incrementAndGet();
+            }
+        }
+    }
+
+}
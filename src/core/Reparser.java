@@ -0,0 +1,201 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+import util.Cache;
+import util.PageArchive;
+import util.PageParser;
+
+/**
+ * Class for rebuilding the cache from the archive of raw result
+ * pages, without any network access: the latest record of every
+ * page archived is parsed again with the current parser and cached
+ * with its original fetch time, unless the page has been fetched
+ * since with another body. Records are split among the threads
+ * of a fork-join pool, so a large archive keeps every core busy.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class Reparser {
+
+    /** the most records parsed by a task without splitting it */
+    private static final int THRESHOLD = 4;
+
+    /** the archive to be parsed */
+    private final PageArchive archive;
+
+    /** the number of parse threads */
+    private final int parallelism;
+
+    /** the number of pages parsed */
+    private final AtomicLong pagesParsed = new AtomicLong();
+
+    /** the number of pages skipped, as fetched since with another body */
+    private final AtomicLong pagesSkipped = new AtomicLong();
+
+    /** the number of pages that could not be read or parsed */
+    private final AtomicLong pagesFailed = new AtomicLong();
+
+    /** the number of Items parsed */
+    private final AtomicLong itemsParsed = new AtomicLong();
+
+    /**
+     * Class for parsing a range of records, split in halves
+     * until small enough.
+     */
+    private class ReparseTask extends RecursiveAction {
+
+        /** assigned serial number */
+        private static final long serialVersionUID = 1L;
+
+        /** the records */
+        private final List<File> records;
+
+        /** the first record of the range */
+        private final int from;
+
+        /** the record after the range */
+        private final int to;
+
+        /**
+         * Constructor for ReparseTask.
+         * @param records The records.
+         * @param from The first record of the range.
+         * @param to The record after the range.
+         */
+        ReparseTask(List<File> records, int from, int to) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Parses the records of the range.
+         */
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; ++i)
+                    reparse(records.get(i));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ReparseTask(records, from, mid), new ReparseTask(records, mid, to));
+        }
+    }
+
+    /**
+     * Constructor for Reparser.
+     * @param archive The archive to be parsed.
+     * @param parallelism The number of parse threads.
+     */
+    public Reparser(PageArchive archive, int parallelism) {
+        this.archive = archive;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Parses the latest record of every page archived and caches
+     * the results, then reports the throughput.
+     * Cache.init has to be called beforehand.
+     */
+    public void reparse() {
+        long start = System.currentTimeMillis();
+        List<File> records = archive.latest();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ReparseTask(records, 0, records.size()));
+        }
+        finally {
+            pool.shutdown();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        msg("\n[INFO] Re-parsed " + pagesParsed.get() + " pages from '" + archive.getDir() +
+            "' in " + elapsed + " ms, " + pagesSkipped.get() + " skipped as fetched since, " +
+            pagesFailed.get() + " failed.");
+        msg(String.format("[INFO] Throughput: %.2f pages/sec, %.2f items/sec.",
+            pagesParsed.get() * 1000.0 / elapsed, itemsParsed.get() * 1000.0 / elapsed));
+    }
+
+    /**
+     * Gets the number of pages parsed.
+     * @return The number of pages parsed.
+     */
+    public long getPagesParsed() {
+        return pagesParsed.get();
+    }
+
+    /**
+     * Gets the number of pages skipped, as they have been
+     * fetched since with another body.
+     * @return The number of pages skipped.
+     */
+    public long getPagesSkipped() {
+        return pagesSkipped.get();
+    }
+
+    /**
+     * Gets the number of pages that could not be read or parsed.
+     * @return The number of pages failed.
+     */
+    public long getPagesFailed() {
+        return pagesFailed.get();
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Parses an archived record and caches the result page.
+     * @param f The record file.
+     */
+    private void reparse(File f) {
+        try {
+            PageArchive.Record record = PageArchive.read(f);
+            PageParser parser = Crawler.newParser();
+            parser.parse(new ByteArrayInputStream(record.getBody()), record.getCharset(),
+                         record.getUrl());
+            List<Item> itemList;
+            try {
+                itemList = parser.getAllItems();
+                itemsParsed.addAndGet(itemList.size());
+            }
+            catch (NullPointerException e) {
+                itemList = null;
+            }
+            CachePage page = new CachePage(record.getKeyword(), record.getPageNum(),
+                                           parser.getItemsTotalNum(), itemList,
+                                           record.getFetchTime());
+            page.setContentHash(Crawler.contentHash(record.getBody()));
+            if (Cache.addArchivedPage(page))
+                pagesParsed.incrementAndGet();
+            else
+                pagesSkipped.incrementAndGet();
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to re-parse '" + f + "': " + e);
+            pagesFailed.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            msg("[WARN] Unable to re-parse '" + f + "': " + e);
+            pagesFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}
@@ -0,0 +1,558 @@
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import datastructure.CachePage;
+import datastructure.Item;
+import datastructure.PricePoint;
+
+import util.Cache;
+import util.HTTPClient;
+import util.LimitedTransport;
+import util.Metrics;
+import util.RetryingTransport;
+import util.SearchIndex;
+
+/**
+ * Class for the scraper daemon. Keeps the cache, the HTTP client
+ * and its connections warm in one process and answers queries
+ * over a local HTTP API with JSON responses:
+ *     GET /search?keyword=&lt;keyword&gt;[&amp;page=&lt;pageNum&gt;]
+ *     GET /count?keyword=&lt;keyword&gt;
+ *     GET /query?[q=&lt;words&gt;][&amp;vendor=&lt;vendor&gt;][&amp;min=&lt;price&gt;]
+ *               [&amp;max=&lt;price&gt;][&amp;limit=&lt;n&gt;]
+ *     GET /history?product=&lt;product&gt;[&amp;days=&lt;days&gt;]
+ *     GET /stats
+ *     GET /metrics[?format=json]
+ * The latter answers with Prometheus text unless JSON is asked for.
+ * Requests are handled concurrently. A request whose handling fails
+ * unexpectedly is answered with a 500.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class ScraperServer {
+
+    /** the default port listened on */
+    public static final int DEFAULT_PORT = 8080;
+
+    /** the default number of request handling threads */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * Class for the handler of a path. Answers with a 500 if the
+     * handling fails unexpectedly before answering, and closes the
+     * exchange in any case.
+     */
+    private abstract static class Handler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                answer(exchange);
+            }
+            catch (RuntimeException e) {
+                msg("[WARN] Unable to answer " + exchange.getRequestURI() + ": " + e);
+                // no status sent yet
+                if (exchange.getResponseCode() == -1)
+                    error(exchange, 500, "Internal error.");
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Answers a request.
+         * @param exchange The request and its response.
+         * @throws IOException If the response cannot be sent.
+         */
+        abstract void answer(HttpExchange exchange) throws IOException;
+    }
+
+    /** the crawler answering queries */
+    private final Crawler crawler;
+
+    /** the HTTP client of the crawler */
+    private final HTTPClient client;
+
+    /** the port listened on */
+    private final int port;
+
+    /** the number of request handling threads */
+    private final int threads;
+
+    /** the underlying HTTP server; null if not started */
+    private HttpServer server;
+
+    /** the request handling threads; null if not started */
+    private ExecutorService executor;
+
+    /**
+     * Constructor for ScraperServer.
+     * @param crawler The crawler answering queries.
+     * @param client The HTTP client of the crawler.
+     * @param port The port listened on, on the loopback interface.
+     * @param threads The number of request handling threads.
+     */
+    public ScraperServer(Crawler crawler, HTTPClient client, int port, int threads) {
+        this.crawler = crawler;
+        this.client = client;
+        this.port = port;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts answering queries.
+     * Cache.init has to be called beforehand.
+     * @throws IOException If the port cannot be listened on.
+     */
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                search(exchange);
+            }
+        });
+        server.createContext("/count", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                count(exchange);
+            }
+        });
+        server.createContext("/query", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                query(exchange);
+            }
+        });
+        server.createContext("/history", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                history(exchange);
+            }
+        });
+        server.createContext("/stats", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                stats(exchange);
+            }
+        });
+        server.createContext("/metrics", new Handler() {
+            void answer(HttpExchange exchange) throws IOException {
+                metrics(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        msg("[INFO] Listening on http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Stops answering queries, letting requests in progress
+     * finish for up to a second.
+     */
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(1);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Answers a search for a keyword and page number.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void search(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            error(exchange, 405, "Method not allowed.");
+            return;
+        }
+        Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+        String raw = params.get("keyword");
+        String keyword = raw == null ? null : SearsScraper.normalize(raw.trim());
+        if (keyword == null) {
+            error(exchange, 400, "Invalid value of keyword.");
+            return;
+        }
+        int pageNum = 1;
+        if (params.containsKey("page")) {
+            try {
+                pageNum = Integer.parseInt(params.get("page"));
+            }
+            catch (NumberFormatException e) {
+                pageNum = 0;
+            }
+            if (pageNum <= 0) {
+                error(exchange, 400, "Invalid value of page.");
+                return;
+            }
+        }
+        CachePage page;
+        try {
+            page = crawler.getPage(keyword, pageNum);
+        }
+        catch (SocketTimeoutException e) {
+            error(exchange, 504, "Socket timeout, please try again.");
+            return;
+        }
+        catch (IOException e) {
+            error(exchange, 502, "Unable to connect to 'Sears.com'.");
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"keyword\":").append(quote(raw.trim()))
+            .append(",\"page\":").append(pageNum)
+            .append(",\"total\":").append(quote(page.getTotal()))
+            .append(",\"items\":[");
+        List<Item> items = page.getItems();
+        if (items != null) {
+            for (int i = 0; i < items.size(); ++i) {
+                Item item = items.get(i);
+                if (i > 0) json.append(',');
+                json.append("{\"name\":").append(quote(item.getName()))
+                    .append(",\"price\":").append(quote(item.getPrice()))
+                    .append(",\"vendor\":").append(quote(item.getVendor()))
+                    .append(",\"id\":").append(quote(item.getId()))
+                    .append('}');
+            }
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    /**
+     * Answers with the total number of Items for a keyword,
+     * without fetching a whole result page.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void count(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            error(exchange, 405, "Method not allowed.");
+            return;
+        }
+        String raw = params(exchange.getRequestURI().getRawQuery()).get("keyword");
+        String keyword = raw == null ? null : SearsScraper.normalize(raw.trim());
+        if (keyword == null) {
+            error(exchange, 400, "Invalid value of keyword.");
+            return;
+        }
+        String totalNum;
+        try {
+            totalNum = crawler.getItemsTotalNum(keyword);
+        }
+        catch (SocketTimeoutException e) {
+            error(exchange, 504, "Socket timeout, please try again.");
+            return;
+        }
+        catch (IOException e) {
+            error(exchange, 502, "Unable to connect to 'Sears.com'.");
+            return;
+        }
+        send(exchange, 200, "{\"keyword\":" + quote(raw.trim()) +
+                            ",\"total\":" + quote(totalNum) + "}");
+    }
+
+    /**
+     * Answers a search of the cached Items by words of their
+     * names, vendor and price range, without any network access.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void query(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            error(exchange, 405, "Method not allowed.");
+            return;
+        }
+        Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+        String text = params.get("q");
+        String vendor = params.get("vendor");
+        long minCents = 0;
+        long maxCents = Long.MAX_VALUE;
+        int limit = HTTPClient.VALUE_VIEW_ITEMS;
+        if (params.containsKey("min")) {
+            minCents = SearsScraper.parsePrice(params.get("min"));
+            if (minCents < 0) {
+                error(exchange, 400, "Invalid value of min.");
+                return;
+            }
+        }
+        if (params.containsKey("max")) {
+            maxCents = SearsScraper.parsePrice(params.get("max"));
+            if (maxCents < 0) {
+                error(exchange, 400, "Invalid value of max.");
+                return;
+            }
+        }
+        if (params.containsKey("limit")) {
+            try {
+                limit = Integer.parseInt(params.get("limit"));
+            }
+            catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit <= 0) {
+                error(exchange, 400, "Invalid value of limit.");
+                return;
+            }
+        }
+        SearchIndex.Result result;
+        try {
+            result = Cache.search(text, vendor, minCents, maxCents, limit);
+        }
+        catch (IllegalArgumentException e) {
+            error(exchange, 400, "No words, vendor or price range to search for.");
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"total\":").append(result.getTotal()).append(",\"items\":[");
+        List<SearchIndex.Hit> hits = result.getHits();
+        for (int i = 0; i < hits.size(); ++i) {
+            SearchIndex.Hit hit = hits.get(i);
+            Item item = hit.getItem();
+            if (i > 0) json.append(',');
+            json.append("{\"name\":").append(quote(item.getName()))
+                .append(",\"price\":").append(quote(item.getPrice()))
+                .append(",\"vendor\":").append(quote(item.getVendor()))
+                .append(",\"id\":").append(quote(item.getId()))
+                .append(",\"keyword\":").append(quote(SearsScraper.denormalize(hit.getKeyword())))
+                .append(",\"page\":").append(hit.getPageNum())
+                .append('}');
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    /**
+     * Answers with the prices recorded for a product over the
+     * last days, oldest first, without any network access.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void history(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            error(exchange, 405, "Method not allowed.");
+            return;
+        }
+        Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+        String productId = params.get("product");
+        if (productId == null || productId.trim().isEmpty()) {
+            error(exchange, 400, "Invalid value of product.");
+            return;
+        }
+        int days = SearsScraper.DEFAULT_HISTORY_DAYS;
+        if (params.containsKey("days")) {
+            try {
+                days = Integer.parseInt(params.get("days"));
+            }
+            catch (NumberFormatException e) {
+                days = 0;
+            }
+            if (days <= 0) {
+                error(exchange, 400, "Invalid value of days.");
+                return;
+            }
+        }
+        long to = System.currentTimeMillis();
+        List<PricePoint> points = Cache.getPriceHistory(productId.trim(), to - days * 86400000L, to);
+        StringBuilder json = new StringBuilder();
+        json.append("{\"product\":").append(quote(productId.trim()))
+            .append(",\"days\":").append(days)
+            .append(",\"points\":[");
+        for (int i = 0; i < points.size(); ++i) {
+            PricePoint point = points.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"time\":").append(point.getTime())
+                .append(",\"price\":").append(point.getCents() < 0 ? "null" :
+                        quote(SearsScraper.formatPrice(point.getCents())))
+                .append(",\"cents\":").append(point.getCents())
+                .append(",\"vendor\":").append(quote(point.getVendor()))
+                .append('}');
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    /**
+     * Answers with the cache and request statistics.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void stats(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"hits\":").append(Cache.getHitCount())
+            .append(",\"misses\":").append(Cache.getMissCount())
+            .append(",\"evictions\":").append(Cache.getEvictionCount())
+            .append(",\"revalidations\":").append(Cache.getRevalidationCount())
+            .append(",\"products\":").append(Cache.getProductCount());
+        LimitedTransport limiter = client.getLimiter();
+        if (limiter != null) {
+            json.append(",\"limit\":").append(limiter.getLimit())
+                .append(",\"inFlight\":").append(limiter.getInFlight())
+                .append(String.format(Locale.ROOT, ",\"queueDelayMs\":%.3f", limiter.getAverageQueueDelay()))
+                .append(String.format(Locale.ROOT, ",\"maxQueueDelayMs\":%.3f", limiter.getMaxQueueDelay()));
+        }
+        RetryingTransport retrier = client.getRetrier();
+        if (retrier != null) {
+            json.append(",\"retries\":").append(retrier.getRetryCount())
+                .append(",\"hedges\":").append(retrier.getHedgeCount())
+                .append(",\"hedgesWon\":").append(retrier.getHedgeWinCount());
+        }
+        Prefetcher prefetcher = crawler.getPrefetcher();
+        if (prefetcher != null) {
+            json.append(",\"prefetched\":").append(prefetcher.getPrefetchCount())
+                .append(",\"prefetchHits\":").append(prefetcher.getHitCount())
+                .append(",\"prefetchUnused\":").append(prefetcher.getWastedCount())
+                .append(",\"prefetchCancelled\":").append(prefetcher.getCancelCount());
+        }
+        send(exchange, 200, json.append('}').toString());
+    }
+
+    /**
+     * Answers with the latency histograms and counters, as
+     * Prometheus text or as JSON.
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void metrics(HttpExchange exchange) throws IOException {
+        if (!Metrics.ENABLED) {
+            error(exchange, 404, "Metrics disabled, set scraper.metrics to true.");
+            return;
+        }
+        String format = params(exchange.getRequestURI().getRawQuery()).get("format");
+        if ("json".equals(format)) {
+            send(exchange, 200, Metrics.toJson());
+            return;
+        }
+        send(exchange, 200, "text/plain; version=0.0.4; charset=UTF-8", Metrics.toPrometheus());
+    }
+
+    /**
+     * Answers with an error.
+     * @param exchange The request and its response.
+     * @param status The status code.
+     * @param message The error message.
+     * @throws IOException If the response cannot be sent.
+     */
+    private static void error(HttpExchange exchange, int status, String message)
+            throws IOException {
+        send(exchange, status, "{\"error\":" + quote(message) + "}");
+    }
+
+    /**
+     * Sends a JSON response.
+     * @param exchange The request and its response.
+     * @param status The status code.
+     * @param json The JSON body.
+     * @throws IOException If the response cannot be sent.
+     */
+    private static void send(HttpExchange exchange, int status, String json)
+            throws IOException {
+        send(exchange, status, "application/json; charset=UTF-8", json);
+    }
+
+    /**
+     * Sends a response.
+     * @param exchange The request and its response.
+     * @param status The status code.
+     * @param type The content type of the body.
+     * @param text The body.
+     * @throws IOException If the response cannot be sent.
+     */
+    private static void send(HttpExchange exchange, int status, String type, String text)
+            throws IOException {
+        byte[] body = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Decodes the parameters of a query string.
+     * @param query The raw query string; may be null.
+     * @return The decoded parameters; the first value wins.
+     */
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq == -1 ? pair : pair.substring(0, eq);
+            String value = eq == -1 ? "" : pair.substring(eq + 1);
+            try {
+                name = URLDecoder.decode(name, "UTF-8");
+                value = URLDecoder.decode(value, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                // unsupported UTF-8 encoding, just uses raw parameter
+            }
+            catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (!params.containsKey(name))
+                params.put(name, value);
+        }
+        return params;
+    }
+
+    /**
+     * Quotes a String as a JSON string.
+     * @param s The String to be quoted; may be null.
+     * @return The JSON string; null if s is null.
+     */
+    private static String quote(String s) {
+        if (s == null)
+            return "null";
+        StringBuilder json = new StringBuilder(s.length() + 2);
+        json.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n");  break;
+                case '\r': json.append("\\r");  break;
+                case '\t': json.append("\\t");  break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}
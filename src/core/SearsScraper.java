@@ -1,20 +1,29 @@
 package core;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.HashMap;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 
-import org.jsoup.nodes.Document;
-
-import datastructure.CacheEntry;
+import datastructure.CachePage;
 import datastructure.Item;
+import datastructure.PricePoint;
 
 import util.Cache;
-import util.DOMParser;
 import util.HTTPClient;
+import util.Metrics;
+import util.PageArchive;
+import util.PooledTransport;
+import util.SearchIndex;
 
 /**
  * Main class for Sears.com text scraper.
@@ -23,58 +32,77 @@ import util.HTTPClient;
  */
 public class SearsScraper {
     
+    /** the longest time to wait for prefetches before exiting, in milliseconds */
+    private static final long PREFETCH_TIMEOUT = 30000;
+    
+    /** the number of days of price history displayed by default */
+    static final int DEFAULT_HISTORY_DAYS = 90;
+    
     /**
      * Runs Sears.com text scraper.
      * @param args Command line args.
      */
     public static void main(String[] args) {
+        PooledTransport.sizePool();
         title();
+        if (Metrics.ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    Metrics.dump();
+                }
+            });
+        }
+        if (args.length > 0 && args[0].equals("-all")) {
+            crawlAll(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-batch")) {
+            crawlBatch(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-serve")) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-reparse")) {
+            reparse(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-query")) {
+            query(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-history")) {
+            history(args);
+            return;
+        }
         if (args.length == 0 || args.length > 2) {
             msg("[ERROR] Invalid number of arguments.");
             usage();
             return;
         }
         
-        HTTPClient client = new HTTPClient();
-        DOMParser parser = new DOMParser();
-        String keyword;
+        Crawler crawler = new Crawler(new HTTPClient());
         int pageNum = 1;
         
         // normalizes keyword
-        try {
-            args[0] = args[0].trim();
-            if (args[0].isEmpty()) {
-                msg("[INFO] Invalid value of keyword.");
-                return;
-            }
-            keyword = URLEncoder.encode(args[0], "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            //unsupported UTF-8 encoding, just uses original keyword
-            keyword = args[0];
+        args[0] = args[0].trim();
+        String keyword = normalize(args[0]);
+        if (keyword == null) {
+            msg("[INFO] Invalid value of keyword.");
+            return;
         }
         
         // handles query type #1
         if (args.length == 1) {
             Cache.init();
             String totalNum;
-            // cached entries found: gets result from local cache
-            if (Cache.containsEntry(keyword, pageNum)) {
-                msg("[INFO] Cached results found. Query locally from cache...");
-                totalNum = Cache.getItemsTotalNum(keyword);
+            try {
+                totalNum = crawler.getItemsTotalNum(keyword);
             }
-            // cached entries not found: gets result from remote server
-            else {
-                msg("[INFO] Query remotely to 'Sears.com'...");
-                try {
-                    Document doc = client.getDOMTree(keyword, pageNum);
-                    parser.parse(doc);
-                    totalNum = parser.getItemsTotalNum();
-                    cacheResult(keyword, pageNum, totalNum, parser); 
-                }
-                catch (IOException e) {
-                    msg("[ERROR] Unable to connect to 'Sears.com'.");
-                    return;
-                }
+            catch (IOException e) {
+                msg("[ERROR] Unable to connect to 'Sears.com'.");
+                return;
             }
             // displays result to console
             if (totalNum.isEmpty())
@@ -85,98 +113,459 @@ public class SearsScraper {
         
         // handles query type #2
         else if (args.length == 2) {
+            pageNum = parsePositive(args[1], "second");
+            if (pageNum <= 0)
+                return;
+            Cache.init();
+            CachePage page;
             try {
-                pageNum = Integer.parseInt(args[1]);
-                if (pageNum <= 0) {
-                    msg("[ERROR] Non-positive value for the second argument.");
-                    usage();
-                    return;
-                }
+                page = crawler.getPage(keyword, pageNum);
             }
-            catch (NumberFormatException e) {
-                msg("[ERROR] Invalid value for the second argument.");
-                usage();
+            catch (SocketTimeoutException e) {
+                msg("[WARN] Socket timeout, please try again.");
                 return;
             }
-            Cache.init();
-            String totalNum;
-            List<Item> itemsList = null;
-            // cached entries found: gets result from local cache
-            if (Cache.containsEntry(keyword, pageNum)) {
-                msg("[INFO] Cached results found. Query locally from cache...");
-                totalNum = Cache.getItemsTotalNum(keyword);
-                itemsList = Cache.getItemsList(keyword, pageNum);
-            }
-            // cached entries not found: gets result from remote server
-            else {
-                msg("[INFO] Query remotely to 'Sears.com'...");
-                try {
-                    Document doc = client.getDOMTree(keyword, pageNum);
-                    parser.parse(doc);
-                    totalNum = parser.getItemsTotalNum();
-                    itemsList = parser.getAllItems();
-                    cacheResult(keyword, pageNum, totalNum, parser);
-                }
-                catch (SocketTimeoutException e) {
-                    msg("[WARN] Socket timeout, please try again.");
-                    return;
-                }
-                catch (IOException e) {
-                    msg("[ERROR] Unable to connect to 'Sears.com'.");
-                    return;
-                }
+            catch (IOException e) {
+                msg("[ERROR] Unable to connect to 'Sears.com'.");
+                return;
             }
             // displays result to console
-            if (itemsList == null || itemsList.isEmpty()) {
+            if (page.getItems() == null || page.getItems().isEmpty())
                 msg("\nNo entry matched.");
+            else
+                display(args[0], page);
+            // caches the next pages before exiting, for the next query
+            if (crawler.getPrefetcher() != null) {
+                msg("\n[INFO] Prefetch next pages...");
+                if (!crawler.getPrefetcher().await(PREFETCH_TIMEOUT))
+                    msg("[WARN] Prefetch timeout. Next pages may not be cached.");
+            }
+        }
+    }
+    
+    //------------------- private helpers -------------------
+    
+    /**
+     * Handles query type #3: fetches every page for a keyword,
+     * several pages at a time.
+     * @param args Command line args.
+     */
+    private static void crawlAll(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            msg("[ERROR] Invalid number of arguments.");
+            usage();
+            return;
+        }
+        args[1] = args[1].trim();
+        String keyword = normalize(args[1]);
+        if (keyword == null) {
+            msg("[INFO] Invalid value of keyword.");
+            return;
+        }
+        int concurrency = Crawler.DEFAULT_CONCURRENCY;
+        if (args.length == 3) {
+            concurrency = parsePositive(args[2], "third");
+            if (concurrency <= 0)
+                return;
+        }
+        Cache.init();
+        long start = System.currentTimeMillis();
+        HTTPClient client = new HTTPClient();
+        List<CachePage> pages;
+        try {
+            pages = new Crawler(client).getAllPages(keyword, concurrency);
+        }
+        catch (IOException e) {
+            msg("[ERROR] Unable to connect to 'Sears.com'.");
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        int itemsNum = 0;
+        for (CachePage page : pages) {
+            if (page.getItems() == null || page.getItems().isEmpty())
+                continue;
+            display(args[1], page);
+            itemsNum += page.getItems().size();
+        }
+        if (itemsNum == 0)
+            msg("\nNo entry matched.");
+        msg("\n[INFO] Fetched " + itemsNum + " items on " + pages.size() + 
+            " pages in " + elapsed + " ms.");
+        if (client.getLimiter() != null)
+            msg("[INFO] Requests: " + client.getLimiter() + ".");
+        if (client.getRetrier() != null)
+            msg("[INFO] Retries: " + client.getRetrier() + ".");
+    }
+    
+    /**
+     * Handles query type #4: fetches every page for each keyword
+     * read from a file, or from stdin if the file is "-".
+     * @param args Command line args.
+     */
+    private static void crawlBatch(String[] args) {
+        if (args.length < 2 || args.length > 5) {
+            msg("[ERROR] Invalid number of arguments.");
+            usage();
+            return;
+        }
+        int[] threads = { Crawler.DEFAULT_CONCURRENCY,
+                          Runtime.getRuntime().availableProcessors(), 1 };
+        String[] positions = { "third", "fourth", "fifth" };
+        for (int i = 2; i < args.length; ++i) {
+            threads[i - 2] = parsePositive(args[i], positions[i - 2]);
+            if (threads[i - 2] <= 0)
+                return;
+        }
+        BufferedReader in;
+        try {
+            in = new BufferedReader(args[1].equals("-") ?
+                    new InputStreamReader(System.in, "UTF-8") :
+                    new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+        }
+        catch (IOException e) {
+            msg("[ERROR] Unable to read keywords from '" + args[1] + "'.");
+            return;
+        }
+        Cache.init();
+        try {
+            new BatchCrawler(new HTTPClient(), threads[0], threads[1], threads[2]).crawl(in);
+        }
+        catch (IOException e) {
+            msg("[ERROR] Unable to read keywords from '" + args[1] + "'.");
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+    
+    /**
+     * Handles query type #5: keeps running and answers queries
+     * over a local HTTP API until terminated.
+     * @param args Command line args.
+     */
+    private static void serve(String[] args) {
+        if (args.length > 3) {
+            msg("[ERROR] Invalid number of arguments.");
+            usage();
+            return;
+        }
+        int port = ScraperServer.DEFAULT_PORT;
+        int threads = ScraperServer.DEFAULT_THREADS;
+        if (args.length > 1) {
+            port = parsePositive(args[1], "second");
+            if (port <= 0)
+                return;
+        }
+        if (args.length > 2) {
+            threads = parsePositive(args[2], "third");
+            if (threads <= 0)
+                return;
+        }
+        Cache.init();
+        HTTPClient client = new HTTPClient();
+        Crawler crawler = new Crawler(client);
+        // cache hits and misses are reported by /stats rather than per request
+        crawler.setQuiet(true);
+        final ScraperServer server = new ScraperServer(crawler, client, port, threads);
+        try {
+            server.start();
+        }
+        catch (IOException e) {
+            msg("[ERROR] Unable to listen on port " + port + ".");
+            Cache.close();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop();
+                Cache.close();
+            }
+        });
+    }
+    
+    /**
+     * Handles query type #6: rebuilds the cache from the archive
+     * of raw result pages, without any network access.
+     * @param args Command line args.
+     */
+    private static void reparse(String[] args) {
+        if (args.length > 2) {
+            msg("[ERROR] Invalid number of arguments.");
+            usage();
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1) {
+            threads = parsePositive(args[1], "second");
+            if (threads <= 0)
+                return;
+        }
+        PageArchive archive = PageArchive.configured();
+        if (!archive.getDir().isDirectory()) {
+            msg("[ERROR] No archive found at '" + archive.getDir() + "'.");
+            return;
+        }
+        Cache.init();
+        new Reparser(archive, threads).reparse();
+        Cache.close();
+    }
+    
+    /**
+     * Handles query type #7: searches the cached Items by words of
+     * their names, vendor and price range, without any network
+     * access.
+     * @param args Command line args.
+     */
+    private static void query(String[] args) {
+        StringBuilder text = new StringBuilder();
+        String vendor = null;
+        long minCents = 0;
+        long maxCents = Long.MAX_VALUE;
+        int limit = HTTPClient.VALUE_VIEW_ITEMS;
+        for (int i = 1; i < args.length; ++i) {
+            String arg = args[i];
+            boolean option = arg.equals("-vendor") || arg.equals("-min")
+                    || arg.equals("-max") || arg.equals("-limit");
+            if (!option) {
+                text.append(text.length() > 0 ? " " : "").append(arg.trim());
+                continue;
+            }
+            if (i + 1 == args.length) {
+                msg("[ERROR] Missing value for " + arg + ".");
+                usage();
+                return;
+            }
+            String value = args[++i].trim();
+            if (arg.equals("-vendor")) {
+                vendor = value;
+            }
+            else if (arg.equals("-limit")) {
+                limit = parsePositive(value, arg);
+                if (limit <= 0)
+                    return;
             }
             else {
-                int viewItemsNum = HTTPClient.VALUE_VIEW_ITEMS;
-                String span = "Items " + 
-                       ((pageNum - 1) * viewItemsNum + 1) + "-" + 
-                       ((pageNum - 1) * viewItemsNum + itemsList.size()) + 
-                       " of " + totalNum + " for '" + args[0] + "'";
-                msg("\n" + span);
-                msg("======================================================");
-                for (int i = 0; i < itemsList.size(); ++i) {
-                    Item item = itemsList.get(i);
-                    msg("- " + ((pageNum - 1) * viewItemsNum + i + 1) + " -");
-                    msg(" [NAME]   " + item.getName());
-                    msg(" [PRICE]  " + item.getPrice());
-                    msg(" [VENDOR] " + item.getVendor());
-                    msg("");
+                long cents = parsePrice(value);
+                if (cents < 0) {
+                    msg("[ERROR] Invalid value for " + arg + ".");
+                    usage();
+                    return;
                 }
-                msg("======================================================");
-                msg(span);
+                if (arg.equals("-min")) minCents = cents;
+                else maxCents = cents;
+            }
+        }
+        if (text.toString().trim().isEmpty() && vendor == null
+                && minCents == 0 && maxCents == Long.MAX_VALUE) {
+            msg("[ERROR] No words, vendor or price range to search for.");
+            usage();
+            return;
+        }
+        Cache.init();
+        long start = System.nanoTime();
+        SearchIndex.Result result = Cache.search(text.toString(), vendor, minCents, maxCents,
+                                                 limit);
+        long elapsed = System.nanoTime() - start;
+        List<SearchIndex.Hit> hits = result.getHits();
+        if (hits.isEmpty()) {
+            msg("\nNo entry matched.");
+        }
+        else {
+            String span = "Items 1-" + hits.size() + " of " + result.getTotal() +
+                          " matched in cache";
+            msg("\n" + span);
+            msg("======================================================");
+            for (int i = 0; i < hits.size(); ++i) {
+                SearchIndex.Hit hit = hits.get(i);
+                Item item = hit.getItem();
+                msg("- " + (i + 1) + " -");
+                msg(" [NAME]   " + item.getName());
+                msg(" [PRICE]  " + item.getPrice());
+                msg(" [VENDOR] " + item.getVendor());
+                if (item.getId() != null)
+                    msg(" [ID]     " + item.getId());
+                msg(" [FROM]   '" + denormalize(hit.getKeyword()) + "', page " +
+                    hit.getPageNum());
+                msg("");
             }
+            msg("======================================================");
+            msg(span);
         }
+        msg(String.format("\n[INFO] Searched in %.2f ms.", elapsed / 1e6));
+        Cache.close();
     }
     
-    //------------------- private helpers -------------------
+    /**
+     * Handles query type #8: displays the prices a product has
+     * been cached at over the last days, without any network
+     * access.
+     * @param args Command line args.
+     */
+    private static void history(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            msg("[ERROR] Invalid number of arguments.");
+            usage();
+            return;
+        }
+        String productId = args[1].trim();
+        if (productId.isEmpty()) {
+            msg("[ERROR] Invalid value of product.");
+            usage();
+            return;
+        }
+        int days = DEFAULT_HISTORY_DAYS;
+        if (args.length == 3) {
+            days = parsePositive(args[2], "days");
+            if (days <= 0)
+                return;
+        }
+        Cache.init();
+        long to = System.currentTimeMillis();
+        long start = System.nanoTime();
+        List<PricePoint> points = Cache.getPriceHistory(productId, to - days * 86400000L, to);
+        long elapsed = System.nanoTime() - start;
+        if (points.isEmpty()) {
+            msg("\nNo price recorded for '" + productId + "' in the last " + days + " days.");
+        }
+        else {
+            String span = points.size() + " prices of '" + productId + "' in the last " +
+                          days + " days";
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            msg("\n" + span);
+            msg("======================================================");
+            for (PricePoint point : points) {
+                msg(" " + format.format(new Date(point.getTime())) + "  " +
+                    String.format("%-12s", formatPrice(point.getCents())) +
+                    (point.getVendor() == null ? "" : point.getVendor()));
+            }
+            msg("======================================================");
+            msg(span);
+        }
+        msg(String.format("\n[INFO] Read in %.2f ms.", elapsed / 1e6));
+        Cache.close();
+    }
+    
+    /**
+     * Displays the Items of a result page.
+     * @param keyword The keyword as entered.
+     * @param page The result page.
+     */
+    private static void display(String keyword, CachePage page) {
+        List<Item> itemsList = page.getItems();
+        int pageNum = page.getPageNum();
+        int viewItemsNum = HTTPClient.VALUE_VIEW_ITEMS;
+        String span = "Items " + 
+               ((pageNum - 1) * viewItemsNum + 1) + "-" + 
+               ((pageNum - 1) * viewItemsNum + itemsList.size()) + 
+               " of " + page.getTotal() + " for '" + keyword + "'";
+        msg("\n" + span);
+        msg("======================================================");
+        for (int i = 0; i < itemsList.size(); ++i) {
+            Item item = itemsList.get(i);
+            msg("- " + ((pageNum - 1) * viewItemsNum + i + 1) + " -");
+            msg(" [NAME]   " + item.getName());
+            msg(" [PRICE]  " + item.getPrice());
+            msg(" [VENDOR] " + item.getVendor());
+            if (item.getId() != null)
+                msg(" [ID]     " + item.getId());
+            msg("");
+        }
+        msg("======================================================");
+        msg(span);
+    }
+    
+    /**
+     * Normalizes a keyword for use in a query.
+     * @param keyword The trimmed keyword as entered.
+     * @return The URL encoded keyword; null if it is empty.
+     */
+    static String normalize(String keyword) {
+        if (keyword.isEmpty())
+            return null;
+        try {
+            return URLEncoder.encode(keyword, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            //unsupported UTF-8 encoding, just uses original keyword
+            return keyword;
+        }
+    }
+    
+    /**
+     * Turns a keyword used in queries back into the keyword
+     * as entered.
+     * @param keyword The URL encoded keyword.
+     * @return The keyword as entered.
+     */
+    static String denormalize(String keyword) {
+        try {
+            return URLDecoder.decode(keyword, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            return keyword;
+        }
+        catch (IllegalArgumentException e) {
+            return keyword;
+        }
+    }
+    
+    /**
+     * Parses a price, like $1,234.56 or 50, into cents.
+     * @param price The price as entered.
+     * @return The price in cents; -1 if invalid.
+     */
+    static long parsePrice(String price) {
+        String digits = price.trim().replace("$", "").replace(",", "");
+        try {
+            BigDecimal cents = new BigDecimal(digits).movePointRight(2);
+            if (cents.signum() < 0 || cents.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0)
+                return -1;
+            return cents.setScale(0, RoundingMode.HALF_UP).longValue();
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Formats a price in cents, like $1234.56.
+     * @param cents The price in cents; -1 if not a plain
+     * dollar amount.
+     * @return The price as displayed; - if not a plain
+     * dollar amount.
+     */
+    static String formatPrice(long cents) {
+        if (cents < 0)
+            return "-";
+        return String.format("$%d.%02d", cents / 100, cents % 100);
+    }
     
     /**
-     * Caches return results.
-     * @param keyword The keyword to be searched.
-     * @param pageNum The page number to be searched.
-     * @param totalNum The total number of pages found.
-     * @param parser The DOM parser object.
+     * Parses a positive numeric argument, reporting
+     * invalid values.
+     * @param arg The argument to be parsed.
+     * @param position The position of the argument, as displayed.
+     * @return The value of the argument; 0 if invalid.
      */
-    private static void cacheResult(String keyword, int pageNum, String totalNum, DOMParser parser) {
-        List<Item> itemList;
-        HashMap<Integer, List<Item>> result;
+    private static int parsePositive(String arg, String position) {
         try {
-            itemList = parser.getAllItems();
+            int value = Integer.parseInt(arg);
+            if (value <= 0) {
+                msg("[ERROR] Non-positive value for the " + position + " argument.");
+                usage();
+                return 0;
+            }
+            return value;
         }
-        catch (NullPointerException e) {
-            itemList = null;
+        catch (NumberFormatException e) {
+            msg("[ERROR] Invalid value for the " + position + " argument.");
+            usage();
+            return 0;
         }
-        if (Cache.containsKeyword(keyword))
-            result = Cache.getItemsResult(keyword);
-        else
-            result = new HashMap<Integer, List<Item>>();
-        result.put(pageNum, itemList);
-        CacheEntry entry = new CacheEntry(totalNum, result);
-        Cache.addCacheEntry(keyword, entry);
     }
     
     /**
@@ -194,10 +583,55 @@ public class SearsScraper {
     private static void usage() {
         msg("");
         msg("    Usage : SearsScraper <keyword> [<pageNum>]");
+        msg("            SearsScraper -all <keyword> [<threads>]");
+        msg("            SearsScraper -batch <file> [<fetch> [<parse> [<persist>]]]");
+        msg("            SearsScraper -serve [<port> [<threads>]]");
+        msg("            SearsScraper -reparse [<threads>]");
+        msg("            SearsScraper -query [<words>] [-vendor <vendor>]");
+        msg("                         [-min <price>] [-max <price>] [-limit <n>]");
+        msg("            SearsScraper -history <product> [<days>]");
         msg("<keyword> : The keyword to be searched on 'Sears.com'.");
         msg("<pageNum> : (Optional) The page number (positive) to");
         msg("            customize result display. With this argument");
         msg("            detailed item information will be displayed.");
+        msg("     -all : Fetches and displays every page for the keyword.");
+        msg("<threads> : (Optional) The maximum number of pages fetched");
+        msg("            at the same time, " + Crawler.DEFAULT_CONCURRENCY + " by default.");
+        msg("   -batch : Fetches every page for each keyword in the file,");
+        msg("            one keyword per line; '-' reads from stdin.");
+        msg("  <fetch> : (Optional) The number of fetch threads, " + 
+            Crawler.DEFAULT_CONCURRENCY + " by default.");
+        msg("  <parse> : (Optional) The number of parse threads,");
+        msg("            one per processor by default.");
+        msg("<persist> : (Optional) The number of persist threads, 1 by default.");
+        msg("   -serve : Keeps running and answers queries on localhost:");
+        msg("            GET /search?keyword=<keyword>[&page=<pageNum>]");
+        msg("            returns the items and total number as JSON,");
+        msg("            GET /count?keyword=<keyword> returns the total number,");
+        msg("            GET /query?[q=<words>][&vendor=<vendor>][&min=<price>]");
+        msg("            [&max=<price>][&limit=<n>] searches the cached items,");
+        msg("            GET /history?product=<product>[&days=<days>]");
+        msg("            returns the prices recorded for the product,");
+        msg("            GET /stats returns the cache hit/miss counts,");
+        msg("            GET /metrics[?format=json] returns the latencies");
+        msg("            of each stage (-Dscraper.metrics=true).");
+        msg("   <port> : (Optional) The port listened on, " + 
+            ScraperServer.DEFAULT_PORT + " by default.");
+        msg("<threads> : (Optional) The number of request threads, " + 
+            ScraperServer.DEFAULT_THREADS + " by default.");
+        msg(" -reparse : Rebuilds the cache from the archived pages");
+        msg("            (-Dscraper.archive=true) with the current parser,");
+        msg("            without any network access.");
+        msg("<threads> : (Optional) The number of parse threads,");
+        msg("            one per processor by default.");
+        msg("   -query : Searches the cached items, without any network");
+        msg("            access, for those whose names hold every word,");
+        msg("            from the vendor and within the price range given,");
+        msg("            cheapest first, up to " + HTTPClient.VALUE_VIEW_ITEMS + " items by default.");
+        msg(" -history : Displays the prices the product, as identified by");
+        msg("            [ID] above, has been cached at, without any network");
+        msg("            access. Prices are recorded only when they change.");
+        msg("   <days> : (Optional) The number of days back, " + DEFAULT_HISTORY_DAYS + " by default.");
     }
     
     /**
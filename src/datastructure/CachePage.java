@@ -0,0 +1,176 @@
+package datastructure;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Class for a single cached result page.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+public class CachePage implements Serializable {
+
+    /** assigned serial number */
+    private static final long serialVersionUID = 1002L;
+
+    /** the keyword of this page */
+    private String keyword;
+
+    /** the page number of this page */
+    private int pageNum;
+
+    /** total number of items found for the keyword */
+    private String total;
+
+    /** the list of Items on this page */
+    private List<Item> items;
+
+    /** the time this page was fetched, in milliseconds */
+    private long fetchTime;
+
+    /** the entity tag Sears.com sent with this page; null if none */
+    private String etag;
+
+    /** the Last-Modified date Sears.com sent with this page; null if none */
+    private String lastModified;
+
+    /** the hash of the body this page was parsed from; 0 if unknown */
+    private long contentHash;
+
+    /**
+     * Constructor for CachePage, fetched now.
+     * @param keyword The keyword of this page.
+     * @param pageNum The page number of this page.
+     * @param total Total number of items found for the keyword.
+     * @param items The list of Items on this page.
+     */
+    public CachePage(String keyword, int pageNum, String total, List<Item> items) {
+        this(keyword, pageNum, total, items, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for CachePage.
+     * @param keyword The keyword of this page.
+     * @param pageNum The page number of this page.
+     * @param total Total number of items found for the keyword.
+     * @param items The list of Items on this page.
+     * @param fetchTime The time this page was fetched, in milliseconds.
+     */
+    public CachePage(String keyword, int pageNum, String total, List<Item> items, long fetchTime) {
+        this.keyword = keyword;
+        this.pageNum = pageNum;
+        this.total = total;
+        this.items = items;
+        this.fetchTime = fetchTime;
+    }
+
+    /**
+     * Getter for field keyword.
+     * @return Value of field keyword.
+     */
+    public String getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * Getter for field pageNum.
+     * @return Value of field pageNum.
+     */
+    public int getPageNum() {
+        return pageNum;
+    }
+
+    /**
+     * Getter for field total.
+     * @return Value of field total.
+     */
+    public String getTotal() {
+        return total;
+    }
+
+    /**
+     * Setter for field total.
+     * @param total The value to be set
+     * to field total.
+     */
+    public void setTotal(String total) {
+        this.total = total;
+    }
+
+    /**
+     * Getter for field items.
+     * @return Value of field items.
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * Setter for field items.
+     * @param items The value to be set
+     * to field items.
+     */
+    public void setItems(List<Item> items) {
+        this.items = items;
+    }
+
+    /**
+     * Getter for field fetchTime.
+     * @return Value of field fetchTime.
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    /**
+     * Getter for field etag.
+     * @return Value of field etag.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Setter for field etag.
+     * @param etag The value to be set
+     * to field etag.
+     */
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * Getter for field lastModified.
+     * @return Value of field lastModified.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Setter for field lastModified.
+     * @param lastModified The value to be set
+     * to field lastModified.
+     */
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Getter for field contentHash.
+     * @return Value of field contentHash.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Setter for field contentHash.
+     * @param contentHash The value to be set
+     * to field contentHash.
+     */
+    public void setContentHash(long contentHash) {
+        this.contentHash = contentHash;
+    }
+
+}
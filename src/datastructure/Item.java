@@ -21,6 +21,9 @@ public class Item implements Serializable {
     /** the vendor of this item */
     private String vendor;
     
+    /** the product identity of this item; null if unknown */
+    private String id;
+    
     /**
      * Constructor for Item
      * @param name The name of this item.
@@ -28,9 +31,22 @@ public class Item implements Serializable {
      * @param vendor The vendor of this item.
      */
     public Item(String name, String price, String vendor) {
+        this(name, price, vendor, null);
+    }
+    
+    /**
+     * Constructor for Item
+     * @param name The name of this item.
+     * @param price The price of this item.
+     * @param vendor The vendor of this item.
+     * @param id The product identity of this item, the same
+     * under every keyword; null if unknown.
+     */
+    public Item(String name, String price, String vendor, String id) {
         this.name = name;
         this.price = price;
         this.vendor = vendor;
+        this.id = id;
     }
 
     /**
@@ -83,5 +99,22 @@ public class Item implements Serializable {
     public void setVendor(String vendor) {
         this.vendor = vendor;
     }
+
+    /**
+     * Getter for field id.
+     * @return Value of field id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Setter for field id.
+     * @param id The value to be set
+     * to field id.
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
     
 }
@@ -0,0 +1,73 @@
+package datastructure;
+
+import java.io.Serializable;
+
+/**
+ * Class for a price of a product seen at a given time.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+public class PricePoint implements Serializable {
+
+    /** assigned serial number */
+    private static final long serialVersionUID = 1003L;
+
+    /** the product identity of this price */
+    private String productId;
+
+    /** the time this price was seen, in milliseconds */
+    private long time;
+
+    /** this price in cents; -1 if not a plain dollar amount */
+    private long cents;
+
+    /** the vendor offering this price; null if none */
+    private String vendor;
+
+    /**
+     * Constructor for PricePoint.
+     * @param productId The product identity of this price.
+     * @param time The time this price was seen, in milliseconds.
+     * @param cents This price in cents; -1 if not a plain
+     * dollar amount.
+     * @param vendor The vendor offering this price; null if none.
+     */
+    public PricePoint(String productId, long time, long cents, String vendor) {
+        this.productId = productId;
+        this.time = time;
+        this.cents = cents;
+        this.vendor = vendor;
+    }
+
+    /**
+     * Getter for field productId.
+     * @return Value of field productId.
+     */
+    public String getProductId() {
+        return productId;
+    }
+
+    /**
+     * Getter for field time.
+     * @return Value of field time.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Getter for field cents.
+     * @return Value of field cents.
+     */
+    public long getCents() {
+        return cents;
+    }
+
+    /**
+     * Getter for field vendor.
+     * @return Value of field vendor.
+     */
+    public String getVendor() {
+        return vendor;
+    }
+}
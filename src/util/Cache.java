@@ -1,107 +1,391 @@
 package util;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import datastructure.CacheEntry;
+import datastructure.CachePage;
 import datastructure.Item;
+import datastructure.PricePoint;
 
 /**
- * Class for the query result cache.
+ * Class for the query result cache. Pages are appended to
+ * log-structured cache files and located through memory-mapped
+ * indexes of record offsets; items are only read back on demand.
+ * Keywords are spread over shards, each with its own files and
+ * locks, so that several processes can share the cache folder:
+ * lookups and writes on a shard are locked against other
+ * processes, and writes to different shards run in parallel.
+ * Pages expire after a time to live, and the least recently
+ * used pages are evicted once the cache grows past its limits.
+ * Items with a product identity are stored once in the product
+ * catalog, whatever the number of pages they are found on, and
+ * every page read shares them: Items read from the cache are
+ * not to be modified. A page shows the version of each product
+ * stored last, whichever page it was fetched with, rather than
+ * the one fetched with the page itself. The prices products are
+ * stored at are kept as their price history.
  * @author Zhishen Wen
  * @version Sep 19, 2013
  */
 public class Cache {
     
-    /** cache mapping each keyword to a CacheEntry */
-    private static HashMap<String, CacheEntry> cache;
+    /** lock shared by cache operations and held exclusively by init and close */
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     
-    /** the name for the cache file */
+    /** true once Cache.init has been called */
+    private static volatile boolean initialized;
+    
+    /** the shards of this cache; null if unavailable */
+    private static CacheShard[] shards;
+    
+    /** the catalog of the products on cached pages; null if unavailable */
+    private static ProductCatalog catalog;
+    
+    /** the secondary index of cached Items; null until first searched */
+    private static SearchIndex searchIndex;
+    
+    /** the number of shards keywords are spread over */
+    static final int SHARDS = 16;
+    
+    /** the name for the cache file of earlier versions, split into shards */
     private static final String CACHE_FILE_NAME = "cache.dat";
     
+    /** the name for the cache index file of earlier versions */
+    private static final String INDEX_FILE_NAME = "cache.idx";
+    
+    /** the name for the file locked while the cache folder is set up */
+    private static final String LOCK_FILE_NAME = "cache.lck";
+    
+    /** the name for the product catalog files, without extension */
+    private static final String CATALOG_NAME = "products";
+    
+    /** the name for the price history files, without extension */
+    private static final String HISTORY_NAME = "history";
+    
+    /** the minimum number of dead bytes before a shard is compacted */
+    static final long COMPACT_MIN_DEAD_BYTES = 1L << 20;
+    
+    /** the fraction of dead bytes in a shard that triggers compaction */
+    static final double COMPACT_DEAD_RATIO = 0.5;
+    
+    /** the fraction of the size limits that eviction shrinks the cache to */
+    private static final double EVICT_TARGET_RATIO = 0.9;
+    
+    /** default time to live of a page in milliseconds; 0 to never expire */
+    private static volatile long defaultTtl = Long.getLong("scraper.cache.ttl", 24 * 60 * 60 * 1000L);
+    
+    /** time to live overrides, keyed by keyword or by keyword and page number */
+    private static ConcurrentHashMap<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+    
+    /** the maximum number of cached pages; 0 for no limit */
+    private static volatile int maxEntries = Integer.getInteger("scraper.cache.maxEntries", 0);
+    
+    /** the maximum number of live bytes in the cache files; 0 for no limit */
+    private static volatile long maxBytes = Long.getLong("scraper.cache.maxBytes", 0L);
+    
+    /** the number of lookups answered from the cache */
+    private static final AtomicLong hits = new AtomicLong();
+    
+    /** the number of lookups not answered from the cache */
+    private static final AtomicLong misses = new AtomicLong();
+    
+    /** the number of pages evicted from the cache */
+    private static final AtomicLong evictions = new AtomicLong();
+    
+    /** the number of expired pages found unchanged and kept */
+    private static final AtomicLong revalidations = new AtomicLong();
+    
     /** Private constructor for Cache. */
     private Cache() { }
     
     /**
-     * Initializes this cache. Reads in data if
-     * cache exists; creates new one otherwise.
+     * Initializes this cache. Maps the indexes if cache
+     * exists; creates new ones otherwise. Only records
+     * appended since an index was last written are read,
+     * unless the index is missing or stale and has to be
+     * rebuilt. A cache file of earlier versions is split
+     * into shards. The cache files are kept in the folder
+     * named by the system property scraper.cache.dir, the
+     * current folder by default.
      */
-    @SuppressWarnings("unchecked")
     public static void init() {
-        File f = new File(CACHE_FILE_NAME);
+        long start = Metrics.start();
+        File dir = new File(System.getProperty("scraper.cache.dir", "."));
+        lock.writeLock().lock();
         try {
-            if (f.exists()) {
-                msg("[INFO] Cache file found.");
-                ObjectInputStream oin = new ObjectInputStream(
-                        new FileInputStream(f));
-                cache = (HashMap<String, CacheEntry>) oin.readObject();
-                oin.close();
-                msg("[INFO] Load cache successfully.");
+            closeFiles();
+            load(dir);
+        }
+        finally {
+            lock.writeLock().unlock();
+            Metrics.stop(Metrics.CACHE_INIT, start);
+        }
+    }
+    
+    /**
+     * Adds a new CacheEntry to the existing cache. Every
+     * page of this entry is appended to the cache file.
+     * @param keyword The keyword to be matched.
+     * @param entry The CacheEntry object to be added.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static void addCacheEntry(String keyword, CacheEntry entry) {
+        checkInit();
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lockShard(keyword, false);
+            try {
+                for (Map.Entry<Integer, List<Item>> page : entry.getresult().entrySet())
+                    append(shard, new CachePage(keyword, page.getKey(), entry.getTotal(),
+                                                page.getValue()));
+                msg("[INFO] Results for '" + keyword + "' cached.");
+                compactIfNeeded(shard);
             }
-            else {
-                msg("[INFO] Cache file not found.");
-                f.createNewFile();
-                msg("[INFO] Create new cache successfully.");
+            finally {
+                shard.unlock();
             }
         }
-        catch (ClassNotFoundException e) {
-            msg("\n[WARN] Cache file format wrong. Now query without cache.");
-            cache = null;
+        catch (IOException e) {
+            msg("[WARN] Unable to write to cache file. Abort write.");
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.CACHE_WRITE, start);
+        }
+    }
+    
+    /**
+     * Adds a single page to the existing cache.
+     * @param page The CachePage object to be added.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static void addPage(CachePage page) {
+        checkInit();
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lockShard(page.getKeyword(), false);
+            try {
+                append(shard, page);
+                msg("[INFO] Results for '" + page.getKeyword() + "' cached.");
+                compactIfNeeded(shard);
+            }
+            finally {
+                shard.unlock();
+            }
         }
         catch (IOException e) {
-            msg("\n[WARN] Unable to access cache file. Now query without cache.");
-            cache = null;
+            msg("[WARN] Unable to write to cache file. Abort write.");
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.CACHE_WRITE, start);
         }
-        if (cache == null)
-            cache = new HashMap<String, CacheEntry>();
     }
     
     /**
-     * Adds a new CacheEntry to the existing cache.
-     * @param keyword The keyword to be matched.
-     * @param entry The CacheEntry object to be added.
+     * Adds a page parsed again from an archived copy, unless the
+     * page has been fetched since with another body. A copy older
+     * than the cached page only replaces it if both have the same
+     * body, and then keeps the fetch time and validators of the
+     * cached page.
+     * @param page The page parsed again, with the fetch time and
+     * content hash of the archived copy.
+     * @return True if the page is cached; false if the cached
+     * page is kept instead.
      * @throws IllegalStateException If Cache.init has
      * not yet been called.
      */
-    public static void addCacheEntry(String keyword, CacheEntry entry) {
-        if (cache == null)
-            throw new IllegalStateException("[ERROR] Cache has not initialized yet.");
-        cache.put(keyword, entry);
-        File f = new File(CACHE_FILE_NAME);
+    public static boolean addArchivedPage(CachePage page) {
+        checkInit();
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lockShard(page.getKeyword(), false);
+            try {
+                String keyword = page.getKeyword();
+                int pageNum = page.getPageNum();
+                long fetchTime = shard.index().getFetchTime(keyword, pageNum);
+                boolean older = fetchTime > page.getFetchTime();
+                if (older) {
+                    CachePage cached = shard.log().read(shard.index().get(keyword, pageNum));
+                    if (cached.getContentHash() != page.getContentHash())
+                        return false;
+                    page.setEtag(cached.getEtag());
+                    page.setLastModified(cached.getLastModified());
+                }
+                append(shard, page);
+                if (older)
+                    shard.index().setFetchTime(keyword, pageNum, fetchTime);
+                msg("[INFO] Results for '" + keyword + "' cached.");
+                compactIfNeeded(shard);
+                return true;
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to write to cache file. Abort write.");
+            return false;
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.CACHE_WRITE, start);
+        }
+    }
+    
+    /**
+     * Renews a cached page found unchanged on Sears.com, as if
+     * it had been fetched now, without writing it again: only
+     * its fetch time in the index is updated.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @return True if the page is cached; false otherwise.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static boolean revalidate(String keyword, int pageNum) {
+        checkInit();
+        lock.readLock().lock();
         try {
-            ObjectOutputStream oout = new ObjectOutputStream(
-                    new FileOutputStream(f));
-            oout.writeObject(cache);
-            oout.reset();
-            oout.flush();
-            oout.close();
-            msg("[INFO] Results for '" + keyword + "' cached.");
+            CacheShard shard = lockShard(keyword, false);
+            try {
+                if (!shard.index().setFetchTime(keyword, pageNum, System.currentTimeMillis()))
+                    return false;
+                revalidations.incrementAndGet();
+                return true;
+            }
+            finally {
+                shard.unlock();
+            }
         }
         catch (IOException e) {
             msg("[WARN] Unable to write to cache file. Abort write.");
+            return false;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Compacts the cache files, dropping expired pages, records
+     * that have been superseded by later writes, and products
+     * no page refers to any longer.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static void compact() {
+        checkInit();
+        lock.readLock().lock();
+        try {
+            if (shards == null) return;
+            Set<String> referenced = new HashSet<String>();
+            for (CacheShard shard : shards) {
+                shard.lockExclusive();
+                try {
+                    compact(shard);
+                    for (CacheIndex.Slot slot : shard.index().pageSlots())
+                        ProductCatalog.collect(shard.log().read(slot.offset).getItems(), referenced);
+                }
+                finally {
+                    shard.unlock();
+                }
+            }
+            catalog.retain(referenced);
+            msg("[INFO] Cache file compacted.");
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to compact cache file. Abort compaction.");
+        }
+        finally {
+            lock.readLock().unlock();
         }
     }
     
     /**
      * Determines whether the existing cache contains an entry
-     * with both this keyword and page number.
+     * with both this keyword and page number that has not
+     * expired yet.
      * @param keyword The keyword to be checked.
      * @param pageNum The page number to be checked.
      * @return True if the existing cache contains an entry
      * with both this keyword and page number; false otherwise.
      */
     public static boolean containsEntry(String keyword, int pageNum) {
-        if (!containsKeyword(keyword))
-            return false;
-        if (!cache.get(keyword).getresult().containsKey(pageNum))
-            return false;
-        return true;
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            try {
+                if (!isFresh(shard, keyword, pageNum)) {
+                    misses.incrementAndGet();
+                    return false;
+                }
+                hits.incrementAndGet();
+                shard.index().touch(keyword, pageNum, System.currentTimeMillis());
+                return true;
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Determines whether the existing cache contains an entry
+     * with both this keyword and page number that has not
+     * expired yet, without counting it as a lookup.
+     * @param keyword The keyword to be checked.
+     * @param pageNum The page number to be checked.
+     * @return True if the existing cache contains an entry
+     * with both this keyword and page number; false otherwise.
+     */
+    public static boolean isCached(String keyword, int pageNum) {
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return false;
+            try {
+                return isFresh(shard, keyword, pageNum);
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
@@ -112,7 +396,21 @@ public class Cache {
      * with this keyword; false otherwise.
      */
     public static boolean containsKeyword(String keyword) {
-        return cache.containsKey(keyword);
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return false;
+            try {
+                return shard.index().get(keyword, 0) >= 0;
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
@@ -123,9 +421,141 @@ public class Cache {
      * number; null if no matches found.
      */
     public static List<Item> getItemsList(String keyword, int pageNum) {
-        if (!containsEntry(keyword, pageNum))
-            return null;
-        return cache.get(keyword).getresult().get(pageNum);
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return null;
+            try {
+                if (!isFresh(shard, keyword, pageNum))
+                    return null;
+                CachePage page = read(shard, shard.index().get(keyword, pageNum));
+                return page == null ? null : page.getItems();
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.CACHE_READ, start);
+        }
+    }
+    
+    /**
+     * Gets the page cached for this keyword and page number,
+     * whether or not it has expired, with the validators and
+     * content hash it was stored with, so that it can be
+     * revalidated. Not counted as a lookup.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched.
+     * @return The cached page; null if not cached.
+     */
+    public static CachePage getStalePage(String keyword, int pageNum) {
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return null;
+            try {
+                long offset = shard.index().get(keyword, pageNum);
+                return offset < 0 ? null : read(shard, offset);
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.CACHE_READ, start);
+        }
+    }
+    
+    /**
+     * Searches the cached Items by words of their names, vendor
+     * and price range, without any network access. The secondary
+     * index is built from the cache files on the first search and
+     * brought up to date with the pages cached since, by any
+     * process, on each search. Expired pages are left out.
+     * @param text The words to be found in names; null for any.
+     * @param vendor The vendor, in any case; null for any.
+     * @param minCents The lowest price in cents; 0 for no minimum.
+     * @param maxCents The highest price in cents; Long.MAX_VALUE
+     * for no maximum.
+     * @param limit The largest number of Items returned.
+     * @return The Items found, cheapest first, and their number;
+     * none if the cache files cannot be read.
+     * @throws IllegalArgumentException If no criterion is given.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static SearchIndex.Result search(String text, String vendor, long minCents,
+                                            long maxCents, int limit) {
+        checkInit();
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            if (shards == null)
+                throw new IOException("Cache file unavailable.");
+            SearchIndex index;
+            synchronized (Cache.class) {
+                if (searchIndex == null)
+                    searchIndex = new SearchIndex(SHARDS);
+                index = searchIndex;
+            }
+            index.update(shards, catalog);
+            return index.search(text, vendor, minCents, maxCents, limit);
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to read from cache file.");
+            return new SearchIndex.Result(new ArrayList<SearchIndex.Hit>(), 0);
+        }
+        finally {
+            lock.readLock().unlock();
+            Metrics.stop(Metrics.SEARCH, start);
+        }
+    }
+    
+    /**
+     * Gets the prices recorded for a product within a time range.
+     * A price is recorded whenever a page is cached with the
+     * product at a price other than the last one recorded.
+     * @param productId The product identity.
+     * @param from The start of the time range, in milliseconds.
+     * @param to The end of the time range, in milliseconds.
+     * @return The prices found, oldest first; none if the cache
+     * files cannot be read.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    public static List<PricePoint> getPriceHistory(String productId, long from, long to) {
+        checkInit();
+        final List<PricePoint> points = new ArrayList<PricePoint>();
+        lock.readLock().lock();
+        try {
+            if (catalog == null)
+                throw new IOException("Cache file unavailable.");
+            catalog.history(productId, from, to, new PriceHistory.Visitor() {
+                public void visit(PricePoint point) {
+                    points.add(point);
+                }
+            });
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to read from price history file.");
+            points.clear();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(points, new Comparator<PricePoint>() {
+            public int compare(PricePoint a, PricePoint b) {
+                return Long.compare(a.getTime(), b.getTime());
+            }
+        });
+        return points;
     }
     
     /**
@@ -135,9 +565,26 @@ public class Cache {
      * empty String if no matches found.
      */
     public static String getItemsTotalNum(String keyword) {
-        if (!containsKeyword(keyword))
-            return "";
-        return cache.get(keyword).getTotal();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return "";
+            try {
+                long offset = shard.index().get(keyword, 0);
+                return offset < 0 ? "" : shard.log().readHeader(offset).getTotal();
+            }
+            catch (IOException e) {
+                msg("[WARN] Unable to read from cache file.");
+                return "";
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
@@ -147,12 +594,486 @@ public class Cache {
      * null if no matches found.
      */
     public static HashMap<Integer, List<Item>> getItemsResult(String keyword) {
-        if (!containsKeyword(keyword)) return null;
-        return cache.get(keyword).getresult();
+        lock.readLock().lock();
+        try {
+            CacheShard shard = lookup(keyword);
+            if (shard == null)
+                return null;
+            try {
+                CacheIndex index = shard.index();
+                if (index.get(keyword, 0) < 0) return null;
+                HashMap<Integer, List<Item>> result = new HashMap<Integer, List<Item>>();
+                for (int pageNum = index.getMaxPage(keyword); pageNum > 0; --pageNum) {
+                    if (!isFresh(shard, keyword, pageNum)) continue;
+                    CachePage page = read(shard, index.get(keyword, pageNum));
+                    if (page != null) result.put(pageNum, page.getItems());
+                }
+                return result;
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Sets the default time to live of cached pages.
+     * @param ttl The time to live in milliseconds;
+     * 0 to never expire.
+     */
+    public static void setTtl(long ttl) {
+        defaultTtl = ttl;
+    }
+    
+    /**
+     * Sets the time to live of cached pages for this keyword.
+     * @param keyword The keyword to be matched.
+     * @param ttl The time to live in milliseconds;
+     * 0 to never expire.
+     */
+    public static void setTtl(String keyword, long ttl) {
+        ttls.put(keyword, ttl);
+    }
+    
+    /**
+     * Sets the time to live of the cached page for this
+     * keyword and page number.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched.
+     * @param ttl The time to live in milliseconds;
+     * 0 to never expire.
+     */
+    public static void setTtl(String keyword, int pageNum, long ttl) {
+        // keywords are URL encoded, so they never contain a space
+        ttls.put(keyword + " " + pageNum, ttl);
+    }
+    
+    /**
+     * Sets the maximum number of cached pages.
+     * @param max The maximum number of pages; 0 for no limit.
+     */
+    public static void setMaxEntries(int max) {
+        maxEntries = max;
+    }
+    
+    /**
+     * Sets the maximum size of the cached pages.
+     * @param max The maximum size in bytes; 0 for no limit.
+     */
+    public static void setMaxBytes(long max) {
+        maxBytes = max;
+    }
+    
+    /**
+     * Gets the number of lookups answered from the cache.
+     * @return The number of cache hits.
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+    
+    /**
+     * Gets the number of lookups not answered from the cache,
+     * either because the page is not cached or has expired.
+     * @return The number of cache misses.
+     */
+    public static long getMissCount() {
+        return misses.get();
+    }
+    
+    /**
+     * Gets the number of pages evicted from the cache.
+     * @return The number of evictions.
+     */
+    public static long getEvictionCount() {
+        return evictions.get();
+    }
+    
+    /**
+     * Gets the number of products stored in the catalog.
+     * @return The number of products; 0 if the cache files
+     * are unavailable.
+     */
+    public static int getProductCount() {
+        lock.readLock().lock();
+        try {
+            return catalog == null ? 0 : catalog.size();
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to read from cache file.");
+            return 0;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Gets the number of expired pages found unchanged on
+     * Sears.com and kept.
+     * @return The number of revalidations.
+     */
+    public static long getRevalidationCount() {
+        return revalidations.get();
+    }
+    
+    /**
+     * Closes the cache file. The cache has to be
+     * initialized again before further use.
+     */
+    public static void close() {
+        lock.writeLock().lock();
+        try {
+            closeFiles();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
     }
     
     //------------------- private helpers -------------------
     
+    /**
+     * Checks that Cache.init has been called.
+     * @throws IllegalStateException If Cache.init has
+     * not yet been called.
+     */
+    private static void checkInit() {
+        if (!initialized)
+            throw new IllegalStateException("[ERROR] Cache has not initialized yet.");
+    }
+    
+    /**
+     * Helper for init. Sets up the shards, which are opened on
+     * first use, splitting a cache file of earlier versions into
+     * them. The cache folder is locked meanwhile, so that
+     * processes starting together split it only once.
+     * @param dir The folder of the cache files.
+     */
+    private static void load(File dir) {
+        initialized = true;
+        RandomAccessFile setup = null;
+        try {
+            setup = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+            setup.getChannel().lock();
+            CacheShard[] opened = new CacheShard[SHARDS];
+            for (int i = 0; i < SHARDS; ++i)
+                opened[i] = new CacheShard(dir, String.format("cache-%02d", i));
+            shards = opened;
+            catalog = new ProductCatalog(dir, CATALOG_NAME, new PriceHistory(dir, HISTORY_NAME));
+            File f = new File(dir, CACHE_FILE_NAME);
+            if (f.exists() && f.length() > 0) {
+                msg("[INFO] Cache file found.");
+                migrate(f);
+                split(f);
+                new File(dir, INDEX_FILE_NAME).delete();
+            }
+            msg("[INFO] Load cache successfully.");
+        }
+        catch (IOException e) {
+            msg("\n[WARN] Unable to access cache file. Now query without cache.");
+            closeFiles();
+            initialized = true;
+        }
+        finally {
+            try {
+                if (setup != null) setup.close();
+            }
+            catch (IOException e) {
+                // lock released anyway
+            }
+        }
+    }
+    
+    /**
+     * Helper for init and close. Closes the cache files.
+     */
+    private static void closeFiles() {
+        if (shards != null) {
+            for (CacheShard shard : shards)
+                shard.close();
+        }
+        if (catalog != null)
+            catalog.close();
+        shards = null;
+        catalog = null;
+        searchIndex = null;
+        initialized = false;
+    }
+    
+    /**
+     * Gets the shard holding this keyword. The shard of a
+     * keyword is the same in every process.
+     * @param keyword The keyword to be matched.
+     * @return The shard of this keyword.
+     */
+    private static CacheShard shard(String keyword) {
+        return shards[(keyword.hashCode() & Integer.MAX_VALUE) % SHARDS];
+    }
+    
+    /**
+     * Locks the shard holding this keyword.
+     * @param keyword The keyword to be matched.
+     * @param shared True for a lookup; false for a write.
+     * @return The shard, locked.
+     * @throws IOException If the cache files are unavailable
+     * or cannot be locked.
+     */
+    private static CacheShard lockShard(String keyword, boolean shared) throws IOException {
+        if (shards == null)
+            throw new IOException("Cache file unavailable.");
+        CacheShard shard = shard(keyword);
+        if (shared)
+            shard.lockShared();
+        else
+            shard.lockExclusive();
+        return shard;
+    }
+    
+    /**
+     * Locks the shard holding this keyword for a lookup.
+     * @param keyword The keyword to be matched.
+     * @return The shard, locked; null if the cache files
+     * are unavailable.
+     */
+    private static CacheShard lookup(String keyword) {
+        if (shards == null)
+            return null;
+        try {
+            return lockShard(keyword, true);
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to read from cache file.");
+            return null;
+        }
+    }
+    
+    /**
+     * Appends a page to the log of a shard and indexes it,
+     * storing its products in the catalog first.
+     * @param shard The shard of the page, locked exclusively.
+     * @param page The page to be appended.
+     * @throws IOException If the cache file cannot be written.
+     */
+    private static void append(CacheShard shard, CachePage page) throws IOException {
+        catalog.store(page.getItems(), page.getFetchTime());
+        CacheLog log = shard.log();
+        long offset = log.append(page);
+        shard.index(page, offset, (int) (log.length() - offset));
+        shard.index().setIndexedLength(log.length());
+        evictIfNeeded(shard);
+    }
+    
+    /**
+     * Removes a page from the cache, appending a removal
+     * marker to the log.
+     * @param shard The shard of the page, locked exclusively.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @throws IOException If the cache file cannot be written.
+     */
+    private static void remove(CacheShard shard, String keyword, int pageNum)
+            throws IOException {
+        shard.log().appendDelete(keyword, pageNum);
+        shard.unindex(keyword, pageNum);
+        shard.index().setIndexedLength(shard.log().length());
+    }
+    
+    /**
+     * Evicts the least recently used pages of a shard once it
+     * exceeds its share of the size limits, shrinking it a little
+     * below them so that eviction does not run on every write.
+     * @param shard The shard, locked exclusively.
+     * @throws IOException If the cache file cannot be written.
+     */
+    private static void evictIfNeeded(CacheShard shard) throws IOException {
+        CacheIndex index = shard.index();
+        double entries = Math.ceil((double) maxEntries / SHARDS);
+        double bytes = Math.ceil((double) maxBytes / SHARDS);
+        if ((entries <= 0 || index.pages() <= entries)
+                && (bytes <= 0 || index.liveBytes() <= bytes))
+            return;
+        List<CacheIndex.Slot> slots = index.pageSlots();
+        Collections.sort(slots, new Comparator<CacheIndex.Slot>() {
+            public int compare(CacheIndex.Slot a, CacheIndex.Slot b) {
+                return Long.compare(a.accessTime, b.accessTime);
+            }
+        });
+        for (CacheIndex.Slot slot : slots) {
+            if ((entries <= 0 || index.pages() <= entries * EVICT_TARGET_RATIO)
+                    && (bytes <= 0 || index.liveBytes() <= bytes * EVICT_TARGET_RATIO))
+                break;
+            CachePage header = shard.log().readHeader(slot.offset);
+            remove(shard, header.getKeyword(), header.getPageNum());
+            evictions.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Determines whether a shard holds an unexpired page for
+     * this keyword and page number.
+     * @param shard The shard of the keyword, locked.
+     * @param keyword The keyword to be checked.
+     * @param pageNum The page number to be checked.
+     * @return True if an unexpired page is cached; false otherwise.
+     */
+    private static boolean isFresh(CacheShard shard, String keyword, int pageNum) {
+        long fetchTime = shard.index().getFetchTime(keyword, pageNum);
+        return fetchTime >= 0
+            && !isExpired(keyword, pageNum, fetchTime, System.currentTimeMillis());
+    }
+    
+    /**
+     * Determines whether a page fetched at this time has expired.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @param fetchTime The time the page was fetched.
+     * @param now The current time.
+     * @return True if the page has expired; false otherwise.
+     */
+    static boolean isExpired(String keyword, int pageNum, long fetchTime, long now) {
+        Long ttl = ttls.get(keyword + " " + pageNum);
+        if (ttl == null) ttl = ttls.get(keyword);
+        if (ttl == null) ttl = defaultTtl;
+        return ttl > 0 && now - fetchTime > ttl;
+    }
+    
+    /**
+     * Reads a page from the log of a shard, with its products.
+     * @param shard The shard of the page, locked.
+     * @param offset The offset of the page record.
+     * @return The page read; null if it cannot be read or some
+     * of its products have been dropped from the catalog.
+     */
+    private static CachePage read(CacheShard shard, long offset) {
+        try {
+            CachePage page = shard.log().read(offset);
+            return catalog.resolve(page.getItems()) ? page : null;
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to read from cache file.");
+            return null;
+        }
+    }
+    
+    /**
+     * Compacts a shard, dropping expired pages and records
+     * that have been superseded by later writes.
+     * @param shard The shard, locked exclusively.
+     * @throws IOException If the shard cannot be compacted.
+     */
+    private static void compact(CacheShard shard) throws IOException {
+        CacheLog log = shard.log();
+        CacheIndex index = shard.index();
+        long now = System.currentTimeMillis();
+        for (CacheIndex.Slot slot : index.pageSlots()) {
+            CachePage header = log.readHeader(slot.offset);
+            if (isExpired(header.getKeyword(), header.getPageNum(), slot.fetchTime, now))
+                remove(shard, header.getKeyword(), header.getPageNum());
+        }
+        List<Long> live = new ArrayList<Long>();
+        for (CacheIndex.Slot slot : index.pageSlots())
+            live.add(slot.offset);
+        Collections.sort(live);
+        Map<Long, Long> moved = log.compact(live);
+        index.relocate(moved, log.generation(), log.length());
+    }
+    
+    /**
+     * Compacts a shard once dead records pass the threshold.
+     * @param shard The shard, locked exclusively.
+     */
+    private static void compactIfNeeded(CacheShard shard) {
+        CacheLog log = shard.log();
+        long dead = log.length() - CacheLog.HEADER_SIZE - shard.index().liveBytes();
+        if (dead < COMPACT_MIN_DEAD_BYTES || dead < log.length() * COMPACT_DEAD_RATIO)
+            return;
+        try {
+            compact(shard);
+            msg("[INFO] Cache file compacted.");
+        }
+        catch (IOException e) {
+            msg("[WARN] Unable to compact cache file. Abort compaction.");
+        }
+    }
+    
+    /**
+     * Splits a cache file of earlier versions into the shards,
+     * then deletes it. Pages already split again by an
+     * interrupted split are merely superseded.
+     * @param f The cache file.
+     * @throws IOException If the cache file cannot be read.
+     */
+    private static void split(File f) throws IOException {
+        CacheLog old = new CacheLog(f);
+        old.open();
+        try {
+            for (long offset : old.live()) {
+                CachePage page = old.read(offset);
+                CacheShard shard = lockShard(page.getKeyword(), false);
+                try {
+                    append(shard, page);
+                }
+                finally {
+                    shard.unlock();
+                }
+            }
+        }
+        finally {
+            old.close();
+        }
+        if (!f.delete())
+            throw new IOException("Unable to delete " + f);
+        msg("[INFO] Cache file split into " + SHARDS + " shards.");
+    }
+    
+    /**
+     * Converts a cache file written as a single serialized
+     * map into a cache log, replacing the original file.
+     * @param f The cache file.
+     * @throws IOException If the cache file cannot be converted.
+     */
+    @SuppressWarnings("unchecked")
+    private static void migrate(File f) throws IOException {
+        HashMap<String, CacheEntry> legacy;
+        DataInputStream din = new DataInputStream(new FileInputStream(f));
+        try {
+            if (din.readShort() != ObjectStreamConstants.STREAM_MAGIC)
+                return;
+        }
+        finally {
+            din.close();
+        }
+        ObjectInputStream oin = new ObjectInputStream(new FileInputStream(f));
+        try {
+            legacy = (HashMap<String, CacheEntry>) oin.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Cache file format wrong.", e);
+        }
+        finally {
+            oin.close();
+        }
+        File tmp = new File(f.getPath() + ".tmp");
+        tmp.delete();
+        CacheLog converted = new CacheLog(tmp);
+        try {
+            converted.open();
+            for (Map.Entry<String, CacheEntry> entry : legacy.entrySet())
+                for (Map.Entry<Integer, List<Item>> page : entry.getValue().getresult().entrySet())
+                    converted.append(new CachePage(entry.getKey(), page.getKey(),
+                            entry.getValue().getTotal(), page.getValue()));
+        }
+        finally {
+            converted.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        msg("[INFO] Cache file converted to log format.");
+    }
+    
     /**
      * Prints a message to console, with a newline
      * char appended.
@@ -0,0 +1,581 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class for the on-disk cache index. An open-addressing hash
+ * table mapping each (keyword, page number) to the offset of its
+ * record in the cache log, kept in a memory-mapped file so that
+ * lookups touch only the slots probed, however many keywords are
+ * cached. Page number 0 is reserved for the per-keyword slot,
+ * which points at the latest record of that keyword. Slots hold
+ * a hash of their key only, so a slot whose hash matches is
+ * checked against the key of the record it points at, and keys
+ * whose hashes collide take a slot each.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+class CacheIndex {
+
+    /** the magic number at the beginning of a cache index */
+    private static final int MAGIC = 0x53524958;
+
+    /** the format version of a cache index */
+    private static final int VERSION = 2;
+
+    /** the size of the file header */
+    private static final int HEADER_SIZE = 48;
+
+    /** header position of the number of slots */
+    private static final int POS_CAPACITY = 8;
+
+    /** header position of the number of used or deleted slots */
+    private static final int POS_COUNT = 12;
+
+    /** header position of the generation of the indexed log */
+    private static final int POS_GENERATION = 16;
+
+    /** header position of the log length covered by this index */
+    private static final int POS_INDEXED_LENGTH = 24;
+
+    /** header position of the number of live bytes in the log */
+    private static final int POS_LIVE_BYTES = 32;
+
+    /** header position of the number of indexed pages */
+    private static final int POS_PAGES = 40;
+
+    /** header position of the identity of this index file */
+    private static final int POS_ID = 44;
+
+    /** the size of a slot (hash, offset, page number, extra, fetch time, access time) */
+    private static final int SLOT_SIZE = 40;
+
+    /** the hash of an empty slot */
+    private static final long EMPTY = 0;
+
+    /** the hash of a deleted slot */
+    private static final long DELETED = 1;
+
+    /** the number of slots of a new index */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** the fraction of used or deleted slots that triggers growth */
+    private static final double MAX_LOAD = 0.7;
+
+    /** the index file */
+    private final File file;
+
+    /** the log indexed, holding the key of each record */
+    private final CacheLog log;
+
+    /** memory mapping of the index file */
+    private MappedByteBuffer map;
+
+    /** the number of slots */
+    private int capacity;
+
+    /**
+     * Class for the bookkeeping of an indexed page.
+     */
+    static class Slot {
+
+        /** the offset of the page record */
+        final long offset;
+
+        /** the time the page was fetched */
+        final long fetchTime;
+
+        /** the time the page was last accessed */
+        final long accessTime;
+
+        /**
+         * Constructor for Slot.
+         * @param offset The offset of the page record.
+         * @param fetchTime The time the page was fetched.
+         * @param accessTime The time the page was last accessed.
+         */
+        Slot(long offset, long fetchTime, long accessTime) {
+            this.offset = offset;
+            this.fetchTime = fetchTime;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /**
+     * Constructor for CacheIndex.
+     * @param file The index file.
+     * @param log The log indexed.
+     */
+    CacheIndex(File file, CacheLog log) {
+        this.file = file;
+        this.log = log;
+    }
+
+    /**
+     * Opens an existing index for a log.
+     * @param generation The generation of the log.
+     * @param logLength The length of the log in bytes.
+     * @return True if the index exists and matches the log;
+     * false if it has to be rebuilt.
+     * @throws IOException If the index cannot be mapped.
+     */
+    boolean open(long generation, long logLength) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return false;
+        map(file);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.getLong(POS_GENERATION) != generation
+                || map.getLong(POS_INDEXED_LENGTH) > logLength
+                || file.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+            map = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new empty index for a log, replacing any
+     * existing index file.
+     * @param generation The generation of the log.
+     * @param logLength The length of the log header in bytes.
+     * @throws IOException If the index cannot be created.
+     */
+    void create(long generation, long logLength) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        write(tmp, INITIAL_CAPACITY, generation, logLength, 0, 0);
+        replace(tmp);
+    }
+
+    /**
+     * Gets the log offset of the record for this key.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched; 0 for
+     * the keyword itself.
+     * @return The offset of the record; -1 if not indexed.
+     */
+    long get(String keyword, int pageNum) {
+        int slot = find(keyword, pageNum);
+        return slot < 0 ? -1 : map.getLong(slotPos(slot) + 8);
+    }
+
+    /**
+     * Gets the time the page for this key was fetched.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched.
+     * @return The fetch time in milliseconds; -1 if not indexed.
+     */
+    long getFetchTime(String keyword, int pageNum) {
+        int slot = find(keyword, pageNum);
+        return slot < 0 ? -1 : map.getLong(slotPos(slot) + 24);
+    }
+
+    /**
+     * Records an access to the page for this key. Unlike other
+     * writes, this is done by lookups holding the shard shared,
+     * so several may record an access to the same slot at once.
+     * The access time is advisory, only ordering evictions: it is
+     * written by a single aligned store, so a racing lookup reads
+     * either time, and a lost update merely leaves an earlier time.
+     * An access time already as recent is left as is.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched.
+     * @param time The access time in milliseconds.
+     */
+    void touch(String keyword, int pageNum, long time) {
+        int slot = find(keyword, pageNum);
+        if (slot >= 0 && map.getLong(slotPos(slot) + 32) < time)
+            map.putLong(slotPos(slot) + 32, time);
+    }
+
+    /**
+     * Renews the fetch time of the page for this key, once its
+     * record has been found to be still current.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched.
+     * @param time The new fetch time in milliseconds.
+     * @return True if the page is indexed; false otherwise.
+     */
+    boolean setFetchTime(String keyword, int pageNum, long time) {
+        int slot = find(keyword, pageNum);
+        if (slot < 0)
+            return false;
+        map.putLong(slotPos(slot) + 24, time);
+        map.putLong(slotPos(slot) + 32, time);
+        return true;
+    }
+
+    /**
+     * Gets the highest page number indexed for this keyword.
+     * @param keyword The keyword to be matched.
+     * @return The highest page number; 0 if not indexed.
+     */
+    int getMaxPage(String keyword) {
+        int slot = find(keyword, 0);
+        return slot < 0 ? 0 : map.getInt(slotPos(slot) + 20);
+    }
+
+    /**
+     * Points this key, and its keyword, at a record.
+     * @param keyword The keyword of the record.
+     * @param pageNum The page number of the record.
+     * @param offset The offset of the record.
+     * @param fetchTime The time the page was fetched.
+     * @return The offset of the superseded record; -1 if none.
+     * @throws IOException If the index has to grow and cannot.
+     */
+    long put(String keyword, int pageNum, long offset, long fetchTime) throws IOException {
+        if (map.getInt(POS_COUNT) + 2 > capacity * MAX_LOAD)
+            grow();
+        long old = set(keyword, pageNum, offset, 0, fetchTime);
+        if (old < 0)
+            map.putInt(POS_PAGES, pages() + 1);
+        int slot = find(keyword, 0);
+        int maxPage = slot < 0 ? pageNum : Math.max(pageNum, map.getInt(slotPos(slot) + 20));
+        set(keyword, 0, offset, maxPage, fetchTime);
+        return old;
+    }
+
+    /**
+     * Removes this key. The keyword is moved to its latest
+     * remaining page, or removed if no page is left.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @return The offset of the removed record; -1 if none.
+     */
+    long remove(String keyword, int pageNum) {
+        int slot = find(keyword, pageNum);
+        if (slot < 0)
+            return -1;
+        long old = map.getLong(slotPos(slot) + 8);
+        map.putLong(slotPos(slot), DELETED);
+        map.putInt(POS_PAGES, pages() - 1);
+        int keywordSlot = find(keyword, 0);
+        if (keywordSlot < 0)
+            return old;
+        long latest = -1;
+        for (int p = map.getInt(slotPos(keywordSlot) + 20); p > 0; --p) {
+            int s = find(keyword, p);
+            if (s >= 0) latest = Math.max(latest, map.getLong(slotPos(s) + 8));
+        }
+        if (latest < 0)
+            map.putLong(slotPos(keywordSlot), DELETED);
+        else
+            map.putLong(slotPos(keywordSlot) + 8, latest);
+        return old;
+    }
+
+    /**
+     * Gets the bookkeeping of all indexed pages.
+     * @return A List of page Slots.
+     */
+    List<Slot> pageSlots() {
+        List<Slot> slots = new ArrayList<Slot>(pages());
+        for (int slot = 0; slot < capacity; ++slot) {
+            int pos = slotPos(slot);
+            long hash = map.getLong(pos);
+            if (hash != EMPTY && hash != DELETED && map.getInt(pos + 16) != 0)
+                slots.add(new Slot(map.getLong(pos + 8), map.getLong(pos + 24), map.getLong(pos + 32)));
+        }
+        return slots;
+    }
+
+    /**
+     * Moves every slot to the new offsets of a compacted log.
+     * @param moved A mapping from each old offset to its new offset.
+     * @param generation The generation of the compacted log.
+     * @param logLength The length of the compacted log in bytes.
+     */
+    void relocate(Map<Long, Long> moved, long generation, long logLength) {
+        for (int slot = 0; slot < capacity; ++slot) {
+            int pos = slotPos(slot);
+            long hash = map.getLong(pos);
+            if (hash == EMPTY || hash == DELETED)
+                continue;
+            Long offset = moved.get(map.getLong(pos + 8));
+            if (offset != null)
+                map.putLong(pos + 8, offset);
+        }
+        map.putLong(POS_GENERATION, generation);
+        setIndexedLength(logLength);
+    }
+
+    /**
+     * Gets the number of indexed pages.
+     * @return The number of indexed pages.
+     */
+    int pages() {
+        return map.getInt(POS_PAGES);
+    }
+
+    /**
+     * Gets the log length covered by this index.
+     * @return The indexed log length in bytes.
+     */
+    long indexedLength() {
+        return map.getLong(POS_INDEXED_LENGTH);
+    }
+
+    /**
+     * Sets the log length covered by this index.
+     * @param length The indexed log length in bytes.
+     */
+    void setIndexedLength(long length) {
+        map.putLong(POS_INDEXED_LENGTH, length);
+    }
+
+    /**
+     * Gets the number of live bytes in the log.
+     * @return The number of live bytes.
+     */
+    long liveBytes() {
+        return map.getLong(POS_LIVE_BYTES);
+    }
+
+    /**
+     * Sets the number of live bytes in the log.
+     * @param bytes The number of live bytes.
+     */
+    void setLiveBytes(long bytes) {
+        map.putLong(POS_LIVE_BYTES, bytes);
+    }
+
+    /**
+     * Gets the identity of this index file, which changes
+     * whenever the file is rewritten.
+     * @return The identity of this index file.
+     */
+    int id() {
+        return map.getInt(POS_ID);
+    }
+
+    /**
+     * Flushes and closes this index.
+     */
+    void close() {
+        if (map != null) map.force();
+        map = null;
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Finds the slot of this key, stepping over the slots of
+     * other keys with the same hash.
+     * @param keyword The keyword of the key.
+     * @param pageNum The page number of the key; 0 for the keyword.
+     * @return The slot number; -1 if not found.
+     */
+    private int find(String keyword, int pageNum) {
+        long hash = hash(keyword, pageNum);
+        int mask = capacity - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            long h = map.getLong(slotPos(slot));
+            if (h == hash && holds(slot, keyword, pageNum)) return slot;
+            if (h == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Determines whether a slot points at a record of this key.
+     * A record that cannot be read is taken for another key's.
+     * @param slot The slot number.
+     * @param keyword The keyword of the key.
+     * @param pageNum The page number of the key; 0 for the keyword.
+     * @return True if the record of the slot has this key.
+     */
+    private boolean holds(int slot, String keyword, int pageNum) {
+        int pos = slotPos(slot);
+        if (map.getInt(pos + 16) != pageNum)
+            return false;
+        try {
+            return log.holds(map.getLong(pos + 8), keyword, pageNum);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores the slot of a key, inserting it if the key is new.
+     * @param keyword The keyword of the key.
+     * @param pageNum The page number of the key; 0 for the keyword.
+     * @param offset The record offset.
+     * @param extra The extra field of the slot.
+     * @param fetchTime The time the page was fetched, also
+     * taken as its last access.
+     * @return The previous offset for this key; -1 if none.
+     */
+    private long set(String keyword, int pageNum, long offset, int extra, long fetchTime) {
+        long hash = hash(keyword, pageNum);
+        int slot = find(keyword, pageNum);
+        long old = -1;
+        if (slot >= 0)
+            old = map.getLong(slotPos(slot) + 8);
+        else
+            slot = free(hash);
+        write(slot, hash, offset, pageNum, extra, fetchTime, fetchTime);
+        return old;
+    }
+
+    /**
+     * Finds a free slot for a new key, reusing a deleted one.
+     * @param hash The hash of the key.
+     * @return The slot number.
+     */
+    private int free(long hash) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        long h = map.getLong(slotPos(slot));
+        while (h != EMPTY && h != DELETED) {
+            slot = (slot + 1) & mask;
+            h = map.getLong(slotPos(slot));
+        }
+        if (h == EMPTY)
+            map.putInt(POS_COUNT, map.getInt(POS_COUNT) + 1);
+        return slot;
+    }
+
+    /**
+     * Writes the fields of a slot, its hash last.
+     * @param slot The slot number.
+     * @param hash The hash of the key.
+     * @param offset The record offset.
+     * @param pageNum The page number of the key.
+     * @param extra The extra field of the slot.
+     * @param fetchTime The time the page was fetched.
+     * @param accessTime The time the page was last accessed.
+     */
+    private void write(int slot, long hash, long offset, int pageNum, int extra,
+                       long fetchTime, long accessTime) {
+        int pos = slotPos(slot);
+        map.putLong(pos + 8, offset);
+        map.putInt(pos + 16, pageNum);
+        map.putInt(pos + 20, extra);
+        map.putLong(pos + 24, fetchTime);
+        map.putLong(pos + 32, accessTime);
+        map.putLong(pos, hash);
+    }
+
+    /**
+     * Rehashes into a new file that replaces the current one,
+     * dropping deleted slots and doubling the number of slots
+     * if they are mostly in use.
+     * @throws IOException If the index cannot be rewritten.
+     */
+    private void grow() throws IOException {
+        MappedByteBuffer old = map;
+        int oldCapacity = capacity;
+        int used = old.getInt(POS_PAGES) * 2;
+        File tmp = new File(file.getPath() + ".tmp");
+        write(tmp, used * 2 > oldCapacity * MAX_LOAD ? oldCapacity * 2 : oldCapacity,
+              old.getLong(POS_GENERATION), old.getLong(POS_INDEXED_LENGTH),
+              old.getLong(POS_LIVE_BYTES), old.getInt(POS_PAGES));
+        for (int slot = 0; slot < oldCapacity; ++slot) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long hash = old.getLong(pos);
+            if (hash != EMPTY && hash != DELETED)
+                write(free(hash), hash, old.getLong(pos + 8), old.getInt(pos + 16),
+                      old.getInt(pos + 20), old.getLong(pos + 24), old.getLong(pos + 32));
+        }
+        replace(tmp);
+    }
+
+    /**
+     * Writes an empty index file and maps it.
+     * @param f The file to be written.
+     * @param slots The number of slots.
+     * @param generation The generation of the indexed log.
+     * @param indexedLength The indexed log length in bytes.
+     * @param liveBytes The number of live bytes in the log.
+     * @param pages The number of indexed pages.
+     * @throws IOException If the file cannot be written.
+     */
+    private void write(File f, int slots, long generation, long indexedLength,
+                       long liveBytes, int pages) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(slots);
+            raf.writeInt(0);
+            raf.writeLong(generation);
+            raf.writeLong(indexedLength);
+            raf.writeLong(liveBytes);
+            raf.writeInt(pages);
+            raf.writeInt(ThreadLocalRandom.current().nextInt());
+        }
+        finally {
+            raf.close();
+        }
+        map(f);
+    }
+
+    /**
+     * Renames a freshly written index over the index file.
+     * @param tmp The freshly written index.
+     * @throws IOException If the index cannot be renamed.
+     */
+    private void replace(File tmp) throws IOException {
+        map.force();
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps an index file.
+     * @param f The file to be mapped.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private void map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+        capacity = map.getInt(POS_CAPACITY);
+    }
+
+    /**
+     * Gets the position of a slot in the index file.
+     * @param slot The slot number.
+     * @return The position of the slot.
+     */
+    private static int slotPos(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Hashes a key into a 64-bit value distinct from the
+     * empty and deleted markers.
+     * @param keyword The keyword of the key.
+     * @param pageNum The page number of the key.
+     * @return The hash of the key.
+     */
+    private static long hash(String keyword, int pageNum) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < keyword.length(); ++i) {
+            h ^= keyword.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= pageNum;
+        h *= 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == EMPTY || h == DELETED ? 2 : h;
+    }
+}
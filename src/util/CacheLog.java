@@ -0,0 +1,648 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the append-only cache log. Each cached page is
+ * appended as a checksummed record; records are never rewritten
+ * in place, only dropped when the log is compacted. Records are
+ * read back through a memory mapping of the log file. Items are
+ * stored in the binary encoding of ItemCodec, optionally followed
+ * by the validators and content hash of the page; records without
+ * them, written before they were kept, are read as having none.
+ * Appends are not forced to disk. A crash of the process loses
+ * nothing written, but a crash of the system can lose the latest
+ * records, even those whose append has returned; crash safety
+ * relies on the scan dropping a torn tail, and pages lost that way
+ * are fetched again.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+class CacheLog {
+
+    /** the magic number at the beginning of a cache log */
+    static final int MAGIC = 0x53524c47;
+
+    /** the format version of a cache log */
+    static final int VERSION = 4;
+
+    /** the previous format version, with Items in Java serialization */
+    static final int LEGACY_VERSION = 3;
+
+    /** the size of the file header (magic + version + generation) */
+    static final int HEADER_SIZE = 16;
+
+    /** the size of a record header (length + checksum) */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** record type for a stored page */
+    static final byte TYPE_PUT = 1;
+
+    /** record type for a removed page */
+    static final byte TYPE_DELETE = 2;
+
+    /** tag of the validators following the Items of a page record */
+    static final byte TAG_VALIDATORS = 1;
+
+    /** the log file */
+    private final File file;
+
+    /** random access handle on the log file */
+    private RandomAccessFile raf;
+
+    /** the end offset of the last complete record; also taken in by lookups */
+    private volatile long length;
+
+    /** generation of this log, renewed on every compaction */
+    private long generation;
+
+    /** the format version of this log */
+    private int version;
+
+    /** read-only memory mapping of the log file */
+    private MappedByteBuffer map;
+
+    /** the number of bytes covered by the mapping */
+    private long mapped;
+
+    /**
+     * Callback for records found while scanning the log.
+     */
+    interface Visitor {
+        /**
+         * Visits a single record.
+         * @param offset The offset of this record.
+         * @param size The size of this record in bytes.
+         * @param type The type of this record.
+         * @param header The page of this record, without its Items.
+         * @throws IOException If the log cannot be read.
+         */
+        void visit(long offset, int size, byte type, CachePage header) throws IOException;
+    }
+
+    /**
+     * Constructor for CacheLog.
+     * @param file The log file.
+     */
+    CacheLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens this log, creating it if needed. Records are not
+     * read until the log is scanned. A log of the previous
+     * format version can only be read.
+     * @throws IOException If the log cannot be read or is not
+     * a cache log.
+     */
+    void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < HEADER_SIZE) {
+            generation = newGeneration();
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeLong(generation);
+            version = VERSION;
+        }
+        else if (raf.readInt() != MAGIC) {
+            close();
+            throw new IOException("Not a cache log: " + file);
+        }
+        else {
+            version = raf.readInt();
+            if (version != VERSION && version != LEGACY_VERSION) {
+                close();
+                throw new IOException("Unknown cache log version " + version + ": " + file);
+            }
+            generation = raf.readLong();
+        }
+        length = raf.length();
+        map = null;
+        mapped = 0;
+    }
+
+    /**
+     * Visits every complete record from this offset on. A torn
+     * or corrupt tail left by an interrupted write is skipped
+     * and truncated.
+     * @param from The offset of the first record to be visited.
+     * @param visitor The visitor to be called for each record.
+     * @throws IOException If the log cannot be read.
+     */
+    void scan(long from, Visitor visitor) throws IOException {
+        long fileLength = raf.length();
+        long offset = from;
+        while (offset + RECORD_HEADER_SIZE <= fileLength) {
+            raf.seek(offset);
+            int size = raf.readInt();
+            int checksum = raf.readInt();
+            if (size <= 0 || offset + RECORD_HEADER_SIZE + size > fileLength)
+                break;
+            byte[] payload = new byte[size];
+            raf.readFully(payload);
+            if (checksum(payload) != checksum)
+                break;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = in.readByte();
+            if (type != TYPE_PUT && type != TYPE_DELETE)
+                break;
+            visitor.visit(offset, RECORD_HEADER_SIZE + size, type, readKey(in));
+            offset += RECORD_HEADER_SIZE + size;
+        }
+        length = offset;
+        if (length < fileLength) {
+            msg("[WARN] Incomplete cache record found. Skip " + (fileLength - length) + " bytes.");
+            raf.setLength(length);
+            map = null;
+            mapped = 0;
+        }
+    }
+
+    /**
+     * Visits the records between these offsets, which have been
+     * scanned already, without verifying them again.
+     * @param from The offset of the first record to be visited.
+     * @param to The end offset of the last record to be visited.
+     * @param visitor The visitor to be called for each record.
+     * @throws IOException If the log cannot be read.
+     */
+    void visit(long from, long to, Visitor visitor) throws IOException {
+        long offset = from;
+        while (offset < to) {
+            int size = recordSize(offset);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    bytes(offset + RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE)));
+            byte type = in.readByte();
+            visitor.visit(offset, size, type, readKey(in));
+            offset += size;
+        }
+    }
+
+    /**
+     * Appends a page to this log.
+     * @param page The page to be appended.
+     * @return The offset of the appended record.
+     * @throws IOException If the log cannot be written.
+     */
+    long append(CachePage page) throws IOException {
+        checkWritable();
+        return write(encode(page));
+    }
+
+    /**
+     * Appends several pages to this log in a single write.
+     * @param pages The pages to be appended.
+     * @return The offsets of the appended records, in order.
+     * @throws IOException If the log cannot be written.
+     */
+    long[] append(List<CachePage> pages) throws IOException {
+        checkWritable();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        long[] offsets = new long[pages.size()];
+        for (int i = 0; i < offsets.length; ++i) {
+            offsets[i] = length + records.size();
+            records.write(record(encode(pages.get(i))));
+        }
+        raf.seek(length);
+        raf.write(records.toByteArray());
+        length += records.size();
+        return offsets;
+    }
+
+    /**
+     * Appends a removal marker for a page to this log.
+     * @param keyword The keyword of the removed page.
+     * @param pageNum The page number of the removed page.
+     * @return The offset of the appended record.
+     * @throws IOException If the log cannot be written.
+     */
+    long appendDelete(String keyword, int pageNum) throws IOException {
+        checkWritable();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        writeKey(out, TYPE_DELETE, new CachePage(keyword, pageNum, "", null));
+        out.close();
+        return write(bout.toByteArray());
+    }
+
+    /**
+     * Reads the page stored at this offset.
+     * @param offset The offset of the record.
+     * @return The page stored at this offset.
+     * @throws IOException If the record cannot be read or is corrupt.
+     */
+    @SuppressWarnings("unchecked")
+    CachePage read(long offset) throws IOException {
+        DataInputStream in = payload(offset, true);
+        CachePage page = readKey(in);
+        if (version == VERSION) {
+            page.setItems(ItemCodec.read(in));
+            if (in.available() > 0 && in.readByte() == TAG_VALIDATORS) {
+                String etag = in.readUTF();
+                String lastModified = in.readUTF();
+                page.setEtag(etag.isEmpty() ? null : etag);
+                page.setLastModified(lastModified.isEmpty() ? null : lastModified);
+                page.setContentHash(in.readLong());
+            }
+            return page;
+        }
+        ObjectInputStream oin = new ObjectInputStream(in);
+        try {
+            page.setItems((List<Item>) oin.readObject());
+            return page;
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Cache record format wrong at " + offset, e);
+        }
+    }
+
+    /**
+     * Reads the page stored at this offset without its items.
+     * @param offset The offset of the record.
+     * @return The page stored at this offset, with a null
+     * list of Items.
+     * @throws IOException If the record cannot be read.
+     */
+    CachePage readHeader(long offset) throws IOException {
+        return readKey(payload(offset, false));
+    }
+
+    /**
+     * Determines whether the page record at this offset is stored
+     * under this key, reading only the key of the record.
+     * @param offset The offset of the record.
+     * @param keyword The keyword to be matched.
+     * @param pageNum The page number to be matched; 0 for any.
+     * @return True if the record holds a page of this key.
+     * @throws IOException If the log cannot be read.
+     */
+    boolean holds(long offset, String keyword, int pageNum) throws IOException {
+        // the record type, the keyword in modified UTF-8, then the page number
+        int keyLength = utfLength(keyword);
+        int n = RECORD_HEADER_SIZE + 3 + keyLength + 4;
+        if (keyLength > 0xffff || offset + n > length)
+            return false;
+        byte[] b = bytes(offset, n);
+        if (getInt(b, 0) < n - RECORD_HEADER_SIZE || b[8] != TYPE_PUT
+                || ((b[9] & 0xff) << 8 | b[10] & 0xff) != keyLength)
+            return false;
+        int pos = RECORD_HEADER_SIZE + 3;
+        for (int i = 0; i < keyword.length(); ++i) {
+            char c = keyword.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                if (b[pos++] != c) return false;
+            }
+            else if (c <= 0x07ff) {
+                if (b[pos++] != (byte) (0xc0 | c >> 6)
+                        || b[pos++] != (byte) (0x80 | c & 0x3f)) return false;
+            }
+            else {
+                if (b[pos++] != (byte) (0xe0 | c >> 12)
+                        || b[pos++] != (byte) (0x80 | c >> 6 & 0x3f)
+                        || b[pos++] != (byte) (0x80 | c & 0x3f)) return false;
+            }
+        }
+        return pageNum == 0 || getInt(b, pos) == pageNum;
+    }
+
+    /**
+     * Gets the size of the record stored at this offset.
+     * @param offset The offset of the record.
+     * @return The size of the record in bytes.
+     * @throws IOException If the log cannot be read.
+     */
+    int recordSize(long offset) throws IOException {
+        return RECORD_HEADER_SIZE + getInt(bytes(offset, 4), 0);
+    }
+
+    /**
+     * Gets the generation of this log.
+     * @return The generation of this log.
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Takes in the records written to this log by another
+     * process, up to this length.
+     * @param length The end offset of the last complete record.
+     */
+    void extend(long length) {
+        this.length = length;
+    }
+
+    /**
+     * Scans this whole log for the pages it holds.
+     * @return The offsets of the latest record of each page
+     * not removed, in log order.
+     * @throws IOException If the log cannot be read.
+     */
+    List<Long> live() throws IOException {
+        final Map<String, Long> live = new LinkedHashMap<String, Long>();
+        scan(HEADER_SIZE, new Visitor() {
+            public void visit(long offset, int size, byte type, CachePage header) {
+                String key = header.getPageNum() + " " + header.getKeyword();
+                if (type == TYPE_PUT)
+                    live.put(key, offset);
+                else
+                    live.remove(key);
+            }
+        });
+        List<Long> offsets = new ArrayList<Long>(live.values());
+        Collections.sort(offsets);
+        return offsets;
+    }
+
+    /**
+     * Gets the end offset of the last complete record.
+     * @return The length of this log in bytes.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Rewrites this log keeping only the records at these offsets.
+     * The new log is written aside and renamed over the old one, so
+     * an interrupted compaction leaves the old log intact.
+     * @param liveOffsets The offsets of the records to be kept.
+     * @return A mapping from each old offset to its new offset.
+     * @throws IOException If the log cannot be rewritten.
+     */
+    Map<Long, Long> compact(List<Long> liveOffsets) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<Long, Long> moved = new HashMap<Long, Long>();
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        long newGeneration = newGeneration();
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(newGeneration);
+            for (long offset : liveOffsets) {
+                moved.put(offset, out.getFilePointer());
+                out.write(bytes(offset, recordSize(offset)));
+            }
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        raf.close();
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        raf = new RandomAccessFile(file, "rw");
+        length = raf.length();
+        generation = newGeneration;
+        map = null;
+        mapped = 0;
+        return moved;
+    }
+
+    /**
+     * Closes this log.
+     * @throws IOException If the log cannot be closed.
+     */
+    void close() throws IOException {
+        if (raf != null) raf.close();
+        raf = null;
+        map = null;
+        mapped = 0;
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Checks that this log is of the current format version.
+     * @throws IOException If this log can only be read.
+     */
+    private void checkWritable() throws IOException {
+        if (version != VERSION)
+            throw new IOException("Cache log of version " + version + " is read-only: " + file);
+    }
+
+    /**
+     * Writes the common leading fields of a record payload.
+     * @param out The stream to be written to.
+     * @param type The type of this record.
+     * @param page The page of this record.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void writeKey(DataOutputStream out, byte type, CachePage page)
+            throws IOException {
+        out.writeByte(type);
+        out.writeUTF(page.getKeyword());
+        out.writeInt(page.getPageNum());
+        out.writeUTF(page.getTotal() == null ? "" : page.getTotal());
+        out.writeLong(page.getFetchTime());
+    }
+
+    /**
+     * Reads the common leading fields of a record payload,
+     * following the record type.
+     * @param in The stream to be read from.
+     * @return The page of this record, without its Items.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static CachePage readKey(DataInputStream in) throws IOException {
+        String keyword = in.readUTF();
+        int pageNum = in.readInt();
+        String total = in.readUTF();
+        return new CachePage(keyword, pageNum, total, null, in.readLong());
+    }
+
+    /**
+     * Encodes the payload of a page record.
+     * @param page The page to be encoded.
+     * @return The payload of the record.
+     * @throws IOException If the page cannot be encoded.
+     */
+    private static byte[] encode(CachePage page) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        writeKey(out, TYPE_PUT, page);
+        ItemCodec.write(out, page.getItems());
+        if (page.getEtag() != null || page.getLastModified() != null
+                || page.getContentHash() != 0) {
+            out.writeByte(TAG_VALIDATORS);
+            out.writeUTF(page.getEtag() == null ? "" : page.getEtag());
+            out.writeUTF(page.getLastModified() == null ? "" : page.getLastModified());
+            out.writeLong(page.getContentHash());
+        }
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Frames a record payload with its length and checksum.
+     * @param payload The payload of the record.
+     * @return The record.
+     */
+    private static byte[] record(byte[] payload) {
+        byte[] record = new byte[RECORD_HEADER_SIZE + payload.length];
+        int checksum = checksum(payload);
+        putInt(record, 0, payload.length);
+        putInt(record, 4, checksum);
+        System.arraycopy(payload, 0, record, RECORD_HEADER_SIZE, payload.length);
+        return record;
+    }
+
+    /**
+     * Writes a record payload at the end of this log.
+     * @param payload The payload to be written.
+     * @return The offset of the written record.
+     * @throws IOException If the log cannot be written.
+     */
+    private long write(byte[] payload) throws IOException {
+        byte[] record = record(payload);
+        long offset = length;
+        raf.seek(offset);
+        raf.write(record);
+        length += record.length;
+        return offset;
+    }
+
+    /**
+     * Gets a stream over the payload of the page record at this
+     * offset, positioned after the record type.
+     * @param offset The offset of the record.
+     * @param verify True if the checksum is to be verified.
+     * @return A stream over the record payload.
+     * @throws IOException If the record cannot be read or is corrupt.
+     */
+    private DataInputStream payload(long offset, boolean verify) throws IOException {
+        byte[] header = bytes(offset, RECORD_HEADER_SIZE);
+        int size = getInt(header, 0);
+        if (size <= 0 || offset + RECORD_HEADER_SIZE + size > length)
+            throw new IOException("No cache record at " + offset);
+        byte[] payload = bytes(offset + RECORD_HEADER_SIZE, size);
+        if (verify && checksum(payload) != getInt(header, 4))
+            throw new IOException("Corrupt cache record at " + offset);
+        if (payload[0] != TYPE_PUT)
+            throw new IOException("No page stored at " + offset);
+        return new DataInputStream(new ByteArrayInputStream(payload, 1, size - 1));
+    }
+
+    /**
+     * Reads bytes from the log, through the memory mapping
+     * whenever the log is small enough to be mapped. The mapping
+     * is renewed only once the log has grown by half of it since,
+     * so a log is remapped a logarithmic number of times as it
+     * grows; the records appended in between are read from the
+     * file. Safe for concurrent readers.
+     * @param offset The offset to be read at.
+     * @param size The number of bytes to be read.
+     * @return The bytes read.
+     * @throws IOException If the log cannot be read.
+     */
+    private synchronized byte[] bytes(long offset, int size) throws IOException {
+        byte[] b = new byte[size];
+        if (offset + size > mapped && length - mapped >= Math.max(1, mapped / 2)
+                && mapped < Integer.MAX_VALUE) {
+            mapped = Math.min(length, Integer.MAX_VALUE);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mapped);
+        }
+        if (offset + size <= mapped) {
+            ByteBuffer view = map.duplicate();
+            view.position((int) offset);
+            view.get(b);
+        }
+        else {
+            raf.seek(offset);
+            raf.readFully(b);
+        }
+        return b;
+    }
+
+    /**
+     * Gets the length of a String in modified UTF-8, as written
+     * by DataOutputStream.writeUTF.
+     * @param s The String to be measured.
+     * @return The length in bytes.
+     */
+    private static int utfLength(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            n += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+        }
+        return n;
+    }
+
+    /**
+     * Creates a new log generation.
+     * @return A generation unlikely to be reused.
+     */
+    private static long newGeneration() {
+        return System.currentTimeMillis() ^ System.nanoTime() << 20;
+    }
+
+    /**
+     * Computes the checksum of a record payload.
+     * @param payload The payload to be checked.
+     * @return The CRC32 checksum of the payload.
+     */
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a big-endian int into a byte array.
+     * @param b The byte array to be written.
+     * @param pos The position to be written at.
+     * @param v The value to be written.
+     */
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos]     = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    /**
+     * Reads a big-endian int from a byte array.
+     * @param b The byte array to be read.
+     * @param pos The position to be read at.
+     * @return The value read.
+     */
+    private static int getInt(byte[] b, int pos) {
+        return (b[pos] & 0xff) << 24 | (b[pos + 1] & 0xff) << 16
+             | (b[pos + 2] & 0xff) << 8 | (b[pos + 3] & 0xff);
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg);
+        System.out.print("\n");
+    }
+}
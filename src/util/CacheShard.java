@@ -0,0 +1,408 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import datastructure.CachePage;
+
+/**
+ * Class for a shard of the cache: a log and its index, shared by
+ * every process using the same cache folder. Each operation holds
+ * a lock on the shard's lock file, shared for lookups and exclusive
+ * for writes, and catches up with whatever other processes wrote
+ * since: records appended are picked up through the index, and a
+ * log or index replaced by a compaction or rehash is reopened. The
+ * lock file records the generation of the log and the identity of
+ * the index last written, so replaced files are noticed without
+ * touching them. Within a process, lookups on a shard run in
+ * parallel and share a single lock on the lock file, while writes
+ * are serialized against every other operation on the shard;
+ * operations on different shards run in parallel.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+class CacheShard {
+
+    /** the size of the lock file (log generation + index identity) */
+    private static final int STATE_SIZE = 12;
+
+    /** the number of times a wait for a lock is retried when it fails */
+    private static final int LOCK_RETRIES = 100;
+
+    /** the longest pause before retrying a wait for a lock, in milliseconds */
+    private static final int LOCK_RETRY_DELAY = 10;
+
+    /** the folder of the shard files */
+    private final File dir;
+
+    /** the name of the shard files, without extension */
+    private final String name;
+
+    /** lock of the operations of this process on this shard, shared by lookups */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** the number of lookups of this process sharing the lock file lock */
+    private int readers;
+
+    /** the lock file */
+    private RandomAccessFile lockFile;
+
+    /** the channel the lock file is locked through */
+    private FileChannel channel;
+
+    /** memory mapping of the lock file */
+    private MappedByteBuffer state;
+
+    /** the lock held on the lock file, shared by the readers; null if none */
+    private FileLock fileLock;
+
+    /** the log of this shard; null until opened */
+    private CacheLog log;
+
+    /** the index of this shard; null until opened */
+    private CacheIndex index;
+
+    /**
+     * Constructor for CacheShard.
+     * @param dir The folder of the shard files.
+     * @param name The name of the shard files, without extension.
+     */
+    CacheShard(File dir, String name) {
+        this.dir = dir;
+        this.name = name;
+    }
+
+    /**
+     * Locks this shard for a lookup, against writes of this
+     * and other processes. Has to be followed by unlock.
+     * @throws IOException If the shard cannot be locked or opened.
+     */
+    void lockShared() throws IOException {
+        while (true) {
+            lock.readLock().lock();
+            try {
+                share();
+            }
+            catch (IOException e) {
+                lock.readLock().unlock();
+                throw e;
+            }
+            boolean stale = true;
+            try {
+                stale = isStale();
+                if (!stale) {
+                    if (log.length() != index.indexedLength()) {
+                        // records appended or removed by another process
+                        log.extend(index.indexedLength());
+                    }
+                    return;
+                }
+            }
+            finally {
+                if (stale) unlock();
+            }
+            // the shard files were replaced: reopens them, then retries
+            lockExclusive();
+            unlock();
+        }
+    }
+
+    /**
+     * Locks this shard for a write, against every other
+     * operation of this and other processes. Has to be
+     * followed by unlock.
+     * @throws IOException If the shard cannot be locked or opened.
+     */
+    void lockExclusive() throws IOException {
+        lock.writeLock().lock();
+        try {
+            fileLock = acquire(false);
+            if (isStale())
+                reopen();
+            else if (log.length() != index.indexedLength()) {
+                // records appended or removed by another process
+                log.extend(index.indexedLength());
+            }
+        }
+        catch (IOException e) {
+            unlock();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Unlocks this shard, recording which files were last
+     * written for the other processes.
+     */
+    void unlock() {
+        if (!lock.isWriteLockedByCurrentThread()) {
+            try {
+                unshare();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            return;
+        }
+        try {
+            if (fileLock != null) {
+                if (log != null && index != null) {
+                    state.putLong(0, log.generation());
+                    state.putInt(8, index.id());
+                }
+                fileLock.release();
+            }
+        }
+        catch (IOException e) {
+            // released anyway once the lock file is closed
+        }
+        finally {
+            fileLock = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the log of this shard. Only valid while locked.
+     * @return The log.
+     */
+    CacheLog log() {
+        return log;
+    }
+
+    /**
+     * Gets the index of this shard. Only valid while locked.
+     * @return The index.
+     */
+    CacheIndex index() {
+        return index;
+    }
+
+    /**
+     * Points the index at a newly written record.
+     * Only valid while locked exclusively.
+     * @param header The page of the record.
+     * @param offset The offset of the record.
+     * @param size The size of the record in bytes.
+     * @throws IOException If the superseded record cannot be
+     * read or the index cannot be written.
+     */
+    void index(CachePage header, long offset, int size) throws IOException {
+        long old = index.put(header.getKeyword(), header.getPageNum(),
+                             offset, header.getFetchTime());
+        long liveBytes = index.liveBytes() + size;
+        if (old >= 0)
+            liveBytes -= log.recordSize(old);
+        index.setLiveBytes(liveBytes);
+    }
+
+    /**
+     * Removes a page from the index.
+     * Only valid while locked exclusively.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @throws IOException If the removed record cannot be read.
+     */
+    void unindex(String keyword, int pageNum) throws IOException {
+        long old = index.remove(keyword, pageNum);
+        if (old >= 0)
+            index.setLiveBytes(index.liveBytes() - log.recordSize(old));
+    }
+
+    /**
+     * Closes the files of this shard, releasing its lock file.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            closeFiles();
+            try {
+                if (lockFile != null) lockFile.close();
+            }
+            catch (IOException e) {
+                // nothing left to release
+            }
+            lockFile = null;
+            channel = null;
+            state = null;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Takes a share of the lock on the lock file for a lookup,
+     * locking it shared for the first of the concurrent lookups.
+     * Only valid while holding the read lock.
+     * @throws IOException If the lock file cannot be locked.
+     */
+    private synchronized void share() throws IOException {
+        if (readers == 0)
+            fileLock = acquire(true);
+        ++readers;
+    }
+
+    /**
+     * Gives back a share of the lock on the lock file, releasing
+     * it once the last of the concurrent lookups is done.
+     */
+    private synchronized void unshare() {
+        if (--readers > 0)
+            return;
+        try {
+            if (fileLock != null) fileLock.release();
+        }
+        catch (IOException e) {
+            // released anyway once the lock file is closed
+        }
+        finally {
+            fileLock = null;
+        }
+    }
+
+    /**
+     * Waits for a lock on the lock file. An interrupt does not
+     * abort the wait: it is kept for the caller once locked.
+     * File locks belong to a process rather than a thread, so
+     * the system may report a deadlock when threads of two
+     * processes wait for the shards held by other threads of
+     * each other, although each thread holds a single shard;
+     * such a wait is retried after a short random pause.
+     * @param shared True for a shared lock; false for an exclusive one.
+     * @return The lock.
+     * @throws IOException If the lock file cannot be locked.
+     */
+    private FileLock acquire(boolean shared) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 0; ; ++attempt) {
+                if (channel == null || !channel.isOpen())
+                    openLockFile();
+                try {
+                    return channel.lock(0, Long.MAX_VALUE, shared);
+                }
+                catch (ClosedByInterruptException e) {
+                    // the channel is closed by the interrupt: reopens it
+                    interrupted |= Thread.interrupted();
+                }
+                catch (IOException e) {
+                    if (attempt >= LOCK_RETRIES)
+                        throw e;
+                    interrupted |= pause();
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pauses before retrying a wait for a lock.
+     * @return True if the thread was interrupted meanwhile.
+     */
+    private static boolean pause() {
+        try {
+            Thread.sleep(1 + ThreadLocalRandom.current().nextInt(LOCK_RETRY_DELAY));
+            return false;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Opens and maps the lock file, creating it if needed.
+     * @throws IOException If the lock file cannot be opened.
+     */
+    private void openLockFile() throws IOException {
+        if (lockFile != null) {
+            try {
+                lockFile.close();
+            }
+            catch (IOException e) {
+                // replaced anyway
+            }
+        }
+        lockFile = new RandomAccessFile(new File(dir, name + ".lck"), "rw");
+        channel = lockFile.getChannel();
+        state = channel.map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+    }
+
+    /**
+     * Determines whether the shard files have been replaced
+     * since this process opened them, or were never opened.
+     * @return True if the shard files have to be reopened.
+     */
+    private boolean isStale() {
+        return log == null || index == null
+            || state.getLong(0) != log.generation() || state.getInt(8) != index.id();
+    }
+
+    /**
+     * Opens the shard files afresh, rebuilding the index as
+     * needed. Only valid while locked exclusively.
+     * @throws IOException If the shard files cannot be opened.
+     */
+    private void reopen() throws IOException {
+        closeFiles();
+        CacheLog newLog = new CacheLog(new File(dir, name + ".dat"));
+        newLog.open();
+        CacheIndex newIndex = new CacheIndex(new File(dir, name + ".idx"), newLog);
+        try {
+            long from = CacheLog.HEADER_SIZE;
+            if (newIndex.open(newLog.generation(), newLog.length()))
+                from = newIndex.indexedLength();
+            else
+                newIndex.create(newLog.generation(), from);
+            log = newLog;
+            index = newIndex;
+            log.scan(from, new CacheLog.Visitor() {
+                public void visit(long offset, int size, byte type, CachePage header)
+                        throws IOException {
+                    if (type == CacheLog.TYPE_PUT)
+                        index(header, offset, size);
+                    else
+                        unindex(header.getKeyword(), header.getPageNum());
+                }
+            });
+            index.setIndexedLength(log.length());
+        }
+        catch (IOException e) {
+            log = null;
+            index = null;
+            newIndex.close();
+            newLog.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the log and index of this shard.
+     */
+    private void closeFiles() {
+        try {
+            if (log != null) log.close();
+        }
+        catch (IOException e) {
+            // nothing left to write
+        }
+        if (index != null) index.close();
+        log = null;
+        index = null;
+    }
+}
@@ -1,8 +1,11 @@
 package util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -14,7 +17,12 @@ import datastructure.Item;
  * @author Zhishen Wen
  * @version Sep 20, 2013
  */
-public class DOMParser {
+public class DOMParser implements PageParser {
+        
+        /** the boilerplate phrases removed from seller texts */
+        private static final String[] SELLER_PHRASES = {
+            "Sold by", "ShopYourWay Guarantee Seller", "Marketplace Item", "learn more"
+        };
         
         /** the DOM Document to be parsed */
         private Document doc;
@@ -28,35 +36,62 @@ public class DOMParser {
         }
         
         /**
-         * Gets a List of Items for this Document.
+         * Reads in a result page to be parsed into a DOM Document.
+         * @param in The body of the result page.
+         * @param charset The charset of the body; null if unknown.
+         * @param baseUri The URL the page was retrieved from.
+         * @throws IOException If the body cannot be read.
+         */
+        public void parse(InputStream in, String charset, String baseUri) throws IOException {
+            long start = Metrics.start();
+            this.doc = Jsoup.parse(in, charset, baseUri);
+            Metrics.stop(Metrics.PARSE, start);
+        }
+        
+        /**
+         * Gets a List of Items for this Document. Each item is
+         * visited once, collecting all of its fields in that pass.
          * @return A List of Items; an empty List if no matches found.
          */
         public List<Item> getAllItems() {
+            long start = Metrics.start();
             Elements items = doc.getElementsByAttributeValue("class", "cardInner");
-            List<Item> itemList = new ArrayList<Item>();
+            List<Item> itemList = new ArrayList<Item>(items.size());
+            StringBuilder seller = new StringBuilder();
             for (Element item : items) {
-                // extracts product name/title
-                String name = item.getElementsByAttributeValue("class", "cardProdTitle").get(0).text();
-                
-                // extracts product price
-                Elements pricingInfo = item.getElementsByAttributeValueContaining("class", "price_v2");
-                String price = pricingInfo.size() == 0 ? pricingInfo.text() : pricingInfo.get(0).text();
+                Element title = null;
+                Element pricing = null;
+                seller.setLength(0);
+                for (Element e : item.getAllElements()) {
+                    String cls = e.attr("class");
+                    // product name/title
+                    if (title == null && cls.equalsIgnoreCase("cardProdTitle"))
+                        title = e;
+                    // product price
+                    if (pricing == null && cls.toLowerCase().contains("price_v2"))
+                        pricing = e;
+                    // vendor name
+                    if (e.id().equalsIgnoreCase("mrkplc")) {
+                        if (seller.length() != 0) seller.append(' ');
+                        seller.append(e.text());
+                    }
+                }
+                String name = title == null ? "" : title.text();
+                String price = pricing == null ? "" : pricing.text();
+                String vendor = toVendor(seller);
+                // product identity, from the link of the title
+                String id = null;
+                if (title != null) {
+                    for (Element link : title.getElementsByTag("a")) {
+                        id = toProductId(link.attr("href"));
+                        if (id != null) break;
+                    }
+                }
                 
-                // extract vendor name
-                String seller = item.getElementsByAttributeValue("id", "mrkplc").text();
-                // normalizes the String
-                seller = seller
-                        .replaceAll("[^(\\x20-\\x7F)]*", "")
-                        .replaceAll("\\|", "")
-                        .replaceAll("Sold by", "")
-                        .replaceAll("ShopYourWay Guarantee Seller", "")
-                        .replaceAll("Marketplace Item", "")
-                        .replaceAll("learn more", "")
-                        .trim();
-                String vendor = seller.isEmpty() ? "Sears" : seller;
-                
-                itemList.add(new Item(name, price, vendor));
+                itemList.add(new Item(name, price, vendor, id));
             }
+            Metrics.stop(Metrics.ITEMS, start);
+            Metrics.addItemsParsed(itemList.size());
             return itemList;
         }
         
@@ -66,13 +101,69 @@ public class DOMParser {
          * an empty String if no matches found.
          */
         public String getItemsTotalNum() {
+            long start = Metrics.start();
             try {
-                String itemsTotalInfo = doc.getElementById("nmbProdItems").text();
-                return itemsTotalInfo.split("of")[1].substring(1);
+                return toTotal(doc.getElementById("nmbProdItems").text());
             }
             catch (NullPointerException e) {
                 return "";
             }
+            finally {
+                Metrics.stop(Metrics.TOTAL, start);
+            }
+        }
+        
+        /**
+         * Extracts the vendor name from the seller text of an item.
+         * @param seller The text of the seller element.
+         * @return The vendor name; "Sears" if no seller is named.
+         */
+        static String toVendor(CharSequence seller) {
+            // normalizes the String: drops non-printable chars and '|'
+            StringBuilder vendor = new StringBuilder(seller.length());
+            for (int i = 0; i < seller.length(); ++i) {
+                char c = seller.charAt(i);
+                if (c >= '\u0020' && c <= '\u007F' && c != '|')
+                    vendor.append(c);
+            }
+            // then the boilerplate phrases, in order
+            for (String phrase : SELLER_PHRASES) {
+                int index = vendor.indexOf(phrase);
+                while (index != -1) {
+                    vendor.delete(index, index + phrase.length());
+                    index = vendor.indexOf(phrase, index);
+                }
+            }
+            String name = vendor.toString().trim();
+            return name.isEmpty() ? "Sears" : ItemCodec.intern(name);
+        }
+        
+        /**
+         * Extracts the product identity from the link of an item,
+         * like '/craftsman-hammer/p-00938516000P?prdNo=2', which
+         * stays the same whichever keyword the item is found by.
+         * @param href The link of the item's title.
+         * @return The product identity; null if the link names none.
+         */
+        static String toProductId(String href) {
+            int begin = href == null ? -1 : href.lastIndexOf("/p-");
+            if (begin == -1)
+                return null;
+            begin += 3;
+            int end = begin;
+            while (end < href.length() && "/?#".indexOf(href.charAt(end)) == -1)
+                ++end;
+            return end == begin ? null : href.substring(begin, end);
+        }
+        
+        /**
+         * Extracts the total number of Items from the text
+         * of the items count element.
+         * @param itemsTotalInfo The text of the items count element.
+         * @return The total number of Items found.
+         */
+        static String toTotal(String itemsTotalInfo) {
+            return itemsTotalInfo.split("of")[1].substring(1);
         }
         
 }
@@ -1,7 +1,17 @@
 package util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import datastructure.Item;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -33,9 +43,124 @@ public class HTTPClient {
     /** the value for items to be viewed per page */
     public  final static int    VALUE_VIEW_ITEMS    = 50;
     
+    /** the value for items to be viewed per page when only counting, the smallest offered */
+    private final static int    VALUE_COUNT_ITEMS   = 25;
+    
+    /** no additional request headers */
+    private final static Map<String, String> NO_HEADERS = Collections.emptyMap();
+    
+    /** the transport used to retrieve web pages */
+    private final Transport transport;
+    
+    /** the main body of queries, followed by the keyword */
+    private final String hostQuery;
+    
+    /** the limiter of requests in flight; null if none */
+    private final LimitedTransport limiter;
+    
+    /** the retrier of failed requests; null if none */
+    private final RetryingTransport retrier;
+    
+    /** the final keyword and levels resolved for each keyword searched */
+    private final ConcurrentHashMap<String, Resolution> resolutions =
+            new ConcurrentHashMap<String, Resolution>();
+    
+    /**
+     * Class for stopping a parse once the total number
+     * of Items is known.
+     */
+    private static class TotalFound extends RuntimeException {
+        
+        /** assigned serial number */
+        private static final long serialVersionUID = 1L;
+        
+        /** the total number of Items found */
+        final String totalNum;
+        
+        /**
+         * Constructor for TotalFound.
+         * @param totalNum The total number of Items found.
+         */
+        TotalFound(String totalNum) {
+            super(null, null, false, false);
+            this.totalNum = totalNum;
+        }
+    }
+    
+    /**
+     * Class for the final query parameters a keyword resolves to,
+     * once Sears.com redirects have been followed.
+     */
+    private static class Resolution {
+        
+        /** the keyword actually searched */
+        final String keyword;
+        
+        /** the levels for this keyword; null if none */
+        final String levels;
+        
+        /**
+         * Constructor for Resolution.
+         * @param keyword The keyword actually searched.
+         * @param levels The levels for this keyword; null if none.
+         */
+        Resolution(String keyword, String levels) {
+            this.keyword = keyword;
+            this.levels = levels;
+        }
+    }
+    
+    /**
+     * Constructor for HTTPClient, using a PooledTransport
+     * behind an adaptive LimitedTransport, behind a
+     * RetryingTransport.
+     */
+    public HTTPClient() {
+        this(new RetryingTransport(new LimitedTransport(new PooledTransport())));
+    }
+    
+    /**
+     * Constructor for HTTPClient, querying the URL named by the
+     * system property scraper.http.baseUrl, Sears.com by default.
+     * @param transport The transport used to retrieve web pages.
+     */
+    public HTTPClient(Transport transport) {
+        this(transport, System.getProperty("scraper.http.baseUrl", HOST_QUERY));
+    }
+    
+    /**
+     * Constructor for HTTPClient.
+     * @param transport The transport used to retrieve web pages.
+     * @param hostQuery The main body of queries, followed by the
+     * keyword, like http://www.sears.com/search=.
+     */
+    public HTTPClient(Transport transport, String hostQuery) {
+        this.transport = transport;
+        this.hostQuery = hostQuery;
+        this.limiter = find(transport, LimitedTransport.class);
+        this.retrier = find(transport, RetryingTransport.class);
+    }
+    
+    /**
+     * Gets the limiter of requests in flight.
+     * @return The limiter; null if requests are not limited.
+     */
+    public LimitedTransport getLimiter() {
+        return limiter;
+    }
+    
+    /**
+     * Gets the retrier of failed requests.
+     * @return The retrier; null if requests are not retried.
+     */
+    public RetryingTransport getRetrier() {
+        return retrier;
+    }
+    
     /**
      * Gets a DOM Document root from Sears.com, given this
-     * keyword and page number.
+     * keyword and page number. Once a keyword has been resolved,
+     * further pages are fetched straight from the final URL.
      * @param keyword The keyword to be searched.
      * @param pageNum The page number to searched.
      * @return A DOM Document representing the retrieved
@@ -44,27 +169,139 @@ public class HTTPClient {
      */
     public Document getDOMTree(String keyword, int pageNum) 
            throws IOException {
-        return getDOMTree(keyword, pageNum, 
-                          HOST_QUERY       + keyword          + "?" + 
-                          PARAM_VIEW_ITEMS + VALUE_VIEW_ITEMS + "&" +
-                          PARAM_PAGE_NUM   + pageNum);
+        HttpResponse response = openPage(keyword, pageNum);
+        long start = Metrics.start();
+        try {
+            return Jsoup.parse(response.getBody(), response.getCharset(), response.getUrl());
+        }
+        finally {
+            response.close();
+            Metrics.stop(Metrics.PARSE, start);
+        }
+    }
+    
+    /**
+     * Opens a result page from Sears.com, given this keyword and
+     * page number, without parsing it. Once a keyword has been
+     * resolved, the body is streamed straight from the connection;
+     * otherwise it is the body already read to follow redirects.
+     * The response has to be closed by the caller.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to searched.
+     * @return The response of the result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    public HttpResponse openPage(String keyword, int pageNum) throws IOException {
+        return openPage(keyword, pageNum, VALUE_VIEW_ITEMS, NO_HEADERS);
+    }
+    
+    /**
+     * Opens a result page from Sears.com unless it has changed
+     * since it was last fetched, given this keyword, page number
+     * and the validators sent with it then. Once the keyword has
+     * been resolved, the request is conditional and an unchanged
+     * page is answered with a 304 (Not Modified) status and an
+     * empty body; before that, the first answer may be a redirect
+     * page the validators do not apply to, so the page is sent
+     * whole. The response has to be closed by the caller.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to searched.
+     * @param etag The entity tag sent with the page; null if none.
+     * @param lastModified The Last-Modified date sent with the
+     * page; null if none.
+     * @return The response of the result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    public HttpResponse openPage(String keyword, int pageNum, String etag,
+                                 String lastModified) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (etag != null)
+            headers.put("If-None-Match", etag);
+        if (lastModified != null)
+            headers.put("If-Modified-Since", lastModified);
+        return openPage(keyword, pageNum, VALUE_VIEW_ITEMS, headers);
+    }
+    
+    /**
+     * Gets the total number of Items from Sears.com, given this
+     * keyword, without fetching a whole result page: the smallest
+     * page is requested, and the transfer is aborted as soon as
+     * the total has been read. While the keyword is unresolved,
+     * the first response is looked through for redirects as it is
+     * read; if the total comes before any redirect, the rest is not
+     * read and the keyword is left unresolved.
+     * @param keyword The keyword to be searched.
+     * @return The total number of Items; empty if no matches found.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    public String getItemsTotalNum(String keyword) throws IOException {
+        String totalNum;
+        if (resolutions.containsKey(keyword))
+            totalNum = readTotal(openPage(keyword, 1, VALUE_COUNT_ITEMS, NO_HEADERS), null);
+        else
+            totalNum = countItems(keyword, keyword);
+        return totalNum == null ? "" : totalNum;
     }
     
     //------------------- private helpers -------------------
     
     /**
-     * Helpers for getDOMTree. Gets a DOM Document from Sears.com.
+     * Helpers for openPage. Opens a result page from Sears.com,
+     * straight from the final URL once the keyword is resolved.
+     * The time taken is recorded as the HTTP stage.
      * @param keyword The keyword to be searched.
      * @param pageNum The page number to be searched.
-     * @param query The query to be searched, used for recursion calls.
-     * @return A DOM Document representing the retrieved web page.
+     * @param viewItems The number of Items per page.
+     * @param headers The request headers of the final URL.
+     * @return The response of the result page.
      * @throws IOException If connection to Sears.com fails.
      */
-    private Document getDOMTree(String keyword, int pageNum, String query) 
+    private HttpResponse openPage(String keyword, int pageNum, int viewItems,
+                                  Map<String, String> headers) throws IOException {
+        long start = Metrics.start();
+        try {
+            Resolution resolution = resolutions.get(keyword);
+            if (resolution != null) {
+                try {
+                    return transport.get(query(resolution.keyword, pageNum, resolution.levels,
+                                               viewItems), headers);
+                }
+                catch (MalformedURLException e) {
+                    resolutions.remove(keyword);
+                }
+            }
+            return openPage(keyword, keyword, pageNum, viewItems);
+        }
+        finally {
+            Metrics.stop(Metrics.HTTP, start);
+        }
+    }
+    
+    /**
+     * Helpers for openPage. Opens a result page from Sears.com,
+     * following its redirects and remembering where they lead.
+     * @param keyword The keyword to be resolved.
+     * @param searched The keyword to be searched, used for recursion calls.
+     * @param pageNum The page number to be searched.
+     * @param viewItems The number of Items per page.
+     * @return The response of the result page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    private HttpResponse openPage(String keyword, String searched, int pageNum, int viewItems) 
             throws IOException {
-        String body = Jsoup.connect(query).execute().body();
+        String query = query(searched, pageNum, null, viewItems);
+        HttpResponse response = transport.get(query, NO_HEADERS);
+        byte[] bytes;
+        try {
+            bytes = response.readBody();
+        }
+        finally {
+            response.close();
+        }
+        // only looks for ASCII markers, whatever the charset
+        String body = new String(bytes, "ISO-8859-1");
         if (body.contains(PARAM_REDIRECT_TYPE)) {
-            return getDOMTree(keyword + "%20item", pageNum);
+            return openPage(keyword, searched + "%20item", pageNum, viewItems);
         }
         else if (body.contains(PARAM_LEVELS)) {
             int begIndex = body.indexOf(PARAM_LEVELS) + PARAM_LEVELS.length();
@@ -73,15 +310,178 @@ public class HTTPClient {
             if (begIndex != -1 && endIndex != -1)
                 levels = body.substring(begIndex, endIndex);
             try {
-                return Jsoup.connect(query + "&" + PARAM_LEVELS + levels).get(); 
+                HttpResponse page = transport.get(query(searched, pageNum, levels, viewItems),
+                                                  NO_HEADERS);
+                resolutions.put(keyword, new Resolution(searched, levels));
+                return page;
             }
             catch (MalformedURLException e) {
-                return Jsoup.connect(query).get();
+                resolutions.put(keyword, new Resolution(searched, null));
+                return buffered(bytes, response);
             }
         }
         else {
-            return Jsoup.connect(query).get();
+            // no rewrite needed: this response is the page itself
+            resolutions.put(keyword, new Resolution(searched, null));
+            return buffered(bytes, response);
+        }
+    }
+    
+    /**
+     * Helpers for getItemsTotalNum. Reads the total number of Items
+     * from the smallest result page of an unresolved keyword,
+     * following its redirects the way openPage does and remembering
+     * where they lead once the whole page has been read.
+     * @param keyword The keyword to be resolved.
+     * @param searched The keyword to be searched, used for recursion calls.
+     * @return The total number of Items; null if the page has none.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    private String countItems(String keyword, String searched) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        String totalNum = readTotal(request(query(searched, 1, null, VALUE_COUNT_ITEMS)), read);
+        // only looks for ASCII markers, whatever the charset
+        String body = new String(read.toByteArray(), "ISO-8859-1");
+        if (body.contains(PARAM_REDIRECT_TYPE)) {
+            return countItems(keyword, searched + "%20item");
         }
+        else if (body.contains(PARAM_LEVELS)) {
+            int begIndex = body.indexOf(PARAM_LEVELS) + PARAM_LEVELS.length();
+            int endIndex = body.indexOf("&", begIndex);
+            String levels = "";
+            if (begIndex != -1 && endIndex != -1)
+                levels = body.substring(begIndex, endIndex);
+            try {
+                HttpResponse page = request(query(searched, 1, levels, VALUE_COUNT_ITEMS));
+                resolutions.put(keyword, new Resolution(searched, levels));
+                return readTotal(page, null);
+            }
+            catch (MalformedURLException e) {
+                resolutions.put(keyword, new Resolution(searched, null));
+                return totalNum;
+            }
+        }
+        // a page cut short at its total may still redirect further down
+        if (totalNum == null)
+            resolutions.put(keyword, new Resolution(searched, null));
+        return totalNum;
+    }
+    
+    /**
+     * Requests a web page without any additional headers. The
+     * time taken is recorded as the HTTP stage.
+     * @param query The URL of the web page.
+     * @return The response of the web page.
+     * @throws IOException If connection to Sears.com fails.
+     */
+    private HttpResponse request(String query) throws IOException {
+        long start = Metrics.start();
+        try {
+            return transport.get(query, NO_HEADERS);
+        }
+        finally {
+            Metrics.stop(Metrics.HTTP, start);
+        }
+    }
+    
+    /**
+     * Reads a result page up to its total number of Items, then
+     * aborts the transfer.
+     * @param response The response of the result page.
+     * @param copy The stream the bytes read are copied to; null
+     * if they are not needed.
+     * @return The total number of Items; null if the page has none.
+     * @throws IOException If the page cannot be read.
+     */
+    private static String readTotal(HttpResponse response, final ByteArrayOutputStream copy)
+            throws IOException {
+        StreamParser parser = new StreamParser(new StreamParser.Listener() {
+            public void item(Item item) {
+                // only the total is wanted
+            }
+            
+            public void total(String totalNum) {
+                throw new TotalFound(totalNum);
+            }
+        });
+        InputStream body = response.getBody();
+        if (copy != null) {
+            body = new FilterInputStream(body) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) copy.write(b);
+                    return b;
+                }
+                
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) copy.write(b, off, n);
+                    return n;
+                }
+            };
+        }
+        try {
+            parser.parse(body, response.getCharset(), response.getUrl());
+        }
+        catch (TotalFound found) {
+            response.abort();
+            return found.totalNum;
+        }
+        catch (IOException e) {
+            response.abort();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            response.abort();
+            throw e;
+        }
+        response.close();
+        return null;
+    }
+    
+    /**
+     * Finds a transport of this type among a transport
+     * and the transports it passes requests on to.
+     * @param transport The outermost transport.
+     * @param type The type of transport to be found.
+     * @return The transport found; null if none.
+     */
+    private static <T extends Transport> T find(Transport transport, Class<T> type) {
+        while (transport != null && !type.isInstance(transport)) {
+            if (transport instanceof RetryingTransport)
+                transport = ((RetryingTransport) transport).getTransport();
+            else if (transport instanceof LimitedTransport)
+                transport = ((LimitedTransport) transport).getTransport();
+            else
+                transport = null;
+        }
+        return type.cast(transport);
+    }
+    
+    /**
+     * Wraps a body already read into a response.
+     * @param bytes The body of the web page.
+     * @param response The response the body was read from.
+     * @return A response serving the body from memory.
+     */
+    private static HttpResponse buffered(byte[] bytes, HttpResponse response) {
+        return new HttpResponse(response.getStatus(), response.getUrl(),
+                                response.getHeaders(), new ByteArrayInputStream(bytes));
+    }
+    
+    /**
+     * Builds the query for this keyword and page number.
+     * @param keyword The keyword to be searched.
+     * @param pageNum The page number to be searched.
+     * @param levels The levels to be searched; null if none.
+     * @param viewItems The number of Items per page.
+     * @return The query URL.
+     */
+    private String query(String keyword, int pageNum, String levels, int viewItems) {
+        String query = hostQuery        + keyword   + "?" + 
+                       PARAM_VIEW_ITEMS + viewItems + "&" +
+                       PARAM_PAGE_NUM   + pageNum;
+        return levels == null ? query : query + "&" + PARAM_LEVELS + levels;
     }
 
 }
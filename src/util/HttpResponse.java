@@ -0,0 +1,176 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class for a response retrieved by a Transport.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class HttpResponse implements Closeable {
+    
+    /** the status code of this response */
+    private final int status;
+    
+    /** the URL this response was retrieved from */
+    private final String url;
+    
+    /** the headers of this response */
+    private final Map<String, List<String>> headers;
+    
+    /** the decoded body of this response */
+    private final InputStream body;
+    
+    /** drops the connection of this response; null if none */
+    private final Closeable connection;
+    
+    /**
+     * Constructor for HttpResponse.
+     * @param status The status code of this response.
+     * @param url The URL this response was retrieved from.
+     * @param headers The headers of this response.
+     * @param body The decoded body of this response.
+     */
+    public HttpResponse(int status, String url, Map<String, List<String>> headers,
+                        InputStream body) {
+        this(status, url, headers, body, null);
+    }
+    
+    /**
+     * Constructor for HttpResponse.
+     * @param status The status code of this response.
+     * @param url The URL this response was retrieved from.
+     * @param headers The headers of this response.
+     * @param body The decoded body of this response.
+     * @param connection Drops the connection of this response
+     * when the transfer is aborted; null if none.
+     */
+    public HttpResponse(int status, String url, Map<String, List<String>> headers,
+                        InputStream body, Closeable connection) {
+        this.status = status;
+        this.url = url;
+        this.headers = headers;
+        this.body = body;
+        this.connection = connection;
+    }
+    
+    /**
+     * Constructor for HttpResponse, wrapping the body of
+     * another response.
+     * @param response The response to be wrapped.
+     * @param body The body replacing the body of the response.
+     */
+    public HttpResponse(HttpResponse response, InputStream body) {
+        this(response.status, response.url, response.headers, body, response.connection);
+    }
+    
+    /**
+     * Getter for field status.
+     * @return Value of field status.
+     */
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * Getter for field url.
+     * @return Value of field url.
+     */
+    public String getUrl() {
+        return url;
+    }
+    
+    /**
+     * Getter for field headers.
+     * @return Value of field headers.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+    
+    /**
+     * Gets the first value of a header.
+     * @param name The name of the header, in any case.
+     * @return The value of the header; null if absent.
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the charset declared by the Content-Type header.
+     * @return The charset name; null if not declared.
+     */
+    public String getCharset() {
+        String type = getHeader("Content-Type");
+        if (type == null)
+            return null;
+        int index = type.toLowerCase().indexOf("charset=");
+        if (index == -1)
+            return null;
+        String charset = type.substring(index + "charset=".length()).trim();
+        int end = charset.indexOf(';');
+        if (end != -1)
+            charset = charset.substring(0, end);
+        return charset.replace("\"", "").trim();
+    }
+    
+    /**
+     * Gets the decoded body of this response as a stream.
+     * @return The body of this response.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+    
+    /**
+     * Reads the whole decoded body of this response.
+     * @return The bytes of the body.
+     * @throws IOException If the body cannot be read.
+     */
+    public byte[] readBody() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = body.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Closes this response, releasing its connection.
+     * @throws IOException If the body cannot be closed.
+     */
+    public void close() throws IOException {
+        body.close();
+    }
+    
+    /**
+     * Closes this response without reading the rest of its
+     * body, dropping its connection instead of reusing it.
+     */
+    public void abort() {
+        try {
+            if (connection != null) connection.close();
+        }
+        catch (IOException e) {
+            // connection is dropped anyway
+        }
+        try {
+            body.close();
+        }
+        catch (IOException e) {
+            // connection is dropped anyway
+        }
+    }
+    
+}
@@ -0,0 +1,37 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * Class for the exception thrown when a server answers
+ * with an error status.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class HttpStatusException extends IOException {
+    
+    /** assigned serial number */
+    private static final long serialVersionUID = 1L;
+    
+    /** the error status code */
+    private final int status;
+    
+    /**
+     * Constructor for HttpStatusException.
+     * @param status The error status code.
+     * @param url The URL requested.
+     */
+    public HttpStatusException(int status, String url) {
+        super("HTTP error fetching URL. Status=" + status + ", URL=" + url);
+        this.status = status;
+    }
+    
+    /**
+     * Getter for field status.
+     * @return Value of field status.
+     */
+    public int getStatus() {
+        return status;
+    }
+    
+}
@@ -0,0 +1,324 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import datastructure.Item;
+
+/**
+ * Class for the binary encoding of the Items of a cached page.
+ * Prices are stored as integer cents whenever they print back to
+ * the exact same text, and as text otherwise. Vendors are stored
+ * once per page in a dictionary, since a handful of sellers make
+ * up most Items, and referred to by their position in it. Items
+ * with a product identity are stored in the product catalog, and
+ * only referred to by their identity. Strings are stored as UTF-8
+ * prefixed with their length; lengths and numbers are stored as
+ * variable-length integers. Vendors and prices read are interned,
+ * so that every page shares a single copy of each.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class ItemCodec {
+
+    /** price tag for a null price */
+    private static final int PRICE_NULL = 0;
+
+    /** price tag for a price stored as text */
+    private static final int PRICE_TEXT = 1;
+
+    /** price tag for a price stored as cents, printed like $1234.56 */
+    private static final int PRICE_CENTS = 2;
+
+    /** price tag for a price stored as cents, printed like $1,234.56 */
+    private static final int PRICE_GROUPED_CENTS = 3;
+
+    /** price tag for an Item stored in the product catalog, by identity */
+    private static final int PRICE_PRODUCT = 4;
+
+    /** the most digits of a price stored as cents */
+    private static final int MAX_PRICE_DIGITS = 17;
+
+    /** the most Strings interned, beyond which Strings are kept as is */
+    private static final int MAX_INTERNED = 1 << 16;
+
+    /** the canonical copy of each String interned */
+    private static final ConcurrentHashMap<String, String> interned =
+            new ConcurrentHashMap<String, String>();
+
+    /** the charset of stored Strings */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Constructor for ItemCodec, not to be instantiated.
+     */
+    private ItemCodec() {
+    }
+
+    /**
+     * Writes a list of Items. Items with a product identity
+     * are written as a reference to the product catalog, which
+     * has to hold them already.
+     * @param out The stream to be written to.
+     * @param items The Items to be written; may be null.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void write(DataOutputStream out, List<Item> items) throws IOException {
+        if (items == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, items.size() + 1L);
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        List<String> vendors = new ArrayList<String>();
+        for (Item item : items) {
+            String vendor = item.getVendor();
+            if (item.getId() == null && vendor != null && !codes.containsKey(vendor)) {
+                codes.put(vendor, vendors.size());
+                vendors.add(vendor);
+            }
+        }
+        writeVarLong(out, vendors.size());
+        for (String vendor : vendors)
+            writeString(out, vendor);
+        for (Item item : items) {
+            if (item.getId() != null) {
+                writeString(out, null);
+                out.writeByte(PRICE_PRODUCT);
+                writeString(out, item.getId());
+                writeVarLong(out, 0);
+                continue;
+            }
+            writeString(out, item.getName());
+            writePrice(out, item.getPrice());
+            String vendor = item.getVendor();
+            writeVarLong(out, vendor == null ? 0 : codes.get(vendor) + 1L);
+        }
+    }
+
+    /**
+     * Reads a list of Items. Items stored in the product catalog
+     * are read as references: only their identity is set.
+     * @param in The stream to be read from.
+     * @return The Items read; null if null was written.
+     * @throws IOException If the stream cannot be read or
+     * holds no list of Items.
+     */
+    static List<Item> read(DataInputStream in) throws IOException {
+        int size = readLength(in);
+        if (size == 0)
+            return null;
+        String[] vendors = new String[readLength(in)];
+        for (int i = 0; i < vendors.length; ++i)
+            vendors[i] = intern(readString(in));
+        List<Item> items = new ArrayList<Item>(size - 1);
+        for (int i = 1; i < size; ++i) {
+            String name = readString(in);
+            int tag = in.readByte();
+            if (tag == PRICE_PRODUCT) {
+                String id = readString(in);
+                readVarLong(in);
+                items.add(new Item(null, null, null, id));
+                continue;
+            }
+            String price = intern(readPrice(in, tag));
+            long code = readVarLong(in);
+            if (code > vendors.length)
+                throw new IOException("Unknown vendor " + code + " in cache record.");
+            items.add(new Item(name, price, code == 0 ? null : vendors[(int) code - 1]));
+        }
+        return items;
+    }
+
+    /**
+     * Gets the canonical copy of a String, for low-cardinality
+     * Strings such as vendors and prices to be shared by every
+     * Item. Once too many Strings are interned, new ones are
+     * kept as is.
+     * @param s The String to be interned; may be null.
+     * @return The canonical copy of the String.
+     */
+    static String intern(String s) {
+        if (s == null)
+            return null;
+        String canonical = interned.get(s);
+        if (canonical != null)
+            return canonical;
+        if (interned.size() >= MAX_INTERNED)
+            return s;
+        canonical = interned.putIfAbsent(s, s);
+        return canonical == null ? s : canonical;
+    }
+
+    /**
+     * Parses a price into cents, if it prints back to the
+     * same text with or without thousands separators.
+     * @param price The price as displayed, like $1,234.56.
+     * @return The price in cents; -1 if it is not a plain
+     * dollar amount.
+     */
+    static long toCents(String price) {
+        int length = price.length();
+        if (length < 5 || price.charAt(0) != '$' || price.charAt(length - 3) != '.')
+            return -1;
+        long cents = 0;
+        int digits = 0;
+        for (int i = 1; i < length; ++i) {
+            char c = price.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_PRICE_DIGITS)
+                    return -1;
+                cents = cents * 10 + (c - '0');
+            }
+            else if (c != ',' && i != length - 3) {
+                return -1;
+            }
+        }
+        if (price.equals(toPrice(cents, false)) || price.equals(toPrice(cents, true)))
+            return cents;
+        return -1;
+    }
+
+    /**
+     * Prints a price in cents as displayed.
+     * @param cents The price in cents.
+     * @param grouped True if thousands are separated by commas.
+     * @return The price as displayed, like $1,234.56.
+     */
+    static String toPrice(long cents, boolean grouped) {
+        StringBuilder dollars = new StringBuilder(Long.toString(cents / 100));
+        if (grouped) {
+            for (int i = dollars.length() - 3; i > 0; i -= 3)
+                dollars.insert(i, ',');
+        }
+        long fraction = cents % 100;
+        return "$" + dollars + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    /**
+     * Writes a String as UTF-8 prefixed with its length.
+     * @param out The stream to be written to.
+     * @param s The String to be written; may be null.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a String written by writeString.
+     * @param in The stream to be read from.
+     * @return The String read; may be null.
+     * @throws IOException If the stream cannot be read.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length == 0)
+            return null;
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes a non-negative long in 7-bit groups, low group
+     * first, with the high bit set on all but the last byte.
+     * @param out The stream to be written to.
+     * @param v The value to be written.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Reads a long written by writeVarLong.
+     * @param in The stream to be read from.
+     * @return The value read.
+     * @throws IOException If the stream cannot be read or
+     * the value is too long.
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed number in cache record.");
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Writes a price, as cents whenever it prints back to the
+     * same text.
+     * @param out The stream to be written to.
+     * @param price The price to be written; may be null.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void writePrice(DataOutputStream out, String price) throws IOException {
+        if (price == null) {
+            out.writeByte(PRICE_NULL);
+            return;
+        }
+        long cents = toCents(price);
+        if (cents < 0) {
+            out.writeByte(PRICE_TEXT);
+            writeString(out, price);
+            return;
+        }
+        out.writeByte(price.indexOf(',') == -1 ? PRICE_CENTS : PRICE_GROUPED_CENTS);
+        writeVarLong(out, cents);
+    }
+
+    /**
+     * Reads a price following its tag.
+     * @param in The stream to be read from.
+     * @param tag The price tag read.
+     * @return The price as displayed; may be null.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static String readPrice(DataInputStream in, int tag) throws IOException {
+        switch (tag) {
+            case PRICE_NULL:          return null;
+            case PRICE_TEXT:          return readString(in);
+            case PRICE_CENTS:         return toPrice(readVarLong(in), false);
+            case PRICE_GROUPED_CENTS: return toPrice(readVarLong(in), true);
+            default:
+                throw new IOException("Unknown price tag " + tag + " in cache record.");
+        }
+    }
+
+    /**
+     * Reads a length or count written by writeVarLong.
+     * @param in The stream to be read from.
+     * @return The value read.
+     * @throws IOException If the stream cannot be read or the
+     * value does not fit the remaining record.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        long v = readVarLong(in);
+        if (v < 0 || v > in.available() + 1L)
+            throw new IOException("Malformed length in cache record.");
+        return (int) v;
+    }
+}
@@ -0,0 +1,168 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class for a histogram of latencies in the manner of HdrHistogram:
+ * values are counted in buckets whose width grows with the value, so
+ * that every value is known to within 2% from nanoseconds to hours,
+ * in a fixed amount of memory. Values below 128 get a bucket each;
+ * above, each power of two is split into 64 buckets. Recording is
+ * lock-free and safe from any number of threads.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class LatencyHistogram {
+
+    /** the number of bits of precision kept of each value */
+    private static final int SUB_BITS = 7;
+
+    /** the number of values with a bucket each */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** the number of buckets each further power of two is split into */
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    /** the number of buckets, enough for any non-negative long */
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+    /** the name of the histogram */
+    private final String name;
+
+    /** the number of values in each bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** the number of values recorded */
+    private final AtomicLong count = new AtomicLong();
+
+    /** the sum of the values recorded */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** the largest value recorded */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor for LatencyHistogram.
+     * @param name The name of the histogram.
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Getter for field name.
+     * @return Value of field name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a value.
+     * @param value The value, in nanoseconds; negative values
+     * count as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long largest = max.get();
+        while (value > largest && !max.compareAndSet(largest, value))
+            largest = max.get();
+    }
+
+    /**
+     * Gets the number of values recorded.
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the sum of the values recorded.
+     * @return The sum, in nanoseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Gets the largest value recorded.
+     * @return The largest value, in nanoseconds; 0 if none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     * @return The mean, in nanoseconds; 0 if none.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Gets a percentile of the values recorded: the largest value
+     * of the bucket holding it, no more than the largest value.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The value at this percentile, in nanoseconds;
+     * 0 if none.
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the values recorded.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Gets the bucket of a value.
+     * @param value The non-negative value.
+     * @return The index of its bucket.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    /**
+     * Gets the largest value of a bucket.
+     * @param bucket The index of the bucket.
+     * @return The largest value counted in it.
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+        long top = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,392 @@
+package util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Class for a Transport adapting the number of requests in flight
+ * to how the server copes. The limit grows by one for every limit's
+ * worth of requests answered promptly (additive increase), and
+ * shrinks when the smoothed latency of answers grows well past the
+ * fastest latency seen, or requests show the server is overloaded
+ * (multiplicative decrease): they time out, fail to connect, or are
+ * answered with a 429 or a 5xx status. Other failures, such as a 404,
+ * are answers like any other. An optional
+ * token bucket caps the request rate on top of that. A request counts
+ * as in flight until its body is closed, but its latency is measured
+ * up to its response headers, so that the time the caller spends
+ * reading the body, such as parsing it as it streams in, is not taken
+ * for the server slowing down.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class LimitedTransport implements Transport {
+
+    /** the default initial number of requests in flight */
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+
+    /** the default maximum number of requests in flight */
+    public static final int DEFAULT_MAX_LIMIT = 16;
+
+    /** the factor the limit shrinks by when a request fails */
+    private static final double ERROR_BACKOFF = 0.5;
+
+    /** the factor the limit shrinks by when a request is slow */
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    /** how many times the fastest latency the smoothed latency may be before it is slow */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** the weight of each latency in the smoothed latency */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /** the number of requests after which the fastest latency is measured afresh */
+    private static final int LATENCY_WINDOW = 256;
+
+    /** the transport requests are passed on to */
+    private final Transport transport;
+
+    /** the maximum number of requests in flight */
+    private final int maxLimit;
+
+    /** the maximum number of requests per second; 0 for no limit */
+    private final double rate;
+
+    /** the current number of requests allowed in flight */
+    private double limit;
+
+    /** the number of requests in flight */
+    private int inFlight;
+
+    /** the threads waiting to send a request, in arrival order */
+    private final Queue<Thread> waiting = new ArrayDeque<Thread>();
+
+    /** the fastest latency of the previous window in nanoseconds; 0 if unknown */
+    private long minLatency;
+
+    /** the fastest latency of the current window in nanoseconds */
+    private long windowMinLatency = Long.MAX_VALUE;
+
+    /** the exponentially weighted moving average of latencies in nanoseconds */
+    private double smoothedLatency;
+
+    /** the number of requests answered in the current window */
+    private int windowSize;
+
+    /** when the limit last shrank, in nanoseconds */
+    private long lastDecrease = Long.MIN_VALUE;
+
+    /** the tokens left in the bucket; negative once reserved ahead */
+    private double tokens;
+
+    /** when the bucket was last refilled, in nanoseconds */
+    private long lastRefill = System.nanoTime();
+
+    /** the number of requests sent */
+    private long requests;
+
+    /** the total time requests waited before being sent, in nanoseconds */
+    private long queueTime;
+
+    /** the longest time a request waited before being sent, in nanoseconds */
+    private long maxQueueTime;
+
+    /**
+     * Constructor for LimitedTransport, configured from the
+     * system properties scraper.http.initialConcurrency,
+     * scraper.http.maxConcurrency and scraper.http.rate.
+     * @param transport The transport requests are passed on to.
+     */
+    public LimitedTransport(Transport transport) {
+        this(transport,
+             Integer.getInteger("scraper.http.initialConcurrency", DEFAULT_INITIAL_LIMIT),
+             Integer.getInteger("scraper.http.maxConcurrency", DEFAULT_MAX_LIMIT),
+             rateProperty());
+    }
+
+    /**
+     * Constructor for LimitedTransport.
+     * @param transport The transport requests are passed on to.
+     * @param initialLimit The initial number of requests in flight.
+     * @param maxLimit The maximum number of requests in flight.
+     * @param rate The maximum number of requests per second;
+     * 0 for no limit.
+     */
+    public LimitedTransport(Transport transport, int initialLimit, int maxLimit, double rate) {
+        this.transport = transport;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.rate = Math.max(0, rate);
+        this.tokens = Math.max(1, this.rate);
+    }
+
+    /**
+     * Sends a GET request once the limits allow it.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers; may be empty.
+     * @return The response, counted in flight until its body is closed.
+     * @throws IOException If the request fails, or the thread is
+     * interrupted while waiting.
+     */
+    public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+        long queued = System.nanoTime();
+        throttle();
+        acquire();
+        final long sent = System.nanoTime();
+        synchronized (this) {
+            ++requests;
+            queueTime += sent - queued;
+            maxQueueTime = Math.max(maxQueueTime, sent - queued);
+        }
+        HttpResponse response;
+        try {
+            response = transport.get(url, headers);
+        }
+        catch (IOException e) {
+            adapt(sent, isOverload(e));
+            release(sent, false);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            adapt(sent, true);
+            release(sent, false);
+            throw e;
+        }
+        adapt(sent, false);
+        return new HttpResponse(response, new FilterInputStream(response.getBody()) {
+                    /** true once the body failed to be read because of overload */
+                    private boolean failed;
+
+                    /** true once the request is no longer in flight */
+                    private boolean released;
+
+                    public int read() throws IOException {
+                        try {
+                            return super.read();
+                        }
+                        catch (IOException e) {
+                            failed |= isOverload(e);
+                            throw e;
+                        }
+                    }
+
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            return super.read(b, off, len);
+                        }
+                        catch (IOException e) {
+                            failed |= isOverload(e);
+                            throw e;
+                        }
+                    }
+
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            if (!released) release(sent, failed);
+                            released = true;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Getter for field transport.
+     * @return Value of field transport.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gets the current number of requests allowed in flight.
+     * @return The current limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of requests in flight.
+     * @return The number of requests in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the average time requests waited before being sent.
+     * @return The average queueing delay in milliseconds.
+     */
+    public synchronized double getAverageQueueDelay() {
+        return requests == 0 ? 0 : queueTime / 1e6 / requests;
+    }
+
+    /**
+     * Gets the longest time a request waited before being sent.
+     * @return The longest queueing delay in milliseconds.
+     */
+    public synchronized double getMaxQueueDelay() {
+        return maxQueueTime / 1e6;
+    }
+
+    /**
+     * Describes the current limit and queueing delay.
+     * @return The description.
+     */
+    public synchronized String toString() {
+        return String.format("limit %d (%d in flight), queueing delay avg %.1f ms, max %.1f ms",
+                             (int) limit, inFlight, getAverageQueueDelay(), getMaxQueueDelay());
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Waits until another request may be in flight. Requests
+     * are let through in the order they arrived, so that none
+     * waits behind requests that came after it.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private synchronized void acquire() throws InterruptedIOException {
+        Thread current = Thread.currentThread();
+        waiting.add(current);
+        try {
+            while (waiting.peek() != current || inFlight >= (int) limit)
+                wait();
+        }
+        catch (InterruptedException e) {
+            waiting.remove(current);
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request.");
+        }
+        waiting.poll();
+        ++inFlight;
+        // the next request in line may fit as well
+        notifyAll();
+    }
+
+    /**
+     * Waits until the token bucket allows another request.
+     * Tokens are reserved in order, so waiting requests are
+     * spaced evenly.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private void throttle() throws InterruptedIOException {
+        if (rate <= 0)
+            return;
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= 1;
+            delay = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+        if (delay <= 0)
+            return;
+        try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request.");
+        }
+    }
+
+    /**
+     * Takes a request out of flight, shrinking the limit if its
+     * body failed to be read because of overload.
+     * @param sent When the request was sent, in nanoseconds.
+     * @param failed True if the body failed to be read because
+     * of overload.
+     */
+    private synchronized void release(long sent, boolean failed) {
+        --inFlight;
+        notifyAll();
+        if (failed)
+            decrease(sent, ERROR_BACKOFF);
+    }
+
+    /**
+     * Adapts the limit to how a request went, once its response
+     * headers arrived or it failed. A request failed because of
+     * overload shrinks the limit; any other one is an answer whose
+     * latency is smoothed, so that a single slow answer does not
+     * shrink the limit.
+     * @param sent When the request was sent, in nanoseconds.
+     * @param overload True if the request failed because of overload.
+     */
+    private synchronized void adapt(long sent, boolean overload) {
+        if (overload) {
+            decrease(sent, ERROR_BACKOFF);
+            return;
+        }
+        long latency = System.nanoTime() - sent;
+        windowMinLatency = Math.min(windowMinLatency, latency);
+        if (++windowSize >= LATENCY_WINDOW || minLatency == 0) {
+            minLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+            windowSize = 0;
+        }
+        smoothedLatency = smoothedLatency == 0 ? latency
+                : smoothedLatency + LATENCY_SMOOTHING * (latency - smoothedLatency);
+        // the baseline is the fastest latency of this window and the previous one
+        if (smoothedLatency > Math.min(minLatency, windowMinLatency) * LATENCY_TOLERANCE)
+            decrease(sent, LATENCY_BACKOFF);
+        else
+            limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    /**
+     * Shrinks the limit, at most once for the requests that
+     * were already in flight when it last shrank.
+     * @param sent When the request that triggered it was sent.
+     * @param factor The factor the limit shrinks by.
+     */
+    private void decrease(long sent, double factor) {
+        if (sent <= lastDecrease)
+            return;
+        limit = Math.max(1, limit * factor);
+        lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * Determines whether a failed request shows that the server
+     * is overloaded: it timed out, failed to connect, or was
+     * answered with a 429 (Too Many Requests) or a 5xx status.
+     * @param e The failure of the request.
+     * @return True if the server is overloaded; false otherwise.
+     */
+    private static boolean isOverload(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatus();
+            return status >= 500 || status == 429;
+        }
+        return e instanceof SocketTimeoutException || e instanceof ConnectException;
+    }
+
+    /**
+     * Reads the system property scraper.http.rate.
+     * @return The maximum number of requests per second;
+     * 0 for no limit.
+     */
+    private static double rateProperty() {
+        String rate = System.getProperty("scraper.http.rate", "0");
+        try {
+            return Double.parseDouble(rate);
+        }
+        catch (NumberFormatException e) {
+            System.out.print("[WARN] Invalid value of scraper.http.rate. Use no limit instead.\n");
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class for the latency histograms and counters of the scraper,
+ * enabled by the system property scraper.metrics. Each stage of
+ * a query records how long it took: the HTTP request up to its
+ * response headers, the parse of a page, the extraction of its
+ * Items and total, the cache init, reads and writes, and searches
+ * of the cached Items. Counters add the bytes fetched and Items
+ * parsed to the cache statistics.
+ * Everything can be exported as Prometheus text or as JSON.
+ * When disabled, recording costs a test of a constant.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public final class Metrics {
+
+    /** true if metrics are recorded */
+    public static final boolean ENABLED = Boolean.getBoolean("scraper.metrics");
+
+    /** the time from sending a request to its response headers */
+    public static final LatencyHistogram HTTP = new LatencyHistogram("http");
+
+    /** the time to parse a page, reading its body */
+    public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+
+    /** the time to extract the Items of a parsed page */
+    public static final LatencyHistogram ITEMS = new LatencyHistogram("items");
+
+    /** the time to extract the total number of Items of a parsed page */
+    public static final LatencyHistogram TOTAL = new LatencyHistogram("total");
+
+    /** the time to initialize the cache */
+    public static final LatencyHistogram CACHE_INIT = new LatencyHistogram("cache_init");
+
+    /** the time to read the Items of a page from the cache */
+    public static final LatencyHistogram CACHE_READ = new LatencyHistogram("cache_read");
+
+    /** the time to write pages to the cache */
+    public static final LatencyHistogram CACHE_WRITE = new LatencyHistogram("cache_write");
+
+    /** the time to search the cached Items, bringing their index up to date */
+    public static final LatencyHistogram SEARCH = new LatencyHistogram("search");
+
+    /** every stage, in export order */
+    private static final LatencyHistogram[] STAGES = {
+        HTTP, PARSE, ITEMS, TOTAL, CACHE_INIT, CACHE_READ, CACHE_WRITE, SEARCH
+    };
+
+    /** the percentiles exported */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /** the percentiles exported, as Prometheus quantiles */
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+    /** the percentiles exported, as JSON names */
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    /** the number of body bytes received, before decompression */
+    private static final AtomicLong bytesFetched = new AtomicLong();
+
+    /** the number of Items parsed */
+    private static final AtomicLong itemsParsed = new AtomicLong();
+
+    /**
+     * Constructor for Metrics, not to be instantiated.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Starts timing a stage.
+     * @return The start time to be passed to stop; 0 if disabled.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Stops timing a stage and records its latency.
+     * @param stage The histogram of the stage.
+     * @param start The start time returned by start.
+     */
+    public static void stop(LatencyHistogram stage, long start) {
+        if (ENABLED)
+            stage.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Counts body bytes received.
+     * @param n The number of bytes, before decompression.
+     */
+    public static void addBytesFetched(long n) {
+        if (ENABLED)
+            bytesFetched.addAndGet(n);
+    }
+
+    /**
+     * Counts Items parsed.
+     * @param n The number of Items.
+     */
+    public static void addItemsParsed(long n) {
+        if (ENABLED)
+            itemsParsed.addAndGet(n);
+    }
+
+    /**
+     * Clears every histogram and counter.
+     */
+    public static void reset() {
+        for (LatencyHistogram stage : STAGES)
+            stage.reset();
+        bytesFetched.set(0);
+        itemsParsed.set(0);
+    }
+
+    /**
+     * Exports the metrics in the Prometheus text format: a
+     * summary of latencies in seconds labelled by stage, and
+     * a counter for each count.
+     * @return The metrics as Prometheus text.
+     */
+    public static String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP scraper_stage_seconds Latency of each stage of a query.\n")
+            .append("# TYPE scraper_stage_seconds summary\n");
+        for (LatencyHistogram stage : STAGES) {
+            String label = "stage=\"" + stage.getName() + "\"";
+            for (int i = 0; i < PERCENTILES.length; ++i) {
+                text.append(String.format(Locale.ROOT,
+                        "scraper_stage_seconds{%s,quantile=\"%s\"} %.9f\n",
+                        label, QUANTILES[i], stage.getPercentile(PERCENTILES[i]) / 1e9));
+            }
+            text.append(String.format(Locale.ROOT, "scraper_stage_seconds_sum{%s} %.9f\n",
+                                      label, stage.getSum() / 1e9))
+                .append("scraper_stage_seconds_count{").append(label).append("} ")
+                .append(stage.getCount()).append('\n');
+        }
+        counter(text, "scraper_bytes_fetched_total", "Body bytes received.",
+                bytesFetched.get());
+        counter(text, "scraper_items_parsed_total", "Items parsed.", itemsParsed.get());
+        counter(text, "scraper_cache_hits_total", "Cache lookups answered.",
+                Cache.getHitCount());
+        counter(text, "scraper_cache_misses_total", "Cache lookups missed.",
+                Cache.getMissCount());
+        counter(text, "scraper_cache_evictions_total", "Cached pages evicted.",
+                Cache.getEvictionCount());
+        counter(text, "scraper_cache_revalidations_total", "Expired pages found unchanged.",
+                Cache.getRevalidationCount());
+        return text.toString();
+    }
+
+    /**
+     * Exports the metrics as JSON: the count, mean, percentiles
+     * and maximum of each stage in milliseconds, and the counts.
+     * @return The metrics as JSON.
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\"stages\":{");
+        for (int i = 0; i < STAGES.length; ++i) {
+            LatencyHistogram stage = STAGES[i];
+            if (i > 0) json.append(',');
+            json.append('"').append(stage.getName()).append("\":{\"count\":")
+                .append(stage.getCount())
+                .append(String.format(Locale.ROOT, ",\"meanMs\":%.3f", stage.getMean() / 1e6));
+            for (int j = 0; j < PERCENTILES.length; ++j) {
+                json.append(String.format(Locale.ROOT, ",\"%sMs\":%.3f",
+                        PERCENTILE_NAMES[j], stage.getPercentile(PERCENTILES[j]) / 1e6));
+            }
+            json.append(String.format(Locale.ROOT, ",\"maxMs\":%.3f}", stage.getMax() / 1e6));
+        }
+        json.append("},\"bytesFetched\":").append(bytesFetched.get())
+            .append(",\"itemsParsed\":").append(itemsParsed.get())
+            .append(",\"hits\":").append(Cache.getHitCount())
+            .append(",\"misses\":").append(Cache.getMissCount())
+            .append(",\"evictions\":").append(Cache.getEvictionCount())
+            .append(",\"revalidations\":").append(Cache.getRevalidationCount())
+            .append('}');
+        return json.toString();
+    }
+
+    /**
+     * Writes the metrics to the file named by the system property
+     * scraper.metrics.file, as JSON if its name ends with '.json'
+     * and as Prometheus text otherwise, or prints them to console
+     * as Prometheus text if the property is not set.
+     */
+    public static void dump() {
+        String file = System.getProperty("scraper.metrics.file");
+        if (file == null) {
+            System.out.print("\n" + toPrometheus());
+            return;
+        }
+        String text = file.endsWith(".json") ? toJson() + "\n" : toPrometheus();
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(text.getBytes("UTF-8"));
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.print("[WARN] Unable to write metrics to '" + file + "'.\n");
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Appends a counter in the Prometheus text format.
+     * @param text The text to be appended to.
+     * @param name The name of the counter.
+     * @param help The description of the counter.
+     * @param value The value of the counter.
+     */
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" counter\n")
+            .append(name).append(' ').append(value).append('\n');
+    }
+}
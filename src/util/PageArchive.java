@@ -0,0 +1,401 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import datastructure.CachePage;
+
+/**
+ * Class for the archive of raw result pages, kept alongside the
+ * cache so that Items can be extracted again once the parsers
+ * change, without fetching the pages again. Each body fetched is
+ * stored gzip compressed in a file of its own, keyed by keyword,
+ * page number and fetch time:
+ *     &lt;dir&gt;/&lt;keyword&gt;/&lt;pageNum&gt;-&lt;fetchTime&gt;.arc
+ * Files are written aside and renamed into place, so that other
+ * processes never see a partial record. Only the latest record of
+ * each page is kept: older ones are deleted once a page is added.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class PageArchive {
+
+    /** the extension of archive records */
+    private static final String EXTENSION = ".arc";
+
+    /** the magic number of archive records, "SSAR" */
+    private static final int MAGIC = 0x53534152;
+
+    /** the version of the archive record format */
+    private static final int VERSION = 1;
+
+    /** the longest folder name of a keyword, in chars */
+    private static final int MAX_NAME_LENGTH = 128;
+
+    /** the charset of keywords in folder names */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** the folder of the archive */
+    private final File dir;
+
+    /**
+     * Class for a page read from the archive.
+     */
+    public static class Record {
+
+        /** the keyword of the page */
+        private final String keyword;
+
+        /** the page number of the page */
+        private final int pageNum;
+
+        /** the time the page was fetched, in milliseconds */
+        private final long fetchTime;
+
+        /** the URL the page was retrieved from */
+        private final String url;
+
+        /** the charset of the body; null if unknown */
+        private final String charset;
+
+        /** the body of the page */
+        private final byte[] body;
+
+        /**
+         * Constructor for Record.
+         * @param keyword The keyword of the page.
+         * @param pageNum The page number of the page.
+         * @param fetchTime The time the page was fetched, in milliseconds.
+         * @param url The URL the page was retrieved from.
+         * @param charset The charset of the body; null if unknown.
+         * @param body The body of the page.
+         */
+        Record(String keyword, int pageNum, long fetchTime, String url,
+               String charset, byte[] body) {
+            this.keyword = keyword;
+            this.pageNum = pageNum;
+            this.fetchTime = fetchTime;
+            this.url = url;
+            this.charset = charset;
+            this.body = body;
+        }
+
+        /**
+         * Getter for field keyword.
+         * @return Value of field keyword.
+         */
+        public String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * Getter for field pageNum.
+         * @return Value of field pageNum.
+         */
+        public int getPageNum() {
+            return pageNum;
+        }
+
+        /**
+         * Getter for field fetchTime.
+         * @return Value of field fetchTime.
+         */
+        public long getFetchTime() {
+            return fetchTime;
+        }
+
+        /**
+         * Getter for field url.
+         * @return Value of field url.
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Getter for field charset.
+         * @return Value of field charset.
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        /**
+         * Getter for field body.
+         * @return Value of field body.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Constructor for PageArchive.
+     * @param dir The folder of the archive.
+     */
+    public PageArchive(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens the archive pages are added to, enabled by the
+     * system property scraper.archive.
+     * @return The archive; null if disabled.
+     */
+    public static PageArchive open() {
+        return Boolean.getBoolean("scraper.archive") ? configured() : null;
+    }
+
+    /**
+     * Gets the archive in the folder named by the system property
+     * scraper.archive.dir, 'archive' in the cache folder by default,
+     * whether or not pages are added to it.
+     * @return The archive.
+     */
+    public static PageArchive configured() {
+        String dir = System.getProperty("scraper.archive.dir");
+        if (dir != null)
+            return new PageArchive(new File(dir));
+        return new PageArchive(new File(System.getProperty("scraper.cache.dir", "."), "archive"));
+    }
+
+    /**
+     * Getter for field dir.
+     * @return Value of field dir.
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Archives the body of a result page, deleting the records
+     * of the page fetched before.
+     * @param page The page, giving its keyword, page number
+     * and fetch time.
+     * @param url The URL the page was retrieved from.
+     * @param charset The charset of the body; null if unknown.
+     * @param body The body of the page.
+     * @throws IOException If the record cannot be written.
+     */
+    public void add(CachePage page, String url, String charset, byte[] body)
+            throws IOException {
+        File folder = new File(dir, toName(page.getKeyword()));
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+            throw new IOException("Unable to create folder '" + folder + "'.");
+        String name = page.getPageNum() + "-" + page.getFetchTime() + EXTENSION;
+        File tmp = File.createTempFile(name, ".tmp", folder);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(page.getKeyword());
+                out.writeInt(page.getPageNum());
+                out.writeLong(page.getFetchTime());
+                out.writeUTF(url == null ? "" : url);
+                out.writeUTF(charset == null ? "" : charset);
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                gzip.write(body);
+                gzip.finish();
+            }
+            finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), new File(folder, name).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            tmp.delete();
+        }
+        prune(folder, page.getPageNum());
+    }
+
+    /**
+     * Lists the latest record of every page archived.
+     * @return The record files, keyword by keyword.
+     */
+    public List<File> latest() {
+        List<File> records = new ArrayList<File>();
+        File[] folders = dir.listFiles();
+        if (folders == null)
+            return records;
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files == null)
+                continue;
+            Map<Integer, File> pages = new HashMap<Integer, File>();
+            Map<Integer, Long> times = new HashMap<Integer, Long>();
+            for (File f : files) {
+                String name = f.getName();
+                int dash = name.indexOf('-');
+                if (dash == -1 || !name.endsWith(EXTENSION))
+                    continue;
+                try {
+                    int pageNum = Integer.parseInt(name.substring(0, dash));
+                    long fetchTime = Long.parseLong(
+                            name.substring(dash + 1, name.length() - EXTENSION.length()));
+                    Long time = times.get(pageNum);
+                    if (time == null || time < fetchTime) {
+                        pages.put(pageNum, f);
+                        times.put(pageNum, fetchTime);
+                    }
+                }
+                catch (NumberFormatException e) {
+                    // not a record
+                }
+            }
+            records.addAll(pages.values());
+        }
+        return records;
+    }
+
+    /**
+     * Reads an archived record.
+     * @param f The record file.
+     * @return The record.
+     * @throws IOException If the file cannot be read or
+     * holds no record.
+     */
+    public static Record read(File f) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not an archive record: '" + f + "'.");
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unknown archive record version " + version + ".");
+            String keyword = in.readUTF();
+            int pageNum = in.readInt();
+            long fetchTime = in.readLong();
+            String url = in.readUTF();
+            String charset = in.readUTF();
+            return new Record(keyword, pageNum, fetchTime, url,
+                              charset.isEmpty() ? null : charset,
+                              readFully(new GZIPInputStream(in)));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Deletes every record of a page but the latest. Another
+     * process adding the same page meanwhile at most leaves
+     * an older record behind, deleted on the next add.
+     * @param folder The folder of the keyword of the page.
+     * @param pageNum The page number of the page.
+     */
+    private static void prune(File folder, int pageNum) {
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        String prefix = pageNum + "-";
+        File latest = null;
+        long latestTime = Long.MIN_VALUE;
+        List<File> records = new ArrayList<File>();
+        for (File f : files) {
+            long fetchTime = fetchTime(f, prefix);
+            if (fetchTime == -1)
+                continue;
+            records.add(f);
+            if (latest == null || fetchTime > latestTime) {
+                latest = f;
+                latestTime = fetchTime;
+            }
+        }
+        for (File f : records) {
+            if (f != latest && !f.delete() && f.exists())
+                msg("[WARN] Unable to delete archive record '" + f + "'.");
+        }
+    }
+
+    /**
+     * Gets the fetch time of a record file of a page.
+     * @param f The file.
+     * @param prefix The page number of the page followed by '-'.
+     * @return The fetch time in the name of the file; -1 if the
+     * file is not a record of the page.
+     */
+    private static long fetchTime(File f, String prefix) {
+        String name = f.getName();
+        if (!name.startsWith(prefix) || !name.endsWith(EXTENSION))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(),
+                                                 name.length() - EXTENSION.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a stream to its end.
+     * @param in The stream to be read.
+     * @return The bytes read.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Turns a keyword into a folder name valid on every file
+     * system: letters, digits, '-' and '_' are kept and every
+     * other byte is written as %XX. Overly long names are cut
+     * and suffixed with the keyword's hash.
+     * @param keyword The keyword.
+     * @return The folder name of the keyword.
+     */
+    private static String toName(String keyword) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : keyword.getBytes(UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_')
+                name.append((char) c);
+            else
+                name.append(String.format("%%%02X", c));
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            name.setLength(MAX_NAME_LENGTH - 9);
+            name.append('~').append(String.format("%08x", keyword.hashCode()));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}
@@ -0,0 +1,38 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import datastructure.Item;
+
+/**
+ * Interface for the parsers extracting Items from a result page.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public interface PageParser {
+    
+    /**
+     * Reads in a result page to be parsed.
+     * @param in The body of the result page.
+     * @param charset The charset of the body; null if unknown.
+     * @param baseUri The URL the page was retrieved from.
+     * @throws IOException If the body cannot be read.
+     */
+    void parse(InputStream in, String charset, String baseUri) throws IOException;
+    
+    /**
+     * Gets a List of Items for this page.
+     * @return A List of Items; an empty List if no matches found.
+     */
+    List<Item> getAllItems();
+    
+    /**
+     * Gets the total number of Items found.
+     * @return The total number of Items found;
+     * an empty String if no matches found.
+     */
+    String getItemsTotalNum();
+    
+}
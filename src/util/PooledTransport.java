@@ -0,0 +1,249 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Class for the default Transport. Connections are kept alive
+ * and reused from the JDK connection pool as long as every body
+ * is read and closed, responses are requested compressed, and the
+ * number of connections open to each host is bounded. The JDK pool
+ * keeps idle connections for the whole JVM and is sized once, before
+ * the first connection, by sizePool.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class PooledTransport implements Transport {
+
+    /** the default connect timeout in milliseconds */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /** the default read timeout in milliseconds */
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+    /** the default maximum number of connections open to a host */
+    public static final int DEFAULT_MAX_PER_HOST = 8;
+
+    /** the connect timeout in milliseconds */
+    private final int connectTimeout;
+
+    /** the read timeout in milliseconds */
+    private final int readTimeout;
+
+    /** the maximum number of connections open to a host */
+    private final int maxPerHost;
+
+    /** permits bounding the connections open to each host */
+    private final ConcurrentHashMap<String, Semaphore> hosts =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Constructor for PooledTransport, configured from the
+     * system properties scraper.http.connectTimeout,
+     * scraper.http.readTimeout and scraper.http.maxPerHost.
+     */
+    public PooledTransport() {
+        this(Integer.getInteger("scraper.http.connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+             Integer.getInteger("scraper.http.readTimeout", DEFAULT_READ_TIMEOUT),
+             Integer.getInteger("scraper.http.maxPerHost", DEFAULT_MAX_PER_HOST));
+    }
+
+    /**
+     * Constructor for PooledTransport.
+     * @param connectTimeout The connect timeout in milliseconds.
+     * @param readTimeout The read timeout in milliseconds.
+     * @param maxPerHost The maximum number of connections open
+     * to a host.
+     */
+    public PooledTransport(int connectTimeout, int readTimeout, int maxPerHost) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Sizes the JDK keep-alive pool to keep as many idle connections
+     * per host as scraper.http.maxPerHost allows, unless the system
+     * property http.maxConnections is set already. The pool is shared
+     * by the whole JVM and reads its size only once, when the first
+     * connection is kept alive, so this has to be called at startup,
+     * before any request is sent.
+     */
+    public static void sizePool() {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(
+                    Integer.getInteger("scraper.http.maxPerHost", DEFAULT_MAX_PER_HOST)));
+        }
+    }
+
+    /**
+     * Sends a GET request over a pooled connection.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers; may be empty.
+     * @return The response, with its body decompressed.
+     * @throws IOException If the request fails or the server
+     * answers with an error status.
+     */
+    public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+        URL u = new URL(url);
+        final Semaphore permits = permits(u.getHost() + ":" + u.getPort());
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection.");
+        }
+        HttpURLConnection conn = null;
+        InputStream raw = null;
+        try {
+            conn = (HttpURLConnection) u.openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            for (Map.Entry<String, String> header : headers.entrySet())
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            int status = conn.getResponseCode();
+            if (status >= 400) {
+                drain(conn.getErrorStream());
+                throw new HttpStatusException(status, url);
+            }
+            raw = status == HttpURLConnection.HTTP_NOT_MODIFIED ?
+                    new ByteArrayInputStream(new byte[0]) : conn.getInputStream();
+            if (Metrics.ENABLED)
+                raw = counted(raw);
+            InputStream body = decode(raw, conn.getContentEncoding());
+            final HttpURLConnection connection = conn;
+            return new HttpResponse(status, conn.getURL().toString(),
+                    conn.getHeaderFields(), new FilterInputStream(body) {
+                        /** true once the connection permit is released */
+                        private boolean released;
+
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            }
+                            finally {
+                                if (!released) permits.release();
+                                released = true;
+                            }
+                        }
+                    }, new Closeable() {
+                        public void close() {
+                            connection.disconnect();
+                        }
+                    });
+        }
+        catch (IOException e) {
+            permits.release();
+            abandon(conn, raw);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            permits.release();
+            abandon(conn, raw);
+            throw e;
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Gets the connection permits for a host.
+     * @param host The host and port.
+     * @return The permits for this host.
+     */
+    private Semaphore permits(String host) {
+        Semaphore permits = hosts.get(host);
+        if (permits == null) {
+            hosts.putIfAbsent(host, new Semaphore(maxPerHost));
+            permits = hosts.get(host);
+        }
+        return permits;
+    }
+
+    /**
+     * Wraps a body to count the bytes received.
+     * @param raw The body as received.
+     * @return The body, counting the bytes read from it.
+     */
+    private static InputStream counted(InputStream raw) {
+        return new FilterInputStream(raw) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) Metrics.addBytesFetched(1);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) Metrics.addBytesFetched(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a body in a decoder for its content encoding.
+     * @param raw The body as received.
+     * @param encoding The content encoding; null if none.
+     * @return The decoded body.
+     * @throws IOException If the body cannot be decoded.
+     */
+    private static InputStream decode(InputStream raw, String encoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(encoding))
+            return new GZIPInputStream(raw);
+        if ("deflate".equalsIgnoreCase(encoding))
+            return new InflaterInputStream(raw);
+        return raw;
+    }
+
+    /**
+     * Closes the body of a response that failed once opened, such
+     * as one that cannot be decoded, and drops its connection,
+     * which could not be reused.
+     * @param conn The connection; may be null.
+     * @param raw The body as received; null if not opened yet.
+     */
+    private static void abandon(HttpURLConnection conn, InputStream raw) {
+        if (raw == null)
+            return;
+        try {
+            raw.close();
+        }
+        catch (IOException e) {
+            // connection is dropped anyway
+        }
+        conn.disconnect();
+    }
+
+    /**
+     * Reads and closes a stream so that its connection can
+     * go back to the pool.
+     * @param in The stream to be drained; may be null.
+     */
+    private static void drain(InputStream in) {
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) { }
+            in.close();
+        }
+        catch (IOException e) {
+            // connection will not be reused
+        }
+    }
+
+}
@@ -0,0 +1,776 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import datastructure.PricePoint;
+
+/**
+ * Class for the price history of the products in the cache, an
+ * append-only time series of the prices each product was seen at.
+ * New prices are appended to a journal, one checksummed row each,
+ * and once the journal has grown large enough its rows are sealed
+ * into a columnar block at the end of the history file: rows are
+ * grouped by product and ordered by time, each product is named
+ * once, times and prices are stored as variable-length deltas from
+ * the previous row of the product, and vendors by their position
+ * in a dictionary. Each block starts with its time range and a
+ * Bloom filter of its products, so that a query reads only the
+ * blocks that may hold the product asked for and skips the rest.
+ * The journal holds the sequence number of the block it is sealed
+ * into, so that a seal interrupted before the journal is emptied
+ * is not sealed twice. Callers serialize writes across processes;
+ * both files are only ever appended to, or cut back to their last
+ * complete row or block.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+class PriceHistory {
+
+    /** the magic number at the beginning of a history file */
+    static final int MAGIC = 0x53525048;
+
+    /** the magic number at the beginning of a journal */
+    static final int JOURNAL_MAGIC = 0x5352504a;
+
+    /** the format version of the history and journal files */
+    static final int VERSION = 1;
+
+    /** the size of the history file header (magic + version) */
+    static final int HEADER_SIZE = 8;
+
+    /** the size of the journal header (magic + version + sequence) */
+    static final int JOURNAL_HEADER_SIZE = 16;
+
+    /** the size of a row or block header (length + checksum) */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** the size of the leading fields of a block (sequence, time range, rows, filter size) */
+    static final int BLOCK_FIXED_SIZE = 32;
+
+    /** the size of the journal past which it is sealed into a block */
+    static final long SEAL_BYTES = 256 * 1024;
+
+    /** the number of Bloom filter bits per product of a block */
+    private static final int BLOOM_BITS_PER_PRODUCT = 10;
+
+    /** the number of Bloom filter bits set per product */
+    private static final int BLOOM_HASHES = 4;
+
+    /** the charset of product identities and vendors */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** the history file */
+    private final File file;
+
+    /** the journal file */
+    private final File journalFile;
+
+    /** random access handle on the history file; null until opened */
+    private RandomAccessFile raf;
+
+    /** random access handle on the journal; null until opened */
+    private RandomAccessFile journal;
+
+    /** the end offset of the last complete block */
+    private long length;
+
+    /** the sequence number of the last block; 0 if none */
+    private long sealed;
+
+    /** the sequence number of the journal, as of journalLength */
+    private long sequence;
+
+    /** the end offset of the last complete journal row */
+    private long journalLength;
+
+    /**
+     * Callback for prices found by a query.
+     */
+    interface Visitor {
+        /**
+         * Visits a single price.
+         * @param point The price found.
+         * @throws IOException If the history cannot be read.
+         */
+        void visit(PricePoint point) throws IOException;
+    }
+
+    /**
+     * Constructor for PriceHistory.
+     * @param dir The folder of the history files.
+     * @param name The name of the history files, without extension.
+     */
+    PriceHistory(File dir, String name) {
+        this.file = new File(dir, name + ".dat");
+        this.journalFile = new File(dir, name + ".jnl");
+    }
+
+    /**
+     * Appends prices to the history, sealing the journal into a
+     * block once it is large enough. Writes have to be serialized
+     * across processes by the caller.
+     * @param points The prices to be appended.
+     * @throws IOException If the history cannot be written.
+     */
+    void record(List<PricePoint> points) throws IOException {
+        open();
+        catchUp();
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        for (PricePoint point : points) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeUTF(point.getProductId());
+            out.writeLong(point.getTime());
+            out.writeLong(point.getCents());
+            out.writeBoolean(point.getVendor() != null);
+            out.writeUTF(point.getVendor() == null ? "" : point.getVendor());
+            out.close();
+            rows.write(record(bout.toByteArray()));
+        }
+        journal.seek(journalLength);
+        journal.write(rows.toByteArray());
+        journalLength += rows.size();
+        if (journalLength >= SEAL_BYTES)
+            seal();
+    }
+
+    /**
+     * Finds the prices of a product seen within a time range,
+     * reading the history from disk as it goes: blocks that cannot
+     * hold the product are skipped, and only the blocks that may
+     * and the journal are decoded. Writes have to be locked out
+     * by the caller.
+     * @param productId The product identity.
+     * @param from The start of the time range, in milliseconds.
+     * @param to The end of the time range, in milliseconds.
+     * @param visitor The visitor to be called for each price found,
+     * in no particular order.
+     * @throws IOException If the history cannot be read.
+     */
+    void query(String productId, long from, long to, Visitor visitor) throws IOException {
+        if (!file.exists() || !journalFile.exists())
+            return;
+        long lastSequence = 0;
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (fileLength < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a price history: " + file);
+            long offset = HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE + BLOCK_FIXED_SIZE <= fileLength) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                long end = offset + RECORD_HEADER_SIZE + size;
+                if (size < BLOCK_FIXED_SIZE || end > fileLength)
+                    break;
+                byte[] fixed = new byte[BLOCK_FIXED_SIZE];
+                in.readFully(fixed);
+                ByteBuffer header = ByteBuffer.wrap(fixed);
+                long blockSequence = header.getLong();
+                long minTime = header.getLong();
+                long maxTime = header.getLong();
+                header.getInt();
+                int bloomSize = header.getInt();
+                if (bloomSize < 0 || bloomSize > size - BLOCK_FIXED_SIZE)
+                    break;
+                byte[] bloom = new byte[bloomSize];
+                in.readFully(bloom);
+                int bodySize = size - BLOCK_FIXED_SIZE - bloomSize;
+                // the last block may have been cut short by a crash
+                boolean wanted = maxTime >= from && minTime <= to && mayContain(bloom, productId);
+                if (wanted || end == fileLength) {
+                    byte[] body = new byte[bodySize];
+                    in.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(fixed);
+                    crc.update(bloom);
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                    if (wanted)
+                        decode(body, minTime, productId, from, to, visitor);
+                }
+                else {
+                    skipFully(in, bodySize);
+                }
+                lastSequence = blockSequence;
+                offset = end;
+            }
+        }
+        finally {
+            in.close();
+        }
+        scanJournal(lastSequence, productId, from, to, visitor);
+    }
+
+    /**
+     * Closes the history files.
+     * @throws IOException If the files cannot be closed.
+     */
+    void close() throws IOException {
+        try {
+            if (raf != null) raf.close();
+        }
+        finally {
+            if (journal != null) journal.close();
+            raf = null;
+            journal = null;
+            length = 0;
+            journalLength = 0;
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Opens the history files, creating them if needed.
+     * @throws IOException If the files cannot be opened or are
+     * not price history files.
+     */
+    private void open() throws IOException {
+        if (raf != null)
+            return;
+        raf = new RandomAccessFile(file, "rw");
+        journal = new RandomAccessFile(journalFile, "rw");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+            }
+            else if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("Not a price history: " + file);
+            }
+            if (journal.length() < JOURNAL_HEADER_SIZE) {
+                resetJournal(1);
+            }
+            else if (journal.readInt() != JOURNAL_MAGIC || journal.readInt() != VERSION) {
+                throw new IOException("Not a price history journal: " + journalFile);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        length = HEADER_SIZE;
+        sealed = 0;
+        sequence = -1;
+        journalLength = JOURNAL_HEADER_SIZE;
+    }
+
+    /**
+     * Catches up with the blocks and rows other processes wrote
+     * since, cutting off whatever an interrupted write left at the
+     * end of either file. A journal already sealed is emptied.
+     * @throws IOException If the files cannot be read.
+     */
+    private void catchUp() throws IOException {
+        long fileLength = raf.length();
+        if (fileLength < length) {
+            length = HEADER_SIZE;
+            sealed = 0;
+        }
+        while (length + RECORD_HEADER_SIZE + BLOCK_FIXED_SIZE <= fileLength) {
+            raf.seek(length);
+            int size = raf.readInt();
+            int checksum = raf.readInt();
+            long end = length + RECORD_HEADER_SIZE + size;
+            if (size < BLOCK_FIXED_SIZE || end > fileLength)
+                break;
+            long blockSequence = raf.readLong();
+            if (end == fileLength) {
+                byte[] payload = new byte[size];
+                raf.seek(length + RECORD_HEADER_SIZE);
+                raf.readFully(payload);
+                if (checksum(payload) != checksum)
+                    break;
+            }
+            sealed = blockSequence;
+            length = end;
+        }
+        if (length < fileLength) {
+            msg("[WARN] Incomplete price history block found. Skip "
+                + (fileLength - length) + " bytes.");
+            raf.setLength(length);
+        }
+        journal.seek(8);
+        long journalSequence = journal.readLong();
+        if (journalSequence <= sealed) {
+            resetJournal(sealed + 1);
+            journalSequence = sealed + 1;
+        }
+        if (journalSequence != sequence) {
+            sequence = journalSequence;
+            journalLength = JOURNAL_HEADER_SIZE;
+        }
+        long journalFileLength = journal.length();
+        journalLength = scanRows(journalLength, journalFileLength, null);
+        if (journalLength < journalFileLength) {
+            msg("[WARN] Incomplete price history row found. Skip "
+                + (journalFileLength - journalLength) + " bytes.");
+            journal.setLength(journalLength);
+        }
+    }
+
+    /**
+     * Seals the rows of the journal into a block at the end of the
+     * history file, then empties the journal. The block is synced
+     * to disk first, so that its rows are never lost.
+     * @throws IOException If the files cannot be written.
+     */
+    private void seal() throws IOException {
+        List<PricePoint> rows = new ArrayList<PricePoint>();
+        scanRows(JOURNAL_HEADER_SIZE, journalLength, rows);
+        byte[] block = record(encode(sequence, rows));
+        raf.seek(length);
+        raf.write(block);
+        raf.getFD().sync();
+        length += block.length;
+        sealed = sequence;
+        resetJournal(sealed + 1);
+        sequence = sealed + 1;
+        journalLength = JOURNAL_HEADER_SIZE;
+    }
+
+    /**
+     * Empties the journal, to be sealed into the block of this
+     * sequence number.
+     * @param newSequence The sequence number of the journal.
+     * @throws IOException If the journal cannot be written.
+     */
+    private void resetJournal(long newSequence) throws IOException {
+        journal.setLength(0);
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeInt(VERSION);
+        journal.writeLong(newSequence);
+    }
+
+    /**
+     * Reads the complete rows of the journal between these offsets.
+     * @param from The offset of the first row.
+     * @param to The end offset of the journal.
+     * @param rows The List the rows are added to; null if
+     * they are only checked.
+     * @return The end offset of the last complete row.
+     * @throws IOException If the journal cannot be read.
+     */
+    private long scanRows(long from, long to, List<PricePoint> rows) throws IOException {
+        long offset = from;
+        while (offset + RECORD_HEADER_SIZE <= to) {
+            journal.seek(offset);
+            int size = journal.readInt();
+            int checksum = journal.readInt();
+            if (size <= 0 || offset + RECORD_HEADER_SIZE + size > to)
+                break;
+            byte[] payload = new byte[size];
+            journal.readFully(payload);
+            if (checksum(payload) != checksum)
+                break;
+            if (rows != null)
+                rows.add(readRow(payload));
+            offset += RECORD_HEADER_SIZE + size;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the journal for the prices of a product within a time
+     * range, unless it has been sealed into a block already.
+     * @param lastSequence The sequence number of the last block.
+     * @param productId The product identity.
+     * @param from The start of the time range.
+     * @param to The end of the time range.
+     * @param visitor The visitor to be called for each price found.
+     * @throws IOException If the journal cannot be read.
+     */
+    private void scanJournal(long lastSequence, String productId, long from, long to,
+                             Visitor visitor) throws IOException {
+        // rows start with their product, so others are told without decoding them
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeUTF(productId);
+        out.close();
+        byte[] wanted = bout.toByteArray();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a price history journal: " + journalFile);
+            if (in.readLong() <= lastSequence)
+                return;
+            while (true) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size <= 0)
+                    return;
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                if (checksum(payload) != checksum)
+                    return;
+                if (!equals(payload, 0, wanted))
+                    continue;
+                PricePoint point = readRow(payload);
+                if (point.getTime() >= from && point.getTime() <= to)
+                    visitor.visit(point);
+            }
+        }
+        catch (EOFException e) {
+            // end of the journal, or a row cut short
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a journal row.
+     * @param payload The payload of the row.
+     * @return The price of the row.
+     * @throws IOException If the row is malformed.
+     */
+    private static PricePoint readRow(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String productId = in.readUTF();
+        long time = in.readLong();
+        long cents = in.readLong();
+        boolean hasVendor = in.readBoolean();
+        String vendor = in.readUTF();
+        return new PricePoint(productId, time, cents, hasVendor ? vendor : null);
+    }
+
+    /**
+     * Encodes rows into the payload of a block.
+     * @param blockSequence The sequence number of the block.
+     * @param rows The rows of the block.
+     * @return The payload of the block.
+     * @throws IOException If the block cannot be encoded.
+     */
+    private static byte[] encode(long blockSequence, List<PricePoint> rows) throws IOException {
+        Collections.sort(rows, new Comparator<PricePoint>() {
+            public int compare(PricePoint a, PricePoint b) {
+                int c = a.getProductId().compareTo(b.getProductId());
+                return c != 0 ? c : Long.compare(a.getTime(), b.getTime());
+            }
+        });
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        List<String> products = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        List<String> vendors = new ArrayList<String>();
+        for (PricePoint row : rows) {
+            minTime = Math.min(minTime, row.getTime());
+            maxTime = Math.max(maxTime, row.getTime());
+            int last = products.size() - 1;
+            if (last >= 0 && products.get(last).equals(row.getProductId())) {
+                counts.set(last, counts.get(last) + 1);
+            }
+            else {
+                products.add(row.getProductId());
+                counts.add(1);
+            }
+            if (row.getVendor() != null && !codes.containsKey(row.getVendor())) {
+                codes.put(row.getVendor(), vendors.size());
+                vendors.add(row.getVendor());
+            }
+        }
+        byte[] bloom = new byte[Math.max(8, (products.size() * BLOOM_BITS_PER_PRODUCT + 7) / 8)];
+        for (String product : products)
+            addToBloom(bloom, product);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeLong(blockSequence);
+        out.writeLong(minTime);
+        out.writeLong(maxTime);
+        out.writeInt(rows.size());
+        out.writeInt(bloom.length);
+        out.write(bloom);
+        // product column: each product once, with its number of rows
+        ItemCodec.writeVarLong(out, products.size());
+        for (int i = 0; i < products.size(); ++i) {
+            ItemCodec.writeString(out, products.get(i));
+            ItemCodec.writeVarLong(out, counts.get(i));
+        }
+        ItemCodec.writeVarLong(out, vendors.size());
+        for (String vendor : vendors)
+            ItemCodec.writeString(out, vendor);
+        // time column: delta from the previous row of the product
+        int row = 0;
+        for (int count : counts) {
+            long previous = minTime;
+            for (int i = 0; i < count; ++i, ++row) {
+                ItemCodec.writeVarLong(out, rows.get(row).getTime() - previous);
+                previous = rows.get(row).getTime();
+            }
+        }
+        // price column: signed delta from the previous row of the product
+        row = 0;
+        for (int count : counts) {
+            long previous = 0;
+            for (int i = 0; i < count; ++i, ++row) {
+                ItemCodec.writeVarLong(out, zigzag(rows.get(row).getCents() - previous));
+                previous = rows.get(row).getCents();
+            }
+        }
+        // vendor column: position in the dictionary, 0 for none
+        for (PricePoint point : rows)
+            ItemCodec.writeVarLong(out, point.getVendor() == null ? 0 : codes.get(point.getVendor()) + 1L);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Decodes the rows of a product within a time range from
+     * the columns of a block, stepping over the rows of other
+     * products without decoding them.
+     * @param body The columns of the block.
+     * @param minTime The earliest time of the block.
+     * @param productId The product identity.
+     * @param from The start of the time range.
+     * @param to The end of the time range.
+     * @param visitor The visitor to be called for each price found.
+     * @throws IOException If the block is malformed.
+     */
+    private static void decode(byte[] body, long minTime, String productId, long from, long to,
+                               Visitor visitor) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        byte[] wanted = productId.getBytes(UTF_8);
+        try {
+            int productsNum = (int) readVarLong(in);
+            int first = 0;
+            int count = 0;
+            int rowsNum = 0;
+            for (int i = 0; i < productsNum; ++i) {
+                int length = (int) readVarLong(in) - 1;
+                boolean match = length == wanted.length && equals(body, in.position(), wanted);
+                in.position(in.position() + length);
+                int n = (int) readVarLong(in);
+                if (match) {
+                    first = rowsNum;
+                    count = n;
+                }
+                rowsNum += n;
+            }
+            if (count == 0)
+                return;
+            String[] vendors = new String[(int) readVarLong(in)];
+            for (int i = 0; i < vendors.length; ++i) {
+                int length = (int) readVarLong(in) - 1;
+                vendors[i] = ItemCodec.intern(new String(body, in.position(), length, UTF_8));
+                in.position(in.position() + length);
+            }
+            long[] times = new long[count];
+            skipVarLongs(in, first);
+            long time = minTime;
+            for (int i = 0; i < count; ++i) {
+                time += readVarLong(in);
+                times[i] = time;
+            }
+            skipVarLongs(in, rowsNum - first - count);
+            long[] cents = new long[count];
+            skipVarLongs(in, first);
+            long price = 0;
+            for (int i = 0; i < count; ++i) {
+                price += unzigzag(readVarLong(in));
+                cents[i] = price;
+            }
+            skipVarLongs(in, rowsNum - first - count);
+            skipVarLongs(in, first);
+            for (int i = 0; i < count; ++i) {
+                long code = readVarLong(in);
+                if (code > vendors.length)
+                    throw new IOException("Unknown vendor " + code + " in price history.");
+                if (times[i] >= from && times[i] <= to)
+                    visitor.visit(new PricePoint(productId, times[i], cents[i],
+                                                 code == 0 ? null : vendors[(int) code - 1]));
+            }
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed price history block.");
+        }
+    }
+
+    /**
+     * Reads a long written by ItemCodec.writeVarLong.
+     * @param in The buffer to be read from.
+     * @return The value read.
+     * @throws IOException If the value is too long.
+     */
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xff;
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed number in price history.");
+    }
+
+    /**
+     * Steps over longs written by ItemCodec.writeVarLong.
+     * @param in The buffer to be read from.
+     * @param n The number of longs to be skipped.
+     */
+    private static void skipVarLongs(ByteBuffer in, int n) {
+        while (n > 0) {
+            if ((in.get() & 0x80) == 0)
+                --n;
+        }
+    }
+
+    /**
+     * Determines whether bytes of a buffer match these.
+     * @param buf The buffer.
+     * @param offset The offset of the bytes in the buffer.
+     * @param bytes The bytes to be matched.
+     * @return True if the bytes match.
+     */
+    private static boolean equals(byte[] buf, int offset, byte[] bytes) {
+        if (offset + bytes.length > buf.length)
+            return false;
+        for (int i = 0; i < bytes.length; ++i) {
+            if (buf[offset + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a product to the Bloom filter of a block.
+     * @param bloom The Bloom filter.
+     * @param productId The product identity.
+     */
+    private static void addToBloom(byte[] bloom, String productId) {
+        long h = hash(productId);
+        int bits = bloom.length * 8;
+        for (int i = 0; i < BLOOM_HASHES; ++i) {
+            int bit = (int) (((h + i * (h >>> 32)) & Long.MAX_VALUE) % bits);
+            bloom[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    /**
+     * Determines whether a block may hold a product.
+     * @param bloom The Bloom filter of the block.
+     * @param productId The product identity.
+     * @return False if the block does not hold the product;
+     * true if it may.
+     */
+    private static boolean mayContain(byte[] bloom, String productId) {
+        if (bloom.length == 0)
+            return true;
+        long h = hash(productId);
+        int bits = bloom.length * 8;
+        for (int i = 0; i < BLOOM_HASHES; ++i) {
+            int bit = (int) (((h + i * (h >>> 32)) & Long.MAX_VALUE) % bits);
+            if ((bloom[bit >>> 3] & 1 << (bit & 7)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a product identity into a 64-bit value.
+     * @param productId The product identity.
+     * @return The hash of the product identity.
+     */
+    private static long hash(String productId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < productId.length(); ++i) {
+            h ^= productId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one, small values
+     * of either sign staying small.
+     * @param v The signed value.
+     * @return The unsigned value.
+     */
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     * Maps a value written by zigzag back to its signed value.
+     * @param v The unsigned value.
+     * @return The signed value.
+     */
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Frames a payload with its length and checksum.
+     * @param payload The payload of the row or block.
+     * @return The framed row or block.
+     */
+    private static byte[] record(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload));
+        record.put(payload);
+        return record.array();
+    }
+
+    /**
+     * Computes the checksum of a payload.
+     * @param payload The payload to be checked.
+     * @return The CRC32 checksum of the payload.
+     */
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Skips bytes of a stream.
+     * @param in The stream to be read from.
+     * @param n The number of bytes to be skipped.
+     * @throws IOException If the stream ends first.
+     */
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg);
+        System.out.print("\n");
+    }
+}
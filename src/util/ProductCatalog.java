@@ -0,0 +1,379 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import datastructure.CachePage;
+import datastructure.Item;
+import datastructure.PricePoint;
+
+/**
+ * Class for the product catalog of the cache. The same product is
+ * found under many keywords and pages, so each product is stored
+ * once, keyed by its identity, and cached pages only refer to it.
+ * The catalog is a shard of its own, holding one record per product
+ * under page number 1, locked across processes like the others. It
+ * is always locked after the shard of a page, never before, so that
+ * processes cannot deadlock. Products never expire, so a product is
+ * stored with a hash of its fields in place of a fetch time, and a
+ * product found again unchanged is told from the index alone,
+ * without reading it back. Products read are kept in memory as
+ * long as any page read refers to them, so that every page shares
+ * a single Item per product. The price history of the products is
+ * kept alongside, under the same lock: a price is recorded each
+ * time a product is stored at a price other than the one stored.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+class ProductCatalog {
+
+    /** the page number products are stored under */
+    private static final int PRODUCT_PAGE = 1;
+
+    /** the shard holding the products */
+    private final CacheShard shard;
+
+    /** the price history of the products */
+    private final PriceHistory history;
+
+    /** the Items read, keyed by product identity */
+    private final ConcurrentHashMap<String, Product> products =
+            new ConcurrentHashMap<String, Product>();
+
+    /** the Items no longer referred to, to be dropped */
+    private final ReferenceQueue<Item> released = new ReferenceQueue<Item>();
+
+    /**
+     * Class for an Item read from the catalog, kept while
+     * any page refers to it.
+     */
+    private static class Product extends WeakReference<Item> {
+
+        /** the product identity of the Item */
+        final String id;
+
+        /** the generation of the log the Item was read from */
+        final long generation;
+
+        /** the offset of the record the Item was read from */
+        final long offset;
+
+        /**
+         * Constructor for Product.
+         * @param item The Item read.
+         * @param generation The generation of the log.
+         * @param offset The offset of the record.
+         * @param queue The queue the Item is reported to once
+         * no longer referred to.
+         */
+        Product(Item item, long generation, long offset, ReferenceQueue<Item> queue) {
+            super(item, queue);
+            this.id = item.getId();
+            this.generation = generation;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Constructor for ProductCatalog.
+     * @param dir The folder of the catalog files.
+     * @param name The name of the catalog files, without extension.
+     * @param history The price history of the products.
+     */
+    ProductCatalog(File dir, String name, PriceHistory history) {
+        shard = new CacheShard(dir, name);
+        this.history = history;
+    }
+
+    /**
+     * Stores the products of these Items that are new or have
+     * changed, before a page referring to them is written, and
+     * records the prices of those that are new or have changed.
+     * Items without a plain price add nothing to the history.
+     * @param items The Items of the page; may be null.
+     * @param time The time the page was fetched, in milliseconds.
+     * @throws IOException If the catalog cannot be written.
+     */
+    void store(List<Item> items, long time) throws IOException {
+        if (items == null || !hasProducts(items))
+            return;
+        shard.lockExclusive();
+        try {
+            List<CachePage> records = new ArrayList<CachePage>();
+            List<PricePoint> prices = new ArrayList<PricePoint>();
+            for (Item item : items) {
+                String id = item.getId();
+                if (id == null)
+                    continue;
+                long hash = hash(item);
+                long stored = shard.index().getFetchTime(id, PRODUCT_PAGE);
+                if (stored == hash)
+                    continue;
+                long cents = cents(item.getPrice());
+                Item old = stored == -1 ? null : product(id);
+                if (cents >= 0 && (old == null || cents(old.getPrice()) != cents))
+                    prices.add(new PricePoint(id, time, cents, item.getVendor()));
+                records.add(new CachePage(id, PRODUCT_PAGE, "", Collections.singletonList(
+                        new Item(item.getName(), item.getPrice(), item.getVendor())), hash));
+            }
+            if (records.isEmpty())
+                return;
+            if (!prices.isEmpty())
+                history.record(prices);
+            CacheLog log = shard.log();
+            long[] offsets = log.append(records);
+            for (int i = 0; i < offsets.length; ++i) {
+                long end = i + 1 < offsets.length ? offsets[i + 1] : log.length();
+                shard.index(records.get(i), offsets[i], (int) (end - offsets[i]));
+            }
+            shard.index().setIndexedLength(log.length());
+            compactIfNeeded();
+        }
+        finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Replaces the references read from a page with the
+     * products they refer to, as stored last: a product
+     * fetched again since with other fields, on any page,
+     * shows its new fields.
+     * @param items The Items read from the page; may be null.
+     * @return True if every product is found; false if some
+     * were dropped from the catalog since.
+     * @throws IOException If the catalog cannot be read.
+     */
+    boolean resolve(List<Item> items) throws IOException {
+        if (items == null || !hasProducts(items))
+            return true;
+        shard.lockShared();
+        try {
+            for (int i = 0; i < items.size(); ++i) {
+                String id = items.get(i).getId();
+                if (id == null)
+                    continue;
+                Item product = product(id);
+                if (product == null)
+                    return false;
+                items.set(i, product);
+            }
+            return true;
+        }
+        finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Drops the products no page refers to any longer, and
+     * compacts the catalog. Pages written meanwhile by other
+     * processes may refer to a product dropped; they are
+     * treated as not cached.
+     * @param referenced The identities of the products referred to.
+     * @throws IOException If the catalog cannot be written.
+     */
+    void retain(Set<String> referenced) throws IOException {
+        shard.lockExclusive();
+        try {
+            CacheLog log = shard.log();
+            for (CacheIndex.Slot slot : shard.index().pageSlots()) {
+                String id = log.readHeader(slot.offset).getKeyword();
+                if (!referenced.contains(id)) {
+                    log.appendDelete(id, PRODUCT_PAGE);
+                    shard.unindex(id, PRODUCT_PAGE);
+                }
+            }
+            shard.index().setIndexedLength(log.length());
+            compact();
+        }
+        finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of products stored.
+     * @return The number of products.
+     * @throws IOException If the catalog cannot be read.
+     */
+    int size() throws IOException {
+        shard.lockShared();
+        try {
+            return shard.index().pages();
+        }
+        finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Finds the prices recorded for a product within a time range.
+     * @param id The product identity.
+     * @param from The start of the time range, in milliseconds.
+     * @param to The end of the time range, in milliseconds.
+     * @param visitor The visitor to be called for each price found,
+     * in no particular order.
+     * @throws IOException If the price history cannot be read.
+     */
+    void history(String id, long from, long to, PriceHistory.Visitor visitor) throws IOException {
+        shard.lockShared();
+        try {
+            history.query(id, from, to, visitor);
+        }
+        finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Closes the catalog files.
+     */
+    void close() {
+        shard.close();
+        products.clear();
+        try {
+            history.close();
+        }
+        catch (IOException e) {
+            // nothing left to write
+        }
+    }
+
+    /**
+     * Collects the identities of the products these Items,
+     * read but not resolved, refer to.
+     * @param items The Items read from a page; may be null.
+     * @param ids The identities collected.
+     */
+    static void collect(List<Item> items, Set<String> ids) {
+        if (items == null)
+            return;
+        for (Item item : items) {
+            if (item.getId() != null)
+                ids.add(item.getId());
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Gets the stored product of this identity, reusing the
+     * Item read before if its record is still current.
+     * @param id The product identity.
+     * @return The product; null if not stored.
+     * @throws IOException If the catalog cannot be read.
+     */
+    private Item product(String id) throws IOException {
+        drop();
+        CacheLog log = shard.log();
+        long offset = shard.index().get(id, PRODUCT_PAGE);
+        if (offset < 0)
+            return null;
+        Product known = products.get(id);
+        if (known != null && known.generation == log.generation() && known.offset == offset) {
+            Item item = known.get();
+            if (item != null)
+                return item;
+        }
+        List<Item> items = log.read(offset).getItems();
+        if (items == null || items.size() != 1)
+            throw new IOException("No product stored at " + offset);
+        Item item = items.get(0);
+        item.setId(id);
+        products.put(id, new Product(item, log.generation(), offset, released));
+        return item;
+    }
+
+    /**
+     * Forgets the Items no page refers to any longer.
+     */
+    private void drop() {
+        Reference<? extends Item> ref;
+        while ((ref = released.poll()) != null) {
+            Product product = (Product) ref;
+            products.remove(product.id, product);
+        }
+    }
+
+    /**
+     * Compacts the catalog once superseded records pass the
+     * same threshold as the shards of pages.
+     * @throws IOException If the catalog cannot be compacted.
+     */
+    private void compactIfNeeded() throws IOException {
+        CacheLog log = shard.log();
+        long dead = log.length() - CacheLog.HEADER_SIZE - shard.index().liveBytes();
+        if (dead >= Cache.COMPACT_MIN_DEAD_BYTES && dead >= log.length() * Cache.COMPACT_DEAD_RATIO)
+            compact();
+    }
+
+    /**
+     * Rewrites the catalog keeping only the current products.
+     * Products never expire and are never evicted.
+     * @throws IOException If the catalog cannot be compacted.
+     */
+    private void compact() throws IOException {
+        CacheLog log = shard.log();
+        List<Long> live = new ArrayList<Long>();
+        for (CacheIndex.Slot slot : shard.index().pageSlots())
+            live.add(slot.offset);
+        Collections.sort(live);
+        Map<Long, Long> moved = log.compact(live);
+        shard.index().relocate(moved, log.generation(), log.length());
+    }
+
+    /**
+     * Parses a price into cents for the price history.
+     * @param price The price as displayed; may be null.
+     * @return The price in cents; -1 if it is not a plain
+     * dollar amount.
+     */
+    private static long cents(String price) {
+        return price == null ? -1 : ItemCodec.toCents(price);
+    }
+
+    /**
+     * Determines whether any of these Items has a product identity.
+     * @param items The Items to be checked.
+     * @return True if any Item has a product identity.
+     */
+    private static boolean hasProducts(List<Item> items) {
+        for (Item item : items) {
+            if (item.getId() != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hashes the fields of an Item into a 64-bit value, never
+     * -1, which the index reports for products not stored.
+     * @param item The Item to be hashed.
+     * @return The hash of its name, price and vendor.
+     */
+    private static long hash(Item item) {
+        long h = 0xcbf29ce484222325L;
+        for (String field : new String[] { item.getName(), item.getPrice(), item.getVendor() }) {
+            if (field != null) {
+                for (int i = 0; i < field.length(); ++i) {
+                    h ^= field.charAt(i);
+                    h *= 0x100000001b3L;
+                }
+            }
+            // separates the fields, and a null field from an empty one
+            h ^= field == null ? 0x10000 : 0x10001;
+            h *= 0x100000001b3L;
+        }
+        return h == -1 ? 0 : h;
+    }
+}
@@ -0,0 +1,396 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class for a Transport retrying failed requests and hedging slow
+ * ones. Failed requests are retried after an exponential backoff
+ * with full jitter, as long as the retry budget allows: every
+ * request earns a fraction of a retry, so retries cannot multiply
+ * the load when the server is failing. When hedging is enabled, a
+ * second request is sent if the first has not answered within a
+ * percentile of recent latencies, and whichever answers first wins.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class RetryingTransport implements Transport {
+
+    /** the default number of retries of a request */
+    public static final int DEFAULT_RETRIES = 2;
+
+    /** the backoff before the first retry, in milliseconds */
+    private static final long BACKOFF_BASE = 200;
+
+    /** the longest backoff before a retry, in milliseconds */
+    private static final long BACKOFF_CAP = 5000;
+
+    /** the fraction of a retry earned by every request */
+    private static final double BUDGET_RATIO = 0.1;
+
+    /** the most retries that can be saved up */
+    private static final double BUDGET_CAP = 10;
+
+    /** the number of recent latencies the hedging delay is taken from */
+    private static final int LATENCY_SAMPLES = 256;
+
+    /** the number of latencies needed before requests are hedged */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /** the transport requests are passed on to */
+    private final Transport transport;
+
+    /** the number of retries of a request */
+    private final int retries;
+
+    /** the latency percentile after which a request is hedged; 0 for no hedging */
+    private final double hedgePercentile;
+
+    /** the threads sending hedged requests; null if not hedging */
+    private final ExecutorService executor;
+
+    /** the source of backoff jitter */
+    private final Random random = new Random();
+
+    /** the retries and hedges that may still be sent */
+    private double budget = BUDGET_CAP;
+
+    /** the recent latencies in nanoseconds, as a ring */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+
+    /** the number of latencies recorded */
+    private long latencyCount;
+
+    /** the number of retries sent */
+    private final AtomicLong retriesSent = new AtomicLong();
+
+    /** the number of hedged requests sent */
+    private final AtomicLong hedgesSent = new AtomicLong();
+
+    /** the number of hedged requests that answered first */
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Constructor for RetryingTransport, configured from the
+     * system properties scraper.http.retries and
+     * scraper.http.hedgePercentile.
+     * @param transport The transport requests are passed on to.
+     */
+    public RetryingTransport(Transport transport) {
+        this(transport, Integer.getInteger("scraper.http.retries", DEFAULT_RETRIES),
+             hedgeProperty());
+    }
+
+    /**
+     * Constructor for RetryingTransport.
+     * @param transport The transport requests are passed on to.
+     * @param retries The number of retries of a request.
+     * @param hedgePercentile The latency percentile after which
+     * a request is hedged, below 100; 0 for no hedging.
+     */
+    public RetryingTransport(Transport transport, int retries, double hedgePercentile) {
+        this.transport = transport;
+        this.retries = Math.max(0, retries);
+        this.hedgePercentile = hedgePercentile > 0 && hedgePercentile < 100 ? hedgePercentile : 0;
+        this.executor = this.hedgePercentile == 0 ? null :
+                Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "hedge");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Sends a GET request, retrying and hedging it as needed.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers; may be empty.
+     * @return The first successful response.
+     * @throws IOException If the last attempt fails, or the
+     * failure cannot be helped by retrying.
+     */
+    public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+        synchronized (this) {
+            budget = Math.min(BUDGET_CAP, budget + BUDGET_RATIO);
+        }
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return executor == null ? send(url, headers) : hedge(url, headers);
+            }
+            catch (IOException e) {
+                if (attempt >= retries || !isRetryable(e) || !spend())
+                    throw e;
+                backoff(attempt);
+                retriesSent.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Getter for field transport.
+     * @return Value of field transport.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gets the number of retries sent.
+     * @return The number of retries.
+     */
+    public long getRetryCount() {
+        return retriesSent.get();
+    }
+
+    /**
+     * Gets the number of hedged requests sent.
+     * @return The number of hedges.
+     */
+    public long getHedgeCount() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * Gets the number of hedged requests that answered before
+     * the request they hedged.
+     * @return The number of hedges won.
+     */
+    public long getHedgeWinCount() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Describes the retries and hedges sent.
+     * @return The description.
+     */
+    public String toString() {
+        return retriesSent.get() + " retries, " + hedgesSent.get() + " hedges (" +
+               hedgesWon.get() + " won)";
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Sends a single request, recording its latency.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers.
+     * @return The response.
+     * @throws IOException If the request fails.
+     */
+    private HttpResponse send(String url, Map<String, String> headers) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = transport.get(url, headers);
+        record(System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Sends a request, and a second one if the first has not
+     * answered within the hedging delay. The first successful
+     * response wins; the other is closed once it arrives.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers.
+     * @return The winning response.
+     * @throws IOException If every request sent fails.
+     */
+    private HttpResponse hedge(final String url, final Map<String, String> headers)
+            throws IOException {
+        final AtomicBoolean decided = new AtomicBoolean();
+        ExecutorCompletionService<HttpResponse> attempts =
+                new ExecutorCompletionService<HttpResponse>(executor);
+        Future<HttpResponse> primary = attempts.submit(attempt(url, headers, decided));
+        final int[] pending = { 1 };
+        IOException failure = null;
+        try {
+            long delay = hedgeDelay();
+            Future<HttpResponse> done = delay < 0 ? null : attempts.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null && delay >= 0 && spend()) {
+                hedgesSent.incrementAndGet();
+                attempts.submit(attempt(url, headers, decided));
+                ++pending[0];
+            }
+            while (pending[0] > 0) {
+                if (done == null)
+                    done = attempts.take();
+                --pending[0];
+                try {
+                    HttpResponse response = done.get();
+                    if (response != null) {
+                        if (done != primary)
+                            hedgesWon.incrementAndGet();
+                        return response;
+                    }
+                }
+                catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                done = null;
+            }
+        }
+        catch (InterruptedException e) {
+            abandon(attempts, pending[0]);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response.");
+        }
+        throw failure;
+    }
+
+    /**
+     * Closes the responses of attempts nobody waits for anymore,
+     * once they arrive.
+     * @param attempts The attempts sent.
+     * @param pending The number of attempts not yet taken.
+     */
+    private void abandon(final ExecutorCompletionService<HttpResponse> attempts,
+                         final int pending) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < pending; ++i) {
+                        try {
+                            HttpResponse response = attempts.take().get();
+                            if (response != null) response.close();
+                        }
+                        catch (ExecutionException e) {
+                            // nothing to close
+                        }
+                        catch (IOException e) {
+                            // connection will not be reused
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    // shutting down
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a hedged attempt. Only the first attempt to
+     * answer returns its response; the others close theirs.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers.
+     * @param decided Set once an attempt has answered.
+     * @return The attempt, returning null if it lost.
+     */
+    private Callable<HttpResponse> attempt(final String url, final Map<String, String> headers,
+                                           final AtomicBoolean decided) {
+        return new Callable<HttpResponse>() {
+            public HttpResponse call() throws IOException {
+                HttpResponse response = send(url, headers);
+                if (decided.compareAndSet(false, true))
+                    return response;
+                response.close();
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Records the latency of a response.
+     * @param latency The latency in nanoseconds.
+     */
+    private synchronized void record(long latency) {
+        latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = latency;
+    }
+
+    /**
+     * Gets how long to wait for a response before hedging.
+     * @return The delay in nanoseconds; -1 if too few
+     * latencies are known yet.
+     */
+    private long hedgeDelay() {
+        long[] sorted;
+        synchronized (this) {
+            if (latencyCount < MIN_LATENCY_SAMPLES)
+                return -1;
+            sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * hedgePercentile / 100)];
+    }
+
+    /**
+     * Takes a retry or hedge out of the budget.
+     * @return True if the budget allowed it; false otherwise.
+     */
+    private synchronized boolean spend() {
+        if (budget < 1)
+            return false;
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * Waits before a retry, for a random time up to an
+     * exponentially growing bound.
+     * @param attempt The number of the attempt that failed, from 0.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private void backoff(int attempt) throws InterruptedIOException {
+        long bound = Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(attempt, 20));
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * bound);
+        }
+        try {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry.");
+        }
+    }
+
+    /**
+     * Determines whether a failed request may succeed if retried.
+     * @param e The failure of the request.
+     * @return True if the request may be retried; false otherwise.
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatus();
+            return status >= 500 || status == 429 || status == 408;
+        }
+        if (e instanceof SocketTimeoutException)
+            return true;
+        return !(e instanceof MalformedURLException || e instanceof UnknownHostException
+                 || e instanceof InterruptedIOException);
+    }
+
+    /**
+     * Reads the system property scraper.http.hedgePercentile.
+     * @return The latency percentile after which a request is
+     * hedged; 0 for no hedging.
+     */
+    private static double hedgeProperty() {
+        String percentile = System.getProperty("scraper.http.hedgePercentile", "0");
+        try {
+            return Double.parseDouble(percentile);
+        }
+        catch (NumberFormatException e) {
+            System.out.print("[WARN] Invalid value of scraper.http.hedgePercentile. " +
+                             "Use no hedging instead.\n");
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the secondary index of cached Items, answering searches
+ * by words of their names, by vendor and by price range without any
+ * network access: an inverted index from each lower-cased word of a
+ * name to the Items holding it, an index from each vendor to its
+ * Items, and the Items sorted by price in cents. Only the position
+ * of each Item is kept in memory; the Items found are read back from
+ * the cache.
+ * The index follows the cache logs: before each search, the records
+ * appended to each shard since the last search, by this process or
+ * any other, are indexed, and a shard compacted since is indexed
+ * again from the start. Items of superseded or removed pages stay in
+ * the index, skipped, until they make up half of it, then the whole
+ * index is rebuilt. Expired pages are left out of the results.
+ * Pages show the current version of their products, which may have
+ * changed since the page was indexed, so the Items read back are
+ * checked against the criteria again: a product changed to meet
+ * them is only found once a page holding it is cached again.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+public class SearchIndex {
+
+    /** the fraction of Items of superseded pages that triggers a rebuild */
+    private static final double REBUILD_DEAD_RATIO = 0.5;
+
+    /** the fewest Items of superseded pages that trigger a rebuild */
+    private static final int REBUILD_MIN_DEAD = 1 << 16;
+
+    /** the generation of the log indexed for each shard; 0 if none */
+    private final long[] generations;
+
+    /** the log length indexed for each shard */
+    private final long[] lengths;
+
+    /** the live page of each key, shard by shard */
+    private final List<Map<String, Integer>> shardPages;
+
+    /** the keyword of each page */
+    private String[] pageKeywords = new String[1024];
+
+    /** the page number of each page */
+    private int[] pageNums = new int[1024];
+
+    /** the fetch time of the record of each page */
+    private long[] pageFetchTimes = new long[1024];
+
+    /** the number of Items on each page */
+    private int[] pageSizes = new int[1024];
+
+    /** the superseded and removed pages */
+    private BitSet deadPages = new BitSet();
+
+    /** the number of pages indexed */
+    private int pagesNum;
+
+    /** the page of each Item */
+    private int[] itemPages = new int[16384];
+
+    /** the position of each Item on its page */
+    private int[] itemSlots = new int[16384];
+
+    /** the price of each Item in cents; -1 if not a plain price */
+    private long[] itemCents = new long[16384];
+
+    /** the number of Items indexed */
+    private int itemsNum;
+
+    /** the number of Items of superseded and removed pages */
+    private int deadItems;
+
+    /** the Items holding each word of a name */
+    private HashMap<String, IntList> terms = new HashMap<String, IntList>();
+
+    /** the Items of each vendor, lower-cased */
+    private HashMap<String, IntList> vendors = new HashMap<String, IntList>();
+
+    /** the Items with a plain price, by price in cents */
+    private TreeMap<Long, IntList> prices = new TreeMap<Long, IntList>();
+
+    /**
+     * Class for a growable list of Item numbers, in increasing
+     * order as Items are indexed.
+     */
+    private static class IntList {
+
+        /** the Item numbers */
+        int[] values = new int[4];
+
+        /** the number of Item numbers */
+        int size;
+
+        /**
+         * Appends an Item number, unless it is the last one.
+         * @param value The Item number.
+         */
+        void add(int value) {
+            if (size > 0 && values[size - 1] == value)
+                return;
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        /**
+         * Determines whether this list holds an Item number.
+         * @param value The Item number.
+         * @return True if it is in this list; false otherwise.
+         */
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+    }
+
+    /**
+     * Class for an Item found, with the page it is on.
+     */
+    public static class Hit {
+
+        /** the keyword of the page */
+        private final String keyword;
+
+        /** the page number of the page */
+        private final int pageNum;
+
+        /** the Item found */
+        private final Item item;
+
+        /**
+         * Constructor for Hit.
+         * @param keyword The keyword of the page.
+         * @param pageNum The page number of the page.
+         * @param item The Item found.
+         */
+        Hit(String keyword, int pageNum, Item item) {
+            this.keyword = keyword;
+            this.pageNum = pageNum;
+            this.item = item;
+        }
+
+        /**
+         * Getter for field keyword.
+         * @return Value of field keyword.
+         */
+        public String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * Getter for field pageNum.
+         * @return Value of field pageNum.
+         */
+        public int getPageNum() {
+            return pageNum;
+        }
+
+        /**
+         * Getter for field item.
+         * @return Value of field item.
+         */
+        public Item getItem() {
+            return item;
+        }
+    }
+
+    /**
+     * Class for the result of a search.
+     */
+    public static class Result {
+
+        /** the Items found, cheapest first, up to the limit */
+        private final List<Hit> hits;
+
+        /** the number of Items matching */
+        private final int total;
+
+        /**
+         * Constructor for Result.
+         * @param hits The Items found, cheapest first.
+         * @param total The number of Items matching.
+         */
+        Result(List<Hit> hits, int total) {
+            this.hits = hits;
+            this.total = total;
+        }
+
+        /**
+         * Getter for field hits.
+         * @return Value of field hits.
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * Getter for field total.
+         * @return Value of field total.
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Constructor for SearchIndex.
+     * @param shardsNum The number of shards of the cache.
+     */
+    SearchIndex(int shardsNum) {
+        generations = new long[shardsNum];
+        lengths = new long[shardsNum];
+        shardPages = new ArrayList<Map<String, Integer>>(shardsNum);
+        for (int i = 0; i < shardsNum; ++i)
+            shardPages.add(new HashMap<String, Integer>());
+    }
+
+    /**
+     * Indexes the records appended to the shards since the last
+     * update. A shard compacted since is indexed again from the
+     * start; the whole index is rebuilt once Items of superseded
+     * pages make up half of it. Products are indexed as they
+     * are stored when their page is first indexed.
+     * @param shards The shards of the cache.
+     * @param catalog The product catalog of the cache.
+     * @throws IOException If the cache files cannot be read.
+     */
+    synchronized void update(CacheShard[] shards, ProductCatalog catalog) throws IOException {
+        if (deadItems >= REBUILD_MIN_DEAD && deadItems > itemsNum * REBUILD_DEAD_RATIO)
+            clear();
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i].lockShared();
+            try {
+                update(i, shards[i].log(), catalog);
+            }
+            finally {
+                shards[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Searches the Items indexed. Every criterion given has to be
+     * met: each word has to be a word of the Item's name, the vendor
+     * has to match in any case, and the price has to be a plain price
+     * within the range.
+     * @param text The words to be found in names; null for any.
+     * @param vendor The vendor; null for any.
+     * @param minCents The lowest price in cents; 0 for no minimum.
+     * @param maxCents The highest price in cents; Long.MAX_VALUE
+     * for no maximum.
+     * @param limit The largest number of Items returned.
+     * @return The Items found, cheapest first, and their number.
+     * @throws IllegalArgumentException If no criterion is given.
+     */
+    synchronized Result search(String text, String vendor, long minCents, long maxCents,
+                               int limit) {
+        boolean priced = minCents > 0 || maxCents < Long.MAX_VALUE;
+        List<String> words = words(text == null ? "" : text);
+        String vendorKey = vendor == null ? null : vendor.trim().toLowerCase(Locale.ROOT);
+        List<IntList> lists = new ArrayList<IntList>();
+        for (String word : words) {
+            IntList list = terms.get(word);
+            if (list == null)
+                return new Result(new ArrayList<Hit>(), 0);
+            lists.add(list);
+        }
+        if (vendor != null) {
+            IntList list = vendors.get(vendorKey);
+            if (list == null)
+                return new Result(new ArrayList<Hit>(), 0);
+            lists.add(list);
+        }
+        if (lists.isEmpty() && !priced)
+            throw new IllegalArgumentException("No search criterion.");
+
+        BitSet checked = new BitSet(pagesNum);
+        BitSet fresh = new BitSet(pagesNum);
+        long now = System.currentTimeMillis();
+        int total = 0;
+        List<Integer> found = new ArrayList<Integer>();
+        if (lists.isEmpty()) {
+            // in price order already
+            for (IntList list : prices.subMap(minCents, true, maxCents, true).values()) {
+                for (int i = 0; i < list.size; ++i) {
+                    int item = list.values[i];
+                    if (!isLive(item, checked, fresh, now))
+                        continue;
+                    if (found.size() < limit)
+                        found.add(item);
+                    ++total;
+                }
+            }
+            return new Result(hits(found, words, vendorKey, minCents, maxCents), total);
+        }
+
+        Collections.sort(lists, new Comparator<IntList>() {
+            public int compare(IntList a, IntList b) {
+                return Integer.compare(a.size, b.size);
+            }
+        });
+        Comparator<Integer> byPrice = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long x = itemCents[a] < 0 ? Long.MAX_VALUE : itemCents[a];
+                long y = itemCents[b] < 0 ? Long.MAX_VALUE : itemCents[b];
+                return x != y ? Long.compare(x, y) : Integer.compare(a, b);
+            }
+        };
+        // the cheapest Items found so far, the most expensive on top
+        PriorityQueue<Integer> cheapest = new PriorityQueue<Integer>(
+                Math.max(1, limit), Collections.reverseOrder(byPrice));
+        IntList smallest = lists.get(0);
+        for (int i = 0; i < smallest.size; ++i) {
+            int item = smallest.values[i];
+            if (priced && (itemCents[item] < minCents || itemCents[item] > maxCents))
+                continue;
+            boolean all = true;
+            for (int j = 1; j < lists.size() && all; ++j)
+                all = lists.get(j).contains(item);
+            if (!all || !isLive(item, checked, fresh, now))
+                continue;
+            ++total;
+            if (limit <= 0)
+                continue;
+            if (cheapest.size() < limit)
+                cheapest.add(item);
+            else if (byPrice.compare(item, cheapest.peek()) < 0) {
+                cheapest.poll();
+                cheapest.add(item);
+            }
+        }
+        found.addAll(cheapest);
+        Collections.sort(found, byPrice);
+        return new Result(hits(found, words, vendorKey, minCents, maxCents), total);
+    }
+
+    /**
+     * Gets the number of Items indexed, including those of
+     * superseded pages not yet dropped.
+     * @return The number of Items indexed.
+     */
+    synchronized int size() {
+        return itemsNum;
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Indexes the records appended to the log of a shard since
+     * the last update.
+     * @param shard The number of the shard.
+     * @param log The log of the shard, locked.
+     * @param catalog The product catalog of the cache.
+     * @throws IOException If the log cannot be read.
+     */
+    private void update(int shard, final CacheLog log, final ProductCatalog catalog)
+            throws IOException {
+        final Map<String, Integer> pages = shardPages.get(shard);
+        if (log.generation() != generations[shard]) {
+            for (int page : pages.values())
+                kill(page);
+            pages.clear();
+            generations[shard] = log.generation();
+            lengths[shard] = CacheLog.HEADER_SIZE;
+        }
+        if (lengths[shard] >= log.length())
+            return;
+        log.visit(lengths[shard], log.length(), new CacheLog.Visitor() {
+            public void visit(long offset, int size, byte type, CachePage header)
+                    throws IOException {
+                String key = header.getPageNum() + " " + header.getKeyword();
+                Integer old = null;
+                if (type == CacheLog.TYPE_PUT) {
+                    CachePage page = log.read(offset);
+                    // a page whose products were dropped is indexed without Items
+                    if (!catalog.resolve(page.getItems()))
+                        page.setItems(null);
+                    old = pages.put(key, add(page));
+                }
+                else {
+                    old = pages.remove(key);
+                }
+                if (old != null)
+                    kill(old);
+            }
+        });
+        lengths[shard] = log.length();
+    }
+
+    /**
+     * Indexes a page and its Items.
+     * @param page The page read from the cache.
+     * @return The number of the page.
+     */
+    private int add(CachePage page) {
+        if (pagesNum == pageNums.length) {
+            int capacity = pagesNum * 2;
+            pageKeywords = Arrays.copyOf(pageKeywords, capacity);
+            pageNums = Arrays.copyOf(pageNums, capacity);
+            pageFetchTimes = Arrays.copyOf(pageFetchTimes, capacity);
+            pageSizes = Arrays.copyOf(pageSizes, capacity);
+        }
+        int pageId = pagesNum++;
+        List<Item> items = page.getItems() == null ? new ArrayList<Item>() : page.getItems();
+        pageKeywords[pageId] = page.getKeyword();
+        pageNums[pageId] = page.getPageNum();
+        pageFetchTimes[pageId] = page.getFetchTime();
+        pageSizes[pageId] = items.size();
+        for (int slot = 0; slot < items.size(); ++slot) {
+            Item item = items.get(slot);
+            if (itemsNum == itemPages.length) {
+                int capacity = itemsNum * 2;
+                itemPages = Arrays.copyOf(itemPages, capacity);
+                itemSlots = Arrays.copyOf(itemSlots, capacity);
+                itemCents = Arrays.copyOf(itemCents, capacity);
+            }
+            int id = itemsNum++;
+            itemPages[id] = pageId;
+            itemSlots[id] = slot;
+            itemCents[id] = item.getPrice() == null ? -1 : ItemCodec.toCents(item.getPrice());
+            for (String word : words(item.getName() == null ? "" : item.getName()))
+                postings(terms, word).add(id);
+            if (item.getVendor() != null)
+                postings(vendors, item.getVendor().trim().toLowerCase(Locale.ROOT)).add(id);
+            if (itemCents[id] >= 0) {
+                IntList list = prices.get(itemCents[id]);
+                if (list == null) {
+                    list = new IntList();
+                    prices.put(itemCents[id], list);
+                }
+                list.add(id);
+            }
+        }
+        return pageId;
+    }
+
+    /**
+     * Marks a page as superseded or removed.
+     * @param page The number of the page.
+     */
+    private void kill(int page) {
+        if (!deadPages.get(page)) {
+            deadPages.set(page);
+            deadItems += pageSizes[page];
+        }
+    }
+
+    /**
+     * Drops everything indexed, for every shard to be indexed
+     * again from the start.
+     */
+    private void clear() {
+        Arrays.fill(generations, 0);
+        Arrays.fill(lengths, 0);
+        for (Map<String, Integer> pages : shardPages)
+            pages.clear();
+        Arrays.fill(pageKeywords, 0, pagesNum, null);
+        deadPages = new BitSet();
+        pagesNum = 0;
+        itemsNum = 0;
+        deadItems = 0;
+        terms = new HashMap<String, IntList>();
+        vendors = new HashMap<String, IntList>();
+        prices = new TreeMap<Long, IntList>();
+    }
+
+    /**
+     * Determines whether an Item is on a current page that has not
+     * expired. Pages whose record has expired are looked up in the
+     * cache, as they may have been found unchanged since. Each page
+     * is checked once per search.
+     * @param item The number of the Item.
+     * @param checked The pages checked so far.
+     * @param fresh The pages checked and found current and fresh.
+     * @param now The current time.
+     * @return True if the Item is to be found; false otherwise.
+     */
+    private boolean isLive(int item, BitSet checked, BitSet fresh, long now) {
+        int page = itemPages[item];
+        if (checked.get(page))
+            return fresh.get(page);
+        checked.set(page);
+        boolean live = !deadPages.get(page)
+                && (!Cache.isExpired(pageKeywords[page], pageNums[page], pageFetchTimes[page], now)
+                    || Cache.isCached(pageKeywords[page], pageNums[page]));
+        if (live)
+            fresh.set(page);
+        return live;
+    }
+
+    /**
+     * Reads the Items found back from the cache. Items whose page
+     * has been superseded since it was indexed are left out, and
+     * so are those whose product no longer meets the criteria.
+     * @param found The numbers of the Items found.
+     * @param words The words to be found in names.
+     * @param vendor The lower-cased vendor; null for any.
+     * @param minCents The lowest price in cents.
+     * @param maxCents The highest price in cents.
+     * @return The Items found, in the same order.
+     */
+    private List<Hit> hits(List<Integer> found, List<String> words, String vendor,
+                           long minCents, long maxCents) {
+        Map<Integer, CachePage> read = new HashMap<Integer, CachePage>();
+        List<Hit> hits = new ArrayList<Hit>(found.size());
+        for (int item : found) {
+            int page = itemPages[item];
+            CachePage cached = read.get(page);
+            if (cached == null && !read.containsKey(page)) {
+                cached = Cache.getStalePage(pageKeywords[page], pageNums[page]);
+                if (cached != null && (cached.getFetchTime() != pageFetchTimes[page]
+                        || cached.getItems() == null
+                        || cached.getItems().size() != pageSizes[page]))
+                    cached = null;
+                read.put(page, cached);
+            }
+            if (cached == null)
+                continue;
+            Item current = cached.getItems().get(itemSlots[item]);
+            if (meets(current, words, vendor, minCents, maxCents))
+                hits.add(new Hit(pageKeywords[page], pageNums[page], current));
+        }
+        return hits;
+    }
+
+    /**
+     * Determines whether an Item meets the criteria of a search.
+     * @param item The Item to be checked.
+     * @param words The words to be found in its name.
+     * @param vendor The lower-cased vendor; null for any.
+     * @param minCents The lowest price in cents; 0 for no minimum.
+     * @param maxCents The highest price in cents; Long.MAX_VALUE
+     * for no maximum.
+     * @return True if every criterion given is met.
+     */
+    private static boolean meets(Item item, List<String> words, String vendor,
+                                 long minCents, long maxCents) {
+        if (!words.isEmpty()
+                && !words(item.getName() == null ? "" : item.getName()).containsAll(words))
+            return false;
+        if (vendor != null && (item.getVendor() == null
+                || !item.getVendor().trim().toLowerCase(Locale.ROOT).equals(vendor)))
+            return false;
+        if (minCents > 0 || maxCents < Long.MAX_VALUE) {
+            long cents = item.getPrice() == null ? -1 : ItemCodec.toCents(item.getPrice());
+            if (cents < 0 || cents < minCents || cents > maxCents)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Splits a text into its lower-cased words: runs of letters
+     * and digits.
+     * @param text The text to be split.
+     * @return The words of the text, each once, in order.
+     */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int begin = -1;
+        for (int i = 0; i <= lower.length(); ++i) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && begin < 0) {
+                begin = i;
+            }
+            else if (!letter && begin >= 0) {
+                String word = lower.substring(begin, i);
+                if (!words.contains(word))
+                    words.add(word);
+                begin = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Gets the postings of a key, creating them if needed.
+     * @param index The index of the key.
+     * @param key The key.
+     * @return The Items of the key.
+     */
+    private static IntList postings(HashMap<String, IntList> index, String key) {
+        IntList list = index.get(key);
+        if (list == null) {
+            list = new IntList();
+            index.put(key, list);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,666 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import datastructure.Item;
+
+/**
+ * Class for the streaming result page parser. Reads the page as
+ * a stream of characters without building a DOM, keeping only the
+ * text of the elements Items are extracted from, and reports each
+ * Item as soon as its card is closed. Extracts the same fields as
+ * DOMParser, matching class attributes as they are written: a card
+ * nested in another one, as in a truncated card swallowed by the
+ * card before it, is an Item of its own, and its elements count
+ * for the outer card as well. Items are listed in the order their
+ * cards start.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public class StreamParser implements PageParser {
+
+    /** elements that never have content */
+    private static final Set<String> VOID_TAGS = new HashSet<String>(Arrays.asList(
+            "area", "base", "br", "col", "command", "embed", "hr", "img", "input",
+            "keygen", "link", "meta", "param", "source", "track", "wbr"));
+
+    /** elements whose content is not text */
+    private static final Set<String> RAW_TAGS = new HashSet<String>(Arrays.asList(
+            "script", "style"));
+
+    /** elements whose text is separated from the preceding text */
+    private static final Set<String> BLOCK_TAGS = new HashSet<String>(Arrays.asList(
+            "address", "article", "aside", "blockquote", "br", "caption", "dd", "div",
+            "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2",
+            "h3", "h4", "h5", "h6", "header", "hr", "li", "nav", "ol", "p", "pre",
+            "section", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul"));
+
+    /** character entities decoded even without their ';' */
+    private static final Set<String> BASE_ENTITIES = new HashSet<String>(Arrays.asList(
+            "amp", "lt", "gt", "quot", "nbsp"));
+
+    /** elements implicitly closing an open paragraph */
+    private static final Set<String> PARAGRAPH_CLOSERS = new HashSet<String>(Arrays.asList(
+            "address", "article", "aside", "blockquote", "div", "dl", "fieldset", "figcaption",
+            "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr",
+            "nav", "ol", "p", "pre", "section", "table", "ul"));
+
+    /** elements bounding the search for an open paragraph */
+    private static final Set<String> SCOPE_TAGS = new HashSet<String>(Arrays.asList(
+            "applet", "button", "caption", "html", "marquee", "object", "table", "td", "th"));
+
+    /** character entities decoded in text */
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", '\u00a0');
+        ENTITIES.put("reg", '\u00ae');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("copy", '\u00a9');
+        ENTITIES.put("deg", '\u00b0');
+        ENTITIES.put("frac12", '\u00bd');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rdquo", '\u201d');
+        ENTITIES.put("ldquo", '\u201c');
+    }
+
+    /**
+     * Class for the fields of an open card.
+     */
+    private static class Card {
+
+        /** depth of the card element */
+        final int depth;
+
+        /** position of the Item of this card among the Items found */
+        final int index;
+
+        /** depth of the open title element; 0 if none */
+        int titleDepth;
+
+        /** depth of the open price element; 0 if none */
+        int priceDepth;
+
+        /** depth of the open seller element; 0 if none */
+        int sellerDepth;
+
+        /** text of the current title element */
+        StringBuilder titleText;
+
+        /** text of the current price element */
+        StringBuilder priceText;
+
+        /** text of the current seller element */
+        StringBuilder sellerText;
+
+        /** name of this card; null if no title closed yet */
+        String name;
+
+        /** price of this card; null if no price closed yet */
+        String price;
+
+        /** product identity of this card; null if none found yet */
+        String productId;
+
+        /** joined seller texts of this card */
+        final StringBuilder seller = new StringBuilder();
+
+        /**
+         * Constructor for Card.
+         * @param depth The depth of the card element.
+         * @param index The position of the Item of this card
+         * among the Items found.
+         */
+        Card(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Interface for receiving results while a page is parsed.
+     */
+    public interface Listener {
+
+        /**
+         * Receives an Item once its card is closed, so that
+         * the Item of a nested card comes before the Item of
+         * the card around it.
+         * @param item The Item found.
+         */
+        void item(Item item);
+
+        /**
+         * Receives the total number of Items once known.
+         * @param totalNum The total number of Items found.
+         */
+        void total(String totalNum);
+    }
+
+    /** the listener of this parser; null if none */
+    private final Listener listener;
+
+    /** the Items found */
+    private List<Item> items;
+
+    /** the total number of Items found; empty if not found */
+    private String total;
+
+    /** the input being parsed */
+    private Reader in;
+
+    /** a character pushed back to the input; -1 if none */
+    private int pushedBack;
+
+    /** names of the open elements */
+    private List<String> open;
+
+    /** the open cards, outermost first */
+    private List<Card> cards;
+
+    /** depth of the open items count element; 0 if none */
+    private int totalDepth;
+
+    /** text of the items count element; null once closed */
+    private StringBuilder totalText;
+
+    /**
+     * Constructor for StreamParser.
+     */
+    public StreamParser() {
+        this(null);
+    }
+
+    /**
+     * Constructor for StreamParser.
+     * @param listener The listener receiving results while
+     * a page is parsed; null if none.
+     */
+    public StreamParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reads and parses a result page.
+     * @param in The body of the result page.
+     * @param charset The charset of the body; null for UTF-8.
+     * @param baseUri The URL the page was retrieved from.
+     * @throws IOException If the body cannot be read.
+     */
+    public void parse(InputStream in, String charset, String baseUri) throws IOException {
+        parse(new InputStreamReader(in, charset == null ? "UTF-8" : charset));
+    }
+
+    /**
+     * Reads and parses a result page.
+     * @param reader The body of the result page.
+     * @throws IOException If the body cannot be read.
+     */
+    public void parse(Reader reader) throws IOException {
+        long start = Metrics.start();
+        in = new BufferedReader(reader, 8192);
+        pushedBack = -1;
+        items = new ArrayList<Item>();
+        total = "";
+        open = new ArrayList<String>();
+        cards = new ArrayList<Card>();
+        totalDepth = 0;
+        totalText = new StringBuilder();
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<')
+                tag();
+            else if (c == '&')
+                entity();
+            else
+                text((char) c);
+        }
+        close(0);
+        // Items are extracted while parsing: the parse stage includes them
+        Metrics.stop(Metrics.PARSE, start);
+        Metrics.addItemsParsed(items.size());
+    }
+
+    /**
+     * Gets a List of Items for this page.
+     * @return A List of Items; an empty List if no matches found.
+     */
+    public List<Item> getAllItems() {
+        return items;
+    }
+
+    /**
+     * Gets the total number of Items found.
+     * @return The total number of Items found;
+     * an empty String if no matches found.
+     */
+    public String getItemsTotalNum() {
+        return total;
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Handles markup following a '&lt;'.
+     * @throws IOException If the input cannot be read.
+     */
+    private void tag() throws IOException {
+        int c = read();
+        if (c == '!') {
+            if (read() == '-' && read() == '-')
+                skipPast("-->");
+            else
+                skipPast(">");
+        }
+        else if (c == '?') {
+            skipPast(">");
+        }
+        else if (c == '/') {
+            String tagName = readName();
+            skipPast(">");
+            if (!tagName.isEmpty()) endTag(tagName);
+        }
+        else if (isLetter(c)) {
+            pushedBack = c;
+            startTag(readName());
+        }
+        else {
+            text('<');
+            if (c != -1) pushedBack = c;
+        }
+    }
+
+    /**
+     * Handles a start tag, reading its attributes.
+     * @param tagName The lower case name of the element.
+     * @throws IOException If the input cannot be read.
+     */
+    private void startTag(String tagName) throws IOException {
+        String cls = null;
+        String id = null;
+        String href = null;
+        boolean selfClosing = false;
+        int c;
+        while ((c = read()) != -1 && c != '>') {
+            if (c == '/') {
+                selfClosing = true;
+                continue;
+            }
+            if (isSpace(c))
+                continue;
+            selfClosing = false;
+            pushedBack = c;
+            String attr = readAttributeName();
+            String value = readAttributeValue();
+            if (attr.equals("class")) cls = value;
+            else if (attr.equals("id")) id = value;
+            else if (attr.equals("href")) href = value;
+        }
+        if (RAW_TAGS.contains(tagName)) {
+            skipRaw(tagName);
+            return;
+        }
+        if (PARAGRAPH_CLOSERS.contains(tagName))
+            closeParagraph();
+        if (BLOCK_TAGS.contains(tagName))
+            space();
+        if (selfClosing || VOID_TAGS.contains(tagName))
+            return;
+        open.add(tagName);
+        int depth = open.size();
+        if (cls == null) cls = "";
+        if (cls.equalsIgnoreCase("cardInner")) {
+            cards.add(new Card(depth, items.size()));
+            // keeps the place of the Item until its card is closed
+            items.add(null);
+        }
+        if (!cards.isEmpty()) {
+            boolean title = cls.equalsIgnoreCase("cardProdTitle");
+            boolean pricing = cls.toLowerCase().contains("price_v2");
+            boolean mrkplc = "mrkplc".equalsIgnoreCase(id);
+            // the elements of a card count for every card it is in, itself included
+            for (int i = 0; i < cards.size(); ++i) {
+                Card card = cards.get(i);
+                if (title && card.name == null && card.titleDepth == 0) {
+                    card.titleDepth = depth;
+                    card.titleText = new StringBuilder();
+                }
+                if (card.titleDepth > 0 && card.productId == null && tagName.equals("a"))
+                    card.productId = DOMParser.toProductId(href);
+                if (pricing && card.price == null && card.priceDepth == 0) {
+                    card.priceDepth = depth;
+                    card.priceText = new StringBuilder();
+                }
+                if (mrkplc && card.sellerDepth == 0) {
+                    card.sellerDepth = depth;
+                    card.sellerText = new StringBuilder();
+                }
+            }
+        }
+        if (totalDepth == 0 && totalText != null && "nmbProdItems".equals(id))
+            totalDepth = depth;
+    }
+
+    /**
+     * Handles an end tag, closing the matching element and any
+     * element left open inside it. An end tag without a matching
+     * open element is ignored.
+     * @param tagName The lower case name of the element.
+     */
+    private void endTag(String tagName) {
+        for (int i = open.size() - 1; i >= 0; --i) {
+            if (open.get(i).equals(tagName)) {
+                close(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes open elements down to this depth, completing the
+     * fields whose elements are closed.
+     * @param depth The number of elements left open.
+     */
+    private void close(int depth) {
+        while (open.size() > depth)
+            open.remove(open.size() - 1);
+        for (int i = cards.size() - 1; i >= 0; --i) {
+            Card card = cards.get(i);
+            if (card.titleDepth > depth) {
+                card.name = normalize(card.titleText);
+                card.titleDepth = 0;
+            }
+            if (card.priceDepth > depth) {
+                card.price = normalize(card.priceText);
+                card.priceDepth = 0;
+            }
+            if (card.sellerDepth > depth) {
+                if (card.seller.length() != 0) card.seller.append(' ');
+                card.seller.append(normalize(card.sellerText));
+                card.sellerDepth = 0;
+            }
+            if (card.depth > depth) {
+                Item item = new Item(card.name == null ? "" : card.name,
+                                     card.price == null ? "" : card.price,
+                                     DOMParser.toVendor(card.seller), card.productId);
+                items.set(card.index, item);
+                cards.remove(i);
+                if (listener != null) listener.item(item);
+            }
+        }
+        if (totalDepth > depth) {
+            try {
+                total = DOMParser.toTotal(normalize(totalText));
+            }
+            catch (RuntimeException e) {
+                total = "";
+            }
+            totalText = null;
+            totalDepth = 0;
+            if (listener != null) listener.total(total);
+        }
+    }
+
+    /**
+     * Closes the innermost open paragraph, if any, the way
+     * browsers do when a block element starts inside it.
+     */
+    private void closeParagraph() {
+        for (int i = open.size() - 1; i >= 0; --i) {
+            String tagName = open.get(i);
+            if (tagName.equals("p")) {
+                close(i);
+                return;
+            }
+            if (SCOPE_TAGS.contains(tagName))
+                return;
+        }
+    }
+
+    /**
+     * Adds a character of text to the fields being read.
+     * @param c The character of text.
+     */
+    private void text(char c) {
+        for (int i = 0; i < cards.size(); ++i) {
+            Card card = cards.get(i);
+            if (card.titleDepth > 0) card.titleText.append(c);
+            if (card.priceDepth > 0) card.priceText.append(c);
+            if (card.sellerDepth > 0) card.sellerText.append(c);
+        }
+        if (totalDepth > 0) totalText.append(c);
+    }
+
+    /**
+     * Separates the text of a block element from the text
+     * preceding it in the fields being read.
+     */
+    private void space() {
+        text(' ');
+    }
+
+    /**
+     * Reads a character entity following a '&amp;' and adds it
+     * to the text. An entity that is not recognized is left as
+     * text; the basic ones are recognized without their ';'.
+     * @throws IOException If the input cannot be read.
+     */
+    private void entity() throws IOException {
+        StringBuilder ref = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && c != ';' && ref.length() < 10
+                && (isLetter(c) || Character.isDigit(c) || c == '#')) {
+            ref.append((char) c);
+        }
+        String r = ref.toString();
+        Character decoded = null;
+        if (r.startsWith("#x") || r.startsWith("#X")) {
+            decoded = codePoint(r.substring(2), 16);
+        }
+        else if (r.startsWith("#")) {
+            decoded = codePoint(r.substring(1), 10);
+        }
+        else if (c == ';' || BASE_ENTITIES.contains(r)) {
+            decoded = ENTITIES.get(r);
+        }
+        if (decoded != null) {
+            text(decoded);
+            if (c != ';' && c != -1) pushedBack = c;
+            return;
+        }
+        text('&');
+        for (int i = 0; i < r.length(); ++i)
+            text(r.charAt(i));
+        if (c != -1) pushedBack = c;
+    }
+    
+    /**
+     * Decodes a numeric character reference.
+     * @param digits The digits of the reference.
+     * @param radix The radix of the digits.
+     * @return The character; null if invalid.
+     */
+    private static Character codePoint(String digits, int radix) {
+        try {
+            int code = Integer.parseInt(digits, radix);
+            return code > 0 && code <= Character.MAX_VALUE ? (char) code : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a tag name.
+     * @return The lower case tag name.
+     * @throws IOException If the input cannot be read.
+     */
+    private String readName() throws IOException {
+        StringBuilder tagName = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && !isSpace(c) && c != '>' && c != '/')
+            tagName.append(Character.toLowerCase((char) c));
+        if (c != -1) pushedBack = c;
+        return tagName.toString();
+    }
+
+    /**
+     * Reads an attribute name.
+     * @return The lower case attribute name.
+     * @throws IOException If the input cannot be read.
+     */
+    private String readAttributeName() throws IOException {
+        StringBuilder attr = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && !isSpace(c) && c != '>' && c != '=' && c != '/')
+            attr.append(Character.toLowerCase((char) c));
+        if (c != -1) pushedBack = c;
+        return attr.toString();
+    }
+
+    /**
+     * Reads an attribute value, if any.
+     * @return The attribute value; empty if none.
+     * @throws IOException If the input cannot be read.
+     */
+    private String readAttributeValue() throws IOException {
+        int c = read();
+        while (isSpace(c))
+            c = read();
+        if (c != '=') {
+            if (c != -1) pushedBack = c;
+            return "";
+        }
+        c = read();
+        while (isSpace(c))
+            c = read();
+        StringBuilder value = new StringBuilder();
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            while ((c = read()) != -1 && c != quote)
+                value.append((char) c);
+        }
+        else {
+            while (c != -1 && !isSpace(c) && c != '>') {
+                value.append((char) c);
+                c = read();
+            }
+            if (c != -1) pushedBack = c;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Skips the content of a raw text element up to and
+     * including its end tag.
+     * @param tagName The lower case name of the element.
+     * @throws IOException If the input cannot be read.
+     */
+    private void skipRaw(String tagName) throws IOException {
+        String end = "</" + tagName;
+        int matched = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (Character.toLowerCase((char) c) == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    skipPast(">");
+                    return;
+                }
+            }
+            else {
+                matched = Character.toLowerCase((char) c) == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Skips the input up to and including a marker.
+     * @param marker The marker to be skipped past.
+     * @throws IOException If the input cannot be read.
+     */
+    private void skipPast(String marker) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == marker.charAt(matched)) {
+                if (++matched == marker.length()) return;
+            }
+            else {
+                matched = c == marker.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the next character of input.
+     * @return The next character; -1 at the end of input.
+     * @throws IOException If the input cannot be read.
+     */
+    private int read() throws IOException {
+        if (pushedBack != -1) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        return in.read();
+    }
+
+    /**
+     * Collapses runs of whitespace in a text into single spaces,
+     * trimming it the way DOMParser does.
+     * @param text The text to be normalized.
+     * @return The normalized text.
+     */
+    private static String normalize(StringBuilder text) {
+        StringBuilder out = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (isSpace(c)) {
+                space = true;
+            }
+            else {
+                if (space && out.length() > 0) out.append(' ');
+                out.append(c);
+                space = false;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Determines whether a character is HTML whitespace.
+     * @param c The character to be checked.
+     * @return True if the character is whitespace; false otherwise.
+     */
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Determines whether a character is an ASCII letter.
+     * @param c The character to be checked.
+     * @return True if the character is a letter; false otherwise.
+     */
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -0,0 +1,25 @@
+package util;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Interface for the transport used by the HTTP client to
+ * retrieve web pages.
+ * @author Zhishen Wen
+ * @version Sep 20, 2013
+ */
+public interface Transport {
+    
+    /**
+     * Sends a GET request. The response has to be closed
+     * once its body has been read.
+     * @param url The URL to be retrieved.
+     * @param headers Additional request headers; may be empty.
+     * @return The response, with its body decoded.
+     * @throws IOException If the request fails or the server
+     * answers with an error status.
+     */
+    HttpResponse get(String url, Map<String, String> headers) throws IOException;
+    
+}
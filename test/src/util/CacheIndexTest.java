@@ -0,0 +1,306 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the tests of the cache index: keys are found through
+ * probe chains as the index grows, after keys along the chains are
+ * removed and added again, and after the log is compacted and the
+ * index reopened; a slot pointing at the record of another key is
+ * taken for a miss.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class CacheIndexTest {
+
+    /** the number of keywords indexed, enough for the index to grow */
+    private static final int KEYWORDS = 600;
+
+    /** the number of pages of each keyword */
+    private static final int PAGES = 3;
+
+    /**
+     * Constructor for CacheIndexTest, not to be called.
+     */
+    private CacheIndexTest() {
+    }
+
+    /**
+     * Gets the tests of the cache index.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("cacheIndex.probe") {
+                void run(File dir) throws IOException {
+                    probe(dir);
+                }
+            },
+            new Tests.Test("cacheIndex.delete") {
+                void run(File dir) throws IOException {
+                    delete(dir);
+                }
+            },
+            new Tests.Test("cacheIndex.relocate") {
+                void run(File dir) throws IOException {
+                    relocate(dir);
+                }
+            },
+            new Tests.Test("cacheIndex.otherKey") {
+                void run(File dir) throws IOException {
+                    otherKey(dir);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Indexes enough pages for the index to grow several times,
+     * and finds each of them, its fetch time and its keyword.
+     * @param dir The folder of the test files.
+     * @throws IOException If the files cannot be used.
+     */
+    private static void probe(File dir) throws IOException {
+        CacheLog log = log(dir);
+        CacheIndex index = index(dir, log);
+        long[][] offsets = fill(log, index);
+        Tests.checkEqual(KEYWORDS * PAGES, index.pages(), "pages indexed");
+        Tests.checkEqual(KEYWORDS * PAGES, index.pageSlots().size(), "page slots");
+        for (int k = 0; k < KEYWORDS; ++k) {
+            for (int p = 1; p <= PAGES; ++p) {
+                Tests.checkEqual(offsets[k][p], index.get(keyword(k), p), "offset of " + key(k, p));
+                Tests.checkEqual(fetchTime(k, p), index.getFetchTime(keyword(k), p),
+                                 "fetch time of " + key(k, p));
+            }
+            Tests.checkEqual(offsets[k][PAGES], index.get(keyword(k), 0),
+                             "keyword " + k + " at its latest page");
+            Tests.checkEqual(PAGES, index.getMaxPage(keyword(k)), "pages of keyword " + k);
+            Tests.checkEqual(-1L, index.get(keyword(k), PAGES + 1), "page not indexed");
+        }
+        Tests.checkEqual(-1L, index.get("missing", 1), "keyword not indexed");
+
+        long newer = log.append(new CachePage(keyword(7), 2, "30", new ArrayList<Item>(), 99));
+        long old = index.put(keyword(7), 2, newer, 99);
+        Tests.checkEqual(offsets[7][2], old, "superseded offset");
+        Tests.checkEqual(newer, index.get(keyword(7), 2), "offset replaced");
+        Tests.checkEqual(99L, index.getFetchTime(keyword(7), 2), "fetch time replaced");
+        Tests.checkEqual(newer, index.get(keyword(7), 0), "keyword at the page replaced");
+        Tests.checkEqual(KEYWORDS * PAGES, index.pages(), "pages after replacing");
+        index.close();
+        log.close();
+    }
+
+    /**
+     * Removes pages in the middle of probe chains, checks that the
+     * pages past them are still found and the keyword slots moved,
+     * then adds them again into the slots freed.
+     * @param dir The folder of the test files.
+     * @throws IOException If the files cannot be used.
+     */
+    private static void delete(File dir) throws IOException {
+        CacheLog log = log(dir);
+        CacheIndex index = index(dir, log);
+        long[][] offsets = fill(log, index);
+        for (int k = 0; k < KEYWORDS; k += 2) {
+            Tests.checkEqual(offsets[k][PAGES], index.remove(keyword(k), PAGES),
+                             "removed offset of " + key(k, PAGES));
+            Tests.checkEqual(-1L, index.remove(keyword(k), PAGES), "removed twice");
+        }
+        for (int k = 0; k < KEYWORDS; k += 3) {
+            for (int p = 1; p < PAGES; ++p)
+                index.remove(keyword(k), p);
+        }
+        int pages = 0;
+        for (int k = 0; k < KEYWORDS; ++k) {
+            long latest = -1;
+            for (int p = 1; p <= PAGES; ++p) {
+                boolean removed = (k % 2 == 0 && p == PAGES) || (k % 3 == 0 && p < PAGES);
+                long expected = removed ? -1 : offsets[k][p];
+                Tests.checkEqual(expected, index.get(keyword(k), p), "offset of " + key(k, p));
+                latest = Math.max(latest, expected);
+                if (!removed) ++pages;
+            }
+            Tests.checkEqual(latest, index.get(keyword(k), 0),
+                             "keyword " + k + " at its latest remaining page");
+        }
+        Tests.checkEqual(pages, index.pages(), "pages after removing");
+
+        int id = index.id();
+        for (int k = 0; k < KEYWORDS; k += 2)
+            index.put(keyword(k), PAGES, offsets[k][PAGES], fetchTime(k, PAGES));
+        Tests.checkEqual(id, index.id(), "slots freed reused without growing");
+        for (int k = 0; k < KEYWORDS; k += 2) {
+            Tests.checkEqual(offsets[k][PAGES], index.get(keyword(k), PAGES),
+                             "offset of " + key(k, PAGES) + " added again");
+            Tests.checkEqual(offsets[k][PAGES], index.get(keyword(k), 0),
+                             "keyword " + k + " at the page added again");
+        }
+        index.close();
+        log.close();
+    }
+
+    /**
+     * Compacts the log, moves the slots to the new offsets, then
+     * reopens the index for the compacted log only.
+     * @param dir The folder of the test files.
+     * @throws IOException If the files cannot be used.
+     */
+    private static void relocate(File dir) throws IOException {
+        CacheLog log = log(dir);
+        CacheIndex index = index(dir, log);
+        long[][] offsets = fill(log, index);
+        // superseded records for the compaction to drop
+        for (int k = 0; k < KEYWORDS; k += 5)
+            offsets[k][1] = put(log, index, k, 1);
+        long oldGeneration = log.generation();
+        Map<Long, Long> moved = log.compact(log.live());
+        index.relocate(moved, log.generation(), log.length());
+        Tests.checkEqual(log.length(), index.indexedLength(), "indexed length after compacting");
+        for (int k = 0; k < KEYWORDS; ++k) {
+            long latest = -1;
+            for (int p = 1; p <= PAGES; ++p) {
+                long offset = index.get(keyword(k), p);
+                Tests.checkEqual(moved.get(offsets[k][p]), offset, "offset of " + key(k, p));
+                Tests.checkEqual(keyword(k), log.readHeader(offset).getKeyword(),
+                                 "record of " + key(k, p));
+                latest = Math.max(latest, offsets[k][p]);
+            }
+            Tests.checkEqual(moved.get(latest), index.get(keyword(k), 0),
+                             "keyword " + k + " moved");
+        }
+        index.close();
+
+        index = new CacheIndex(new File(dir, "cache.idx"), log);
+        Tests.check(!index.open(oldGeneration, log.length()), "index reopened for the old log");
+        Tests.check(!index.open(log.generation(), log.length() - 1),
+                    "index reopened for a shorter log");
+        Tests.check(index.open(log.generation(), log.length()), "index reopened");
+        Tests.checkEqual(moved.get(offsets[3][2]), index.get(keyword(3), 2),
+                         "offset after reopening");
+        Tests.checkEqual(KEYWORDS * PAGES, index.pages(), "pages after reopening");
+        index.close();
+        log.close();
+    }
+
+    /**
+     * Points a key at the record of another key, as a hash
+     * collision would, and checks that it is taken for a miss.
+     * @param dir The folder of the test files.
+     * @throws IOException If the files cannot be used.
+     */
+    private static void otherKey(File dir) throws IOException {
+        CacheLog log = log(dir);
+        CacheIndex index = index(dir, log);
+        long tv = log.append(new CachePage("tv", 2, "1", new ArrayList<Item>(), 1));
+        long radio = log.append(new CachePage("radio", 1, "1", new ArrayList<Item>(), 1));
+        index.put("radio", 1, tv, 1);
+        Tests.checkEqual(-1L, index.get("radio", 1), "page of another keyword");
+        Tests.checkEqual(-1L, index.get("radio", 0), "keyword of another record");
+        index.put("tv", 1, tv, 1);
+        Tests.checkEqual(-1L, index.get("tv", 1), "page of another page number");
+        Tests.checkEqual(tv, index.get("tv", 0), "keyword of any page");
+        index.put("radio", 1, radio, 1);
+        Tests.checkEqual(radio, index.get("radio", 1), "page once its record is written");
+        index.close();
+        log.close();
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Opens a new log.
+     * @param dir The folder of the log.
+     * @return The log.
+     * @throws IOException If the log cannot be created.
+     */
+    private static CacheLog log(File dir) throws IOException {
+        CacheLog log = new CacheLog(new File(dir, "cache.dat"));
+        log.open();
+        return log;
+    }
+
+    /**
+     * Creates a new empty index for a log.
+     * @param dir The folder of the index.
+     * @param log The log.
+     * @return The index.
+     * @throws IOException If the index cannot be created.
+     */
+    private static CacheIndex index(File dir, CacheLog log) throws IOException {
+        CacheIndex index = new CacheIndex(new File(dir, "cache.idx"), log);
+        index.create(log.generation(), log.length());
+        return index;
+    }
+
+    /**
+     * Writes and indexes every page of every keyword.
+     * @param log The log.
+     * @param index The index.
+     * @return The offset of each page, by keyword and page number.
+     * @throws IOException If the files cannot be written.
+     */
+    private static long[][] fill(CacheLog log, CacheIndex index) throws IOException {
+        long[][] offsets = new long[KEYWORDS][PAGES + 1];
+        for (int k = 0; k < KEYWORDS; ++k) {
+            for (int p = 1; p <= PAGES; ++p)
+                offsets[k][p] = put(log, index, k, p);
+        }
+        return offsets;
+    }
+
+    /**
+     * Writes and indexes a page.
+     * @param log The log.
+     * @param index The index.
+     * @param k The number of the keyword.
+     * @param pageNum The page number.
+     * @return The offset of the page.
+     * @throws IOException If the files cannot be written.
+     */
+    private static long put(CacheLog log, CacheIndex index, int k, int pageNum)
+            throws IOException {
+        long offset = log.append(new CachePage(keyword(k), pageNum, "30",
+                                               new ArrayList<Item>(), fetchTime(k, pageNum)));
+        index.put(keyword(k), pageNum, offset, fetchTime(k, pageNum));
+        index.setIndexedLength(log.length());
+        return offset;
+    }
+
+    /**
+     * Gets the keyword of a number.
+     * @param k The number of the keyword.
+     * @return The keyword.
+     */
+    private static String keyword(int k) {
+        return "keyword " + k;
+    }
+
+    /**
+     * Describes a key.
+     * @param k The number of the keyword.
+     * @param pageNum The page number.
+     * @return The description.
+     */
+    private static String key(int k, int pageNum) {
+        return "'" + keyword(k) + "' page " + pageNum;
+    }
+
+    /**
+     * Gets the fetch time of a page.
+     * @param k The number of the keyword.
+     * @param pageNum The page number.
+     * @return The fetch time.
+     */
+    private static long fetchTime(int k, int pageNum) {
+        return 1000000L * k + pageNum;
+    }
+}
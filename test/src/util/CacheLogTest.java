@@ -0,0 +1,231 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the tests of the cache log: pages written are read
+ * back whole, before and after reopening and compacting the log,
+ * and a record cut short or corrupted by an interrupted write is
+ * dropped on the next scan without losing the records before it.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class CacheLogTest {
+
+    /**
+     * Constructor for CacheLogTest, not to be called.
+     */
+    private CacheLogTest() {
+    }
+
+    /**
+     * Gets the tests of the cache log.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("cacheLog.roundTrip") {
+                void run(File dir) throws IOException {
+                    roundTrip(dir);
+                }
+            },
+            new Tests.Test("cacheLog.tornTail") {
+                void run(File dir) throws IOException {
+                    tornTail(dir, false);
+                }
+            },
+            new Tests.Test("cacheLog.corruptTail") {
+                void run(File dir) throws IOException {
+                    tornTail(dir, true);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Writes pages, removal markers and validators, and reads
+     * them back from the log as written, from a reopened log,
+     * and from the compacted log.
+     * @param dir The folder of the test files.
+     * @throws IOException If the log cannot be used.
+     */
+    private static void roundTrip(File dir) throws IOException {
+        File file = new File(dir, "cache.dat");
+        CacheLog log = new CacheLog(file);
+        log.open();
+        CachePage first = page("tv", 1, 3);
+        first.setEtag("\"abc\"");
+        first.setLastModified("Fri, 20 Sep 2013 10:00:00 GMT");
+        first.setContentHash(0x123456789abcdefL);
+        long a = log.append(first);
+        Tests.check(a == CacheLog.HEADER_SIZE, "first record at the end of the header");
+        long[] batch = log.append(Arrays.asList(page("tv", 2, 0), page("caf\u00e9 \u4e2d", 1, 5)));
+        long removed = log.appendDelete("tv", 2);
+        CachePage empty = new CachePage("none", 1, "0", null, 42);
+        long c = log.append(empty);
+        long length = log.length();
+
+        checkPage(first, log.read(a), "first page");
+        checkPage(page("tv", 2, 0), log.read(batch[0]), "page of a batch");
+        checkPage(page("caf\u00e9 \u4e2d", 1, 5), log.read(batch[1]), "non-ASCII keyword");
+        checkPage(empty, log.read(c), "page without Items");
+        Tests.checkEqual("tv", log.readHeader(a).getKeyword(), "header keyword");
+        Tests.check(log.readHeader(a).getItems() == null, "header without Items");
+        Tests.check(log.holds(a, "tv", 1) && log.holds(a, "tv", 0), "record holds its key");
+        Tests.check(!log.holds(a, "tv", 2) && !log.holds(a, "tw", 1) && !log.holds(a, "t", 1),
+                    "record does not hold another key");
+        Tests.check(log.holds(batch[1], "caf\u00e9 \u4e2d", 1), "record holds a non-ASCII key");
+        Tests.check(!log.holds(removed, "tv", 2), "removal marker holds no page");
+        try {
+            log.read(removed);
+            Tests.check(false, "removal marker read as a page");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        log.close();
+
+        log = new CacheLog(file);
+        log.open();
+        final List<Long> offsets = new ArrayList<Long>();
+        final List<Byte> types = new ArrayList<Byte>();
+        log.scan(CacheLog.HEADER_SIZE, new CacheLog.Visitor() {
+            public void visit(long offset, int size, byte type, CachePage header) {
+                offsets.add(offset);
+                types.add(type);
+            }
+        });
+        Tests.checkEqual(Arrays.asList(a, batch[0], batch[1], removed, c), offsets,
+                         "offsets scanned");
+        Tests.checkEqual(Arrays.asList(CacheLog.TYPE_PUT, CacheLog.TYPE_PUT, CacheLog.TYPE_PUT,
+                                       CacheLog.TYPE_DELETE, CacheLog.TYPE_PUT),
+                         types, "types scanned");
+        Tests.checkEqual(length, log.length(), "length after reopening");
+        checkPage(first, log.read(a), "first page after reopening");
+
+        List<Long> live = log.live();
+        Tests.checkEqual(Arrays.asList(a, batch[1], c), live, "live records");
+        long generation = log.generation();
+        Map<Long, Long> moved = log.compact(live);
+        Tests.check(log.generation() != generation, "new generation after compacting");
+        Tests.checkEqual((long) CacheLog.HEADER_SIZE, moved.get(a), "first record moved");
+        checkPage(first, log.read(moved.get(a)), "first page after compacting");
+        checkPage(page("caf\u00e9 \u4e2d", 1, 5), log.read(moved.get(batch[1])),
+                  "non-ASCII keyword after compacting");
+        checkPage(empty, log.read(moved.get(c)), "page without Items after compacting");
+        log.close();
+    }
+
+    /**
+     * Cuts the last record short, or corrupts it, as an
+     * interrupted write would, then checks that a scan drops
+     * it alone and that the log can be written after it.
+     * @param dir The folder of the test files.
+     * @param corrupt True to corrupt the last record; false to
+     * cut it short.
+     * @throws IOException If the log cannot be used.
+     */
+    private static void tornTail(File dir, boolean corrupt) throws IOException {
+        File file = new File(dir, "cache.dat");
+        CacheLog log = new CacheLog(file);
+        log.open();
+        long a = log.append(page("tv", 1, 3));
+        long b = log.append(page("tv", 2, 3));
+        long end = log.length();
+        log.append(page("tv", 3, 3));
+        long length = log.length();
+        log.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (corrupt) {
+                raf.seek(length - 1);
+                int last = raf.read();
+                raf.seek(length - 1);
+                raf.write(last ^ 0xff);
+            }
+            else {
+                raf.setLength(length - 5);
+            }
+        }
+        finally {
+            raf.close();
+        }
+
+        log = new CacheLog(file);
+        log.open();
+        final List<Long> offsets = new ArrayList<Long>();
+        log.scan(CacheLog.HEADER_SIZE, new CacheLog.Visitor() {
+            public void visit(long offset, int size, byte type, CachePage header) {
+                offsets.add(offset);
+            }
+        });
+        Tests.checkEqual(Arrays.asList(a, b), offsets, "records kept");
+        Tests.checkEqual(end, log.length(), "length after the torn record");
+        Tests.checkEqual(end, file.length(), "file cut back to the last complete record");
+        checkPage(page("tv", 2, 3), log.read(b), "record before the torn one");
+        long c = log.append(page("tv", 4, 2));
+        Tests.checkEqual(end, c, "record written over the torn one");
+        log.close();
+
+        log = new CacheLog(file);
+        log.open();
+        offsets.clear();
+        log.scan(CacheLog.HEADER_SIZE, new CacheLog.Visitor() {
+            public void visit(long offset, int size, byte type, CachePage header) {
+                offsets.add(offset);
+            }
+        });
+        Tests.checkEqual(Arrays.asList(a, b, c), offsets, "records after recovery");
+        checkPage(page("tv", 4, 2), log.read(c), "record written after recovery");
+        log.close();
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Creates a page of Items without product identities.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @param size The number of Items.
+     * @return The page.
+     */
+    private static CachePage page(String keyword, int pageNum, int size) {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < size; ++i) {
+            items.add(new Item(keyword + " item " + i,
+                               i == 2 ? "See price in cart" : "$" + (i + 1) + ".9" + i,
+                               i == 1 ? null : "Vendor " + (i % 3)));
+        }
+        return new CachePage(keyword, pageNum, String.valueOf(size * 10), items, 1000L * pageNum);
+    }
+
+    /**
+     * Checks that a page read has the fields of the page written.
+     * @param expected The page written.
+     * @param actual The page read.
+     * @param what What is checked.
+     */
+    private static void checkPage(CachePage expected, CachePage actual, String what) {
+        Tests.checkEqual(expected.getKeyword(), actual.getKeyword(), what + ", keyword");
+        Tests.checkEqual(expected.getPageNum(), actual.getPageNum(), what + ", page number");
+        Tests.checkEqual(expected.getTotal(), actual.getTotal(), what + ", total");
+        Tests.checkEqual(expected.getFetchTime(), actual.getFetchTime(), what + ", fetch time");
+        Tests.checkEqual(expected.getEtag(), actual.getEtag(), what + ", ETag");
+        Tests.checkEqual(expected.getLastModified(), actual.getLastModified(),
+                         what + ", Last-Modified");
+        Tests.checkEqual(expected.getContentHash(), actual.getContentHash(),
+                         what + ", content hash");
+        Tests.checkItems(expected.getItems(), actual.getItems(), what + ", Items");
+    }
+}
@@ -0,0 +1,226 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.CachePage;
+
+/**
+ * Class for the tests of cache shards shared by two processes: a
+ * lookup waits for the write another process is making to the
+ * shard and then finds its page, and a log compacted and an index
+ * rehashed by another process are noticed and reopened. The other
+ * process is a second virtual machine running the main method of
+ * this class.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class CacheShardTest {
+
+    /** the name of the shard files, without extension */
+    private static final String NAME = "shard";
+
+    /** how long the other process holds the shard locked, in milliseconds */
+    private static final long HOLD = 500;
+
+    /** how long to wait for the other process, in milliseconds */
+    private static final long TIMEOUT = 30 * 1000L;
+
+    /** the number of keywords the other process adds, enough for the index to grow */
+    private static final int KEYWORDS = 400;
+
+    /**
+     * Constructor for CacheShardTest, not to be called.
+     */
+    private CacheShardTest() {
+    }
+
+    /**
+     * Gets the tests of cache shards shared by two processes.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("cacheShard.twoProcesses") {
+                void run(File dir) throws Exception {
+                    twoProcesses(dir);
+                }
+            },
+            new Tests.Test("cacheShard.replaced") {
+                void run(File dir) throws Exception {
+                    replaced(dir);
+                }
+            });
+    }
+
+    /**
+     * Runs the part of a test played by the other process.
+     * @param args The name of the part ("write" or "replace"),
+     * then the folder of the shard files.
+     * @throws Exception If the shard cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[1]);
+        CacheShard shard = new CacheShard(dir, NAME);
+        shard.lockExclusive();
+        try {
+            if (args[0].equals("write")) {
+                if (!new File(dir, "locked").createNewFile())
+                    throw new IOException("Marker file already exists.");
+                Thread.sleep(HOLD);
+                put(shard, CacheTest.page("other", 1));
+            }
+            else {
+                replace(shard);
+            }
+        }
+        finally {
+            shard.unlock();
+            shard.close();
+        }
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Looks a shard up while another process holds it locked for
+     * a write, and checks that the lookup waits for the write and
+     * then finds the page written.
+     * @param dir The folder of the test files.
+     * @throws Exception If the shard cannot be used or the other
+     * process cannot be run.
+     */
+    private static void twoProcesses(File dir) throws Exception {
+        CacheShard shard = new CacheShard(dir, NAME);
+        try {
+            shard.lockExclusive();
+            put(shard, CacheTest.page("own", 1));
+            shard.unlock();
+
+            Process other = start("write", dir);
+            File marker = new File(dir, "locked");
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!marker.exists() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Tests.check(marker.exists(), "shard locked by the other process");
+            long start = System.nanoTime();
+            shard.lockShared();
+            try {
+                long waited = (System.nanoTime() - start) / 1000000;
+                Tests.check(waited >= HOLD / 2,
+                            "lookup waited for the write, " + waited + " ms");
+                checkPage(shard, CacheTest.page("other", 1), "page of the other process");
+                checkPage(shard, CacheTest.page("own", 1), "page of this process");
+            }
+            finally {
+                shard.unlock();
+            }
+            Tests.checkEqual(0, other.waitFor(), "exit status of the other process");
+        }
+        finally {
+            shard.close();
+        }
+    }
+
+    /**
+     * Lets another process compact the log of a shard and grow its
+     * index while this process has them open, and checks that both
+     * are reopened on the next lookup.
+     * @param dir The folder of the test files.
+     * @throws Exception If the shard cannot be used or the other
+     * process cannot be run.
+     */
+    private static void replaced(File dir) throws Exception {
+        CacheShard shard = new CacheShard(dir, NAME);
+        try {
+            shard.lockExclusive();
+            put(shard, CacheTest.page("own", 1));
+            put(shard, CacheTest.page("own", 2));
+            long generation = shard.log().generation();
+            int id = shard.index().id();
+            shard.unlock();
+
+            Tests.checkEqual(0, start("replace", dir).waitFor(),
+                             "exit status of the other process");
+            shard.lockShared();
+            try {
+                Tests.check(shard.log().generation() != generation, "compacted log reopened");
+                Tests.check(shard.index().id() != id, "grown index reopened");
+                Tests.check(shard.index().get("own", 1) < 0, "page removed by the other process");
+                checkPage(shard, CacheTest.page("own", 2), "page kept by the compaction");
+                for (int k = 0; k < KEYWORDS; ++k)
+                    checkPage(shard, CacheTest.page("other " + k, 1), "page of the other process");
+                Tests.checkEqual(KEYWORDS + 1, shard.index().pages(), "pages indexed");
+            }
+            finally {
+                shard.unlock();
+            }
+        }
+        finally {
+            shard.close();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Starts another process running a part of a test.
+     * @param part The name of the part.
+     * @param dir The folder of the shard files.
+     * @return The other process, started.
+     * @throws IOException If the other process cannot be started.
+     */
+    private static Process start(String part, File dir) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"), CacheShardTest.class.getName(),
+                part, dir.getPath());
+        return builder.inheritIO().start();
+    }
+
+    /**
+     * Removes a page of a shard, compacts its log, then adds
+     * enough pages for its index to grow.
+     * @param shard The shard, locked exclusively.
+     * @throws IOException If the shard cannot be written.
+     */
+    private static void replace(CacheShard shard) throws IOException {
+        CacheLog log = shard.log();
+        log.appendDelete("own", 1);
+        shard.unindex("own", 1);
+        shard.index().setIndexedLength(log.length());
+        List<Long> live = log.live();
+        shard.index().relocate(log.compact(live), log.generation(), log.length());
+        for (int k = 0; k < KEYWORDS; ++k)
+            put(shard, CacheTest.page("other " + k, 1));
+    }
+
+    /**
+     * Appends a page to the log of a shard and indexes it.
+     * @param shard The shard, locked exclusively.
+     * @param page The page to be appended.
+     * @throws IOException If the shard cannot be written.
+     */
+    private static void put(CacheShard shard, CachePage page) throws IOException {
+        CacheLog log = shard.log();
+        long offset = log.append(page);
+        shard.index(page, offset, (int) (log.length() - offset));
+        shard.index().setIndexedLength(log.length());
+    }
+
+    /**
+     * Checks that a shard holds a page.
+     * @param shard The shard, locked.
+     * @param expected The page expected.
+     * @param what What is checked.
+     * @throws IOException If the page cannot be read.
+     */
+    private static void checkPage(CacheShard shard, CachePage expected, String what)
+            throws IOException {
+        long offset = shard.index().get(expected.getKeyword(), expected.getPageNum());
+        Tests.check(offset >= 0, what + " found");
+        Tests.checkItems(expected.getItems(), shard.log().read(offset).getItems(), what);
+    }
+}
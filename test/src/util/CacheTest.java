@@ -0,0 +1,181 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the tests of the bounds of the cache: a page expires
+ * after its time to live but can still be revalidated, and once the
+ * cache grows past its number or size of pages, the least recently
+ * used pages are evicted first.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class CacheTest {
+
+    /** the default time to live of the tests, one day */
+    private static final long TTL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Constructor for CacheTest, not to be called.
+     */
+    private CacheTest() {
+    }
+
+    /**
+     * Gets the tests of the bounds of the cache.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("cache.ttl") {
+                void run(File dir) throws Exception {
+                    ttl(dir);
+                }
+            },
+            new Tests.Test("cache.lruEntries") {
+                void run(File dir) throws Exception {
+                    lruEntries(dir);
+                }
+            },
+            new Tests.Test("cache.lruBytes") {
+                void run(File dir) throws Exception {
+                    lruBytes(dir);
+                }
+            });
+    }
+
+    /**
+     * Opens the cache in a folder, with the default bounds.
+     * @param dir The folder of the cache files.
+     */
+    static void open(File dir) {
+        System.setProperty("scraper.cache.dir", dir.getPath());
+        Cache.setTtl(TTL);
+        Cache.setMaxEntries(0);
+        Cache.setMaxBytes(0);
+        Cache.init();
+    }
+
+    /**
+     * Closes the cache and restores its default bounds.
+     */
+    static void close() {
+        Cache.close();
+        Cache.setTtl(TTL);
+        Cache.setMaxEntries(0);
+        Cache.setMaxBytes(0);
+        System.clearProperty("scraper.cache.dir");
+    }
+
+    /**
+     * Creates a page of Items without product identities.
+     * @param keyword The keyword of the page.
+     * @param pageNum The page number of the page.
+     * @return The page.
+     */
+    static CachePage page(String keyword, int pageNum) {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 3; ++i)
+            items.add(new Item(keyword + " " + pageNum + " item " + i, "$1.0" + i, "Vendor"));
+        return new CachePage(keyword, pageNum, "30", items);
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Caches pages with a short time to live, for a keyword and
+     * for a single page, and checks that they expire while other
+     * pages do not, and that an expired page can be renewed.
+     * @param dir The folder of the test files.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void ttl(File dir) throws InterruptedException {
+        open(dir);
+        try {
+            Cache.setTtl("short", 50);
+            Cache.setTtl("mixed", 2, 50);
+            Cache.addPage(page("short", 1));
+            Cache.addPage(page("mixed", 1));
+            Cache.addPage(page("mixed", 2));
+            Tests.check(Cache.containsEntry("short", 1), "page fresh before its time to live");
+            Thread.sleep(100);
+            Tests.check(!Cache.containsEntry("short", 1), "page of the keyword expired");
+            Tests.check(!Cache.containsEntry("mixed", 2), "single page expired");
+            Tests.check(Cache.containsEntry("mixed", 1), "other page of the keyword kept");
+            Tests.check(Cache.getStalePage("short", 1) != null, "expired page still readable");
+            Tests.check(Cache.revalidate("short", 1), "expired page renewed");
+            Tests.check(Cache.containsEntry("short", 1), "renewed page fresh again");
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Caches more pages than the number allowed and checks that
+     * the least recently used ones are evicted.
+     * @param dir The folder of the test files.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void lruEntries(File dir) throws InterruptedException {
+        open(dir);
+        try {
+            // a keyword's pages share a shard, allowed three of them
+            Cache.setMaxEntries(3 * Cache.SHARDS);
+            long evictions = Cache.getEvictionCount();
+            for (int pageNum = 1; pageNum <= 3; ++pageNum) {
+                Cache.addPage(page("lru", pageNum));
+                Thread.sleep(5);
+            }
+            Tests.check(Cache.containsEntry("lru", 1), "first page used again");
+            Thread.sleep(5);
+            Cache.addPage(page("lru", 4));
+            Tests.checkEqual(evictions + 2, Cache.getEvictionCount(), "pages evicted");
+            Tests.check(Cache.containsEntry("lru", 1), "page used lately kept");
+            Tests.check(!Cache.containsEntry("lru", 2), "least recently used page evicted");
+            Tests.check(!Cache.containsEntry("lru", 3), "next least recently used page evicted");
+            Tests.check(Cache.containsEntry("lru", 4), "page added kept");
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Caches pages past the size allowed and checks that the least
+     * recently used ones are evicted until they fit again.
+     * @param dir The folder of the test files.
+     * @throws IOException If the size of a page cannot be measured.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void lruBytes(File dir) throws IOException, InterruptedException {
+        CacheLog log = new CacheLog(new File(dir, "measure.log"));
+        log.open();
+        long offset = log.append(page("size", 1));
+        long pageSize = log.length() - offset;
+        log.close();
+
+        open(dir);
+        try {
+            // two and a half pages of a keyword fit in its shard
+            Cache.setMaxBytes((pageSize * 5 / 2) * Cache.SHARDS);
+            for (int pageNum = 1; pageNum <= 3; ++pageNum) {
+                Cache.addPage(page("size", pageNum));
+                Thread.sleep(5);
+            }
+            Tests.check(!Cache.containsEntry("size", 1), "least recently used page evicted");
+            Tests.check(Cache.containsEntry("size", 2), "second page kept");
+            Tests.check(Cache.containsEntry("size", 3), "page added kept");
+        }
+        finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bench.StubServer;
+
+import core.Crawler;
+import datastructure.CachePage;
+
+/**
+ * Class for the tests of the crawler against the stub server:
+ * concurrent requests for the same uncached page share a single
+ * fetch, and an expired page is renewed without being parsed again
+ * when the server answers its validators with a 304, or sends the
+ * same body as before.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class CrawlerTest {
+
+    /** the number of concurrent requests for the same page */
+    private static final int CALLERS = 8;
+
+    /** the time to live of the pages expired, in milliseconds */
+    private static final long TTL = 50;
+
+    /**
+     * Constructor for CrawlerTest, not to be called.
+     */
+    private CrawlerTest() {
+    }
+
+    /**
+     * Gets the tests of the crawler.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("crawler.singleFlight") {
+                void run(File dir) throws Exception {
+                    singleFlight(dir);
+                }
+            },
+            new Tests.Test("crawler.notModified") {
+                void run(File dir) throws Exception {
+                    renewed(dir, true);
+                }
+            },
+            new Tests.Test("crawler.sameBody") {
+                void run(File dir) throws Exception {
+                    renewed(dir, false);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Asks for the same uncached page from several threads at
+     * once, while the stub server is slow to answer, and checks
+     * that it is fetched once and every caller gets it.
+     * @param dir The folder of the test files.
+     * @throws Exception If the page cannot be fetched.
+     */
+    private static void singleFlight(File dir) throws Exception {
+        StubServer stub = new StubServer(DOMParserTest.fixtureDir(), 0, 200, 0, 0, 1, true);
+        stub.start();
+        CacheTest.open(dir);
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            final Crawler crawler = new Crawler(new HTTPClient(new PooledTransport(),
+                                                               stub.getBaseUrl()), 0);
+            List<Future<CachePage>> pages = new ArrayList<Future<CachePage>>();
+            for (int i = 0; i < CALLERS; ++i) {
+                pages.add(executor.submit(new Callable<CachePage>() {
+                    public CachePage call() throws Exception {
+                        return crawler.getPage("drill", 2);
+                    }
+                }));
+            }
+            for (Future<CachePage> page : pages) {
+                Tests.checkEqual(HTTPClientTest.TOTAL, page.get().getTotal(), "total");
+                Tests.checkItems(pages.get(0).get().getItems(), page.get().getItems(),
+                                 "Items of every caller");
+            }
+            Tests.checkEqual(1L, stub.getRequestCount(), "requests for the page");
+        }
+        finally {
+            executor.shutdownNow();
+            CacheTest.close();
+            stub.stop();
+        }
+    }
+
+    /**
+     * Fetches a page, lets it expire and asks for it again, and
+     * checks that it is renewed as it was rather than parsed again.
+     * @param dir The folder of the test files.
+     * @param validators True for the server to send validators and
+     * answer with a 304; false for it to send the same body again.
+     * @throws Exception If the page cannot be fetched.
+     */
+    private static void renewed(File dir, boolean validators) throws Exception {
+        StubServer stub = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 0, 0, 1, validators);
+        stub.start();
+        CacheTest.open(dir);
+        try {
+            // a keyword of its own, as times to live cannot be reset
+            Cache.setTtl("renewed", TTL);
+            Crawler crawler = new Crawler(new HTTPClient(new PooledTransport(),
+                                                         stub.getBaseUrl()), 0);
+            crawler.setQuiet(true);
+            CachePage fetched = crawler.getPage("renewed", 1);
+            long revalidations = Cache.getRevalidationCount();
+            Thread.sleep(2 * TTL);
+            Tests.check(!Cache.containsEntry("renewed", 1), "page expired");
+
+            CachePage page = crawler.getPage("renewed", 1);
+            Tests.checkEqual(2L, stub.getRequestCount(), "requests for the page");
+            Tests.checkEqual(validators ? 1L : 0L, stub.getNotModifiedCount(),
+                             "pages not modified");
+            Tests.checkEqual(revalidations + 1, Cache.getRevalidationCount(), "pages renewed");
+            Tests.check(fetched.getFetchTime() < page.getFetchTime(),
+                        "page renewed as fetched now");
+            Tests.checkItems(fetched.getItems(), page.getItems(), "Items of the page renewed");
+            Tests.check(Cache.containsEntry("renewed", 1), "page fresh again");
+        }
+        finally {
+            CacheTest.close();
+            stub.stop();
+        }
+    }
+}
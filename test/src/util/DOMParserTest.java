@@ -0,0 +1,191 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import datastructure.Item;
+
+/**
+ * Class for the tests of the DOM parser: on every recorded result
+ * page, and on cards whose class attributes are not exactly the
+ * ones looked for, it extracts the same Items and total as the
+ * selector-based extractor it replaced.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class DOMParserTest {
+
+    /** cards with class attributes other than the ones looked for */
+    static final String CARDS =
+            "<div id='cardsHolder'>"
+            + "<div class='cardInner'><h2 class='cardProdTitle '>X</h2>"
+            + "<h2 class='cardProdTitle'>Y</h2>"
+            + "<span class='PRICE_V2 old'>$1.00</span><span class='price_v2'>$2.00</span>"
+            + "<p id='MRKPLC'>Sold by A</p><p id=' mrkplc'>B</p><p id='mrkplc'>C</p></div>"
+            + "<div class='cardInner '><h2 class='cardProdTitle'>Z</h2></div>"
+            + "<div class='CardInner'><h2 class='CARDPRODTITLE'>W</h2></div>"
+            + "</div>";
+
+    /**
+     * Constructor for DOMParserTest, not to be called.
+     */
+    private DOMParserTest() {
+    }
+
+    /**
+     * Gets the tests of the DOM parser.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("domParser.fixtures") {
+                void run(File dir) throws IOException {
+                    fixtures();
+                }
+            },
+            new Tests.Test("domParser.classes") {
+                void run(File dir) {
+                    classes();
+                }
+            });
+    }
+
+    /**
+     * Gets the folder of the recorded result pages, bench/fixtures
+     * unless the system property bench.fixtures names another one.
+     * @return The folder of the recorded result pages.
+     */
+    static File fixtureDir() {
+        return new File(System.getProperty("bench.fixtures", "bench/fixtures"));
+    }
+
+    /**
+     * Gets the recorded result pages.
+     * @return The recorded result pages, by name.
+     */
+    static List<File> fixtureFiles() {
+        File[] files = fixtureDir().listFiles();
+        List<File> pages = new ArrayList<File>();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".html"))
+                    pages.add(f);
+            }
+        }
+        Tests.check(!pages.isEmpty(), "recorded result pages found");
+        return pages;
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Extracts the Items of every recorded result page with both
+     * extractors and compares them.
+     * @throws IOException If a result page cannot be read.
+     */
+    private static void fixtures() throws IOException {
+        for (File f : fixtureFiles()) {
+            Document doc = Jsoup.parse(new String(Files.readAllBytes(f.toPath()), "UTF-8"),
+                                       "http://www.sears.com/");
+            checkSame(doc, f.getName());
+        }
+    }
+
+    /**
+     * Extracts the Items of cards whose class and id attributes
+     * differ in case or whitespace from the ones looked for, with
+     * both extractors, and compares them.
+     */
+    private static void classes() {
+        Document doc = Jsoup.parse(CARDS, "http://www.sears.com/");
+        checkSame(doc, "cards");
+        List<Item> items = parser(doc).getAllItems();
+        Tests.checkEqual(2, items.size(), "cards matched");
+        Tests.checkEqual("Y", items.get(0).getName(), "title with a trailing space skipped");
+        Tests.checkEqual("W", items.get(1).getName(), "title of another case");
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Checks that DOMParser extracts the Items and total the
+     * selector-based extractor does from a Document.
+     * @param doc The Document.
+     * @param what What is checked.
+     */
+    private static void checkSame(Document doc, String what) {
+        DOMParser parser = parser(doc);
+        List<Item> items = new ArrayList<Item>();
+        for (Item item : parser.getAllItems())
+            items.add(new Item(item.getName(), item.getPrice(), item.getVendor()));
+        Tests.checkItems(selectItems(doc), items, what + ", Items");
+        Tests.checkEqual(selectTotal(doc), parser.getItemsTotalNum(), what + ", total");
+    }
+
+    /**
+     * Creates a DOMParser of a Document.
+     * @param doc The Document.
+     * @return The parser.
+     */
+    private static DOMParser parser(Document doc) {
+        DOMParser parser = new DOMParser();
+        parser.parse(doc);
+        return parser;
+    }
+
+    /**
+     * Extracts the Items of a Document with jsoup selectors, the
+     * way DOMParser did before it walked each card once. A card
+     * without a title, where that extractor threw, has an empty
+     * name.
+     * @param doc The Document.
+     * @return The Items, without product identities.
+     */
+    private static List<Item> selectItems(Document doc) {
+        Elements items = doc.getElementsByAttributeValue("class", "cardInner");
+        List<Item> itemList = new ArrayList<Item>();
+        for (Element item : items) {
+            Elements titles = item.getElementsByAttributeValue("class", "cardProdTitle");
+            String name = titles.isEmpty() ? "" : titles.get(0).text();
+            Elements pricingInfo = item.getElementsByAttributeValueContaining("class", "price_v2");
+            String price = pricingInfo.size() == 0 ? pricingInfo.text() : pricingInfo.get(0).text();
+            String seller = item.getElementsByAttributeValue("id", "mrkplc").text();
+            seller = seller
+                    .replaceAll("[^(\\x20-\\x7F)]*", "")
+                    .replaceAll("\\|", "")
+                    .replaceAll("Sold by", "")
+                    .replaceAll("ShopYourWay Guarantee Seller", "")
+                    .replaceAll("Marketplace Item", "")
+                    .replaceAll("learn more", "")
+                    .trim();
+            String vendor = seller.isEmpty() ? "Sears" : seller;
+            itemList.add(new Item(name, price, vendor));
+        }
+        return itemList;
+    }
+
+    /**
+     * Extracts the total number of Items of a Document the way
+     * DOMParser did before it walked each card once.
+     * @param doc The Document.
+     * @return The total number of Items; empty if not found.
+     */
+    private static String selectTotal(Document doc) {
+        try {
+            String itemsTotalInfo = doc.getElementById("nmbProdItems").text();
+            return itemsTotalInfo.split("of")[1].substring(1);
+        }
+        catch (NullPointerException e) {
+            return "";
+        }
+    }
+}
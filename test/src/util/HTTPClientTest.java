@@ -0,0 +1,148 @@
+package util;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bench.StubServer;
+
+/**
+ * Class for the tests of the HTTP client against the stub server:
+ * counting reads the first response of a keyword only up to its
+ * total, whether or not the keyword has been resolved, and still
+ * follows the redirects of keywords that are redirected.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class HTTPClientTest {
+
+    /** the total number of Items of the full page */
+    static final String TOTAL = "1,234 items";
+
+    /**
+     * Constructor for HTTPClientTest, not to be called.
+     */
+    private HTTPClientTest() {
+    }
+
+    /**
+     * Gets the tests of the HTTP client.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("httpClient.countCutShort") {
+                void run(File dir) throws IOException {
+                    countCutShort();
+                }
+            },
+            new Tests.Test("httpClient.countRedirected") {
+                void run(File dir) throws IOException {
+                    countRedirected();
+                }
+            });
+    }
+
+    /**
+     * Starts a stub server answering instantly, without errors.
+     * @return The stub server, started.
+     * @throws IOException If the stub server cannot be started.
+     */
+    static StubServer startStub() throws IOException {
+        StubServer stub = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 0, 0, 1, true);
+        stub.start();
+        return stub;
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Counts the Items of a keyword never searched before, then
+     * again, and checks that neither count reads the whole page.
+     * @throws IOException If the stub server cannot be queried.
+     */
+    private static void countCutShort() throws IOException {
+        StubServer stub = startStub();
+        try {
+            CountingTransport transport = new CountingTransport(new PooledTransport());
+            HTTPClient client = new HTTPClient(transport, stub.getBaseUrl());
+            long full = new File(DOMParserTest.fixtureDir(), "full.html").length();
+            Tests.checkEqual(TOTAL, client.getItemsTotalNum("drill"), "total, unresolved");
+            Tests.check(transport.read.get() < full / 2,
+                        "first response cut short, " + transport.read + " of " + full + " bytes");
+            transport.read.set(0);
+            Tests.checkEqual(TOTAL, client.getItemsTotalNum("drill"), "total, counted again");
+            Tests.check(transport.read.get() < full / 2, "second response cut short");
+            Tests.checkEqual("", client.getItemsTotalNum("none"), "total of no results");
+        }
+        finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Counts the Items of keywords redirected by rule and to
+     * levels, and checks that the redirects are followed and the
+     * levels remembered.
+     * @throws IOException If the stub server cannot be queried.
+     */
+    private static void countRedirected() throws IOException {
+        StubServer stub = startStub();
+        try {
+            HTTPClient client = new HTTPClient(new PooledTransport(), stub.getBaseUrl());
+            Tests.checkEqual(TOTAL, client.getItemsTotalNum("brat"), "total, redirected");
+            Tests.checkEqual(2L, stub.getRequestCount(), "redirect followed");
+            Tests.checkEqual(TOTAL, client.getItemsTotalNum("levels"), "total, levels");
+            Tests.checkEqual(4L, stub.getRequestCount(), "levels followed");
+            Tests.checkEqual(TOTAL, client.getItemsTotalNum("levels"), "total, levels again");
+            Tests.checkEqual(5L, stub.getRequestCount(), "levels remembered");
+        }
+        finally {
+            stub.stop();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Class for a Transport counting the bytes of the bodies read.
+     */
+    private static class CountingTransport implements Transport {
+
+        /** the transport requests are passed on to */
+        private final Transport transport;
+
+        /** the number of bytes read */
+        private final AtomicLong read = new AtomicLong();
+
+        /**
+         * Constructor for CountingTransport.
+         * @param transport The transport requests are passed on to.
+         */
+        CountingTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+            HttpResponse response = transport.get(url, headers);
+            return new HttpResponse(response, new FilterInputStream(response.getBody()) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) read.incrementAndGet();
+                    return b;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) read.addAndGet(n);
+                    return n;
+                }
+            });
+        }
+    }
+}
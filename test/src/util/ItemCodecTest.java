@@ -0,0 +1,222 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.Item;
+
+/**
+ * Class for the tests of the binary encoding of Items: every price,
+ * name and vendor reads back as the exact text written, product
+ * references read back as references, and an encoding cut short
+ * or malformed fails to be read rather than reading other Items.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class ItemCodecTest {
+
+    /** prices of every form, plain dollar amounts or not */
+    private static final String[] PRICES = {
+        "$0.05", "$12.50", "$1234.56", "$1,234.56", "$12,345,678.00", "$999.99",
+        "$1,23.45", "$01.00", "$.99", "$5", "$1,234.5", "$1.234", "$-1.00",
+        "$99999999999999999999.99", "See price in cart", "", "\u20ac3.00", null
+    };
+
+    /**
+     * Constructor for ItemCodecTest, not to be called.
+     */
+    private ItemCodecTest() {
+    }
+
+    /**
+     * Gets the tests of the Item encoding.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("itemCodec.roundTrip") {
+                void run(File dir) throws IOException {
+                    roundTrip();
+                }
+            },
+            new Tests.Test("itemCodec.numbers") {
+                void run(File dir) throws IOException {
+                    numbers();
+                }
+            },
+            new Tests.Test("itemCodec.truncated") {
+                void run(File dir) throws IOException {
+                    truncated();
+                }
+            },
+            new Tests.Test("itemCodec.malformed") {
+                void run(File dir) throws IOException {
+                    malformed();
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Writes Items of every kind and reads them back.
+     * @throws IOException If the Items cannot be encoded.
+     */
+    private static void roundTrip() throws IOException {
+        List<Item> items = items();
+        List<Item> read = read(write(items));
+        List<Item> expected = new ArrayList<Item>();
+        for (Item item : items) {
+            expected.add(item.getId() == null ? item
+                         : new Item(null, null, null, item.getId()));
+        }
+        Tests.checkItems(expected, read, "Items read");
+        String vendor = null;
+        for (Item item : read) {
+            if ("Sears".equals(item.getVendor())) {
+                Tests.check(vendor == null || vendor == item.getVendor(), "vendors shared");
+                vendor = item.getVendor();
+            }
+        }
+        Tests.check(read(write(null)) == null, "null list");
+        Tests.checkItems(new ArrayList<Item>(), read(write(new ArrayList<Item>())),
+                         "empty list");
+        for (String price : PRICES) {
+            if (price == null)
+                continue;
+            long cents = ItemCodec.toCents(price);
+            if (cents >= 0) {
+                Tests.check(price.equals(ItemCodec.toPrice(cents, false))
+                            || price.equals(ItemCodec.toPrice(cents, true)),
+                            "cents of '" + price + "' print back");
+            }
+        }
+        Tests.checkEqual(123456L, ItemCodec.toCents("$1,234.56"), "cents of a grouped price");
+        Tests.checkEqual(-1L, ItemCodec.toCents("See price in cart"), "cents of a text price");
+    }
+
+    /**
+     * Writes numbers and Strings at the limits of their encoding
+     * and reads them back.
+     * @throws IOException If the values cannot be encoded.
+     */
+    private static void numbers() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+        String[] strings = { null, "", "a", "caf\u00e9 \u4e2d", new String(new char[300]) };
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        for (long v : values)
+            ItemCodec.writeVarLong(out, v);
+        for (String s : strings)
+            ItemCodec.writeString(out, s);
+        out.close();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        for (long v : values)
+            Tests.checkEqual(v, ItemCodec.readVarLong(in), "number read");
+        for (String s : strings)
+            Tests.checkEqual(s, ItemCodec.readString(in), "String read");
+        Tests.checkEqual(0, in.available(), "bytes left");
+    }
+
+    /**
+     * Reads every prefix of an encoding, as a record cut short
+     * would hold, and checks that none is read as Items.
+     * @throws IOException If the Items cannot be encoded.
+     */
+    private static void truncated() throws IOException {
+        byte[] bytes = write(items());
+        for (int length = 0; length < bytes.length; ++length) {
+            try {
+                read(Arrays.copyOf(bytes, length));
+                Tests.check(false, "Items read from " + length + " of " + bytes.length
+                            + " bytes");
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Reads encodings with an unknown price tag, an unknown vendor,
+     * an overlong number and an overlong length, and checks that
+     * each fails to be read.
+     * @throws IOException If the encodings cannot be written.
+     */
+    private static void malformed() throws IOException {
+        // one Item, no vendors, no name, then the price tag
+        checkMalformed(new byte[] { 2, 0, 0, 9 }, "unknown price tag");
+        // one Item, no vendors, no name, no price, vendor 1
+        checkMalformed(new byte[] { 2, 0, 0, 0, 1 }, "unknown vendor");
+        byte[] overlong = new byte[11];
+        Arrays.fill(overlong, (byte) 0x80);
+        checkMalformed(overlong, "overlong number");
+        // a list of 100 Items in 2 bytes
+        checkMalformed(new byte[] { 101, 0 }, "overlong length");
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Creates Items of every kind: every price, shared and missing
+     * vendors, missing and non-ASCII names, and product references.
+     * @return The Items.
+     */
+    private static List<Item> items() {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < PRICES.length; ++i) {
+            String vendor = i % 3 == 0 ? "Sears" : i % 3 == 1 ? "Kmart \u00e9" : null;
+            String name = i == 4 ? null : "item " + i + " \u4e2d";
+            items.add(new Item(name, PRICES[i], vendor));
+            if (i % 5 == 2)
+                items.add(new Item("product " + i, PRICES[i], vendor, "p" + i));
+        }
+        return items;
+    }
+
+    /**
+     * Encodes Items.
+     * @param items The Items; may be null.
+     * @return The encoding.
+     * @throws IOException If the Items cannot be encoded.
+     */
+    private static byte[] write(List<Item> items) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        ItemCodec.write(out, items);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Decodes Items.
+     * @param bytes The encoding.
+     * @return The Items read; may be null.
+     * @throws IOException If the encoding cannot be read.
+     */
+    private static List<Item> read(byte[] bytes) throws IOException {
+        return ItemCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Checks that an encoding fails to be read.
+     * @param bytes The encoding.
+     * @param what What is malformed.
+     */
+    private static void checkMalformed(byte[] bytes, String what) {
+        try {
+            read(bytes);
+            Tests.check(false, "Items read despite an " + what);
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
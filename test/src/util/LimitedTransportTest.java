@@ -0,0 +1,130 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import bench.StubServer;
+
+/**
+ * Class for the tests of the adaptive limit of requests in flight,
+ * against stub servers: the limit grows by one per limit's worth of
+ * prompt answers up to its maximum, halves when the server answers
+ * with a 503, stays when it answers with a 404, and shrinks when
+ * answers slow down on average.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class LimitedTransportTest {
+
+    /** the latency of the prompt stub server in milliseconds */
+    private static final long PROMPT = 20;
+
+    /** the latency of the slow stub server in milliseconds */
+    private static final long SLOW = 500;
+
+    /** no additional request headers */
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    /**
+     * Constructor for LimitedTransportTest, not to be called.
+     */
+    private LimitedTransportTest() {
+    }
+
+    /**
+     * Gets the tests of the adaptive limit.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("limitedTransport.aimd") {
+                void run(File dir) throws IOException {
+                    aimd();
+                }
+            });
+    }
+
+    /**
+     * Fetches a page and reads its body.
+     * @param transport The transport.
+     * @param url The URL of the page.
+     * @throws IOException If the page cannot be fetched.
+     */
+    static void fetch(Transport transport, String url) throws IOException {
+        HttpResponse response = transport.get(url, NO_HEADERS);
+        try {
+            response.readBody();
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Checks that fetching a page fails with an error status.
+     * @param transport The transport.
+     * @param url The URL of the page.
+     * @param status The error status expected.
+     * @throws IOException If the page cannot be fetched for
+     * another reason.
+     */
+    static void checkStatus(Transport transport, String url, int status)
+            throws IOException {
+        try {
+            fetch(transport, url);
+            Tests.check(false, "status " + status + " expected");
+        }
+        catch (HttpStatusException e) {
+            Tests.checkEqual(status, e.getStatus(), "error status");
+        }
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Grows the limit with prompt answers, then checks how it
+     * reacts to a 503, a 404 and slow answers.
+     * @throws IOException If the stub servers cannot be queried.
+     */
+    private static void aimd() throws IOException {
+        StubServer prompt = new StubServer(DOMParserTest.fixtureDir(), 0, PROMPT, 0, 0, 1, true);
+        StubServer failing = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 0, 1, 1, true);
+        StubServer slow = new StubServer(DOMParserTest.fixtureDir(), 0, SLOW, 0, 0, 1, true);
+        prompt.start();
+        failing.start();
+        slow.start();
+        try {
+            // the first connection is slower than any other
+            fetch(new PooledTransport(), prompt.getBaseUrl() + "none");
+            LimitedTransport transport = new LimitedTransport(new PooledTransport(), 1, 4, 0);
+            Tests.checkEqual(1, transport.getLimit(), "initial limit");
+            fetch(transport, prompt.getBaseUrl() + "none");
+            Tests.checkEqual(2, transport.getLimit(), "limit grown by one");
+            for (int i = 0; i < 10; ++i)
+                fetch(transport, prompt.getBaseUrl() + "none");
+            Tests.checkEqual(4, transport.getLimit(), "limit grown to its maximum");
+
+            checkStatus(transport, failing.getBaseUrl() + "none", 503);
+            Tests.checkEqual(2, transport.getLimit(), "limit halved by a 503");
+            Tests.checkEqual(0, transport.getInFlight(), "failed request out of flight");
+            // each slow answer shrinks the limit by a tenth
+            for (int i = 0; i < 2; ++i)
+                fetch(transport, slow.getBaseUrl() + "none");
+            Tests.checkEqual(1, transport.getLimit(), "limit shrunk by slow answers");
+
+            transport = new LimitedTransport(new PooledTransport(), 2, 4, 0);
+            checkStatus(transport, prompt.getBaseUrl().replace("/search=", "/missing"), 404);
+            Tests.checkEqual(2, transport.getLimit(), "limit kept by a 404");
+            Tests.checkEqual(0, transport.getInFlight(), "failed request out of flight");
+        }
+        finally {
+            prompt.stop();
+            failing.stop();
+            slow.stop();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import datastructure.PricePoint;
+
+/**
+ * Class for the tests of the price history: prices recorded are
+ * found again from the journal, from the blocks it is sealed into
+ * and after reopening, a row or block cut short by an interrupted
+ * write is ignored by queries and cut off by the next write, and a
+ * seal interrupted before the journal is emptied is not sealed twice.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class PriceHistoryTest {
+
+    /** the number of products the prices are spread over */
+    private static final int PRODUCTS = 17;
+
+    /** the number of prices recorded at a time */
+    private static final int BATCH = 200;
+
+    /**
+     * Constructor for PriceHistoryTest, not to be called.
+     */
+    private PriceHistoryTest() {
+    }
+
+    /**
+     * Gets the tests of the price history.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("priceHistory.roundTrip") {
+                void run(File dir) throws IOException {
+                    roundTrip(dir);
+                }
+            },
+            new Tests.Test("priceHistory.seal") {
+                void run(File dir) throws IOException {
+                    seal(dir);
+                }
+            },
+            new Tests.Test("priceHistory.tornRow") {
+                void run(File dir) throws IOException {
+                    tornRow(dir);
+                }
+            },
+            new Tests.Test("priceHistory.tornBlock") {
+                void run(File dir) throws IOException {
+                    tornBlock(dir);
+                }
+            },
+            new Tests.Test("priceHistory.interruptedSeal") {
+                void run(File dir) throws IOException {
+                    interruptedSeal(dir);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Records prices into the journal and finds them by product
+     * and time range, before and after reopening the history.
+     * @param dir The folder of the test files.
+     * @throws IOException If the history cannot be used.
+     */
+    private static void roundTrip(File dir) throws IOException {
+        PriceHistory history = new PriceHistory(dir, "history");
+        history.query("p", 0, Long.MAX_VALUE, new Collector());
+        List<PricePoint> all = new ArrayList<PricePoint>();
+        all.addAll(record(history, 0, BATCH));
+        all.add(new PricePoint("caf\u00e9 \u4e2d", 5, 199, "Vendor \u00e9"));
+        history.record(all.subList(all.size() - 1, all.size()));
+        Tests.checkEqual((long) PriceHistory.HEADER_SIZE, file(dir).length(), "no block sealed");
+        checkQueries(history, all, "journal");
+        history.close();
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "journal reopened");
+        all.addAll(record(history, BATCH, BATCH));
+        checkQueries(history, all, "journal written after reopening");
+        history.close();
+    }
+
+    /**
+     * Records prices until the journal is sealed into blocks, then
+     * finds them in the blocks and the journal, before and after
+     * reopening the history.
+     * @param dir The folder of the test files.
+     * @throws IOException If the history cannot be used.
+     */
+    private static void seal(File dir) throws IOException {
+        PriceHistory history = new PriceHistory(dir, "history");
+        List<PricePoint> all = new ArrayList<PricePoint>();
+        all.addAll(fill(dir, history, 0, 2));
+        all.addAll(record(history, all.size(), BATCH));
+        Tests.check(journal(dir).length() > PriceHistory.JOURNAL_HEADER_SIZE,
+                    "prices in the journal past the blocks");
+        checkQueries(history, all, "blocks and journal");
+        history.close();
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "blocks and journal reopened");
+        history.close();
+    }
+
+    /**
+     * Cuts the last journal row short, as an interrupted write
+     * would, then checks that queries find the rows before it and
+     * that the next write replaces it.
+     * @param dir The folder of the test files.
+     * @throws IOException If the history cannot be used.
+     */
+    private static void tornRow(File dir) throws IOException {
+        PriceHistory history = new PriceHistory(dir, "history");
+        List<PricePoint> all = new ArrayList<PricePoint>();
+        all.addAll(record(history, 0, BATCH));
+        record(history, BATCH, 1);
+        history.close();
+        long length = journal(dir).length();
+        cut(journal(dir), length - 3);
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "rows before the torn one");
+        Tests.checkEqual(length - 3, journal(dir).length(), "journal left as is by queries");
+        all.addAll(record(history, BATCH + 1, BATCH));
+        checkQueries(history, all, "rows written after the torn one");
+        history.close();
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "rows after recovery, reopened");
+        history.close();
+    }
+
+    /**
+     * Cuts the last block short, as a crash while sealing would,
+     * with the journal not yet emptied, then checks that queries
+     * find the rows in the journal instead and that the next write
+     * cuts the block off and seals them again.
+     * @param dir The folder of the test files.
+     * @throws IOException If the history cannot be used.
+     */
+    private static void tornBlock(File dir) throws IOException {
+        PriceHistory history = new PriceHistory(dir, "history");
+        List<PricePoint> all = new ArrayList<PricePoint>();
+        all.addAll(fill(dir, history, 0, 1));
+        long end = file(dir).length();
+        File saved = new File(dir, "saved.jnl");
+        List<PricePoint> batch = new ArrayList<PricePoint>();
+        while (file(dir).length() == end) {
+            all.addAll(batch);
+            Files.copy(journal(dir).toPath(), saved.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            batch = record(history, all.size(), BATCH);
+        }
+        history.close();
+        Files.copy(saved.toPath(), journal(dir).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        long length = file(dir).length();
+        cut(file(dir), end + (length - end) / 2);
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "journal past the torn block");
+        Tests.checkEqual(end + (length - end) / 2, file(dir).length(),
+                         "history left as is by queries");
+        all.addAll(record(history, all.size(), 1));
+        Tests.checkEqual(end, file(dir).length(), "torn block cut off");
+        checkQueries(history, all, "journal after recovery");
+        all.addAll(fill(dir, history, all.size(), 1));
+        checkQueries(history, all, "blocks after recovery");
+        history.close();
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "blocks after recovery, reopened");
+        history.close();
+    }
+
+    /**
+     * Puts back the journal of a block sealed, as a crash before
+     * the journal is emptied would, then checks that its rows are
+     * neither found twice nor sealed twice.
+     * @param dir The folder of the test files.
+     * @throws IOException If the history cannot be used.
+     */
+    private static void interruptedSeal(File dir) throws IOException {
+        PriceHistory history = new PriceHistory(dir, "history");
+        List<PricePoint> all = new ArrayList<PricePoint>();
+        all.addAll(record(history, 0, BATCH));
+        File saved = new File(dir, "saved.jnl");
+        while (file(dir).length() == PriceHistory.HEADER_SIZE) {
+            Files.copy(journal(dir).toPath(), saved.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            all.addAll(record(history, all.size(), BATCH));
+        }
+        history.close();
+        long length = file(dir).length();
+        Files.copy(saved.toPath(), journal(dir).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        history = new PriceHistory(dir, "history");
+        checkQueries(history, all, "journal already sealed");
+        all.addAll(record(history, all.size(), BATCH));
+        Tests.checkEqual(length, file(dir).length(), "journal not sealed twice");
+        checkQueries(history, all, "rows after the journal sealed");
+        history.close();
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Callback collecting the prices found by a query.
+     */
+    private static class Collector implements PriceHistory.Visitor {
+
+        /** the prices found */
+        private final List<String> found = new ArrayList<String>();
+
+        @Override
+        public void visit(PricePoint point) {
+            found.add(describe(point));
+        }
+    }
+
+    /**
+     * Creates and records prices, every 4th without a vendor.
+     * @param history The history.
+     * @param first The number of the first price.
+     * @param n The number of prices.
+     * @return The prices recorded.
+     * @throws IOException If the history cannot be written.
+     */
+    private static List<PricePoint> record(PriceHistory history, int first, int n)
+            throws IOException {
+        List<PricePoint> points = new ArrayList<PricePoint>();
+        for (int i = first; i < first + n; ++i) {
+            points.add(new PricePoint("product " + (i % PRODUCTS), 1000L * i,
+                                      (i * 37L) % 5000,
+                                      i % 4 == 0 ? null : "Vendor " + (i % 3)));
+        }
+        history.record(points);
+        return points;
+    }
+
+    /**
+     * Records prices until the journal has been sealed into blocks.
+     * @param dir The folder of the test files.
+     * @param history The history.
+     * @param first The number of the first price.
+     * @param blocks The number of blocks to be sealed.
+     * @return The prices recorded.
+     * @throws IOException If the history cannot be written.
+     */
+    private static List<PricePoint> fill(File dir, PriceHistory history, int first, int blocks)
+            throws IOException {
+        List<PricePoint> points = new ArrayList<PricePoint>();
+        long length = file(dir).length();
+        for (int sealed = 0; sealed < blocks; ) {
+            points.addAll(record(history, first + points.size(), BATCH));
+            if (file(dir).length() != length) {
+                length = file(dir).length();
+                ++sealed;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Checks that queries by product, over the whole time and over
+     * part of it, find the prices recorded.
+     * @param history The history.
+     * @param all The prices recorded.
+     * @param what What is checked.
+     * @throws IOException If the history cannot be read.
+     */
+    private static void checkQueries(PriceHistory history, List<PricePoint> all, String what)
+            throws IOException {
+        long maxTime = 0;
+        List<String> products = new ArrayList<String>();
+        for (PricePoint point : all) {
+            maxTime = Math.max(maxTime, point.getTime());
+            if (!products.contains(point.getProductId()))
+                products.add(point.getProductId());
+        }
+        products.add("missing");
+        long[][] ranges = { { 0, Long.MAX_VALUE }, { maxTime / 3, maxTime * 2 / 3 },
+                            { maxTime + 1, Long.MAX_VALUE } };
+        for (String product : products) {
+            for (long[] range : ranges) {
+                List<String> expected = new ArrayList<String>();
+                for (PricePoint point : all) {
+                    if (point.getProductId().equals(product)
+                        && point.getTime() >= range[0] && point.getTime() <= range[1])
+                        expected.add(describe(point));
+                }
+                Collector collector = new Collector();
+                history.query(product, range[0], range[1], collector);
+                Collections.sort(expected);
+                Collections.sort(collector.found);
+                Tests.checkEqual(expected, collector.found, what + ", prices of '" + product
+                                 + "' from " + range[0] + " to " + range[1]);
+            }
+        }
+    }
+
+    /**
+     * Describes the fields of a price.
+     * @param point The price.
+     * @return The description.
+     */
+    private static String describe(PricePoint point) {
+        return "(" + point.getProductId() + ", " + point.getTime() + ", " + point.getCents()
+               + ", " + point.getVendor() + ")";
+    }
+
+    /**
+     * Gets the history file of a test.
+     * @param dir The folder of the test files.
+     * @return The history file.
+     */
+    private static File file(File dir) {
+        return new File(dir, "history.dat");
+    }
+
+    /**
+     * Gets the journal of a test.
+     * @param dir The folder of the test files.
+     * @return The journal.
+     */
+    private static File journal(File dir) {
+        return new File(dir, "history.jnl");
+    }
+
+    /**
+     * Cuts a file short.
+     * @param f The file.
+     * @param length The new length of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void cut(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the tests of the product catalog: a product found under
+ * several keywords is stored once, pages read share a single Item
+ * for it, also once the cache is opened again, and every page shows
+ * the version of the product stored last.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class ProductCatalogTest {
+
+    /**
+     * Constructor for ProductCatalogTest, not to be called.
+     */
+    private ProductCatalogTest() {
+    }
+
+    /**
+     * Gets the tests of the product catalog.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("productCatalog.dedup") {
+                void run(File dir) {
+                    dedup(dir);
+                }
+            },
+            new Tests.Test("productCatalog.latestVersion") {
+                void run(File dir) {
+                    latestVersion(dir);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Caches pages of two keywords sharing products, and checks
+     * that each product is stored once and shared by the pages
+     * read, before and after the cache is opened again.
+     * @param dir The folder of the test files.
+     */
+    private static void dedup(File dir) {
+        CacheTest.open(dir);
+        try {
+            Cache.addPage(page("drill", "Cordless Drill", "$49.99", "A1",
+                               "Drill Bit Set", "$9.99", "B2"));
+            Cache.addPage(page("tools", "Cordless Drill", "$49.99", "A1",
+                               "Hammer", "$10.00", "C3"));
+            Cache.addPage(page("kits", "Drill Bit Set", "$9.99", "B2",
+                               "Cordless Drill", "$49.99", "A1"));
+            Tests.checkEqual(3, Cache.getProductCount(), "products stored");
+            checkShared();
+        }
+        finally {
+            Cache.close();
+        }
+        CacheTest.open(dir);
+        try {
+            Tests.checkEqual(3, Cache.getProductCount(), "products stored, opened again");
+            checkShared();
+        }
+        finally {
+            CacheTest.close();
+        }
+    }
+
+    /**
+     * Caches a product under a keyword, then again at another
+     * price under another keyword, and checks that both pages
+     * show the later price.
+     * @param dir The folder of the test files.
+     */
+    private static void latestVersion(File dir) {
+        CacheTest.open(dir);
+        try {
+            Cache.addPage(page("drill", "Cordless Drill", "$49.99", "A1",
+                               "Drill Bit Set", "$9.99", "B2"));
+            Cache.addPage(page("tools", "Cordless Drill", "$39.99", "A1",
+                               "Hammer", "$10.00", "C3"));
+            Tests.checkEqual(3, Cache.getProductCount(), "products stored");
+            Tests.checkEqual("$39.99", Cache.getItemsList("drill", 1).get(0).getPrice(),
+                             "price on the page fetched first");
+            Tests.checkEqual("$39.99", Cache.getItemsList("tools", 1).get(0).getPrice(),
+                             "price on the page fetched last");
+            Tests.checkEqual("$9.99", Cache.getItemsList("drill", 1).get(1).getPrice(),
+                             "price of a product stored once");
+        }
+        finally {
+            CacheTest.close();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Creates a page of two products.
+     * @param keyword The keyword of the page.
+     * @param fields The name, price and product identity of each
+     * product, in turn.
+     * @return The page.
+     */
+    private static CachePage page(String keyword, String... fields) {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < fields.length; i += 3)
+            items.add(new Item(fields[i], fields[i + 1], "Sears", fields[i + 2]));
+        return new CachePage(keyword, 1, String.valueOf(items.size()), items);
+    }
+
+    /**
+     * Reads the pages cached by dedup and checks that they share
+     * a single Item per product.
+     */
+    private static void checkShared() {
+        List<Item> drill = Cache.getItemsList("drill", 1);
+        List<Item> tools = Cache.getItemsList("tools", 1);
+        List<Item> kits = Cache.getItemsList("kits", 1);
+        Tests.check(drill.get(0) == tools.get(0), "product shared by two keywords");
+        Tests.check(drill.get(0) == kits.get(1), "product shared by three keywords");
+        Tests.check(drill.get(1) == kits.get(0), "product shared at another position");
+        Tests.checkEqual("Hammer", tools.get(1).getName(), "product of a single keyword");
+    }
+}
@@ -0,0 +1,163 @@
+package util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import bench.StubServer;
+
+import core.Crawler;
+import core.Reparser;
+import datastructure.CachePage;
+
+/**
+ * Class for the tests of re-parsing the archive of raw result
+ * pages: pages fetched from the stub server and archived are
+ * cached again from the archive alone, with the Items they were
+ * parsed into when fetched, and an archived copy older than a
+ * page fetched since with another body does not replace it.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class ReparserTest {
+
+    /** the number of re-parse threads */
+    private static final int PARALLELISM = 2;
+
+    /**
+     * Constructor for ReparserTest, not to be called.
+     */
+    private ReparserTest() {
+    }
+
+    /**
+     * Gets the tests of re-parsing the archive.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("reparser.rebuild") {
+                void run(File dir) throws Exception {
+                    rebuild(dir);
+                }
+            },
+            new Tests.Test("reparser.laterFetchKept") {
+                void run(File dir) throws Exception {
+                    laterFetchKept(dir);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Fetches pages with the archive enabled, then re-parses the
+     * archive into an empty cache and checks that every page is
+     * cached again as fetched, without querying the server.
+     * @param dir The folder of the test files.
+     * @throws Exception If the pages cannot be fetched or cached.
+     */
+    private static void rebuild(File dir) throws Exception {
+        StubServer stub = HTTPClientTest.startStub();
+        PageArchive archive = new PageArchive(new File(dir, "archive"));
+        try {
+            CachePage[] fetched = fetch(stub, new File(dir, "fetched"), archive);
+            long requests = stub.getRequestCount();
+
+            File rebuilt = new File(dir, "rebuilt");
+            rebuilt.mkdir();
+            CacheTest.open(rebuilt);
+            try {
+                Reparser reparser = new Reparser(archive, PARALLELISM);
+                reparser.reparse();
+                Tests.checkEqual((long) fetched.length, reparser.getPagesParsed(), "pages parsed");
+                Tests.checkEqual(0L, reparser.getPagesSkipped(), "pages skipped");
+                Tests.checkEqual(0L, reparser.getPagesFailed(), "pages failed");
+                for (CachePage page : fetched) {
+                    String what = "page " + page.getPageNum() + " of '" + page.getKeyword() + "'";
+                    Tests.check(Cache.containsEntry(page.getKeyword(), page.getPageNum()),
+                                what + " cached");
+                    Tests.checkItems(page.getItems(),
+                                     Cache.getItemsList(page.getKeyword(), page.getPageNum()),
+                                     "Items of " + what);
+                }
+                Tests.checkEqual(requests, stub.getRequestCount(), "requests while re-parsing");
+            }
+            finally {
+                CacheTest.close();
+            }
+        }
+        finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Archives an older copy of a cached page with another body,
+     * re-parses it, and checks that the cached page is kept.
+     * @param dir The folder of the test files.
+     * @throws Exception If the pages cannot be fetched or cached.
+     */
+    private static void laterFetchKept(File dir) throws Exception {
+        StubServer stub = HTTPClientTest.startStub();
+        try {
+            CachePage page = fetch(stub, dir, new PageArchive(new File(dir, "archive")))[0];
+
+            PageArchive older = new PageArchive(new File(dir, "older"));
+            byte[] body = Files.readAllBytes(
+                    new File(DOMParserTest.fixtureDir(), "small.html").toPath());
+            older.add(new CachePage(page.getKeyword(), page.getPageNum(), "", null,
+                                    page.getFetchTime() - 1),
+                      stub.getBaseUrl() + page.getKeyword(), null, body);
+
+            CacheTest.open(dir);
+            try {
+                Reparser reparser = new Reparser(older, PARALLELISM);
+                reparser.reparse();
+                Tests.checkEqual(0L, reparser.getPagesParsed(), "pages parsed");
+                Tests.checkEqual(1L, reparser.getPagesSkipped(), "pages skipped");
+                Tests.checkItems(page.getItems(),
+                                 Cache.getItemsList(page.getKeyword(), page.getPageNum()),
+                                 "Items of the page fetched since");
+            }
+            finally {
+                CacheTest.close();
+            }
+        }
+        finally {
+            stub.stop();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Fetches full pages from the stub server into a cache,
+     * archiving their bodies. The pages share their products,
+     * so each page shows the versions fetched with it.
+     * @param stub The stub server.
+     * @param cacheDir The folder of the cache files.
+     * @param archive The archive.
+     * @return The pages fetched.
+     * @throws Exception If the pages cannot be fetched.
+     */
+    private static CachePage[] fetch(StubServer stub, File cacheDir, PageArchive archive)
+            throws Exception {
+        cacheDir.mkdir();
+        CacheTest.open(cacheDir);
+        try {
+            Crawler crawler = new Crawler(new HTTPClient(new PooledTransport(),
+                                                         stub.getBaseUrl()), 0, archive);
+            crawler.setQuiet(true);
+            return new CachePage[] {
+                crawler.getPage("drill", 1),
+                crawler.getPage("drill", 2),
+                crawler.getPage("saw", 1)
+            };
+        }
+        finally {
+            CacheTest.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bench.StubServer;
+
+/**
+ * Class for the tests of retries and hedged requests, against stub
+ * servers: a request failing with a 503 is retried until it succeeds
+ * or its retries run out, one failing with a 404 is not retried, the
+ * retry budget stops retries when every request fails, and hedged
+ * requests that lose are closed rather than left in flight.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class RetryingTransportTest {
+
+    /**
+     * Constructor for RetryingTransportTest, not to be called.
+     */
+    private RetryingTransportTest() {
+    }
+
+    /**
+     * Gets the tests of retries and hedged requests.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("retryingTransport.retry") {
+                void run(File dir) throws IOException {
+                    retry();
+                }
+            },
+            new Tests.Test("retryingTransport.budget") {
+                void run(File dir) throws IOException {
+                    budget();
+                }
+            },
+            new Tests.Test("retryingTransport.hedge") {
+                void run(File dir) throws Exception {
+                    hedge();
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Sends requests failing with a 503 once, then for good, then
+     * with a 404, and checks which are retried.
+     * @throws IOException If the stub servers cannot be queried.
+     */
+    private static void retry() throws IOException {
+        StubServer stub = HTTPClientTest.startStub();
+        StubServer failing = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 0, 1, 1, true);
+        failing.start();
+        try {
+            FlakyTransport flaky = new FlakyTransport(new PooledTransport(), 1);
+            RetryingTransport transport = new RetryingTransport(flaky, 2, 0);
+            LimitedTransportTest.fetch(transport, stub.getBaseUrl() + "small");
+            Tests.checkEqual(1L, transport.getRetryCount(), "503 retried");
+            Tests.checkEqual(2, flaky.calls.get(), "requests sent");
+
+            transport = new RetryingTransport(new PooledTransport(), 2, 0);
+            LimitedTransportTest.checkStatus(transport, failing.getBaseUrl() + "small", 503);
+            Tests.checkEqual(2L, transport.getRetryCount(), "503 retried until out of retries");
+            Tests.checkEqual(3L, failing.getRequestCount(), "requests failed");
+
+            long before = stub.getRequestCount();
+            String missing = stub.getBaseUrl().replace("/search=", "/missing");
+            LimitedTransportTest.checkStatus(transport, missing, 404);
+            Tests.checkEqual(2L, transport.getRetryCount(), "404 not retried");
+            Tests.checkEqual(before + 1, stub.getRequestCount(), "404 requested once");
+        }
+        finally {
+            stub.stop();
+            failing.stop();
+        }
+    }
+
+    /**
+     * Sends requests to a server failing every one of them and
+     * checks that retries stop once the budget is spent.
+     * @throws IOException If the stub server cannot be queried.
+     */
+    private static void budget() throws IOException {
+        StubServer failing = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 0, 1, 1, true);
+        failing.start();
+        try {
+            RetryingTransport transport = new RetryingTransport(new PooledTransport(), 2, 0);
+            int requests = 20;
+            for (int i = 0; i < requests; ++i)
+                LimitedTransportTest.checkStatus(transport, failing.getBaseUrl() + "small", 503);
+            // ten retries saved up, and a tenth earned by every request
+            Tests.check(transport.getRetryCount() <= 10 + requests / 10,
+                        "retries within the budget, " + transport.getRetryCount() + " sent");
+            Tests.checkEqual(requests + transport.getRetryCount(), failing.getRequestCount(),
+                             "requests sent");
+        }
+        finally {
+            failing.stop();
+        }
+    }
+
+    /**
+     * Sends requests with random latencies, hedging the slowest
+     * half, and checks that hedges are sent and that the responses
+     * that lose are closed.
+     * @throws Exception If the stub server cannot be queried.
+     */
+    private static void hedge() throws Exception {
+        StubServer stub = new StubServer(DOMParserTest.fixtureDir(), 0, 0, 40, 0, 1, true);
+        stub.start();
+        try {
+            LimitedTransport limited = new LimitedTransport(new PooledTransport(), 16, 16, 0);
+            RetryingTransport transport = new RetryingTransport(limited, 0, 50);
+            for (int i = 0; i < 60; ++i)
+                LimitedTransportTest.fetch(transport, stub.getBaseUrl() + "small");
+            Tests.check(transport.getHedgeCount() > 0, "hedges sent");
+            Tests.check(transport.getHedgeWinCount() <= transport.getHedgeCount(),
+                        "hedges won among those sent");
+            Tests.checkEqual(60 + transport.getHedgeCount(), stub.getRequestCount(),
+                             "requests sent");
+            // the last hedge that lost may still be on its way
+            for (int i = 0; i < 50 && limited.getInFlight() > 0; ++i)
+                Thread.sleep(10);
+            Tests.checkEqual(0, limited.getInFlight(), "responses that lost closed");
+        }
+        finally {
+            stub.stop();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Class for a Transport failing its first requests with
+     * a 503 before passing the next ones on.
+     */
+    private static class FlakyTransport implements Transport {
+
+        /** the transport requests are passed on to */
+        private final Transport transport;
+
+        /** the number of requests failing */
+        private final int failures;
+
+        /** the number of requests sent */
+        private final AtomicInteger calls = new AtomicInteger();
+
+        /**
+         * Constructor for FlakyTransport.
+         * @param transport The transport requests are passed on to.
+         * @param failures The number of requests failing.
+         */
+        FlakyTransport(Transport transport, int failures) {
+            this.transport = transport;
+            this.failures = failures;
+        }
+
+        @Override
+        public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+            if (calls.incrementAndGet() <= failures)
+                throw new HttpStatusException(503, url);
+            return transport.get(url, headers);
+        }
+    }
+}
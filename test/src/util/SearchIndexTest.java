@@ -0,0 +1,167 @@
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.CachePage;
+import datastructure.Item;
+
+/**
+ * Class for the tests of searches of cached Items: Items matching
+ * every word, the vendor and the price range are found cheapest
+ * first, those without a plain price last, up to the limit but all
+ * counted, and Items of expired or superseded pages are left out.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class SearchIndexTest {
+
+    /** the time to live of the pages expired, in milliseconds */
+    private static final long TTL = 50;
+
+    /**
+     * Constructor for SearchIndexTest, not to be called.
+     */
+    private SearchIndexTest() {
+    }
+
+    /**
+     * Gets the tests of searches of cached Items.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("searchIndex.ranking") {
+                void run(File dir) {
+                    ranking(dir);
+                }
+            },
+            new Tests.Test("searchIndex.staleness") {
+                void run(File dir) throws InterruptedException {
+                    staleness(dir);
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Caches two pages and checks the Items found by words, vendor
+     * and price range, and their order.
+     * @param dir The folder of the test files.
+     */
+    private static void ranking(File dir) {
+        CacheTest.open(dir);
+        try {
+            Cache.addPage(tools());
+            Cache.addPage(drills());
+            checkNames(Arrays.asList("Drill Bit Set", "Cordless Drill Kit", "Hammer Drill",
+                                     "Drill Press", "Drill Stand"),
+                       search("drill", null, 0, Long.MAX_VALUE, 10),
+                       "cheapest first, without a plain price last");
+            SearchIndex.Result result = search("DRILL", null, 0, Long.MAX_VALUE, 2);
+            checkNames(Arrays.asList("Drill Bit Set", "Cordless Drill Kit"), result,
+                       "cheapest up to the limit");
+            Tests.checkEqual(5, result.getTotal(), "Items matching beyond the limit");
+            checkNames(Arrays.asList("Hammer Drill"), search("hammer drill", null, 0,
+                                                             Long.MAX_VALUE, 10),
+                       "every word matched");
+            checkNames(Arrays.asList("Cordless Drill Kit", "Hammer Drill"),
+                       search("drill", "SEARS", 0, Long.MAX_VALUE, 10), "vendor in any case");
+            checkNames(Arrays.asList("Hammer", "Cordless Drill Kit", "Hammer Drill"),
+                       search(null, null, 1000, 8900, 10), "price range, bounds included");
+            checkNames(new ArrayList<String>(), search("saw", null, 0, Long.MAX_VALUE, 10),
+                       "no Item holding the word");
+        }
+        finally {
+            CacheTest.close();
+        }
+    }
+
+    /**
+     * Caches two pages, lets one expire and supersedes the other,
+     * and checks that only the Items of the page cached last are
+     * found.
+     * @param dir The folder of the test files.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void staleness(File dir) throws InterruptedException {
+        CacheTest.open(dir);
+        try {
+            Cache.setTtl("drills", TTL);
+            Cache.addPage(tools());
+            Cache.addPage(drills());
+            Tests.checkEqual(5, search("drill", null, 0, Long.MAX_VALUE, 10).getTotal(),
+                             "Items of both pages");
+            Thread.sleep(2 * TTL);
+            checkNames(Arrays.asList("Drill Bit Set", "Cordless Drill Kit"),
+                       search("drill", null, 0, Long.MAX_VALUE, 10), "expired page left out");
+
+            List<Item> items = new ArrayList<Item>();
+            items.add(new Item("Drill Guide", "$24.99", "Sears"));
+            Cache.addPage(new CachePage("tools", 1, "1", items));
+            SearchIndex.Result result = search("drill", null, 0, Long.MAX_VALUE, 10);
+            checkNames(Arrays.asList("Drill Guide"), result, "superseded page left out");
+            Tests.checkEqual(1, result.getTotal(), "Items of the page cached last");
+        }
+        finally {
+            CacheTest.close();
+        }
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Creates a page of tools, with plain prices.
+     * @return The page.
+     */
+    private static CachePage tools() {
+        List<Item> items = new ArrayList<Item>();
+        items.add(new Item("Cordless Drill Kit", "$49.99", "Sears"));
+        items.add(new Item("Drill Bit Set", "$9.99", "Craftsman"));
+        items.add(new Item("Hammer", "$10.00", "Craftsman"));
+        return new CachePage("tools", 1, "3", items);
+    }
+
+    /**
+     * Creates a page of drills, one of them without a plain price.
+     * @return The page.
+     */
+    private static CachePage drills() {
+        List<Item> items = new ArrayList<Item>();
+        items.add(new Item("Drill Press", "$250.00", "Tool Barn"));
+        items.add(new Item("Drill Stand", "See price in cart", "Tool Barn"));
+        items.add(new Item("Hammer Drill", "$89.00", "Sears"));
+        return new CachePage("drills", 1, "3", items);
+    }
+
+    /**
+     * Searches the cached Items.
+     * @param text The words to be found in names; null for any.
+     * @param vendor The vendor; null for any.
+     * @param minCents The lowest price in cents.
+     * @param maxCents The highest price in cents.
+     * @param limit The largest number of Items returned.
+     * @return The Items found.
+     */
+    private static SearchIndex.Result search(String text, String vendor, long minCents,
+                                             long maxCents, int limit) {
+        return Cache.search(text, vendor, minCents, maxCents, limit);
+    }
+
+    /**
+     * Checks the names of the Items found, in order.
+     * @param expected The names expected.
+     * @param result The Items found.
+     * @param what What is checked.
+     */
+    private static void checkNames(List<String> expected, SearchIndex.Result result,
+                                   String what) {
+        List<String> names = new ArrayList<String>();
+        for (SearchIndex.Hit hit : result.getHits())
+            names.add(hit.getItem().getName());
+        Tests.checkEqual(expected, names, what);
+    }
+}
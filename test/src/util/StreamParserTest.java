@@ -0,0 +1,154 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.Item;
+
+/**
+ * Class for the tests of the streaming parser: on every recorded
+ * result page, on cards nested in one another and on cards whose
+ * class attributes are not exactly the ones looked for, it extracts
+ * the same Items and total as DOMParser, and reports each Item to
+ * its listener.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+final class StreamParserTest {
+
+    /** cards nested in one another, the inner one cut short */
+    private static final String NESTED =
+            "<div id='cardsHolder'>"
+            + "<div class='cardInner'><h2 class='cardProdTitle'><a href='/x/p-001'>Outer</a>"
+            + "</h2><div class='cardInner'><span class='price_v2'>$3.00</span>"
+            + "<p id='mrkplc'>Sold by Inner | learn more</p></div>"
+            + "<p id='mrkplc'>Sold by Outer</p></div>"
+            + "<div class='cardInner'><h2 class='cardProdTitle'>Last &amp card <b>bold"
+            + "<div class='cardInner'><span class='price_v2'>$4.00";
+
+    /** the bodies of the cards, parsed by both parsers */
+    private static final String[] PAGES = {
+        DOMParserTest.CARDS, NESTED,
+        "<span id='nmbProdItems'>Showing 1 - 3 of 3</span>"
+            + "<div class='cardInner'><h2 class='cardProdTitle'>A &lt;b&gt; &#233;&#xe9;</h2>",
+        ""
+    };
+
+    /**
+     * Constructor for StreamParserTest, not to be called.
+     */
+    private StreamParserTest() {
+    }
+
+    /**
+     * Gets the tests of the streaming parser.
+     * @return The tests.
+     */
+    static List<Tests.Test> tests() {
+        return Arrays.<Tests.Test>asList(
+            new Tests.Test("streamParser.fixtures") {
+                void run(File dir) throws IOException {
+                    fixtures();
+                }
+            },
+            new Tests.Test("streamParser.cards") {
+                void run(File dir) throws IOException {
+                    cards();
+                }
+            },
+            new Tests.Test("streamParser.listener") {
+                void run(File dir) throws IOException {
+                    listener();
+                }
+            });
+    }
+
+    //------------------- tests -------------------
+
+    /**
+     * Parses every recorded result page with both parsers and
+     * compares their Items and totals.
+     * @throws IOException If a result page cannot be read.
+     */
+    private static void fixtures() throws IOException {
+        for (File f : DOMParserTest.fixtureFiles())
+            checkSame(Files.readAllBytes(f.toPath()), f.getName());
+    }
+
+    /**
+     * Parses nested, truncated and oddly classed cards with both
+     * parsers and compares their Items and totals.
+     * @throws IOException If a page cannot be read.
+     */
+    private static void cards() throws IOException {
+        for (int i = 0; i < PAGES.length; ++i)
+            checkSame(PAGES[i].getBytes("UTF-8"), "page " + i);
+        List<Item> items = parse(NESTED, null).getAllItems();
+        Tests.checkEqual(4, items.size(), "nested cards");
+        Tests.checkEqual("Outer", items.get(0).getName(), "outer card first");
+        Tests.check(items.get(0).getVendor().startsWith("Inner")
+                    && items.get(0).getVendor().endsWith("Outer"), "sellers of both cards");
+        Tests.checkEqual("$3.00", items.get(1).getPrice(), "inner card");
+        Tests.checkEqual("Inner", items.get(1).getVendor(), "seller of the inner card");
+    }
+
+    /**
+     * Parses a page with a listener and checks that it receives
+     * every Item and the total.
+     * @throws IOException If the page cannot be read.
+     */
+    private static void listener() throws IOException {
+        final List<Item> received = new ArrayList<Item>();
+        final List<String> totals = new ArrayList<String>();
+        StreamParser parser = parse(PAGES[2] + NESTED, new StreamParser.Listener() {
+            public void item(Item item) {
+                received.add(item);
+            }
+
+            public void total(String totalNum) {
+                totals.add(totalNum);
+            }
+        });
+        Tests.checkEqual(Arrays.asList("3"), totals, "totals received");
+        Tests.checkEqual(parser.getAllItems().size(), received.size(), "Items received");
+        Tests.check(received.containsAll(parser.getAllItems()), "every Item received");
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Checks that StreamParser extracts the Items and total
+     * DOMParser does from a page.
+     * @param page The body of the page.
+     * @param what What is checked.
+     * @throws IOException If the page cannot be read.
+     */
+    private static void checkSame(byte[] page, String what) throws IOException {
+        DOMParser dom = new DOMParser();
+        dom.parse(new ByteArrayInputStream(page), "UTF-8", "http://www.sears.com/");
+        StreamParser stream = new StreamParser();
+        stream.parse(new ByteArrayInputStream(page), "UTF-8", "http://www.sears.com/");
+        Tests.checkItems(dom.getAllItems(), stream.getAllItems(), what + ", Items");
+        Tests.checkEqual(dom.getItemsTotalNum(), stream.getItemsTotalNum(), what + ", total");
+    }
+
+    /**
+     * Parses a page with StreamParser.
+     * @param page The body of the page.
+     * @param listener The listener of the parser; null if none.
+     * @return The parser.
+     * @throws IOException If the page cannot be read.
+     */
+    private static StreamParser parse(String page, StreamParser.Listener listener)
+            throws IOException {
+        StreamParser parser = new StreamParser(listener);
+        parser.parse(new ByteArrayInputStream(page.getBytes("UTF-8")), "UTF-8",
+                     "http://www.sears.com/");
+        return parser;
+    }
+}
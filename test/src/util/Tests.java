@@ -0,0 +1,180 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import datastructure.Item;
+
+/**
+ * Class for the tests of the scraper, run as a plain program
+ * without any test framework. Each test works in
+ * a fresh temporary folder, deleted afterwards, and fails with an
+ * AssertionError naming the check that did not hold.
+ * Usage: Tests [&lt;filter&gt;], where only the tests whose name
+ * contains the filter are run. Exits with status 1 if any fails.
+ * @author Zhishen Wen
+ * @version Sep 19, 2013
+ */
+public class Tests {
+
+    /**
+     * Class for a single test.
+     */
+    abstract static class Test {
+
+        /** the name of this test */
+        private final String name;
+
+        /**
+         * Constructor for Test.
+         * @param name The name of this test.
+         */
+        Test(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Getter for field name.
+         * @return Value of field name.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Runs this test.
+         * @param dir An empty folder for the files of this test.
+         * @throws Exception If this test fails.
+         */
+        abstract void run(File dir) throws Exception;
+    }
+
+    /**
+     * Runs the tests.
+     * @param args The optional name filter.
+     * @throws IOException If a temporary folder cannot be created.
+     */
+    public static void main(String[] args) throws IOException {
+        String filter = args.length > 0 ? args[0] : "";
+        List<Test> tests = new ArrayList<Test>();
+        tests.addAll(CacheLogTest.tests());
+        tests.addAll(CacheIndexTest.tests());
+        tests.addAll(CacheTest.tests());
+        tests.addAll(CacheShardTest.tests());
+        tests.addAll(ItemCodecTest.tests());
+        tests.addAll(PriceHistoryTest.tests());
+        tests.addAll(DOMParserTest.tests());
+        tests.addAll(StreamParserTest.tests());
+        tests.addAll(HTTPClientTest.tests());
+        tests.addAll(LimitedTransportTest.tests());
+        tests.addAll(RetryingTransportTest.tests());
+        tests.addAll(CrawlerTest.tests());
+        tests.addAll(ReparserTest.tests());
+        tests.addAll(SearchIndexTest.tests());
+        tests.addAll(ProductCatalogTest.tests());
+
+        int run = 0;
+        int failed = 0;
+        for (Test test : tests) {
+            if (!test.getName().contains(filter))
+                continue;
+            ++run;
+            File dir = Files.createTempDirectory("scraper-test").toFile();
+            try {
+                test.run(dir);
+                msg("[INFO] " + test.getName() + " passed.");
+            }
+            catch (Throwable e) {
+                ++failed;
+                msg("[ERROR] " + test.getName() + " failed: " + e);
+                e.printStackTrace(System.out);
+            }
+            finally {
+                delete(dir);
+            }
+        }
+        msg("[INFO] " + run + " tests run, " + failed + " failed.");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    //------------------- checks -------------------
+
+    /**
+     * Checks that a condition holds.
+     * @param condition The condition.
+     * @param what What is checked.
+     * @throws AssertionError If the condition does not hold.
+     */
+    static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+
+    /**
+     * Checks that a value is the one expected.
+     * @param expected The value expected; may be null.
+     * @param actual The value found; may be null.
+     * @param what What is checked.
+     * @throws AssertionError If the values differ.
+     */
+    static void checkEqual(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError(what + ": expected <" + expected
+                                     + "> but was <" + actual + ">");
+    }
+
+    /**
+     * Checks that Items have the fields expected, in order.
+     * @param expected The Items expected; may be null.
+     * @param actual The Items found; may be null.
+     * @param what What is checked.
+     * @throws AssertionError If the Items differ.
+     */
+    static void checkItems(List<Item> expected, List<Item> actual, String what) {
+        checkEqual(describe(expected), describe(actual), what);
+    }
+
+    //------------------- private helpers -------------------
+
+    /**
+     * Describes the fields of Items.
+     * @param items The Items; may be null.
+     * @return The description.
+     */
+    private static String describe(List<Item> items) {
+        if (items == null)
+            return "null";
+        StringBuilder s = new StringBuilder("[");
+        for (Item item : items) {
+            s.append('(').append(item.getName()).append(", ").append(item.getPrice())
+             .append(", ").append(item.getVendor()).append(", ").append(item.getId()).append(')');
+        }
+        return s.append(']').toString();
+    }
+
+    /**
+     * Deletes a file, or a folder and everything in it.
+     * @param f The file or folder.
+     */
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        f.delete();
+    }
+
+    /**
+     * Prints a message to console, with a newline
+     * char appended.
+     * @param msg Message to be displayed.
+     */
+    private static void msg(Object msg) {
+        System.out.print(msg + "\n");
+    }
+}